@@ -20,8 +20,15 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import edu.columbia.ldpd.hrwa.blobstore.BlobStore;
+import edu.columbia.ldpd.hrwa.mysql.MySQLHelper;
+import edu.columbia.ldpd.hrwa.mysql.WebArchiveRecordLoader;
+import edu.columbia.ldpd.hrwa.processorrunnables.ArchiveRecordMaterializationFilter;
+import edu.columbia.ldpd.hrwa.solr.ASFSolrIndexer;
 import edu.columbia.ldpd.hrwa.tasks.ArchiveFileReadTestTask;
 import edu.columbia.ldpd.hrwa.tasks.ArchiveToMySQLTask;
+import edu.columbia.ldpd.hrwa.tasks.CompactBlobStoreTask;
+import edu.columbia.ldpd.hrwa.tasks.RebuildExtractedTextCacheTask;
 import edu.columbia.ldpd.hrwa.tasks.DownloadArchiveFilesFromArchivitTask;
 import edu.columbia.ldpd.hrwa.tasks.HrwaTask;
 import edu.columbia.ldpd.hrwa.tasks.MySQLArchiveRecordsToSolrTask;
@@ -59,16 +66,22 @@ public class HrwaManager {
     public static String    	tmpDirPath				= "." + File.separatorChar + "tmp";
     public static String		logFilePrefix 			= new SimpleDateFormat("yy-MM-dd-HHmmss").format(new Date()); //default value, can be overridden by command line args
     public static String 		blobDirPath 			= "." + File.separatorChar + "blobs";
+    public static String		blobStoreMode			= BlobStore.BLOB_STORE_MODE_FILES; //default, can be overridden
 	public static String		archiveFileDirPath		= "." + File.separatorChar + "sample_data"; //default, should be overridden
+	public static String		languageDetectionProfileDirPath = ""; //default, can be overridden (empty disables language detection)
 	public static String		archiveItUsername		= ""; //default, should be overridden
 	public static String		archiveItPassword		= ""; //default, should be overridden
 	public static int			archiveItCollectionId 	= -1; //default, should be overridden
+	public static int			maxConcurrentDownloads	= 4; //default, can be overridden
+	public static int			maxDownloadsPerHost		= 4; //default, can be overridden
 	public static String		mysqlUrl			= ""; //default, should be overridden
 	public static String		mysqlDatabase		= ""; //default, should be overridden
 	public static String		mysqlUsername		= ""; //default, should be overridden
 	public static String		mysqlPassword		= ""; //default, should be overridden
 	public static String		pathToRelatedHostsFile = ""; //default, should be overridden
 	public static String		requiredmonth = "";
+	public static boolean		streamQuarterlyMaintenance = false; //default, can be overridden
+	public static boolean		atomicSiteMetadataUpdates = false; //default, can be overridden
 	
 	public static final String		MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME			= "web_archive_records";
 	public static final String		MYSQL_MIMETYPE_CODES_TABLE_NAME					= "mimetype_codes";
@@ -77,12 +90,23 @@ public class HrwaManager {
 	public static final String		MYSQL_FULLY_INDEXED_ARCHIVE_FILES_TABLE_NAME 	= "fully_indexed_archive_files";
 	
 	public static int				mysqlCommitBatchSize							= 1000; //default, can be overridden
+	public static String			mysqlBulkLoadMode								= WebArchiveRecordLoader.MYSQL_BULK_LOAD_MODE_INSERT; //default, can be overridden
 	public static int				mySQLToSolrRowRetrievalSize						= 1000; //default, can be overridden
 	
 	public static int				regularMaintenanceMySQLRowRetrievalSize			= 1000; //default, can be overridden
 	
+	public static long				archiveFileShardSizeInBytes						= 256L * 1048576L; //default, can be overridden (0 disables archive file splitting)
+	public static int				payloadDigestCacheSize							= 100000; //default, can be overridden (0 disables payload deduplication)
+	public static long				extractedTextCacheSizeInMegabytes				= 0; //default, can be overridden (0 disables the extracted text cache)
+	public static String			materializationFilterRules						= ""; //default, can be overridden (empty means that every record's payload is read)
+	
 	public static String			asfSolrUrl										= ""; //default, should be overridden
 	public static String			fsfSolrUrl										= ""; //default, should be overridden
+	public static String			solrExtractionMode								= ASFSolrIndexer.SOLR_EXTRACTION_MODE_SERVER; //default, can be overridden
+	public static int				solrDocumentBatchSize							= 100; //default, can be overridden
+	public static int				solrCommitWithinMs								= 60000; //default, can be overridden (0 disables commitWithin)
+	public static long				solrSoftCommitIntervalMs						= 0; //default, can be overridden (0 disables periodic soft commits)
+	public static long				solrHardCommitIntervalMs						= 600000; //default, can be overridden (0 means only hard commit at the end)
 	
 	public static int maxUsableProcessors = HrwaManager.maxAvailableProcessors - 1; //by default, might be overridden
 	public static long maxMemoryThresholdInBytesForStartingNewThreadProcesses = (int)(maxAvailableMemoryInBytes*.75); //default, might be overridden
@@ -98,6 +122,8 @@ public class HrwaManager {
 	private static boolean runMySQLArchiveRecordsToSolrTask = false;
 	private static boolean runRegularMaintenanceTask		= false;
 	private static boolean runQuarterlyMaintenanceTask		= false;
+	private static boolean runCompactBlobStoreTask			= false;
+	private static boolean runRebuildExtractedTextCacheTask	= false;
 	
 	private static boolean runTalkToClioTestTask			= false;
 	private static boolean runArchiveFileReadTestTask		= false;
@@ -191,12 +217,20 @@ public class HrwaManager {
 		if(runQuarterlyMaintenanceTask) {
 			tasksToRun.add(new QuarterlyMaintenanceTask());
 		}
+		if(runCompactBlobStoreTask) {
+			tasksToRun.add(new CompactBlobStoreTask());
+		}
+		if(runRebuildExtractedTextCacheTask) {
+			tasksToRun.add(new RebuildExtractedTextCacheTask());
+		}
 		
 		//And run those tasks
 		HrwaManager.writeToLog("Total number of tasks to run: " + tasksToRun.size(), true, LOG_TYPE_STANDARD);
 		for(HrwaTask singleTask : tasksToRun) {
 			singleTask.runTask();
 		}
+		
+		MySQLHelper.shutdownConnectionPool();
 
 		HrwaManager.writeToLog(
 				"---------------------------------------------\n" +
@@ -349,6 +383,26 @@ public class HrwaManager {
 	        	System.out.println("Out Directory For Blob Files: " + blobDirPath);
 	        }
 	        
+	        if ( cmdLine.hasOption( "languagedetectionprofiledir") ) {
+	        	languageDetectionProfileDirPath = cmdLine.getOptionValue( "languagedetectionprofiledir" );
+	        	System.out.println("Language detection profile directory: " + languageDetectionProfileDirPath);
+	        	
+	        	if( ! new File(languageDetectionProfileDirPath).isDirectory() ) {
+	        		System.out.println("Error: The --languagedetectionprofiledir must be an existing directory. Please change the command line argument value that you supplied.");
+	        		System.exit(HrwaManager.EXIT_CODE_ERROR);
+	        	}
+	        }
+	        
+	        if ( cmdLine.hasOption( "blobstoremode") ) {
+	        	blobStoreMode = cmdLine.getOptionValue( "blobstoremode" );
+	        	System.out.println("Blob store mode: " + blobStoreMode);
+	        	
+	        	if( ! BlobStore.isValidBlobStoreMode(blobStoreMode) ) {
+	        		System.out.println("Error: The --blobstoremode must be '" + BlobStore.BLOB_STORE_MODE_FILES + "', '" + BlobStore.BLOB_STORE_MODE_PACKED + "' or '" + BlobStore.BLOB_STORE_MODE_NONE + "'. Please change the command line argument value that you supplied.");
+	    			System.exit(HrwaManager.EXIT_CODE_ERROR);
+	        	}
+	        }
+	        
 	        if ( cmdLine.hasOption( "logdir") ) {
 	        	logDirPath = cmdLine.getOptionValue( "logdir" );
 	        	System.out.println("Log Directory Path Set Manually: " + logDirPath);
@@ -374,6 +428,26 @@ public class HrwaManager {
 	        	System.out.println("An archive-it collection id was supplied.");	        	
 	        }
 	        
+	        if ( cmdLine.hasOption( "maxconcurrentdownloads") ) {
+	        	maxConcurrentDownloads = Integer.parseInt(cmdLine.getOptionValue( "maxconcurrentdownloads" ));
+	        	System.out.println("The maximum number of concurrent downloads has been set to: " + HrwaManager.maxConcurrentDownloads);
+	        	
+	        	if(HrwaManager.maxConcurrentDownloads < 1) {
+	    			System.out.println("Error: The --maxconcurrentdownloads must be >= 1. Please change the command line argument value that you supplied.");
+	    			System.exit(HrwaManager.EXIT_CODE_ERROR);
+	    		}
+	        }
+	        
+	        if ( cmdLine.hasOption( "maxdownloadsperhost") ) {
+	        	maxDownloadsPerHost = Integer.parseInt(cmdLine.getOptionValue( "maxdownloadsperhost" ));
+	        	System.out.println("The maximum number of concurrent downloads per host has been set to: " + HrwaManager.maxDownloadsPerHost);
+	        	
+	        	if(HrwaManager.maxDownloadsPerHost < 1) {
+	    			System.out.println("Error: The --maxdownloadsperhost must be >= 1. Please change the command line argument value that you supplied.");
+	    			System.exit(HrwaManager.EXIT_CODE_ERROR);
+	    		}
+	        }
+	        
 	        if ( cmdLine.hasOption( "maxusableprocessors") ) {
 	        	if( Integer.parseInt(cmdLine.getOptionValue( "maxusableprocessors" )) > HrwaManager.maxAvailableProcessors ) {
 	        		System.err.println("Error: Supplied command line value for maxusableprocessors (" + Integer.parseInt(cmdLine.getOptionValue( "maxusableprocessors" )) + ") is greater than the number of available processors on this machine (" + HrwaManager.maxAvailableProcessors + ")");
@@ -419,6 +493,16 @@ public class HrwaManager {
 	    		}
 	        }
 	        
+	        if ( cmdLine.hasOption( "mysqlbulkloadmode") ) {
+	        	mysqlBulkLoadMode = cmdLine.getOptionValue( "mysqlbulkloadmode" );
+	        	System.out.println("MySQL bulk load mode: " + mysqlBulkLoadMode);
+	        	
+	        	if( ! WebArchiveRecordLoader.isValidMySQLBulkLoadMode(mysqlBulkLoadMode) ) {
+	        		System.out.println("Error: The --mysqlbulkloadmode must be '" + WebArchiveRecordLoader.MYSQL_BULK_LOAD_MODE_INSERT + "' or '" + WebArchiveRecordLoader.MYSQL_BULK_LOAD_MODE_LOAD_DATA + "'. Please change the command line argument value that you supplied.");
+	    			System.exit(HrwaManager.EXIT_CODE_ERROR);
+	        	}
+	        }
+	        
 	        if ( cmdLine.hasOption( "mysqltosolrrowretrievalsize") ) {
 	        	mySQLToSolrRowRetrievalSize = Integer.parseInt(cmdLine.getOptionValue( "mysqltosolrrowretrievalsize" ));
 	        	System.out.println("A MySQL to Solr row retrieval size has been supplied.");
@@ -441,6 +525,48 @@ public class HrwaManager {
 	        
 	        
 	        
+	        if ( cmdLine.hasOption( "archivefileshardsizemb") ) {
+	        	archiveFileShardSizeInBytes = Long.parseLong(cmdLine.getOptionValue( "archivefileshardsizemb" )) * 1048576L;
+	        	System.out.println("An archive file shard size has been supplied: " + HrwaManager.bytesToMegabytes(archiveFileShardSizeInBytes) + " MB");
+	        	
+	        	if(HrwaManager.archiveFileShardSizeInBytes < 0) {
+	    			System.out.println("Error: The --archivefileshardsizemb must be >= 0. Please change the command line argument value that you supplied.");
+	    			System.exit(HrwaManager.EXIT_CODE_ERROR);
+	    		}
+	        }
+	        
+	        if ( cmdLine.hasOption( "payloaddigestcachesize") ) {
+	        	payloadDigestCacheSize = Integer.parseInt(cmdLine.getOptionValue( "payloaddigestcachesize" ));
+	        	System.out.println("A payload digest cache size has been supplied: " + payloadDigestCacheSize);
+	        	
+	        	if(HrwaManager.payloadDigestCacheSize < 0) {
+	    			System.out.println("Error: The --payloaddigestcachesize must be >= 0. Please change the command line argument value that you supplied.");
+	    			System.exit(HrwaManager.EXIT_CODE_ERROR);
+	    		}
+	        }
+	        
+	        if ( cmdLine.hasOption( "extractedtextcachesize") ) {
+	        	extractedTextCacheSizeInMegabytes = Long.parseLong(cmdLine.getOptionValue( "extractedtextcachesize" ));
+	        	System.out.println("An extracted text cache size has been supplied: " + extractedTextCacheSizeInMegabytes + " MB");
+	        	
+	        	if(HrwaManager.extractedTextCacheSizeInMegabytes < 0) {
+	    			System.out.println("Error: The --extractedtextcachesize must be >= 0. Please change the command line argument value that you supplied.");
+	    			System.exit(HrwaManager.EXIT_CODE_ERROR);
+	    		}
+	        }
+	        
+	        if ( cmdLine.hasOption( "materializationfilter") ) {
+	        	materializationFilterRules = cmdLine.getOptionValue( "materializationfilter" );
+	        	System.out.println("Materialization filter rules have been supplied: " + materializationFilterRules);
+	        	
+	        	try {
+	        		ArchiveRecordMaterializationFilter.parse(materializationFilterRules);
+	        	} catch (IllegalArgumentException e) {
+	        		System.out.println("Error: " + e.getMessage() + ". The --materializationfilter must be a comma-separated list of '" + ArchiveRecordMaterializationFilter.RULE_UNLINKED_HOST + "' and '" + ArchiveRecordMaterializationFilter.RULE_HEADER_MIMETYPE_PREFIX + "<prefix>' rules. Please change the command line argument value that you supplied.");
+	    			System.exit(HrwaManager.EXIT_CODE_ERROR);
+	        	}
+	        }
+	        
 	        if ( cmdLine.hasOption( "requiredmonth") ) {
 	        	requiredmonth = cmdLine.getOptionValue( "requiredmonth" );
 
@@ -458,6 +584,56 @@ public class HrwaManager {
 	        	System.out.println("An FSF Solr URL has been supplied.");
 	        }
 	        
+	        if ( cmdLine.hasOption( "solrextractionmode") ) {
+	        	solrExtractionMode = cmdLine.getOptionValue( "solrextractionmode" );
+	        	System.out.println("Solr extraction mode: " + solrExtractionMode);
+	        	
+	        	if( ! ASFSolrIndexer.isValidSolrExtractionMode(solrExtractionMode) ) {
+	        		System.out.println("Error: The --solrextractionmode must be either '" + ASFSolrIndexer.SOLR_EXTRACTION_MODE_SERVER + "' or '" + ASFSolrIndexer.SOLR_EXTRACTION_MODE_LOCAL + "'. Please change the command line argument value that you supplied.");
+	    			System.exit(HrwaManager.EXIT_CODE_ERROR);
+	        	}
+	        }
+	        
+	        if ( cmdLine.hasOption( "solrdocumentbatchsize") ) {
+	        	solrDocumentBatchSize = Integer.parseInt(cmdLine.getOptionValue( "solrdocumentbatchsize" ));
+	        	System.out.println("A Solr document batch size has been supplied: " + solrDocumentBatchSize);
+	        	
+	        	if(HrwaManager.solrDocumentBatchSize < 1) {
+	    			System.out.println("Error: The --solrdocumentbatchsize must be >= 1. Please change the command line argument value that you supplied.");
+	    			System.exit(HrwaManager.EXIT_CODE_ERROR);
+	    		}
+	        }
+	        
+	        if ( cmdLine.hasOption( "solrcommitwithinms") ) {
+	        	solrCommitWithinMs = Integer.parseInt(cmdLine.getOptionValue( "solrcommitwithinms" ));
+	        	System.out.println("A Solr commitWithin value has been supplied: " + solrCommitWithinMs + " ms");
+	        	
+	        	if(HrwaManager.solrCommitWithinMs < 0) {
+	    			System.out.println("Error: The --solrcommitwithinms must be >= 0. Please change the command line argument value that you supplied.");
+	    			System.exit(HrwaManager.EXIT_CODE_ERROR);
+	    		}
+	        }
+	        
+	        if ( cmdLine.hasOption( "solrsoftcommitintervalms") ) {
+	        	solrSoftCommitIntervalMs = Long.parseLong(cmdLine.getOptionValue( "solrsoftcommitintervalms" ));
+	        	System.out.println("A Solr soft commit interval has been supplied: " + solrSoftCommitIntervalMs + " ms");
+	        	
+	        	if(HrwaManager.solrSoftCommitIntervalMs < 0) {
+	    			System.out.println("Error: The --solrsoftcommitintervalms must be >= 0. Please change the command line argument value that you supplied.");
+	    			System.exit(HrwaManager.EXIT_CODE_ERROR);
+	    		}
+	        }
+	        
+	        if ( cmdLine.hasOption( "solrhardcommitintervalms") ) {
+	        	solrHardCommitIntervalMs = Long.parseLong(cmdLine.getOptionValue( "solrhardcommitintervalms" ));
+	        	System.out.println("A Solr hard commit interval has been supplied: " + solrHardCommitIntervalMs + " ms");
+	        	
+	        	if(HrwaManager.solrHardCommitIntervalMs < 0) {
+	    			System.out.println("Error: The --solrhardcommitintervalms must be >= 0. Please change the command line argument value that you supplied.");
+	    			System.exit(HrwaManager.EXIT_CODE_ERROR);
+	    		}
+	        }
+	        
 	        //Test Task
 	        if( cmdLine.hasOption( "talktocliotest") ) {
 	        	HrwaManager.runTalkToClioTestTask = true;
@@ -505,6 +681,32 @@ public class HrwaManager {
 	        	HrwaManager.runQuarterlyMaintenanceTask = true;
 	        	System.out.println("* Will run QuarterlyMaintenanceTask.");
 	        }
+	        
+	        if ( cmdLine.hasOption( "streamquarterlymaintenance") ) {
+	        	HrwaManager.streamQuarterlyMaintenance = true;
+	        	System.out.println("The QuarterlyMaintenanceTask will index each archive file as soon as it has been downloaded.");
+	        }
+	        
+	        if ( cmdLine.hasOption( "atomicsitemetadataupdates") ) {
+	        	HrwaManager.atomicSiteMetadataUpdates = true;
+	        	System.out.println("Site metadata changes will be sent to Solr as atomic updates.");
+	        }
+	        
+	        //Task 7: compactblobstore
+	        if ( cmdLine.hasOption( "compactblobstore") ) {
+	        	HrwaManager.runCompactBlobStoreTask = true;
+	        	System.out.println("* Will run CompactBlobStoreTask.");
+	        }
+	        
+	        //Task 8: rebuildextractedtextcache
+	        if ( cmdLine.hasOption( "rebuildextractedtextcache") ) {
+	        	if(HrwaManager.extractedTextCacheSizeInMegabytes == 0) {
+	        		System.out.println("Error: The -rebuildextractedtextcache task requires an -extractedtextcachesize value greater than 0.");
+	        		System.exit(HrwaManager.EXIT_CODE_ERROR);
+	        	}
+	        	HrwaManager.runRebuildExtractedTextCacheTask = true;
+	        	System.out.println("* Will run RebuildExtractedTextCacheTask.");
+	        }
 
 	        
         }
@@ -539,6 +741,10 @@ public class HrwaManager {
         options.addOption( "mysqlarchiverecordstosolr",	false, "Run MySQLArchiveRecordsToSolrTask" );
         options.addOption( "regularmaintenance",	false, "Run RegularMaintenanceTask" );
         options.addOption( "quarterlymaintenance",	false, "Run QuarterlyMaintenanceTask" );
+        options.addOption( "compactblobstore",	false, "Run CompactBlobStoreTask" );
+        options.addOption( "rebuildextractedtextcache",	false, "Run RebuildExtractedTextCacheTask" );
+        options.addOption( "streamquarterlymaintenance",	false, "Run the download, MySQL and Solr stages of the QuarterlyMaintenanceTask at the same time, indexing each archive file as soon as it has been downloaded." );
+        options.addOption( "atomicsitemetadataupdates",	false, "When only the metadata of a site has changed, update the site fields of its Solr documents with atomic updates instead of re-extracting every record. Requires a Solr 4 ASF schema that stores every field except copyField destinations, like the solr4.1/solr4.2 schemas in solrconf/asf. Documents indexed under an older schema need a full re-index first." );
         
         options.addOption(
         		OptionBuilder.withArgName( "directory" )
@@ -568,6 +774,20 @@ public class HrwaManager {
                 .create( "blobdir" )
         );
         
+        options.addOption(
+        		OptionBuilder.withArgName( "directory" )
+                .hasArg()
+                .withDescription( "Directory with the language-detection profiles (e.g. src/main/resources/langdetect-profiles). When supplied, the language of every html/text record is detected during the ArchiveToMySQLTask and stored in the language_detected MySQL column and Solr field. In local extraction mode, records without a detected language get one from their extracted text. Language detection is disabled if this isn't supplied." )
+                .create( "languagedetectionprofiledir" )
+        );
+        
+        options.addOption(
+        		OptionBuilder.withArgName( "string" )
+                .hasArg()
+                .withDescription( "How archive record blobs are stored: 'files' (one .blob and one .blob.header file per record), 'packed' (appended to large pack files in <blobdir>/packs) or 'none' (no blobs are written; records are read straight out of their archive files at Solr indexing time, so archive files must not be moved after indexing). Defaults to 'files'." )
+                .create( "blobstoremode" )
+        );
+        
         options.addOption(
         		OptionBuilder.withArgName( "directory" )
                 .hasArg()
@@ -603,6 +823,20 @@ public class HrwaManager {
                 .create( "archiveitcollectionid" )
         );
         
+        options.addOption(
+        		OptionBuilder.withArgName( "integer" )
+                .hasArg()
+                .withDescription( "The maximum number of archive files that DownloadArchiveFilesFromArchivitTask downloads at the same time. Defaults to 4." )
+                .create( "maxconcurrentdownloads" )
+        );
+        
+        options.addOption(
+        		OptionBuilder.withArgName( "integer" )
+                .hasArg()
+                .withDescription( "The maximum number of archive files that DownloadArchiveFilesFromArchivitTask downloads from any single host at the same time. Defaults to 4." )
+                .create( "maxdownloadsperhost" )
+        );
+        
         options.addOption(
         		OptionBuilder.withArgName( "integer" )
                 .hasArg()
@@ -652,6 +886,13 @@ public class HrwaManager {
                 .create( "mysqlcommitbatchsize" )
         );
         
+        options.addOption(
+        		OptionBuilder.withArgName( "string" )
+                .hasArg()
+                .withDescription( "How ArchiveToMySQLTask sends new web archive records to MySQL: 'insert' (batched INSERTs, rewritten into multi-row INSERTs) or 'loaddata' (LOAD DATA LOCAL INFILE, streamed from memory; requires local_infile to be enabled on the MySQL server). Either way, records are sent and committed in batches of -mysqlcommitbatchsize. Defaults to 'insert'." )
+                .create( "mysqlbulkloadmode" )
+        );
+        
         options.addOption(
         		OptionBuilder.withArgName( "integer" )
                 .hasArg()
@@ -666,6 +907,34 @@ public class HrwaManager {
                 .create( "regularmaintenancemysqlrowretrievalsize" )
         );
         
+        options.addOption(
+        		OptionBuilder.withArgName( "integer" )
+                .hasArg()
+                .withDescription( "Archive file shard size in MB (e.g. archive files of 512 MB or more are split into 256 MB shards that are read in parallel). Set to 0 to read every archive file on a single thread. Defaults to 256." )
+                .create( "archivefileshardsizemb" )
+        );
+        
+        options.addOption(
+        		OptionBuilder.withArgName( "integer" )
+                .hasArg()
+                .withDescription( "Number of recently seen payload digests to remember while indexing archive files into MySQL. Records whose payload was already seen reuse the existing blob and detected mimetype. Set to 0 to write and detect every record. Defaults to 100000." )
+                .create( "payloaddigestcachesize" )
+        );
+        
+        options.addOption(
+        		OptionBuilder.withArgName( "megabytes" )
+                .hasArg()
+                .withDescription( "Maximum size of the extracted text cache in <blobdir>/extracted_text. Text that is extracted from a payload is kept there, keyed by payload digest, so that re-indexing the same payload doesn't have to extract it again. Least recently used entries are evicted. Set to 0 to disable. Defaults to 0." )
+                .create( "extractedtextcachesize" )
+        );
+        
+        options.addOption(
+        		OptionBuilder.withArgName( "rules" )
+                .hasArg()
+                .withDescription( "Comma-separated rules for status 200 records whose payloads aren't read while indexing archive files into MySQL: 'unlinkedhost' (the record's host is neither a site nor a related host) and 'headermimetype:<prefix>' (e.g. headermimetype:image/). Matching records still get a MySQL row, marked as DEFERRED, but no blob or detected mimetype. Regular maintenance reads the payloads of DEFERRED records from their archive files once they're linked to a site, unless a headermimetype rule still matches. Defaults to no rules." )
+                .create( "materializationfilter" )
+        );
+        
         options.addOption(
         		OptionBuilder.withArgName( "string" )
                 .hasArg()
@@ -680,6 +949,41 @@ public class HrwaManager {
                 .create( "fsfsolrurl" )
         );
         
+        options.addOption(
+        		OptionBuilder.withArgName( "string" )
+                .hasArg()
+                .withDescription( "How the contents of archive records are extracted during Solr indexing: 'server' (blobs are sent one at a time to the Solr Cell extracting request handler) or 'local' (text is extracted with Tika on this machine and documents are sent to Solr in batches). Defaults to 'server'." )
+                .create( "solrextractionmode" )
+        );
+        
+        options.addOption(
+        		OptionBuilder.withArgName( "integer" )
+                .hasArg()
+                .withDescription( "Number of documents per batch sent to Solr when -solrextractionmode is 'local'. Defaults to 100." )
+                .create( "solrdocumentbatchsize" )
+        );
+        
+        options.addOption(
+        		OptionBuilder.withArgName( "integer" )
+                .hasArg()
+                .withDescription( "Send documents to Solr with this commitWithin value (in milliseconds), instead of hard committing after every MySQL to Solr row retrieval window. Set this and -solrsoftcommitintervalms to 0 to go back to hard commits after every window. Defaults to 60000." )
+                .create( "solrcommitwithinms" )
+        );
+        
+        options.addOption(
+        		OptionBuilder.withArgName( "integer" )
+                .hasArg()
+                .withDescription( "Issue a soft commit to Solr every this many milliseconds while indexing. Defaults to 0 (disabled)." )
+                .create( "solrsoftcommitintervalms" )
+        );
+        
+        options.addOption(
+        		OptionBuilder.withArgName( "integer" )
+                .hasArg()
+                .withDescription( "When not hard committing after every window, also hard commit (and reset the hrwa_manager_todo values of the indexed rows) every this many milliseconds. Set to 0 to only hard commit once at the end. Defaults to 600000." )
+                .create( "solrhardcommitintervalms" )
+        );
+        
         options.addOption(
         		OptionBuilder.withArgName( "string" )
                 .hasArg()
@@ -739,13 +1043,11 @@ public class HrwaManager {
 	}
 	
 	public static String getHoststringFromUrl(String url) {
-		try {
-			return MetadataUtils.parseHoststring(url);
-		} catch (MalformedURLException e) {
-			//e.printStackTrace();
+		String hoststring = MetadataUtils.extractHoststring(url);
+		if(hoststring == null) {
 			HrwaManager.writeToLog("Unable to parse url: " + url, true, HrwaManager.LOG_TYPE_ERROR);
-			return null;
 		}
+		return hoststring;
 	}
 	
 	public static int bytesToMegabytes(long valueInBytes) {
@@ -7,23 +7,42 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.StringReader;
-import java.lang.reflect.Field;
-import java.util.ArrayDeque;
+import java.util.regex.Pattern;
 
 import com.cybozu.labs.langdetect.Detector;
 import com.cybozu.labs.langdetect.DetectorFactory;
 import com.cybozu.labs.langdetect.LangDetectException;
 import com.cybozu.labs.langdetect.Language;
 
+/**
+ * Detects the language of a document from a bounded sample of its text.
+ *
+ * Instances aren't thread-safe (each one reuses its own sample buffer), so every thread that does language detection
+ * should create its own LanguageDetector, just like with MimetypeDetector.  Every detection gets a fresh Detector
+ * from the DetectorFactory.  Detectors only point at the shared (read-only) language profiles, so creating one is
+ * cheap and no locking is needed.
+ */
 public class LanguageDetector {
 
+    //Only the first MAX_SAMPLE_LENGTH characters of a document are looked at.  Detection accuracy stops improving
+    //well before this, and it keeps detection time flat no matter how large the document is.
+    public static final int MAX_SAMPLE_LENGTH = 4096;
+
+    //Detections that are less certain than this aren't stored
+    public static final double MIN_PROBABILITY = 0.5;
+
+    private static final Pattern SCRIPT_AND_STYLE_PATTERN = Pattern.compile("(?is)<(script|style)\\b.*?(</\\1\\s*>|\\z)");
+    private static final Pattern COMMENT_PATTERN = Pattern.compile("(?s)<!--.*?(-->|\\z)");
+    private static final Pattern TAG_OR_ENTITY_PATTERN = Pattern.compile("(?s)<[^>]*(>|\\z)|&#?\\w+;");
+
     private static boolean profileIsLoaded = false;
     // If the language detection fails, we return a new Language object
     // where the detected language == null and the language detection
     // probability == 0
     private static Language FAILURE = new Language(null,0);
 
+    private final char[] sampleBuffer = new char[MAX_SAMPLE_LENGTH];
+
     public LanguageDetector(String profileDirectory)
     {
         loadProfileOnce(profileDirectory);
@@ -32,7 +51,7 @@ public class LanguageDetector {
     /**
      * DetectorFactory throws an error if you try to load a profile more than once during the entire run of the application.
      */
-    public static void loadProfileOnce(String profileDirectory) {
+    public static synchronized void loadProfileOnce(String profileDirectory) {
         if( ! profileIsLoaded )
         {
             try {
@@ -45,31 +64,42 @@ public class LanguageDetector {
         }
     }
 
+    /**
+     * Language detection is only done when a profile directory has been supplied.
+     */
+    public static boolean isEnabled() {
+        return HrwaManager.languageDetectionProfileDirPath.length() > 0;
+    }
+
+    /**
+     * Returns true for mimetypes whose raw bytes are (marked up) text, so that their language can be detected
+     * without extracting their content first.
+     */
+    public static boolean isTextMimetype(String mimetype) {
+        return mimetype != null && (mimetype.startsWith("text/") || mimetype.equals("application/xhtml+xml") || mimetype.equals("application/xml"));
+    }
+
+    /**
+     * Removes scripts, styles, comments, tags and entities, so that only the readable text of an html/xml document is left.
+     * Unclosed constructs at the end (e.g. in a truncated prefix) are removed too.
+     */
+    public static String stripMarkup(String markup) {
+        String text = SCRIPT_AND_STYLE_PATTERN.matcher(markup).replaceAll(" ");
+        text = COMMENT_PATTERN.matcher(text).replaceAll(" ");
+        return TAG_OR_ENTITY_PATTERN.matcher(text).replaceAll(" ");
+    }
+
     public Language getLanguage(Reader reader) throws IOException {
 
         if(reader == null) return FAILURE;
 
-        //Use DetectorFactory to create a new Detector instance.
-        //This needs to be done every single time that you perform detection a new string/file
-        //http://code.google.com/p/language-detection/issues/detail?id=15
-        Detector detector = null;
-        try {
-            detector = checkout();
-            //Send the text-to-detect to the detector
-            detector.append(reader);
-            // "The Detector#getProbabilities method returns a languages list with their probabilities. The list is in order of probability."
-            // http://code.google.com/p/language-detection/wiki/Tutorial
-            // So we'll return the first one in the list! If this method fails
-            // to detect a language, then the LangDetectException below will
-            // occur and we won't have an ArrayList to work with.
-            return detector.getProbabilities().get(0);
-        } catch (Exception e) {
-            //e.printStackTrace();
-        	if(HrwaManager.verbose) { System.err.println("Notice: Unable to detect a language for the given Reader."); }
-            return FAILURE;
-        } finally {
-            if (detector != null) checkin(detector);
+        int sampleLength = 0;
+        int len = 0;
+        while(sampleLength < MAX_SAMPLE_LENGTH && (len = reader.read(sampleBuffer, sampleLength, MAX_SAMPLE_LENGTH - sampleLength)) != -1) {
+            sampleLength += len;
         }
+
+        return getLanguage(sampleBuffer, sampleLength);
     }
 
     // Not sure why this one implementation should throw the IOException
@@ -78,26 +108,22 @@ public class LanguageDetector {
         return getLanguage(new InputStreamReader(inputStream));
     }
 
-
-    /**
-     * Don't use this method if you can help it.  Bad performance compared to other getLanguage methods.
-     * @param stringToScan
-     * @return
-     */
     public Language getLanguage(String stringToScan) {
-        // this is a performance hit, but we never use this method anyway
-        try {
-            return getLanguage(new StringReader(stringToScan));
-        } catch (IOException e) {
-            //e.printStackTrace();
-        	if(HrwaManager.verbose) { System.err.println("Notice: Unable to detect a language for the given String."); }
-            return FAILURE;
-        }
+        if(stringToScan == null) return FAILURE;
+
+        int sampleLength = Math.min(stringToScan.length(), MAX_SAMPLE_LENGTH);
+        stringToScan.getChars(0, sampleLength, sampleBuffer, 0);
+        return getLanguage(sampleBuffer, sampleLength);
     }
 
     public Language getLanguage(File file) {
         try {
-            return getLanguage(new BufferedReader(new FileReader(file)));
+            Reader reader = new BufferedReader(new FileReader(file));
+            try {
+                return getLanguage(reader);
+            } finally {
+                reader.close();
+            }
         } catch (Exception e) {
             //e.printStackTrace();
         	if(HrwaManager.verbose) { System.err.println("Notice: Unable to detect a language for the given File."); }
@@ -105,48 +131,33 @@ public class LanguageDetector {
         }
     }
 
-    private static ArrayDeque<Detector> DETECTOR_POOL = new ArrayDeque<Detector>();
-
-    private static Detector checkout() throws LangDetectException {
-        synchronized(DETECTOR_POOL) {
-            if (DETECTOR_POOL.isEmpty()) {
-                return DetectorFactory.create();
-            }
-            else {
-                return DETECTOR_POOL.pop();
-            }
-        }
-    }
-    private static void checkin(Detector detector) {
-        try {
-            recycle(detector);
-        } catch (Exception e) {
-            System.err.println("Could not recycle language detector: " + e.toString());
-            return;
-        }
-        synchronized(DETECTOR_POOL) {
-            DETECTOR_POOL.push(detector);
-        }
+    /**
+     * Returns the language code (e.g. "fr") of the given text, or null if the language couldn't be detected with at least MIN_PROBABILITY.
+     */
+    public String getLanguageCode(String text) {
+        Language language = getLanguage(text);
+        return language.prob >= MIN_PROBABILITY ? language.lang : null;
     }
-    private static Field TEXT_FIELD = getDetectorField("text");
-    private static Field LANGPROB_FIELD = getDetectorField("langprob");
-    private static Field ALPHA_FIELD = getDetectorField("alpha");
-    private static Field getDetectorField(String name) {
+
+    private Language getLanguage(char[] sample, int sampleLength) {
+
+        if(sampleLength == 0) return FAILURE;
+
         try {
-            Field result = Detector.class.getDeclaredField(name);
-            result.setAccessible(true);
-            return result;
+            Detector detector = DetectorFactory.create();
+            detector.setMaxTextLength(MAX_SAMPLE_LENGTH);
+            //Send the text-to-detect to the detector
+            detector.append(new String(sample, 0, sampleLength));
+            // "The Detector#getProbabilities method returns a languages list with their probabilities. The list is in order of probability."
+            // http://code.google.com/p/language-detection/wiki/Tutorial
+            // So we'll return the first one in the list! If this method fails
+            // to detect a language, then the LangDetectException below will
+            // occur and we won't have an ArrayList to work with.
+            return detector.getProbabilities().get(0);
         } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
+            //e.printStackTrace();
+        	if(HrwaManager.verbose) { System.err.println("Notice: Unable to detect a language for the given text."); }
+            return FAILURE;
         }
     }
-
-    private static void recycle(Detector d) throws Exception {
-        StringBuffer x = (StringBuffer)TEXT_FIELD.get(d);
-        //x.trimToSize();
-        x.setLength(0);
-        LANGPROB_FIELD.set(d,  null);
-        ALPHA_FIELD.set(d,0.5);
-    }
 }
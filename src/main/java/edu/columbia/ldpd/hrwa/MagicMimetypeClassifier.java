@@ -0,0 +1,385 @@
+package edu.columbia.ldpd.hrwa;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Table-driven magic number and markup sniffer for the handful of formats that make up most of our payloads.
+ * MimetypeDetector asks it first and only falls back to Tika when it returns null.
+ *
+ * Every signature below is (a subset of) a magic rule from Tika 1.3's tika-mimetypes.xml, so a match here is also a
+ * match for Tika.  That isn't enough on its own, because Tika picks the first matching rule in priority order, so the
+ * classifier also declines when any of Tika's rules for other mimetypes that could match the same content (at an equal
+ * or higher priority) matches, e.g. the application/xhtml+xml rule for "&lt;html xmlns=" anywhere in the first 8KB.
+ * Tika also replaces a text/html match with the mimetype of the XML root element, so html is only returned when the
+ * root element is one of the html elements below and has no namespace.  Markup signatures must be the first tag in the
+ * content (after an optional doctype for the root element), so that e.g. an RSS feed with a &lt;title&gt; near the
+ * start isn't taken for html.  Container formats (zip, OLE2) are never classified here.  File name hints are applied
+ * afterwards by MimetypeDetector, the same way Tika applies them.  MimetypeDetectorDifferentialTest checks that the
+ * results are identical to Tika's.
+ *
+ * Stateless and thread-safe.
+ */
+public class MagicMimetypeClassifier {
+
+	//Binary signatures, all at offset 0
+	private static final Signature[] SIGNATURES = {
+		new Signature("application/pdf", "%PDF-", 0),
+		new Signature("application/rtf", "{\\rtf", 0),
+		new Signature("image/gif", "GIF87a", 0),
+		new Signature("image/gif", "GIF89a", 0),
+		new Signature("image/jpeg", new byte[] {(byte)0xFF, (byte)0xD8, (byte)0xFF}, 0),
+		new Signature("image/png", new byte[] {(byte)0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A}, 0)
+	};
+
+	//Markup signatures, matched against the first tag only.  Tika only matches these exact spellings, up to these offsets.
+	private static final Signature[] MARKUP_SIGNATURES = {
+		new Signature("text/html", "<!DOCTYPE HTML", 64),
+		new Signature("text/html", "<!doctype html", 64),
+		new Signature("text/html", "<!DOCTYPE html", 0),
+		new Signature("text/html", "<!doctype HTML", 0),
+		new Signature("text/html", "<HTML", 64),
+		new Signature("text/html", "<html", 64),
+		new Signature("text/html", "<HEAD", 64),
+		new Signature("text/html", "<head", 64),
+		new Signature("text/html", "<TITLE", 64),
+		new Signature("text/html", "<title", 64),
+		new Signature("text/html", "<BODY", 0),
+		new Signature("text/html", "<body", 0)
+	};
+
+	//Tika's rules for other mimetypes that are looked for past offset 0 (at these offsets), that could match content that
+	//also matches one of the signatures above, and that have an equal or higher priority.  Tika would pick the mimetype
+	//of the first matching rule, so the content is left to Tika if any of these match.  Some of Tika's rules also have
+	//nested conditions.  Only their first condition is checked here, so this declines a little more often than it has to.
+	private static final Signature[] CONFLICTING_SIGNATURES = {
+		new Signature("application/x-tika-msoffice", new byte[] {(byte)0xD0, (byte)0xCF, 0x11, (byte)0xE0, (byte)0xA1, (byte)0xB1, 0x1A, (byte)0xE1}, 0, 8),
+		new Signature("application/x-adobe-indesign-interchange", "<?aid", 0, 100),
+		new Signature("application/xhtml+xml", "<html xmlns=", 0, 8192),
+		new Signature("audio/x-ms-wma", "Windows Media Audio", "UTF-16LE", 0, 8192),
+		new Signature("video/x-ms-wmv", "Windows Media Video", "UTF-16LE", 0, 8192),
+		new Signature("video/x-ms-wmv", "VC-1 Advanced Profile", "UTF-16LE", 0, 8192),
+		new Signature("message/x-emlx", "\nRelay-Version:", 2, 9),
+		new Signature("message/x-emlx", "\n#! rnews", 2, 9),
+		new Signature("message/x-emlx", "\nN#! rnews", 2, 9),
+		new Signature("message/x-emlx", "\nForward to", 2, 9),
+		new Signature("message/x-emlx", "\nPipe to", 2, 9),
+		new Signature("message/x-emlx", "\nReturn-Path:", 2, 9),
+		new Signature("message/x-emlx", "\nFrom:", 2, 9),
+		new Signature("message/x-emlx", "\nReceived:", 2, 9),
+		new Signature("message/x-emlx", "\nMessage-ID:", 2, 9),
+		new Signature("message/x-emlx", "\nDate:", 2, 9),
+		//Also covers the audio/mp4, video/mp4, video/3gpp and video/x-m4v rules, which all start with "ftyp" at offset 4
+		new Signature("video/quicktime", "ftyp", 4, 4),
+		new Signature("video/quicktime", "moov", 4, 4),
+		new Signature("video/quicktime", "mdat", 4, 4),
+		new Signature("application/vnd.symbian.install", new byte[] {0x19, 0x04, 0x00, 0x10}, 8, 8),
+		new Signature("application/x-prt", "0M3C", 8, 8),
+		new Signature("video/x-msvideo", "AVI ", 8, 8),
+		new Signature("application/octet-stream", "# This is a shell archive", 10, 10),
+		new Signature("application/mac-binhex40", "must be converted with BinHex", 11, 11),
+		new Signature("application/x-berkeley-db", new byte[] {0x00, 0x06, 0x15, 0x61}, 12, 12),
+		new Signature("application/x-berkeley-db", new byte[] {0x61, 0x15, 0x06, 0x00}, 12, 12),
+		new Signature("application/x-berkeley-db", new byte[] {0x00, 0x05, 0x31, 0x62}, 12, 12),
+		new Signature("application/x-berkeley-db", new byte[] {0x62, 0x31, 0x05, 0x00}, 12, 12),
+		new Signature("application/x-berkeley-db", new byte[] {0x00, 0x04, 0x22, 0x53}, 12, 12),
+		new Signature("application/x-berkeley-db", new byte[] {0x53, 0x22, 0x04, 0x00}, 12, 12),
+		new Signature("application/x-berkeley-db", new byte[] {0x00, 0x04, 0x09, (byte)0x88}, 12, 12),
+		new Signature("application/x-berkeley-db", new byte[] {(byte)0x88, 0x09, 0x04, 0x00}, 12, 12),
+		new Signature("application/x-dvi", "\u001B TeX output ", 14, 14),
+		new Signature("application/x-zoo", new byte[] {(byte)0xDC, (byte)0xA7, (byte)0xC4, (byte)0xFD}, 20, 20),
+		new Signature("audio/x-mod", "BMOD2STM", 21, 21),
+		new Signature("application/x-sc", "Spreadsheet", 38, 38),
+		new Signature("application/x-gnumeric", "=<gmr:Workbook", 39, 39),
+		new Signature("application/x-bibtex-text-file", "%%%  ", 73, 73),
+		new Signature("application/x-msdownload", "PE\0\0", 128, 128),
+		new Signature("application/x-msdownload", "pe\0\0", 128, 128),
+		new Signature("application/x-msdownload", "PE\0\0", 240, 240),
+		new Signature("application/x-msdownload", "pe\0\0", 240, 240),
+		new Signature("application/x-tar", "ustar\0", 257, 257),
+		new Signature("application/x-gtar", "ustar  \0", 257, 257),
+		new Signature("application/msword", new byte[] {(byte)0xEC, (byte)0xA5, (byte)0xC1}, 512, 512),
+		new Signature("audio/x-mod", "M.K.", 1080, 1080),
+		new Signature("audio/x-mod", "M!K!", 1080, 1080),
+		new Signature("audio/x-mod", "FLT4", 1080, 1080),
+		new Signature("audio/x-mod", "FLT8", 1080, 1080),
+		new Signature("audio/x-mod", "4CHN", 1080, 1080),
+		new Signature("audio/x-mod", "6CHN", 1080, 1080),
+		new Signature("audio/x-mod", "8CHN", 1080, 1080),
+		new Signature("audio/x-mod", "CD81", 1080, 1080),
+		new Signature("audio/x-mod", "OKTA", 1080, 1080),
+		new Signature("audio/x-mod", "16CN", 1080, 1080),
+		new Signature("audio/x-mod", "32CN", 1080, 1080),
+		new Signature("application/msword", "Microsoft Word 6.0 Document", 2080, 2080),
+		new Signature("application/msword", "Documento Microsoft Word 6", 2080, 2080),
+		new Signature("application/vnd.ms-excel", "Microsoft Excel 5.0 Worksheet", 2080, 2080),
+		new Signature("application/vnd.ms-excel", "Foglio di lavoro Microsoft Exce", 2080, 2080),
+		new Signature("application/msword", "MSWordDoc", 2112, 2112),
+		new Signature("application/vnd.ms-excel", "Biff5", 2114, 2114),
+		new Signature("application/vnd.ms-excel", "Biff5", 2121, 2121),
+		new Signature("application/x-iso9660-image", "CD001", 32769, 32769)
+	};
+
+	//Tika replaces a text/html match with the mimetype of the XML root element.  These (without a namespace) are mapped
+	//back to text/html, or to no mimetype at all, which leaves the text/html match alone.
+	private static final byte[][] HTML_ROOT_ELEMENT_NAMES = getAsciiBytes("html", "HTML", "head", "HEAD", "title", "TITLE", "body", "BODY");
+
+	//No signature is looked for past this many bytes
+	public static final int MAX_SIGNATURE_END_OFFSET = getMaxSignatureEndOffset();
+
+	private static final byte[] XMLNS = getBytes("xmlns", "US-ASCII");
+	private static final byte[] INTERNAL_SUBSET_START = {'['};
+
+	//Marks a prefix that matches signatures of more than one mimetype.  Those are left to Tika's priorities.
+	private static final String AMBIGUOUS = "";
+
+	/**
+	 * Returns the mimetype of the given content, based on its first bytes only, or null if the content isn't
+	 * unambiguously one of the formats that this classifier knows about.
+	 * @param contentPrefix The start of the content.  Only the first MAX_SIGNATURE_END_OFFSET bytes are looked at for
+	 * signatures, but if the content is longer than that, the html root element may be looked for further on.
+	 * @param length The number of valid bytes in contentPrefix.  Must be at least MAX_SIGNATURE_END_OFFSET, unless
+	 * contentPrefix holds the complete content.
+	 */
+	public static String classify(byte[] contentPrefix, int length) {
+
+		if(contentPrefix == null) {
+			return null;
+		}
+		length = Math.min(length, contentPrefix.length);
+
+		String mimetype = null;
+		for(Signature signature : SIGNATURES) {
+			if(signature.matchesAt(contentPrefix, length, 0)) {
+				mimetype = getUnambiguousMimetype(mimetype, signature.mimetype);
+			}
+		}
+
+		int firstTagOffset = getFirstTagOffset(contentPrefix, length, getContentStartOffset(contentPrefix, length));
+		if(firstTagOffset > -1) {
+			for(Signature signature : MARKUP_SIGNATURES) {
+				if(firstTagOffset <= signature.maxOffset && signature.matchesAt(contentPrefix, length, firstTagOffset)) {
+					mimetype = getUnambiguousMimetype(mimetype, signature.mimetype);
+				}
+			}
+		}
+
+		if(mimetype == null || AMBIGUOUS.equals(mimetype)) {
+			return null;
+		}
+
+		for(Signature signature : CONFLICTING_SIGNATURES) {
+			if(signature.matchesWithinOffsets(contentPrefix, length)) {
+				return null;
+			}
+		}
+
+		if("text/html".equals(mimetype) && ! hasHtmlRootElement(contentPrefix, length, firstTagOffset)) {
+			return null;
+		}
+
+		return mimetype;
+	}
+
+	private static String getUnambiguousMimetype(String mimetypeSoFar, String matchedMimetype) {
+		if(mimetypeSoFar == null || mimetypeSoFar.equals(matchedMimetype)) {
+			return matchedMimetype;
+		}
+		return AMBIGUOUS;
+	}
+
+	/**
+	 * Returns true if the root element (the first tag, or the first tag after a doctype) is one of HTML_ROOT_ELEMENT_NAMES
+	 * and doesn't have an xmlns attribute.  A doctype with an internal subset (which could declare a default xmlns
+	 * attribute) or a root element whose start tag doesn't end within the given content counts as not html.
+	 */
+	private static boolean hasHtmlRootElement(byte[] content, int length, int firstTagOffset) {
+		int rootElementOffset = firstTagOffset;
+		if(rootElementOffset + 1 < length && content[rootElementOffset + 1] == '!') {
+			int doctypeEndOffset = getTagEndOffset(content, length, rootElementOffset);
+			if(doctypeEndOffset == -1 || containsBetween(content, rootElementOffset, doctypeEndOffset, INTERNAL_SUBSET_START)) {
+				return false;
+			}
+			rootElementOffset = getFirstTagOffset(content, length, doctypeEndOffset + 1);
+			if(rootElementOffset == -1) {
+				return false;
+			}
+		}
+
+		int nameEndOffset = rootElementOffset + 1;
+		while(nameEndOffset < length && ! isWhitespace(content[nameEndOffset]) && content[nameEndOffset] != '/' && content[nameEndOffset] != '>') {
+			nameEndOffset++;
+		}
+		boolean isHtmlRootElementName = false;
+		for(byte[] name : HTML_ROOT_ELEMENT_NAMES) {
+			if(name.length == nameEndOffset - rootElementOffset - 1 && startsWith(content, length, rootElementOffset + 1, name)) {
+				isHtmlRootElementName = true;
+			}
+		}
+		if(! isHtmlRootElementName) {
+			return false;
+		}
+
+		int startTagEndOffset = getTagEndOffset(content, length, nameEndOffset);
+		return startTagEndOffset > -1 && ! containsBetween(content, nameEndOffset, startTagEndOffset, XMLNS);
+	}
+
+	/**
+	 * Returns the offset of the '>' that ends the tag that the given offset is in (a '>' that isn't in a quoted
+	 * attribute value), or -1.
+	 */
+	private static int getTagEndOffset(byte[] content, int length, int offset) {
+		byte quote = 0;
+		for(; offset < length; offset++) {
+			byte b = content[offset];
+			if(quote != 0) {
+				if(b == quote) {
+					quote = 0;
+				}
+			} else if(b == '"' || b == '\'') {
+				quote = b;
+			} else if(b == '>') {
+				return offset;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns true if pattern occurs in content between the given offsets.
+	 */
+	private static boolean containsBetween(byte[] content, int startOffset, int endOffset, byte[] pattern) {
+		for(int offset = startOffset; offset + pattern.length <= endOffset; offset++) {
+			if(startsWith(content, endOffset, offset, pattern)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the offset just past the UTF-8 byte order mark, if there is one, or 0.
+	 */
+	private static int getContentStartOffset(byte[] content, int length) {
+		if(length >= 3 && content[0] == (byte)0xEF && content[1] == (byte)0xBB && content[2] == (byte)0xBF) {
+			return 3;
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the offset of the first '<' at or after startOffset, if it's only preceded by whitespace, or -1.
+	 */
+	private static int getFirstTagOffset(byte[] content, int length, int startOffset) {
+		int offset = startOffset;
+		while(offset < length) {
+			byte b = content[offset];
+			if(b == '<') {
+				return offset;
+			}
+			if(! isWhitespace(b)) {
+				return -1;
+			}
+			offset++;
+		}
+		return -1;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '\f';
+	}
+
+	/**
+	 * Returns true if pattern occurs at the given offset in the first length bytes of content.
+	 */
+	private static boolean startsWith(byte[] content, int length, int offset, byte[] pattern) {
+		if(offset + pattern.length > length) {
+			return false;
+		}
+		for(int i = 0; i < pattern.length; i++) {
+			if(content[offset + i] != pattern[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int getMaxSignatureEndOffset() {
+		int maxEndOffset = 0;
+		for(Signature signature : SIGNATURES) {
+			maxEndOffset = Math.max(maxEndOffset, signature.maxOffset + signature.bytes.length);
+		}
+		for(Signature signature : MARKUP_SIGNATURES) {
+			maxEndOffset = Math.max(maxEndOffset, signature.maxOffset + signature.bytes.length);
+		}
+		for(Signature signature : CONFLICTING_SIGNATURES) {
+			maxEndOffset = Math.max(maxEndOffset, signature.maxOffset + signature.bytes.length);
+		}
+		return maxEndOffset;
+	}
+
+	private static byte[][] getAsciiBytes(String... strings) {
+		byte[][] bytes = new byte[strings.length][];
+		for(int i = 0; i < strings.length; i++) {
+			bytes[i] = getBytes(strings[i], "US-ASCII");
+		}
+		return bytes;
+	}
+
+	private static byte[] getBytes(String string, String charsetName) {
+		try {
+			return string.getBytes(charsetName);
+		} catch (UnsupportedEncodingException e) {
+			//US-ASCII and UTF-16LE are always supported
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class Signature {
+
+		private final String mimetype;
+		private final byte[] bytes;
+		private final int minOffset;
+		private final int maxOffset;
+
+		private Signature(String mimetype, byte[] bytes, int minOffset, int maxOffset) {
+			this.mimetype = mimetype;
+			this.bytes = bytes;
+			this.minOffset = minOffset;
+			this.maxOffset = maxOffset;
+		}
+
+		private Signature(String mimetype, byte[] bytes, int maxOffset) {
+			this(mimetype, bytes, 0, maxOffset);
+		}
+
+		private Signature(String mimetype, String ascii, int maxOffset) {
+			this(mimetype, ascii, 0, maxOffset);
+		}
+
+		private Signature(String mimetype, String ascii, int minOffset, int maxOffset) {
+			this(mimetype, ascii, "US-ASCII", minOffset, maxOffset);
+		}
+
+		private Signature(String mimetype, String string, String charsetName, int minOffset, int maxOffset) {
+			this(mimetype, getBytes(string, charsetName), minOffset, maxOffset);
+		}
+
+		private boolean matchesAt(byte[] content, int length, int offset) {
+			return startsWith(content, length, offset, bytes);
+		}
+
+		/**
+		 * Returns true if the signature occurs at any offset from minOffset to maxOffset.
+		 */
+		private boolean matchesWithinOffsets(byte[] content, int length) {
+			int lastOffset = Math.min(maxOffset, length - bytes.length);
+			for(int offset = minOffset; offset <= lastOffset; offset++) {
+				if(matchesAt(content, length, offset)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+}
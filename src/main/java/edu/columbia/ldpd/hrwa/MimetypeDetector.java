@@ -1,13 +1,32 @@
 package edu.columbia.ldpd.hrwa;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 
 import org.apache.tika.Tika;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.mime.MimeTypes;
 
 public class MimetypeDetector {
+	
+	//Tika never looks past the first 64KB of a stream for magic-based detection
+	public static final int DETECTION_PREFIX_LENGTH = 64 * 1024;
+	
+	//Container formats can't be told apart from their first few KB (the interesting bits of a zip file are
+	//at the end), so for these we go back and detect using the complete content.
+	private static final String[] MIMETYPES_THAT_REQUIRE_COMPLETE_CONTENT = {"application/zip", "application/x-tika-msoffice", "application/x-tika-ooxml"};
+	
+	//Used to apply file name hints to MagicMimetypeClassifier results
+	private static final MimeTypes MIME_TYPES = MimeTypes.getDefaultMimeTypes();
+	
 	private final Tika tika;
 	public MimetypeDetector() {
 	    this.tika = new Tika();
@@ -44,27 +63,145 @@ public class MimetypeDetector {
     }
     
     public String getMimetypeFromInputStreamAndURL(InputStream inputStream, URL urlThatContainsTheFileName) {
-    	
-    	String fileName = null;
-		// If the URL isn't valid, then we'll just pass null along like this:
+    	// If the URL isn't valid, then we'll just pass null along like this:
 		// getMimeType(inputStream, null).
 		// The file name (normally inferred from the URL) won't be factored into
 		// mimetype detection, but that's okay. Mimetype detection is still
 		// possible without the file name.
+        return getMimetype(inputStream, getFileNameFromURL(urlThatContainsTheFileName));
+    }
+    
+    /**
+     * Detect and return the mimetype of a record, given only the first bytes of its content.
+     * This lets callers detect while the content is being streamed somewhere else, without reading it back in.
+     * @param contentPrefix Up to DETECTION_PREFIX_LENGTH bytes from the start of the content.
+     * @param prefixIsCompleteContent true if contentPrefix holds the entire content.
+     * @param fileName File name hint (normally taken from the record URL). Can be null.
+     * @param fileWithCompleteContent Used for container formats that can't be identified from a prefix. Can be null.
+     * @return The detected mimetype.
+     */
+    public String getMimetype(byte[] contentPrefix, boolean prefixIsCompleteContent, String fileName, File fileWithCompleteContent) {
     	
-    	if(urlThatContainsTheFileName != null)
-    	{
-	        //Filename parsing code partially based on:
-	        //http://svn.apache.org/repos/asf/tika/tags/1.0/tika-core/src/main/java/org/apache/tika/io/TikaInputStream.java
-	        //See: public static TikaInputStream get(URL url, Metadata metadata)
-	    	String path = urlThatContainsTheFileName.getPath();
-			int slash = path.lastIndexOf('/');
-	        if (slash + 1 < path.length()) { // works even with -1!
-	        	fileName = path.substring(slash + 1);
-	        }
+    	//Most payloads are identified by their first few bytes, without going through Tika
+    	String mimeType = getMimetypeFromMagic(contentPrefix, contentPrefix.length, fileName);
+    	if(mimeType != null) {
+    		return mimeType;
     	}
-        
-        return getMimetype(inputStream, fileName);
+    	
+    	mimeType = getMimetype(new ByteArrayInputStream(contentPrefix), fileName);
+    	
+    	if( ! prefixIsCompleteContent && fileWithCompleteContent != null && requiresCompleteContentForDetection(mimeType) ) {
+    		mimeType = getMimetype(fileWithCompleteContent);
+    	}
+    	
+    	return mimeType;
+    }
+    
+    /**
+     * Detect and return the mimetype of the complete content in the supplied InputStream.
+     * Unlike getMimetype(InputStream, String), this lets Tika's container detectors look inside
+     * zip and OLE2 files (spooling the stream to a temporary file if necessary).
+     * @param inputStream The complete content. This method closes the stream when it's done.
+     * @param fileName File name hint. Can be null.
+     * @return The detected mimetype.
+     */
+    public String getMimetypeOfCompleteContent(InputStream inputStream, String fileName) {
+    	TikaInputStream tikaInputStream = TikaInputStream.get(inputStream);
+    	try {
+    		return getMimetype(tikaInputStream, fileName);
+    	} finally {
+    		try {
+    			//Also deletes any temporary file that Tika created
+    			tikaInputStream.close();
+    		} catch (IOException e) {
+    			if(HrwaManager.verbose) { System.err.println("Notice: Unable to close the TikaInputStream used for mimetype detection."); }
+    		}
+    	}
+    }
+    
+    /**
+     * Returns the MagicMimetypeClassifier result for the given content prefix, with the file name hint applied, or null
+     * if the content has to be detected by Tika.
+     */
+    public static String getMimetypeFromMagic(byte[] contentPrefix, int length, String fileName) {
+    	String mimeType = MagicMimetypeClassifier.classify(contentPrefix, length);
+    	if(mimeType == null) {
+    		return null;
+    	}
+    	return applyFileNameHint(mimeType, fileName);
+    }
+    
+    /**
+     * Applies a file name hint to a mimetype that was detected from magic bytes, exactly like Tika 1.3's MimeTypes.detect():
+     * the type matched by the file name's glob pattern wins if it's a specialization of the detected type.
+     */
+    private static String applyFileNameHint(String mimeType, String fileName) {
+    	if(fileName == null) {
+    		return mimeType;
+    	}
+    	
+    	//Tika deals with file names that are URIs or paths
+    	String name = null;
+    	try {
+    		String path = new URI(fileName).getPath();
+    		if(path != null) {
+    			int slash = path.lastIndexOf('/');
+    			if (slash + 1 < path.length()) {
+    				name = path.substring(slash + 1);
+    			}
+    		}
+    	} catch (URISyntaxException e) {
+    		name = fileName;
+    	}
+    	if(name == null) {
+    		return mimeType;
+    	}
+    	
+    	MediaType hint = MIME_TYPES.getMimeType(name).getType();
+    	if(MIME_TYPES.getMediaTypeRegistry().isSpecializationOf(hint, MediaType.parse(mimeType))) {
+    		return hint.toString();
+    	}
+    	return mimeType;
+    }
+    
+    public static boolean requiresCompleteContentForDetection(String mimeType) {
+    	for(String containerMimetype : MIMETYPES_THAT_REQUIRE_COMPLETE_CONTENT) {
+    		if(containerMimetype.equals(mimeType)) {
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+    
+    /**
+     * Returns the last path segment of the given URL (for file-name-based mimetype hinting), or null if there isn't one.
+     */
+    public static String getFileNameFromURL(URL url) {
+    	if(url == null) {
+    		return null;
+    	}
+    	
+        //Filename parsing code partially based on:
+        //http://svn.apache.org/repos/asf/tika/tags/1.0/tika-core/src/main/java/org/apache/tika/io/TikaInputStream.java
+        //See: public static TikaInputStream get(URL url, Metadata metadata)
+    	String path = url.getPath();
+		int slash = path.lastIndexOf('/');
+        if (slash + 1 < path.length()) { // works even with -1!
+        	return path.substring(slash + 1);
+        }
+        return null;
+    }
+    
+    public static String getFileNameFromURL(String url) {
+    	if(url == null) {
+    		return null;
+    	}
+    	
+    	try {
+			return getFileNameFromURL(new URL(url));
+		} catch (MalformedURLException e) {
+			return null;
+		}
     }
 
     //Note: The overloaded getMimetype method below should be DRY-er, considering the alternate InputStream-reading version
@@ -79,6 +216,23 @@ public class MimetypeDetector {
         String mimeType = null;
 
         try {
+        	//Try the start of the file (as far as MagicMimetypeClassifier looks) before handing the whole file to Tika
+        	byte[] contentPrefix = new byte[MagicMimetypeClassifier.MAX_SIGNATURE_END_OFFSET];
+        	int length = 0;
+        	FileInputStream fileInputStream = new FileInputStream(file);
+        	try {
+        		int len;
+        		while(length < contentPrefix.length && (len = fileInputStream.read(contentPrefix, length, contentPrefix.length - length)) != -1) {
+        			length += len;
+        		}
+        	} finally {
+        		fileInputStream.close();
+        	}
+        	mimeType = getMimetypeFromMagic(contentPrefix, length, file.getName());
+        	if(mimeType != null) {
+        		return mimeType;
+        	}
+        	
             // Tika.detect should be threadsafe
             // Detecting MIME Type of the File
             mimeType = tika.detect(file);
@@ -0,0 +1,46 @@
+package edu.columbia.ldpd.hrwa.archiveit;
+
+/**
+ * A single downloadable archive file, as listed on Archive-It's getarcs page.
+ */
+public class ArchiveFileListingEntry {
+
+	private final String fileName;
+	private final String downloadUrl;
+	private final String expectedMD5Hash;
+	private final String captureYearAndMonthString;
+
+	/**
+	 * @param fileName
+	 * @param downloadUrl
+	 * @param expectedMD5Hash
+	 * @param captureYearAndMonthString Capture year/month parsed from the file name (e.g. 2012_11), or null if it couldn't be parsed
+	 */
+	public ArchiveFileListingEntry(String fileName, String downloadUrl, String expectedMD5Hash, String captureYearAndMonthString) {
+		this.fileName = fileName;
+		this.downloadUrl = downloadUrl;
+		this.expectedMD5Hash = expectedMD5Hash;
+		this.captureYearAndMonthString = captureYearAndMonthString;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getDownloadUrl() {
+		return downloadUrl;
+	}
+
+	public String getExpectedMD5Hash() {
+		return expectedMD5Hash;
+	}
+
+	public String getCaptureYearAndMonthString() {
+		return captureYearAndMonthString;
+	}
+
+	public String toString() {
+		return fileName + " (" + downloadUrl + ", md5: " + expectedMD5Hash + ")";
+	}
+
+}
@@ -0,0 +1,152 @@
+package edu.columbia.ldpd.hrwa.archiveit;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A local copy of an Archive-It collection's file listing, saved as a tab-separated file, that also remembers which
+ * listed files have already been downloaded.
+ *
+ * Without it, every run has to check the disk for every listed file.  With it, only files that are new to the listing
+ * (or that weren't downloaded last time) need to be checked.  A listed file is matched by both its name and its MD5 digest,
+ * so a file that Archive-It replaces is downloaded again.  To force every file to be checked again, delete the manifest file.
+ *
+ * Methods are synchronized because download threads mark files as downloaded while other threads are still running.
+ */
+public class ArchiveFileManifest {
+
+	private static final String CHARSET = "UTF-8";
+	private static final String HEADER_LINE = "#file_name\tdownload_url\tmd5\tcapture_year_and_month\tdownloaded";
+
+	private final File manifestFile;
+	private final LinkedHashMap<String, ManifestEntry> entriesByFileName = new LinkedHashMap<String, ManifestEntry>();
+
+	private ArchiveFileManifest(File manifestFile) {
+		this.manifestFile = manifestFile;
+	}
+
+	/**
+	 * Loads the manifest at the given location, or returns an empty manifest if there isn't one yet.
+	 * @param manifestFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static ArchiveFileManifest load(File manifestFile) throws IOException {
+		ArchiveFileManifest manifest = new ArchiveFileManifest(manifestFile);
+
+		if( ! manifestFile.exists() ) {
+			return manifest;
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), CHARSET));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\t", -1);
+				if(fields.length != 5) {
+					throw new IOException("Invalid line in archive file manifest " + manifestFile.getPath() + ": " + line);
+				}
+				ArchiveFileListingEntry listingEntry = new ArchiveFileListingEntry(fields[0], fields[1], fields[2], fields[3].length() == 0 ? null : fields[3]);
+				manifest.entriesByFileName.put(listingEntry.getFileName(), new ManifestEntry(listingEntry, "1".equals(fields[4])));
+			}
+		} finally {
+			reader.close();
+		}
+
+		return manifest;
+	}
+
+	/**
+	 * Replaces the manifest's entries with the given (freshly parsed) listing.  Files that were already marked as downloaded
+	 * stay marked as long as their name and MD5 digest haven't changed.
+	 * @param listing
+	 * @return The number of listed files that are new or changed since the manifest was last updated
+	 */
+	public synchronized int updateListing(List<ArchiveFileListingEntry> listing) {
+		HashMap<String, ManifestEntry> previousEntriesByFileName = new HashMap<String, ManifestEntry>(entriesByFileName);
+		entriesByFileName.clear();
+
+		int numNewOrChangedEntries = 0;
+		for(ArchiveFileListingEntry listingEntry : listing) {
+			ManifestEntry previousEntry = previousEntriesByFileName.get(listingEntry.getFileName());
+			boolean isUnchanged = previousEntry != null && previousEntry.listingEntry.getExpectedMD5Hash().equalsIgnoreCase(listingEntry.getExpectedMD5Hash());
+			if( ! isUnchanged ) {
+				numNewOrChangedEntries++;
+			}
+			entriesByFileName.put(listingEntry.getFileName(), new ManifestEntry(listingEntry, isUnchanged && previousEntry.isDownloaded));
+		}
+		return numNewOrChangedEntries;
+	}
+
+	/**
+	 * Returns true if the given file was marked as downloaded in this manifest (with the same MD5 digest).
+	 */
+	public synchronized boolean isDownloaded(ArchiveFileListingEntry listingEntry) {
+		ManifestEntry entry = entriesByFileName.get(listingEntry.getFileName());
+		return entry != null && entry.isDownloaded && entry.listingEntry.getExpectedMD5Hash().equalsIgnoreCase(listingEntry.getExpectedMD5Hash());
+	}
+
+	public synchronized void markDownloaded(ArchiveFileListingEntry listingEntry) {
+		entriesByFileName.put(listingEntry.getFileName(), new ManifestEntry(listingEntry, true));
+	}
+
+	public synchronized int size() {
+		return entriesByFileName.size();
+	}
+
+	/**
+	 * Writes the manifest to a temporary file and then moves it into place, so an interrupted save never leaves a truncated manifest behind.
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		File parentDir = manifestFile.getAbsoluteFile().getParentFile();
+		parentDir.mkdirs();
+		File tempManifestFile = new File(parentDir, manifestFile.getName() + ".tmp");
+
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempManifestFile), CHARSET));
+		try {
+			writer.write(HEADER_LINE);
+			writer.write('\n');
+			for(ManifestEntry entry : entriesByFileName.values()) {
+				ArchiveFileListingEntry listingEntry = entry.listingEntry;
+				writer.write(listingEntry.getFileName() + "\t" + listingEntry.getDownloadUrl() + "\t" + listingEntry.getExpectedMD5Hash() + "\t" +
+					(listingEntry.getCaptureYearAndMonthString() == null ? "" : listingEntry.getCaptureYearAndMonthString()) + "\t" +
+					(entry.isDownloaded ? "1" : "0"));
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+
+		//File.renameTo() won't replace an existing file on every platform
+		if( ! tempManifestFile.renameTo(manifestFile) ) {
+			manifestFile.delete();
+			if( ! tempManifestFile.renameTo(manifestFile) ) {
+				throw new IOException("Could not move " + tempManifestFile.getPath() + " to " + manifestFile.getPath());
+			}
+		}
+	}
+
+	private static class ManifestEntry {
+		private final ArchiveFileListingEntry listingEntry;
+		private final boolean isDownloaded;
+
+		public ManifestEntry(ArchiveFileListingEntry listingEntry, boolean isDownloaded) {
+			this.listingEntry = listingEntry;
+			this.isDownloaded = isDownloaded;
+		}
+	}
+
+}
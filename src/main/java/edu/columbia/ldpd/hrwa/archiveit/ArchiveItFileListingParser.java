@@ -0,0 +1,325 @@
+package edu.columbia.ldpd.hrwa.archiveit;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+
+/**
+ * Reads the archive file listing from Archive-It's getarcs page with a single pass over the HTML.  No DOM is built:
+ * only the table row that's currently being read is kept in memory, so listings with tens of thousands of files are cheap to parse.
+ *
+ * Every archive file is listed in a table row with two cells:
+ * <tr><td><a href="/path/to/FILE.warc.gz">FILE.warc.gz</a></td><td>MD5</td></tr>
+ * Rows with a different shape, without a link to a .gz file, or without a valid MD5 digest are ignored.
+ */
+public class ArchiveItFileListingParser {
+
+	private static final Pattern MD5_PATTERN = Pattern.compile("[0-9a-fA-F]{32}");
+
+	private final String baseUrlForRelativeLinks;
+
+	/**
+	 * @param baseUrlForRelativeLinks Prepended to download links that don't start with "http" (e.g. https://partner.archive-it.org)
+	 */
+	public ArchiveItFileListingParser(String baseUrlForRelativeLinks) {
+		this.baseUrlForRelativeLinks = baseUrlForRelativeLinks;
+	}
+
+	public List<ArchiveFileListingEntry> parse(Reader reader) throws IOException {
+
+		List<ArchiveFileListingEntry> entries = new ArrayList<ArchiveFileListingEntry>();
+		HtmlTokenizer tokenizer = new HtmlTokenizer(reader);
+
+		ArrayList<String> cellTexts = null;
+		StringBuilder currentCellText = null;
+		String firstLinkHref = null;
+		StringBuilder firstLinkText = null;
+		boolean isInFirstLink = false;
+
+		while(tokenizer.next()) {
+
+			if(tokenizer.isText()) {
+				if(currentCellText != null) {
+					currentCellText.append(tokenizer.getText());
+				}
+				if(isInFirstLink) {
+					firstLinkText.append(tokenizer.getText());
+				}
+				continue;
+			}
+
+			String tagName = tokenizer.getTagName();
+
+			if(tagName.equals("tr")) {
+				if( ! tokenizer.isEndTag() ) {
+					cellTexts = new ArrayList<String>(2);
+					currentCellText = null;
+					firstLinkHref = null;
+					firstLinkText = null;
+					isInFirstLink = false;
+				} else if(cellTexts != null) {
+					if(currentCellText != null) {
+						//The last cell's end tag is optional
+						cellTexts.add(currentCellText.toString().trim());
+						currentCellText = null;
+					}
+					ArchiveFileListingEntry entry = createEntry(cellTexts, firstLinkHref, firstLinkText);
+					if(entry != null) {
+						entries.add(entry);
+					}
+					cellTexts = null;
+				}
+			} else if(cellTexts == null) {
+				//Outside of a table row
+				continue;
+			} else if(tagName.equals("td") || tagName.equals("th")) {
+				if(currentCellText != null) {
+					//A cell that's implicitly closed by the next one
+					cellTexts.add(currentCellText.toString().trim());
+					currentCellText = null;
+				}
+				if( ! tokenizer.isEndTag() ) {
+					currentCellText = new StringBuilder();
+				}
+			} else if(tagName.equals("a")) {
+				if( ! tokenizer.isEndTag() && cellTexts.isEmpty() && currentCellText != null && firstLinkHref == null ) {
+					firstLinkHref = tokenizer.getAttribute("href");
+					firstLinkText = new StringBuilder();
+					isInFirstLink = firstLinkHref != null;
+				} else if(tokenizer.isEndTag()) {
+					isInFirstLink = false;
+				}
+			}
+		}
+
+		return entries;
+	}
+
+	private ArchiveFileListingEntry createEntry(ArrayList<String> cellTexts, String linkHref, StringBuilder linkText) {
+		if(cellTexts.size() != 2 || linkHref == null) {
+			return null;
+		}
+
+		String fileName = linkText.toString().trim();
+		String downloadUrl = linkHref.trim();
+		String expectedMD5Hash = cellTexts.get(1);
+
+		if( ! fileName.endsWith(".gz") || ! MD5_PATTERN.matcher(expectedMD5Hash).matches() ) {
+			return null;
+		}
+
+		if( ! downloadUrl.startsWith("http") ) {
+			downloadUrl = baseUrlForRelativeLinks + downloadUrl;
+		}
+
+		return new ArchiveFileListingEntry(fileName, downloadUrl, expectedMD5Hash, HrwaManager.getCaptureYearAndMonthStringFromArchiveFileName(fileName));
+	}
+
+	/**
+	 * A minimal pull tokenizer for HTML: text runs and start/end tags (with attributes).  Comments, doctypes and the contents
+	 * of script and style elements are skipped.  Only the handful of character entities that show up in links and file names are decoded.
+	 */
+	static class HtmlTokenizer {
+
+		private final Reader reader;
+		private int pushedBackChar = -2;
+
+		private boolean isText;
+		private String text;
+		private String tagName;
+		private boolean isEndTag;
+		private String tagContent;
+
+		public HtmlTokenizer(Reader reader) {
+			this.reader = reader;
+		}
+
+		public boolean isText() {
+			return isText;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		/**
+		 * Lowercased name of the current tag
+		 */
+		public String getTagName() {
+			return tagName;
+		}
+
+		public boolean isEndTag() {
+			return isEndTag;
+		}
+
+		/**
+		 * Returns the (entity-decoded) value of the given attribute of the current start tag, or null if it doesn't have one.
+		 */
+		public String getAttribute(String attributeName) {
+			int i = 0;
+			int length = tagContent.length();
+			while(i < length) {
+				while(i < length && (Character.isWhitespace(tagContent.charAt(i)) || tagContent.charAt(i) == '/')) { i++; }
+				int nameStart = i;
+				while(i < length && tagContent.charAt(i) != '=' && ! Character.isWhitespace(tagContent.charAt(i)) && tagContent.charAt(i) != '/') { i++; }
+				String name = tagContent.substring(nameStart, i);
+				while(i < length && Character.isWhitespace(tagContent.charAt(i))) { i++; }
+
+				String value = "";
+				if(i < length && tagContent.charAt(i) == '=') {
+					i++;
+					while(i < length && Character.isWhitespace(tagContent.charAt(i))) { i++; }
+					if(i < length && (tagContent.charAt(i) == '"' || tagContent.charAt(i) == '\'')) {
+						char quote = tagContent.charAt(i++);
+						int valueStart = i;
+						while(i < length && tagContent.charAt(i) != quote) { i++; }
+						value = tagContent.substring(valueStart, i);
+						i++;
+					} else {
+						int valueStart = i;
+						while(i < length && ! Character.isWhitespace(tagContent.charAt(i))) { i++; }
+						value = tagContent.substring(valueStart, i);
+					}
+				}
+
+				if(name.equalsIgnoreCase(attributeName)) {
+					return decodeEntities(value);
+				}
+				if(name.length() == 0) {
+					i++;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Moves on to the next token.
+		 * @return false at the end of the input
+		 */
+		public boolean next() throws IOException {
+			while(true) {
+				int c = read();
+				if(c == -1) {
+					return false;
+				}
+
+				if(c != '<') {
+					StringBuilder textBuilder = new StringBuilder();
+					while(c != -1 && c != '<') {
+						textBuilder.append((char)c);
+						c = read();
+					}
+					pushBack(c);
+					isText = true;
+					text = decodeEntities(textBuilder.toString());
+					return true;
+				}
+
+				c = read();
+				if(c == '!' || c == '?') {
+					skipCommentOrDeclaration(c);
+					continue;
+				}
+
+				isText = false;
+				isEndTag = (c == '/');
+				if( ! isEndTag ) {
+					pushBack(c);
+				}
+
+				StringBuilder tagBuilder = new StringBuilder();
+				char quote = 0;
+				while((c = read()) != -1) {
+					if(quote != 0) {
+						if(c == quote) {
+							quote = 0;
+						}
+					} else if(c == '"' || c == '\'') {
+						quote = (char)c;
+					} else if(c == '>') {
+						break;
+					}
+					tagBuilder.append((char)c);
+				}
+
+				String tag = tagBuilder.toString();
+				int nameEnd = 0;
+				while(nameEnd < tag.length() && ! Character.isWhitespace(tag.charAt(nameEnd)) && tag.charAt(nameEnd) != '/') { nameEnd++; }
+				tagName = tag.substring(0, nameEnd).toLowerCase();
+				tagContent = tag.substring(nameEnd);
+
+				if( ! isEndTag && (tagName.equals("script") || tagName.equals("style")) ) {
+					skipUntilEndTag(tagName);
+					continue;
+				}
+
+				return true;
+			}
+		}
+
+		private void skipCommentOrDeclaration(int firstChar) throws IOException {
+			int c;
+			if(firstChar == '!') {
+				c = read();
+				if(c == '-') {
+					c = read();
+					if(c == '-') {
+						//<!-- comment -->
+						int dashes = 0;
+						while((c = read()) != -1) {
+							if(c == '>' && dashes >= 2) {
+								return;
+							}
+							dashes = (c == '-') ? dashes + 1 : 0;
+						}
+						return;
+					}
+				}
+				pushBack(c);
+			}
+			while((c = read()) != -1 && c != '>') {}
+		}
+
+		private void skipUntilEndTag(String name) throws IOException {
+			String endTag = "</" + name;
+			StringBuilder recent = new StringBuilder();
+			int c;
+			while((c = read()) != -1) {
+				recent.append(Character.toLowerCase((char)c));
+				if(recent.length() > endTag.length()) {
+					recent.deleteCharAt(0);
+				}
+				if(recent.toString().equals(endTag)) {
+					while((c = read()) != -1 && c != '>') {}
+					return;
+				}
+			}
+		}
+
+		private int read() throws IOException {
+			if(pushedBackChar != -2) {
+				int c = pushedBackChar;
+				pushedBackChar = -2;
+				return c;
+			}
+			return reader.read();
+		}
+
+		private void pushBack(int c) {
+			pushedBackChar = c;
+		}
+
+		static String decodeEntities(String value) {
+			if(value.indexOf('&') == -1) {
+				return value;
+			}
+			return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&#39;", "'").replace("&nbsp;", " ").replace("&amp;", "&");
+		}
+	}
+
+}
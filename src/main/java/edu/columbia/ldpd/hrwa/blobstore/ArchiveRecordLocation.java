@@ -0,0 +1,73 @@
+package edu.columbia.ldpd.hrwa.blobstore;
+
+/**
+ * Location of a record's payload inside of its original archive file, used when no blob is written
+ * for the record at all.  Serialized into web_archive_records.blob_path as:
+ *
+ * archive:&lt;path to archive file&gt;:&lt;record offset&gt;:&lt;payload length&gt;
+ *
+ * The record offset is the offset of the record's gzip member, which is the same value that is
+ * stored in web_archive_records.offset_in_archive_file.
+ */
+public class ArchiveRecordLocation {
+
+	public static final String ARCHIVE_RECORD_BLOB_PATH_PREFIX = "archive:";
+
+	private final String archiveFilePath;
+	private final long offsetInArchiveFile;
+	private final long payloadLength;
+
+	public ArchiveRecordLocation(String archiveFilePath, long offsetInArchiveFile, long payloadLength) {
+		this.archiveFilePath = archiveFilePath;
+		this.offsetInArchiveFile = offsetInArchiveFile;
+		this.payloadLength = payloadLength;
+	}
+
+	public static boolean isArchiveRecordBlobPath(String blobPath) {
+		return blobPath != null && blobPath.startsWith(ARCHIVE_RECORD_BLOB_PATH_PREFIX);
+	}
+
+	/**
+	 * Parses an archive record blob_path value.  The numeric fields are parsed from the end of the string,
+	 * so archive file paths that contain colons are handled correctly.
+	 * @param blobPath
+	 * @return
+	 * @throws IllegalArgumentException if the given blobPath isn't a valid archive record blob path
+	 */
+	public static ArchiveRecordLocation parse(String blobPath) {
+		if( ! isArchiveRecordBlobPath(blobPath) ) {
+			throw new IllegalArgumentException("Not an archive record blob path: " + blobPath);
+		}
+
+		try {
+			int payloadLengthSeparator = blobPath.lastIndexOf(':');
+			int offsetSeparator = blobPath.lastIndexOf(':', payloadLengthSeparator - 1);
+
+			String archiveFilePath = blobPath.substring(ARCHIVE_RECORD_BLOB_PATH_PREFIX.length(), offsetSeparator);
+			long offsetInArchiveFile = Long.parseLong(blobPath.substring(offsetSeparator + 1, payloadLengthSeparator));
+			long payloadLength = Long.parseLong(blobPath.substring(payloadLengthSeparator + 1));
+
+			return new ArchiveRecordLocation(archiveFilePath, offsetInArchiveFile, payloadLength);
+		} catch (RuntimeException e) {
+			//Covers NumberFormatException and StringIndexOutOfBoundsException
+			throw new IllegalArgumentException("Invalid archive record blob path: " + blobPath, e);
+		}
+	}
+
+	public String getArchiveFilePath() {
+		return archiveFilePath;
+	}
+
+	public long getOffsetInArchiveFile() {
+		return offsetInArchiveFile;
+	}
+
+	public long getPayloadLength() {
+		return payloadLength;
+	}
+
+	public String toString() {
+		return ARCHIVE_RECORD_BLOB_PATH_PREFIX + archiveFilePath + ":" + offsetInArchiveFile + ":" + payloadLength;
+	}
+
+}
@@ -0,0 +1,42 @@
+package edu.columbia.ldpd.hrwa.blobstore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.output.NullOutputStream;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+
+/**
+ * Doesn't write anything.  The payload is only read far enough to capture the detection prefix
+ * (and to count its length), and the returned blob_path points back into the original archive file.
+ * Readers of the blob seek into the archive file and decompress the record again.
+ *
+ * Archive files must stay where they were when they were indexed (or the blob_path values
+ * must be updated if they're moved).
+ */
+public class ArchiveRecordReferenceBlobWriter extends BlobWriter {
+
+	public String writeBlob(File archiveFile, long offsetInArchiveFile, String httpHeaderString, InputStream payloadInputStream, ByteArrayOutputStream detectionPrefix, int detectionPrefixLength) {
+
+		try {
+			long payloadLength = copyAndCapturePrefix(payloadInputStream, NullOutputStream.NULL_OUTPUT_STREAM, detectionPrefix, detectionPrefixLength);
+			return new ArchiveRecordLocation(archiveFile.getAbsolutePath(), offsetInArchiveFile, payloadLength).toString();
+		} catch (IOException e) {
+			e.printStackTrace();
+			HrwaManager.writeToLog("Error: Could not read payload of record at offset " + offsetInArchiveFile + " in " + archiveFile.getName() + ".\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			return null;
+		}
+	}
+
+	public void flush() {
+		//Nothing is written
+	}
+
+	public void close() {
+		//Nothing to close
+	}
+
+}
@@ -0,0 +1,91 @@
+package edu.columbia.ldpd.hrwa.blobstore;
+
+/**
+ * Location of a single blob inside of a pack file.  Serialized into web_archive_records.blob_path as:
+ *
+ * pack:&lt;path to pack file&gt;:&lt;header offset&gt;:&lt;header length&gt;:&lt;payload length&gt;
+ *
+ * The http header string for a record is written directly before its payload, so the payload
+ * starts at (header offset + header length).
+ */
+public class BlobLocation {
+
+	public static final String PACKED_BLOB_PATH_PREFIX = "pack:";
+
+	private final String packFilePath;
+	private final long headerOffset;
+	private final long headerLength;
+	private final long payloadLength;
+
+	public BlobLocation(String packFilePath, long headerOffset, long headerLength, long payloadLength) {
+		this.packFilePath = packFilePath;
+		this.headerOffset = headerOffset;
+		this.headerLength = headerLength;
+		this.payloadLength = payloadLength;
+	}
+
+	public static boolean isPackedBlobPath(String blobPath) {
+		return blobPath != null && blobPath.startsWith(PACKED_BLOB_PATH_PREFIX);
+	}
+
+	/**
+	 * Parses a packed blob_path value.  The numeric fields are parsed from the end of the string,
+	 * so pack file paths that contain colons are handled correctly.
+	 * @param blobPath
+	 * @return
+	 * @throws IllegalArgumentException if the given blobPath isn't a valid packed blob path
+	 */
+	public static BlobLocation parse(String blobPath) {
+		if( ! isPackedBlobPath(blobPath) ) {
+			throw new IllegalArgumentException("Not a packed blob path: " + blobPath);
+		}
+
+		try {
+			int payloadLengthSeparator = blobPath.lastIndexOf(':');
+			int headerLengthSeparator = blobPath.lastIndexOf(':', payloadLengthSeparator - 1);
+			int headerOffsetSeparator = blobPath.lastIndexOf(':', headerLengthSeparator - 1);
+
+			String packFilePath = blobPath.substring(PACKED_BLOB_PATH_PREFIX.length(), headerOffsetSeparator);
+			long headerOffset = Long.parseLong(blobPath.substring(headerOffsetSeparator + 1, headerLengthSeparator));
+			long headerLength = Long.parseLong(blobPath.substring(headerLengthSeparator + 1, payloadLengthSeparator));
+			long payloadLength = Long.parseLong(blobPath.substring(payloadLengthSeparator + 1));
+
+			return new BlobLocation(packFilePath, headerOffset, headerLength, payloadLength);
+		} catch (RuntimeException e) {
+			//Covers NumberFormatException and StringIndexOutOfBoundsException
+			throw new IllegalArgumentException("Invalid packed blob path: " + blobPath, e);
+		}
+	}
+
+	public String getPackFilePath() {
+		return packFilePath;
+	}
+
+	public long getHeaderOffset() {
+		return headerOffset;
+	}
+
+	public long getHeaderLength() {
+		return headerLength;
+	}
+
+	public long getPayloadOffset() {
+		return headerOffset + headerLength;
+	}
+
+	public long getPayloadLength() {
+		return payloadLength;
+	}
+
+	/**
+	 * Total number of bytes that this blob takes up in its pack file (header + payload).
+	 */
+	public long getTotalLength() {
+		return headerLength + payloadLength;
+	}
+
+	public String toString() {
+		return PACKED_BLOB_PATH_PREFIX + packFilePath + ":" + headerOffset + ":" + headerLength + ":" + payloadLength;
+	}
+
+}
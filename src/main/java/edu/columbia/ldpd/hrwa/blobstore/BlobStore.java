@@ -0,0 +1,242 @@
+package edu.columbia.ldpd.hrwa.blobstore;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.lang.StringUtils;
+import org.archive.io.ArchiveReader;
+import org.archive.io.ArchiveReaderFactory;
+import org.archive.io.arc.ARCRecord;
+import org.archive.nutchwax.tools.ArcReader;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+import edu.columbia.ldpd.hrwa.processorrunnables.ArchiveFileShardPlanner;
+
+/**
+ * Entry point for writing and reading archive record blobs.
+ *
+ * Blobs are either stored as individual files (the original layout, blob_path is a plain file path),
+ * appended to pack files (blob_path is a packed BlobLocation) or not stored at all (blob_path is an
+ * ArchiveRecordLocation that points back into the original archive file).  Readers don't need to know
+ * which mode was used when a blob was written, since the blob_path value tells us.
+ */
+public class BlobStore {
+
+	public static final String BLOB_STORE_MODE_FILES = "files";
+	public static final String BLOB_STORE_MODE_PACKED = "packed";
+	public static final String BLOB_STORE_MODE_NONE = "none";
+
+	private static final String PACK_DIR_NAME = "packs";
+
+	public static boolean isValidBlobStoreMode(String blobStoreMode) {
+		return BLOB_STORE_MODE_FILES.equals(blobStoreMode) || BLOB_STORE_MODE_PACKED.equals(blobStoreMode) || BLOB_STORE_MODE_NONE.equals(blobStoreMode);
+	}
+
+	public static String getPackDirPath() {
+		return HrwaManager.blobDirPath + File.separator + PACK_DIR_NAME;
+	}
+
+	/**
+	 * Creates a new BlobWriter for the current HrwaManager.blobStoreMode.  BlobWriters are not thread-safe,
+	 * so every thread that writes blobs should create its own.
+	 * @param uniqueWriterId Used to keep pack file names unique between threads.
+	 * @return
+	 */
+	public static BlobWriter createBlobWriter(int uniqueWriterId) {
+		if(BLOB_STORE_MODE_PACKED.equals(HrwaManager.blobStoreMode)) {
+			return new PackedBlobWriter(new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + "-" + uniqueWriterId);
+		} else if(BLOB_STORE_MODE_NONE.equals(HrwaManager.blobStoreMode)) {
+			return new ArchiveRecordReferenceBlobWriter();
+		} else {
+			return new FileBlobWriter();
+		}
+	}
+
+	/**
+	 * Opens the payload of the blob at the given blob_path.  The caller is responsible for closing the returned stream.
+	 * @param blobPath
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream openBlobInputStream(String blobPath) throws IOException {
+		if(BlobLocation.isPackedBlobPath(blobPath)) {
+			BlobLocation blobLocation = BlobLocation.parse(blobPath);
+			return openPackFileRange(new File(blobLocation.getPackFilePath()), blobLocation.getPayloadOffset(), blobLocation.getPayloadLength());
+		} else if(ArchiveRecordLocation.isArchiveRecordBlobPath(blobPath)) {
+			return openArchiveRecord(ArchiveRecordLocation.parse(blobPath)).getPayloadInputStream();
+		} else {
+			return new FileInputStream(blobPath);
+		}
+	}
+
+	/**
+	 * Returns the http header string that was stored along with the blob at the given blob_path.
+	 */
+	public static String readBlobHeader(String blobPath) throws IOException {
+		if(BlobLocation.isPackedBlobPath(blobPath)) {
+			BlobLocation blobLocation = BlobLocation.parse(blobPath);
+			InputStream headerInputStream = openPackFileRange(new File(blobLocation.getPackFilePath()), blobLocation.getHeaderOffset(), blobLocation.getHeaderLength());
+			try {
+				return IOUtils.toString(headerInputStream, PackedBlobWriter.HEADER_CHARSET);
+			} finally {
+				headerInputStream.close();
+			}
+		} else if(ArchiveRecordLocation.isArchiveRecordBlobPath(blobPath)) {
+			ArchiveRecordPayload archiveRecordPayload = openArchiveRecord(ArchiveRecordLocation.parse(blobPath));
+			try {
+				return archiveRecordPayload.getHttpHeaderString();
+			} finally {
+				archiveRecordPayload.getPayloadInputStream().close();
+			}
+		} else {
+			return FileUtils.readFileToString(new File(blobPath + ".header"));
+		}
+	}
+
+	/**
+	 * Returns the length of the payload of the blob at the given blob_path.
+	 */
+	public static long getBlobLength(String blobPath) {
+		if(BlobLocation.isPackedBlobPath(blobPath)) {
+			return BlobLocation.parse(blobPath).getPayloadLength();
+		} else if(ArchiveRecordLocation.isArchiveRecordBlobPath(blobPath)) {
+			return ArchiveRecordLocation.parse(blobPath).getPayloadLength();
+		} else {
+			return new File(blobPath).length();
+		}
+	}
+
+	public static boolean blobExists(String blobPath) {
+		if(BlobLocation.isPackedBlobPath(blobPath)) {
+			BlobLocation blobLocation = BlobLocation.parse(blobPath);
+			File packFile = new File(blobLocation.getPackFilePath());
+			return packFile.exists() && packFile.length() >= blobLocation.getPayloadOffset() + blobLocation.getPayloadLength();
+		} else if(ArchiveRecordLocation.isArchiveRecordBlobPath(blobPath)) {
+			ArchiveRecordLocation archiveRecordLocation = ArchiveRecordLocation.parse(blobPath);
+			File archiveFile = new File(archiveRecordLocation.getArchiveFilePath());
+			return archiveFile.exists() && archiveFile.length() > archiveRecordLocation.getOffsetInArchiveFile();
+		} else {
+			return new File(blobPath).exists();
+		}
+	}
+
+	/**
+	 * Returns the blob File for blobs that are stored as individual files, or null for blobs that live in a pack file
+	 * or in an archive file.
+	 * Some consumers (e.g. Tika container detection) work better with a real file when one is available.
+	 */
+	public static File getBlobFileIfStoredAsFile(String blobPath) {
+		if(blobPath == null || BlobLocation.isPackedBlobPath(blobPath) || ArchiveRecordLocation.isArchiveRecordBlobPath(blobPath)) {
+			return null;
+		}
+		return new File(blobPath);
+	}
+
+	/**
+	 * Opens a bounded, buffered stream over a byte range of a pack file.
+	 */
+	protected static InputStream openPackFileRange(File packFile, long offset, long length) throws IOException {
+		FileInputStream fileInputStream = new FileInputStream(packFile);
+		try {
+			fileInputStream.getChannel().position(offset);
+		} catch (IOException e) {
+			fileInputStream.close();
+			throw e;
+		}
+		//BoundedInputStream closes the underlying stream when it's closed
+		return new BoundedInputStream(new BufferedInputStream(fileInputStream, (int)Math.min(65536, Math.max(length, 1))), length);
+	}
+
+	/**
+	 * Writes a blob for the record at the given offset in an archive file, the same way that the ArchiveToMySQLTask does
+	 * while it reads the whole file.  Used for records whose payload was skipped back then (see DeferredRecordMaterializer).
+	 * @return The new blob_path, or null if the blob couldn't be written.
+	 */
+	public static String writeBlobForArchiveRecord(BlobWriter blobWriter, File archiveFile, long offsetInArchiveFile, ByteArrayOutputStream detectionPrefix, int detectionPrefixLength) throws IOException {
+		//The payload length isn't known yet, so the payload stream is only bounded by the end of the record
+		ArchiveRecordPayload archiveRecordPayload = openArchiveRecord(new ArchiveRecordLocation(archiveFile.getPath(), offsetInArchiveFile, Long.MAX_VALUE));
+		try {
+			return blobWriter.writeBlob(archiveFile, offsetInArchiveFile, archiveRecordPayload.getHttpHeaderString(), archiveRecordPayload.getPayloadInputStream(), detectionPrefix, detectionPrefixLength);
+		} finally {
+			archiveRecordPayload.getPayloadInputStream().close();
+		}
+	}
+
+	/**
+	 * Opens the record at the given location in its archive file and positions the returned payload stream
+	 * right after the record's http header.  Closing the payload stream closes the archive file.
+	 */
+	protected static ArchiveRecordPayload openArchiveRecord(ArchiveRecordLocation archiveRecordLocation) throws IOException {
+
+		File archiveFile = new File(archiveRecordLocation.getArchiveFilePath());
+
+		InputStream archiveFileInputStream = new FileInputStream(archiveFile);
+		final ArchiveReader archiveReader;
+		try {
+			ArchiveFileShardPlanner.skipFully(archiveFileInputStream, archiveRecordLocation.getOffsetInArchiveFile());
+			//The archive file name is passed as the reader id so that the factory can tell ARC and WARC files apart
+			archiveReader = ArchiveReaderFactory.get(archiveFile.getName(), new BufferedInputStream(archiveFileInputStream, 65536), false);
+		} catch (IOException e) {
+			archiveFileInputStream.close();
+			throw e;
+		}
+
+		try {
+			Iterator<ARCRecord> arcRecordIterator = new ArcReader(archiveReader, false).iterator();
+			ARCRecord arcRecord = arcRecordIterator.hasNext() ? arcRecordIterator.next() : null;
+			if(arcRecord == null) {
+				throw new IOException("No response record found at offset " + archiveRecordLocation.getOffsetInArchiveFile() + " in " + archiveFile.getPath());
+			}
+
+			//Get http header before skipping it, just like the ArchiveToMySQLTask does
+			String httpHeaderString = StringUtils.join(arcRecord.getHttpHeaders());
+			arcRecord.skipHttpHeader();
+
+			InputStream payloadInputStream = new BoundedInputStream(arcRecord, archiveRecordLocation.getPayloadLength()) {
+				public void close() throws IOException {
+					archiveReader.close();
+				}
+			};
+
+			return new ArchiveRecordPayload(httpHeaderString, payloadInputStream);
+
+		} catch (RuntimeException e) {
+			//The ArcReader iterator wraps read errors in RuntimeExceptions
+			archiveReader.close();
+			throw new IOException("Could not read record at offset " + archiveRecordLocation.getOffsetInArchiveFile() + " in " + archiveFile.getPath(), e);
+		} catch (IOException e) {
+			archiveReader.close();
+			throw e;
+		}
+	}
+
+	protected static class ArchiveRecordPayload {
+
+		private final String httpHeaderString;
+		private final InputStream payloadInputStream;
+
+		public ArchiveRecordPayload(String httpHeaderString, InputStream payloadInputStream) {
+			this.httpHeaderString = httpHeaderString;
+			this.payloadInputStream = payloadInputStream;
+		}
+
+		public String getHttpHeaderString() {
+			return httpHeaderString;
+		}
+
+		public InputStream getPayloadInputStream() {
+			return payloadInputStream;
+		}
+	}
+
+}
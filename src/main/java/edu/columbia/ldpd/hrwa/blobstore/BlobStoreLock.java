@@ -0,0 +1,110 @@
+package edu.columbia.ldpd.hrwa.blobstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+
+/**
+ * Keeps the CompactBlobStoreTask from running while blobs are being written.
+ *
+ * Tasks that write blobs (the ArchiveToMySQLTask and the RegularMaintenanceTask) hold a shared lock on a lock file in
+ * the blob directory.  The CompactBlobStoreTask needs the exclusive lock, so it refuses to run while any writer holds
+ * the shared lock, in this process or in another hrwa_manager process.  File locks are held per process, so writers in
+ * the same process share a single FileLock.
+ */
+public class BlobStoreLock {
+
+	private static final String LOCK_FILE_NAME = ".blobstore.lock";
+
+	private static RandomAccessFile lockFileAccess = null;
+	private static FileLock fileLock = null;
+	private static int numberOfWritersHoldingLock = 0;
+
+	private final boolean isWriterLock;
+	private boolean released = false;
+
+	private BlobStoreLock(boolean isWriterLock) {
+		this.isWriterLock = isWriterLock;
+	}
+
+	/**
+	 * Waits for the shared lock that lets a task write blobs.
+	 */
+	public static synchronized BlobStoreLock acquireForWriting() throws IOException {
+		if(numberOfWritersHoldingLock == 0) {
+			openLockFile();
+			try {
+				fileLock = lockFileAccess.getChannel().lock(0, Long.MAX_VALUE, true);
+			} catch (IOException e) {
+				closeLockFile();
+				throw e;
+			}
+		}
+		numberOfWritersHoldingLock++;
+		return new BlobStoreLock(true);
+	}
+
+	/**
+	 * Returns the exclusive lock that lets a task rewrite and delete pack files, or null if blobs are being written.
+	 */
+	public static synchronized BlobStoreLock tryAcquireForCompaction() throws IOException {
+		if(numberOfWritersHoldingLock > 0 || fileLock != null) {
+			return null;
+		}
+		openLockFile();
+		try {
+			fileLock = lockFileAccess.getChannel().tryLock(0, Long.MAX_VALUE, false);
+		} catch (IOException e) {
+			closeLockFile();
+			throw e;
+		}
+		if(fileLock == null) {
+			closeLockFile();
+			return null;
+		}
+		return new BlobStoreLock(false);
+	}
+
+	public void release() {
+		synchronized(BlobStoreLock.class) {
+			if(released) {
+				return;
+			}
+			released = true;
+
+			if(isWriterLock) {
+				numberOfWritersHoldingLock--;
+				if(numberOfWritersHoldingLock > 0) {
+					return;
+				}
+			}
+
+			try {
+				fileLock.release();
+			} catch (IOException e) {
+				HrwaManager.writeToLog("Error: Could not release the blob store lock: " + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			}
+			fileLock = null;
+			closeLockFile();
+		}
+	}
+
+	private static void openLockFile() throws IOException {
+		File blobDir = new File(HrwaManager.blobDirPath);
+		blobDir.mkdirs();
+		lockFileAccess = new RandomAccessFile(new File(blobDir, LOCK_FILE_NAME), "rw");
+	}
+
+	private static void closeLockFile() {
+		try {
+			lockFileAccess.close();
+		} catch (IOException e) {
+			HrwaManager.writeToLog("Error: Could not close the blob store lock file: " + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+		}
+		lockFileAccess = null;
+	}
+
+}
@@ -0,0 +1,95 @@
+package edu.columbia.ldpd.hrwa.blobstore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Writes archive record blobs (and their http headers) into the blob store.
+ * Each reader thread gets its own BlobWriter, so implementations don't need to be thread-safe.
+ */
+public abstract class BlobWriter {
+
+	/**
+	 * Writes a single blob.
+	 * @param archiveFile The archive file that the record came from.
+	 * @param offsetInArchiveFile Offset of the record in its archive file.
+	 * @param httpHeaderString The record's http header.
+	 * @param payloadInputStream The record payload. Read until the end of the stream.
+	 * @param detectionPrefix Receives the first detectionPrefixLength bytes of the payload. Can be null.
+	 * @param detectionPrefixLength
+	 * @return The blob_path value for this blob, or null if the blob could not be written.
+	 */
+	public abstract String writeBlob(File archiveFile, long offsetInArchiveFile, String httpHeaderString, InputStream payloadInputStream, ByteArrayOutputStream detectionPrefix, int detectionPrefixLength);
+
+	/**
+	 * Makes all blobs written so far visible to readers.
+	 */
+	public abstract void flush() throws IOException;
+
+	public abstract void close() throws IOException;
+
+	/**
+	 * Copies inputStream to outputStream, capturing the first prefixLength bytes along the way.
+	 * @return The number of bytes copied.
+	 */
+	protected static long copyAndCapturePrefix(InputStream inputStream, OutputStream outputStream, ByteArrayOutputStream prefix, int prefixLength) throws IOException {
+		byte [] buffer = checkout();
+		long totalBytesCopied = 0;
+		try {
+			int len = 0;
+			while ((len = inputStream.read(buffer)) != -1) {
+				outputStream.write(buffer, 0, len);
+				if (prefix != null && prefix.size() < prefixLength) {
+					prefix.write(buffer, 0, Math.min(len, prefixLength - prefix.size()));
+				}
+				totalBytesCopied += len;
+			}
+		} finally {
+			checkin(buffer);
+		}
+		return totalBytesCopied;
+	}
+
+	/**
+	 * Reads only the first prefixLength bytes of inputStream into prefix, for payloads whose blob has already been written.
+	 */
+	public static void capturePrefix(InputStream inputStream, ByteArrayOutputStream prefix, int prefixLength) throws IOException {
+		byte [] buffer = checkout();
+		try {
+			int len = 0;
+			while (prefix.size() < prefixLength) {
+				len = inputStream.read(buffer, 0, Math.min(buffer.length, prefixLength - prefix.size()));
+				if (len == -1) {
+					return;
+				}
+				prefix.write(buffer, 0, len);
+			}
+		} finally {
+			checkin(buffer);
+		}
+	}
+
+	/* Byte check-in/check-out stuff */
+
+	private static Deque<byte[]> BUFFER_POOL = new ArrayDeque<byte[]>();
+	private static byte[] checkout() {
+	    synchronized(BUFFER_POOL) {
+	        if (BUFFER_POOL.isEmpty()) {
+	            return new byte[8196];
+	        } else {
+	            return BUFFER_POOL.pop();
+	        }
+	    }
+	}
+	private static void checkin(byte[] buffer) {
+	    synchronized(BUFFER_POOL) {
+	        BUFFER_POOL.add(buffer);
+	    }
+	}
+
+}
@@ -0,0 +1,67 @@
+package edu.columbia.ldpd.hrwa.blobstore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+
+/**
+ * The original blob layout: one &lt;offset&gt;.blob file and one &lt;offset&gt;.blob.header file
+ * per record, in a directory named after the record's archive file.
+ */
+public class FileBlobWriter extends BlobWriter {
+
+	public String writeBlob(File archiveFile, long offsetInArchiveFile, String httpHeaderString, InputStream payloadInputStream, ByteArrayOutputStream detectionPrefix, int detectionPrefixLength) {
+
+		File blobFile = new File(getBlobFilePathForRecord(offsetInArchiveFile, archiveFile.getName()));
+
+        //Step 1: Write out the .blob file
+
+        //Make directories if necessary
+        blobFile.getParentFile().mkdirs();
+
+        // Write blob to file using method below in order to use less memory
+        try {
+            FileOutputStream blobOutputStream = new FileOutputStream(blobFile);
+            try {
+            	copyAndCapturePrefix(payloadInputStream, blobOutputStream, detectionPrefix, detectionPrefixLength);
+            	blobOutputStream.flush();
+            } finally {
+            	blobOutputStream.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            HrwaManager.writeToLog("Error: Could not write BLOB file (" + blobFile.getPath() + ") to disk.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+        }
+
+        String blob_path_with_header_extension = blobFile.getPath() + ".header";
+
+        //Write out the header string to an associated .blob.header file
+        try {
+            FileUtils.writeStringToFile(new File(blob_path_with_header_extension), httpHeaderString);
+        } catch (IOException e) {
+            e.printStackTrace();
+            HrwaManager.writeToLog("Error: Could not write HEADER file (" + blob_path_with_header_extension + ") to disk.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+        }
+
+		return blobFile.getPath();
+	}
+
+	private String getBlobFilePathForRecord(long offsetInArchiveFile, String archiveFileName) {
+		return HrwaManager.blobDirPath + File.separator + archiveFileName + File.separator + offsetInArchiveFile + ".blob";
+	}
+
+	public void flush() {
+		//Every blob file is closed as soon as it's written
+	}
+
+	public void close() {
+		//Nothing to close
+	}
+
+}
@@ -0,0 +1,110 @@
+package edu.columbia.ldpd.hrwa.blobstore;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+
+/**
+ * Appends blobs to large, append-only pack files instead of creating two small files per record.
+ *
+ * Each writer owns its own sequence of pack files, so no locking is needed.  A new pack file is
+ * started once the current one grows past MAX_PACK_FILE_SIZE_IN_BYTES.  Bytes that end up
+ * unreferenced (e.g. records that were deleted and re-indexed) are reclaimed by the
+ * CompactBlobStoreTask.
+ */
+public class PackedBlobWriter extends BlobWriter {
+
+	public static final long MAX_PACK_FILE_SIZE_IN_BYTES = 1024L * 1048576L;
+	public static final String PACK_FILE_EXTENSION = ".pack";
+	public static final String HEADER_CHARSET = "UTF-8";
+
+	//Canonical paths of the pack files that writers in this process are still appending to
+	private static final Set<String> OPEN_PACK_FILE_PATHS = Collections.synchronizedSet(new HashSet<String>());
+
+	private final String packFileNamePrefix;
+	private int packFileSequenceNumber = 0;
+
+	private File currentPackFile = null;
+	private CountingOutputStream currentPackOutputStream = null;
+
+	/**
+	 * @param packFileNamePrefix Unique prefix for the pack files created by this writer.
+	 */
+	public PackedBlobWriter(String packFileNamePrefix) {
+		this.packFileNamePrefix = packFileNamePrefix;
+	}
+
+	public String writeBlob(File archiveFile, long offsetInArchiveFile, String httpHeaderString, InputStream payloadInputStream, ByteArrayOutputStream detectionPrefix, int detectionPrefixLength) {
+
+		try {
+			if(currentPackOutputStream == null || currentPackOutputStream.getByteCount() >= MAX_PACK_FILE_SIZE_IN_BYTES) {
+				startNewPackFile();
+			}
+
+			byte[] headerBytes = httpHeaderString.getBytes(HEADER_CHARSET);
+
+			//The counting stream always knows the true position, even if a previous write failed halfway through
+			long headerOffset = currentPackOutputStream.getByteCount();
+			currentPackOutputStream.write(headerBytes);
+			long payloadLength = copyAndCapturePrefix(payloadInputStream, currentPackOutputStream, detectionPrefix, detectionPrefixLength);
+
+			return new BlobLocation(currentPackFile.getPath(), headerOffset, headerBytes.length, payloadLength).toString();
+
+		} catch (IOException e) {
+			e.printStackTrace();
+			HrwaManager.writeToLog("Error: Could not write blob for record at offset " + offsetInArchiveFile + " in " + archiveFile.getName() + " to pack file (" + currentPackFile + ").\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			return null;
+		}
+	}
+
+	private void startNewPackFile() throws IOException {
+
+		close();
+
+		File packDir = new File(BlobStore.getPackDirPath());
+		packDir.mkdirs();
+
+		do {
+			currentPackFile = new File(packDir, packFileNamePrefix + "-" + String.format("%05d", packFileSequenceNumber) + PACK_FILE_EXTENSION);
+			packFileSequenceNumber++;
+		} while(currentPackFile.exists());
+
+		currentPackOutputStream = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(currentPackFile), 65536));
+		OPEN_PACK_FILE_PATHS.add(currentPackFile.getCanonicalPath());
+	}
+
+	/**
+	 * Returns true if a writer in this process is still appending to the given pack file.
+	 */
+	public static boolean isOpenForWriting(File packFile) throws IOException {
+		return OPEN_PACK_FILE_PATHS.contains(packFile.getCanonicalPath());
+	}
+
+	public void flush() throws IOException {
+		if(currentPackOutputStream != null) {
+			currentPackOutputStream.flush();
+		}
+	}
+
+	public void close() throws IOException {
+		if(currentPackOutputStream != null) {
+			try {
+				currentPackOutputStream.close();
+			} finally {
+				currentPackOutputStream = null;
+				OPEN_PACK_FILE_PATHS.remove(currentPackFile.getCanonicalPath());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+package edu.columbia.ldpd.hrwa.blobstore;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Remembers the blobs and detected mimetypes of recently seen payloads, keyed by payload digest
+ * (e.g. "sha1:PD3SS4WWZVFWTDC63RU2MWX7BVC2Y2VA").  Recurring crawls capture the same unchanged page over and over,
+ * so when a digest has already been seen, the reader stage points the new record at the existing blob instead of
+ * writing another copy, and the detector stage reuses the mimetype that was detected for it.
+ *
+ * Tika uses the file name as a hint for content that can't be identified from its bytes alone, so detected mimetypes
+ * are keyed by digest AND file name extension.  Only the first capture's http header is kept with a shared blob.
+ * Detected languages only depend on the payload, so they're keyed by digest alone.
+ *
+ * All maps are bounded LRU maps, so memory use stays flat no matter how many records are read.  One instance is shared
+ * by every thread of an ArchiveToMySQLTask run.  A maxEntries value of 0 disables the cache.
+ */
+public class PayloadDigestCache {
+
+	private final int maxEntries;
+	private final Map<String, String> blobPathsByDigest;
+	private final Map<String, String> detectedMimetypesByDigestAndExtension;
+	private final Map<String, String> detectedLanguagesByDigest;
+
+	private long numberOfBlobLookups = 0;
+	private long numberOfBlobHits = 0;
+	private long numberOfMimetypeLookups = 0;
+	private long numberOfMimetypeHits = 0;
+
+	public PayloadDigestCache(int maxEntries) {
+		if(maxEntries < 0) {
+			throw new IllegalArgumentException("A PayloadDigestCache can't have a negative size.  Given: " + maxEntries);
+		}
+		this.maxEntries = maxEntries;
+		blobPathsByDigest = createLRUMap(maxEntries);
+		detectedMimetypesByDigestAndExtension = createLRUMap(maxEntries);
+		detectedLanguagesByDigest = createLRUMap(maxEntries);
+	}
+
+	public boolean isEnabled() {
+		return maxEntries > 0;
+	}
+
+	/**
+	 * Returns the blob_path of a blob that was already written for the given payload digest, or null.
+	 */
+	public synchronized String getBlobPath(String digest) {
+		if(digest == null || ! isEnabled()) {
+			return null;
+		}
+		numberOfBlobLookups++;
+		String blobPath = blobPathsByDigest.get(digest);
+		if(blobPath != null) {
+			numberOfBlobHits++;
+		}
+		return blobPath;
+	}
+
+	/**
+	 * Only call this once the blob is readable (i.e. after its BlobWriter has been flushed), since other threads
+	 * may hand out the blob_path as soon as it's in the cache.
+	 */
+	public synchronized void putBlobPath(String digest, String blobPath) {
+		if(digest == null || blobPath == null || ! isEnabled()) {
+			return;
+		}
+		blobPathsByDigest.put(digest, blobPath);
+	}
+
+	/**
+	 * Returns the mimetype that was detected for an earlier payload with the same digest and file name extension, or null.
+	 * @param digest
+	 * @param fileName File name hint that would be passed to the MimetypeDetector.  Can be null.
+	 */
+	public synchronized String getDetectedMimetype(String digest, String fileName) {
+		if(digest == null || ! isEnabled()) {
+			return null;
+		}
+		numberOfMimetypeLookups++;
+		String detectedMimetype = detectedMimetypesByDigestAndExtension.get(getDigestAndExtensionKey(digest, fileName));
+		if(detectedMimetype != null) {
+			numberOfMimetypeHits++;
+		}
+		return detectedMimetype;
+	}
+
+	public synchronized void putDetectedMimetype(String digest, String fileName, String detectedMimetype) {
+		if(digest == null || detectedMimetype == null || ! isEnabled()) {
+			return;
+		}
+		detectedMimetypesByDigestAndExtension.put(getDigestAndExtensionKey(digest, fileName), detectedMimetype);
+	}
+
+	/**
+	 * Returns the language that was detected for an earlier payload with the same digest, or null.
+	 * Only meaningful once getDetectedMimetype() has returned a value for the digest, since languages are put first.
+	 */
+	public synchronized String getDetectedLanguage(String digest) {
+		if(digest == null || ! isEnabled()) {
+			return null;
+		}
+		return detectedLanguagesByDigest.get(digest);
+	}
+
+	/**
+	 * Call this before putDetectedMimetype(), so that a reader that finds the mimetype also finds the language.
+	 */
+	public synchronized void putDetectedLanguage(String digest, String detectedLanguage) {
+		if(digest == null || detectedLanguage == null || ! isEnabled()) {
+			return;
+		}
+		detectedLanguagesByDigest.put(digest, detectedLanguage);
+	}
+
+	public synchronized String getStatisticsMessage() {
+		return "Payload digest cache: " + numberOfBlobHits + " of " + numberOfBlobLookups + " blobs reused, " +
+			numberOfMimetypeHits + " of " + numberOfMimetypeLookups + " mimetype detections reused (max entries: " + maxEntries + ")";
+	}
+
+	private static String getDigestAndExtensionKey(String digest, String fileName) {
+		String extension = "";
+		if(fileName != null) {
+			int lastDot = fileName.lastIndexOf('.');
+			if(lastDot != -1) {
+				extension = fileName.substring(lastDot + 1).toLowerCase(Locale.ENGLISH);
+			}
+		}
+		//Digests never contain spaces
+		return digest + " " + extension;
+	}
+
+	private static Map<String, String> createLRUMap(final int maxEntries) {
+		//Access order, so that frequently recaptured payloads stay in the cache
+		return new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,157 @@
+package edu.columbia.ldpd.hrwa.mysql;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+
+/**
+ * Links hoststrings to site ids, the way that new web archive records are linked while they're written to MySQL:
+ * a site with the same hoststring wins, and otherwise a related host with the same hoststring is used.
+ *
+ * A resolver is immutable, so a single instance is shared by every thread.  getCurrent() returns the latest one,
+ * and reloadFromMySQL() swaps in a new one after the sites or related_hosts tables have changed.  Threads that are in
+ * the middle of a lookup keep using the old instance until their next call to getCurrent().
+ *
+ * Lookups run for every archive record, so hoststrings are kept in a single open-addressing table (parallel arrays,
+ * no boxed Integers or map entries).  Lookups don't allocate, and they're case-insensitive, like MySQL's
+ * utf8_general_ci comparisons.
+ */
+public class HoststringResolver {
+
+	public static final int NOT_FOUND = -1;
+
+	private static final AtomicReference<HoststringResolver> currentHoststringResolver = new AtomicReference<HoststringResolver>();
+
+	private final String[] hoststrings;
+	private final int[] siteIds;
+	private final boolean[] linkedViaRelatedHost;
+	private final int mask;
+	private final int size;
+
+	/**
+	 * @param siteIdsBySiteHoststring Contents of the sites table (hoststring to id)
+	 * @param siteIdsByRelatedHost Contents of the related_hosts table (related_host to site_id)
+	 */
+	public HoststringResolver(Map<String, Integer> siteIdsBySiteHoststring, Map<String, Integer> siteIdsByRelatedHost) {
+
+		//At most half full, so that probe sequences stay short
+		int capacity = 16;
+		while(capacity < (siteIdsBySiteHoststring.size() + siteIdsByRelatedHost.size()) * 2) {
+			capacity <<= 1;
+		}
+
+		hoststrings = new String[capacity];
+		siteIds = new int[capacity];
+		linkedViaRelatedHost = new boolean[capacity];
+		mask = capacity - 1;
+
+		int numberOfEntries = 0;
+		for(Map.Entry<String, Integer> entry : siteIdsBySiteHoststring.entrySet()) {
+			numberOfEntries += add(entry.getKey(), entry.getValue(), false);
+		}
+		//Site hoststrings take precedence, so related hosts never replace them
+		for(Map.Entry<String, Integer> entry : siteIdsByRelatedHost.entrySet()) {
+			numberOfEntries += add(entry.getKey(), entry.getValue(), true);
+		}
+		size = numberOfEntries;
+	}
+
+	/**
+	 * Returns the shared resolver, loading it from MySQL if this is the first call.
+	 */
+	public static HoststringResolver getCurrent() {
+		HoststringResolver hoststringResolver = currentHoststringResolver.get();
+		if(hoststringResolver == null) {
+			currentHoststringResolver.compareAndSet(null, loadFromMySQL());
+			hoststringResolver = currentHoststringResolver.get();
+		}
+		return hoststringResolver;
+	}
+
+	/**
+	 * Builds a new resolver from the current sites and related_hosts tables and makes it the shared one.
+	 */
+	public static HoststringResolver reloadFromMySQL() {
+		HoststringResolver hoststringResolver = loadFromMySQL();
+		currentHoststringResolver.set(hoststringResolver);
+		HrwaManager.writeToLog("Loaded " + hoststringResolver.size() + " site and related host hoststrings for record linking.", true, HrwaManager.LOG_TYPE_STANDARD);
+		return hoststringResolver;
+	}
+
+	private static HoststringResolver loadFromMySQL() {
+		return new HoststringResolver(MySQLHelper.getSitesMap(null), MySQLHelper.getRelatedHostsMap(null));
+	}
+
+	/**
+	 * Returns the entry for the given hoststring (pass it to getSiteId() and isLinkedViaRelatedHost()), or NOT_FOUND.
+	 */
+	public int findEntry(String hoststring) {
+		if(hoststring == null) {
+			return NOT_FOUND;
+		}
+		int slot = hash(hoststring) & mask;
+		String key;
+		while((key = hoststrings[slot]) != null) {
+			if(key.equalsIgnoreCase(hoststring)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return NOT_FOUND;
+	}
+
+	public int getSiteId(int entry) {
+		return siteIds[entry];
+	}
+
+	public boolean isLinkedViaRelatedHost(int entry) {
+		return linkedViaRelatedHost[entry];
+	}
+
+	/**
+	 * Number of distinct hoststrings
+	 */
+	public int size() {
+		return size;
+	}
+
+	private int add(String hoststring, int siteId, boolean isRelatedHost) {
+		if(hoststring == null) {
+			return 0;
+		}
+		String key = toLowerCase(hoststring);
+		int slot = hash(key) & mask;
+		while(hoststrings[slot] != null) {
+			if(hoststrings[slot].equals(key)) {
+				return 0;
+			}
+			slot = (slot + 1) & mask;
+		}
+		hoststrings[slot] = key;
+		siteIds[slot] = siteId;
+		linkedViaRelatedHost[slot] = isRelatedHost;
+		return 1;
+	}
+
+	/**
+	 * Lowercases one char at a time, exactly like hash() does
+	 */
+	private static String toLowerCase(String s) {
+		char[] chars = new char[s.length()];
+		for(int i = 0; i < chars.length; i++) {
+			chars[i] = Character.toLowerCase(s.charAt(i));
+		}
+		return new String(chars);
+	}
+
+	private static int hash(String s) {
+		int h = 0;
+		for(int i = 0; i < s.length(); i++) {
+			h = 31 * h + Character.toLowerCase(s.charAt(i));
+		}
+		//Spread the high bits, since the table index only uses the low ones
+		return h ^ (h >>> 16);
+	}
+
+}
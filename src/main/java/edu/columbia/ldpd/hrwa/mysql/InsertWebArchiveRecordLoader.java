@@ -0,0 +1,62 @@
+package edu.columbia.ldpd.hrwa.mysql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+
+/**
+ * Loads rows with a batched prepared INSERT statement.  The connection pool turns on Connector/J's
+ * rewriteBatchedStatements, so each flush() is sent to MySQL as a few multi-row INSERTs (split to fit
+ * max_allowed_packet) instead of one round trip per row.
+ */
+public class InsertWebArchiveRecordLoader extends WebArchiveRecordLoader {
+
+	private final PreparedStatement insertPstmt;
+	private int numberOfBufferedRows = 0;
+
+	public InsertWebArchiveRecordLoader(Connection conn) throws SQLException {
+
+		StringBuilder placeholders = new StringBuilder();
+		for(int i = 0; i < COLUMN_NAMES.length; i++) {
+			placeholders.append(i == 0 ? "?" : ", ?");
+		}
+
+		//Only prepare the statement once.  No need to do it multiple times since we're inserting the same-formatted data over and over
+		insertPstmt = conn.prepareStatement(
+			"INSERT INTO " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME +
+			" (" + getCommaDelimitedColumnNames() + ") " +
+			"VALUES (" + placeholders + ")"
+		);
+	}
+
+	public void addRow(Object[] values) throws SQLException {
+		for(int i = 0; i < COLUMN_NAMES.length; i++) {
+			if(values[i] == null) {
+				insertPstmt.setNull(i + 1, COLUMN_SQL_TYPES[i]);
+			} else {
+				insertPstmt.setObject(i + 1, values[i]);
+			}
+		}
+		insertPstmt.addBatch();
+		numberOfBufferedRows++;
+	}
+
+	public int getNumberOfBufferedRows() {
+		return numberOfBufferedRows;
+	}
+
+	public void flush() throws SQLException {
+		if(numberOfBufferedRows > 0) {
+			//Reset the counter first, since a failed batch is cleared by the driver anyway
+			numberOfBufferedRows = 0;
+			insertPstmt.executeBatch();
+		}
+	}
+
+	public void close() throws SQLException {
+		insertPstmt.close();
+	}
+
+}
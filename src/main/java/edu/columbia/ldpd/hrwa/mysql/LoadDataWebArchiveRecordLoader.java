@@ -0,0 +1,112 @@
+package edu.columbia.ldpd.hrwa.mysql;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+
+/**
+ * Loads rows with LOAD DATA LOCAL INFILE.  Buffered rows are encoded in MySQL's default tab-separated format
+ * and streamed to the server from memory, so each flush() is a single statement and nothing touches the disk.
+ *
+ * Note that LOAD DATA LOCAL skips rows that would violate a unique key (with a warning) instead of failing.
+ * Partially indexed archive files are deleted before they're processed again, so this shouldn't happen, but
+ * flush() logs an error if fewer rows were loaded than were sent.
+ */
+public class LoadDataWebArchiveRecordLoader extends WebArchiveRecordLoader {
+
+	private static final String CHARSET = "UTF-8";
+
+	private final Statement loadDataStatement;
+	private final String loadDataSql;
+
+	private StringBuilder bufferedRows = new StringBuilder();
+	private int numberOfBufferedRows = 0;
+
+	public LoadDataWebArchiveRecordLoader(Connection conn) throws SQLException {
+		loadDataStatement = conn.createStatement();
+		loadDataSql =
+			//The file name is ignored, since the rows are read from the stream set by setLocalInfileInputStream()
+			"LOAD DATA LOCAL INFILE '" + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".tsv'" +
+			" INTO TABLE " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME +
+			" CHARACTER SET utf8" +
+			" FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\'" +
+			" LINES TERMINATED BY '\\n'" +
+			" (" + getCommaDelimitedColumnNames() + ")";
+	}
+
+	public void addRow(Object[] values) {
+		appendTabSeparatedLine(bufferedRows, values);
+		numberOfBufferedRows++;
+	}
+
+	public int getNumberOfBufferedRows() {
+		return numberOfBufferedRows;
+	}
+
+	public void flush() throws SQLException {
+		if(numberOfBufferedRows == 0) {
+			return;
+		}
+
+		byte[] rowBytes;
+		try {
+			rowBytes = bufferedRows.toString().getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new SQLException("Could not encode rows as " + CHARSET, e);
+		}
+
+		int numberOfRowsSent = numberOfBufferedRows;
+		bufferedRows = new StringBuilder();
+		numberOfBufferedRows = 0;
+
+		//Statements aren't wrapped by the connection pool, so this is always the driver's own Statement
+		((com.mysql.jdbc.Statement)loadDataStatement).setLocalInfileInputStream(new ByteArrayInputStream(rowBytes));
+		int numberOfRowsLoaded = loadDataStatement.executeUpdate(loadDataSql);
+
+		if(numberOfRowsLoaded != numberOfRowsSent) {
+			HrwaManager.writeToLog("Error: LOAD DATA only loaded " + numberOfRowsLoaded + " of " + numberOfRowsSent + " web archive record rows. Rows that duplicate an existing (archive_file, offset_in_archive_file) pair are skipped.", true, HrwaManager.LOG_TYPE_ERROR);
+		}
+	}
+
+	public void close() throws SQLException {
+		loadDataStatement.close();
+	}
+
+	/**
+	 * Appends one row in LOAD DATA's default format: tab-separated fields, newline-terminated lines,
+	 * backslash escapes and \N for NULL.
+	 */
+	protected static void appendTabSeparatedLine(StringBuilder stringBuilder, Object[] values) {
+		for(int i = 0; i < values.length; i++) {
+			if(i > 0) {
+				stringBuilder.append('\t');
+			}
+
+			Object value = values[i];
+			if(value == null) {
+				stringBuilder.append("\\N");
+			} else if(value instanceof Boolean) {
+				stringBuilder.append(((Boolean)value).booleanValue() ? '1' : '0');
+			} else {
+				String stringValue = value.toString();
+				for(int j = 0; j < stringValue.length(); j++) {
+					char c = stringValue.charAt(j);
+					switch(c) {
+						case '\\': stringBuilder.append("\\\\"); break;
+						case '\t': stringBuilder.append("\\t"); break;
+						case '\n': stringBuilder.append("\\n"); break;
+						case '\r': stringBuilder.append("\\r"); break;
+						case '\0': stringBuilder.append("\\0"); break;
+						default: stringBuilder.append(c);
+					}
+				}
+			}
+		}
+		stringBuilder.append('\n');
+	}
+
+}
@@ -0,0 +1,277 @@
+package edu.columbia.ldpd.hrwa.mysql;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+
+/**
+ * A small, bounded pool of MySQL connections.
+ *
+ * getConnection() hands out a wrapper around a pooled connection.  Calling close() on the wrapper returns the
+ * underlying connection to the pool instead of closing it, so existing code that opens a connection, uses it and
+ * closes it doesn't need to change.  On return, uncommitted work is rolled back and any statements that the
+ * borrower forgot to close are closed.
+ *
+ * At most maxSize connections are checked out at once.  When the pool is exhausted, getConnection() waits for a
+ * connection to be returned.  Connections that have been idle for a while are validated before they're handed out.
+ */
+public class MySQLConnectionPool {
+
+	private static final long IDLE_TIME_BEFORE_VALIDATION_IN_MILLIS = 30000;
+	private static final int VALIDATION_TIMEOUT_IN_SECONDS = 5;
+	private static final long CHECKOUT_TIMEOUT_IN_MILLIS = 600000;
+
+	private final String url;
+	private final String username;
+	private final String password;
+
+	private final Deque<IdleConnection> idleConnections = new ArrayDeque<IdleConnection>();
+	private int maxSize;
+	private int numberOfCheckedOutConnections = 0;
+	private boolean shutDown = false;
+
+	public MySQLConnectionPool(String url, String username, String password, int maxSize) {
+		this.url = url;
+		this.username = username;
+		this.password = password;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Changes the maximum number of connections that can be checked out at once.  Tasks call this to size the
+	 * pool for the number of threads that they're about to start.  Shrinking the pool doesn't affect connections
+	 * that are currently checked out.
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		while(idleConnections.size() > maxSize) {
+			closePhysicalConnection(idleConnections.pollLast().connection);
+		}
+		notifyAll();
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Checks out a connection.  Close the returned connection to give it back to the pool.
+	 * @param autoCommit
+	 * @return
+	 * @throws SQLException if a new connection can't be opened, or if no connection became available within CHECKOUT_TIMEOUT_IN_MILLIS.
+	 */
+	public Connection getConnection(boolean autoCommit) throws SQLException {
+
+		Connection physicalConnection = checkOutIdleConnectionOrReserveSlot();
+
+		if(physicalConnection == null) {
+			try {
+				physicalConnection = DriverManager.getConnection(url, username, password);
+			} catch (SQLException e) {
+				releaseSlot();
+				throw e;
+			}
+		}
+
+		try {
+			physicalConnection.setAutoCommit(autoCommit);
+		} catch (SQLException e) {
+			closePhysicalConnection(physicalConnection);
+			releaseSlot();
+			throw e;
+		}
+
+		return (Connection)Proxy.newProxyInstance(
+			Connection.class.getClassLoader(),
+			new Class[] { Connection.class },
+			new PooledConnectionHandler(physicalConnection)
+		);
+	}
+
+	/**
+	 * Closes all idle connections.  Connections that are checked out are closed when they're returned.
+	 */
+	public synchronized void shutdown() {
+		shutDown = true;
+		while( ! idleConnections.isEmpty() ) {
+			closePhysicalConnection(idleConnections.pollFirst().connection);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Waits for a free slot, then returns a healthy idle connection if there is one.
+	 * @return An idle connection, or null if the caller should open a new one (the slot is reserved either way).
+	 */
+	private synchronized Connection checkOutIdleConnectionOrReserveSlot() throws SQLException {
+
+		long waitUntil = System.currentTimeMillis() + CHECKOUT_TIMEOUT_IN_MILLIS;
+		while(numberOfCheckedOutConnections >= maxSize) {
+			long millisToWait = waitUntil - System.currentTimeMillis();
+			if(millisToWait <= 0) {
+				throw new SQLException("Timed out while waiting for a free MySQL connection. All " + maxSize + " pooled connections are in use.");
+			}
+			try {
+				wait(millisToWait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a free MySQL connection.");
+			}
+		}
+		numberOfCheckedOutConnections++;
+
+		//Most recently returned connections first, since those are the least likely to have timed out
+		IdleConnection idleConnection;
+		while((idleConnection = idleConnections.pollFirst()) != null) {
+			if(System.currentTimeMillis() - idleConnection.returnedAt < IDLE_TIME_BEFORE_VALIDATION_IN_MILLIS || isHealthy(idleConnection.connection)) {
+				return idleConnection.connection;
+			}
+			closePhysicalConnection(idleConnection.connection);
+		}
+
+		return null;
+	}
+
+	private synchronized void releaseSlot() {
+		numberOfCheckedOutConnections--;
+		notifyAll();
+	}
+
+	private void returnPhysicalConnection(Connection physicalConnection, boolean reusable) {
+		synchronized(this) {
+			if(reusable && ! shutDown && idleConnections.size() < maxSize) {
+				idleConnections.offerFirst(new IdleConnection(physicalConnection, System.currentTimeMillis()));
+				physicalConnection = null;
+			}
+		}
+		if(physicalConnection != null) {
+			closePhysicalConnection(physicalConnection);
+		}
+		releaseSlot();
+	}
+
+	private static boolean isHealthy(Connection physicalConnection) {
+		try {
+			return physicalConnection.isValid(VALIDATION_TIMEOUT_IN_SECONDS);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private static void closePhysicalConnection(Connection physicalConnection) {
+		try {
+			physicalConnection.close();
+		} catch (SQLException e) {
+			HrwaManager.writeToLog("Error: Could not close MySQL connection: " + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+		}
+	}
+
+	private static class IdleConnection {
+
+		private final Connection connection;
+		private final long returnedAt;
+
+		public IdleConnection(Connection connection, long returnedAt) {
+			this.connection = connection;
+			this.returnedAt = returnedAt;
+		}
+	}
+
+	/**
+	 * Forwards everything to the physical connection, except for close(), which returns the connection to the pool.
+	 */
+	private class PooledConnectionHandler implements InvocationHandler {
+
+		private Connection physicalConnection;
+		private final ArrayList<Statement> openedStatements = new ArrayList<Statement>();
+
+		public PooledConnectionHandler(Connection physicalConnection) {
+			this.physicalConnection = physicalConnection;
+		}
+
+		public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+			String methodName = method.getName();
+
+			if(methodName.equals("close")) {
+				if(physicalConnection != null) {
+					Connection connectionToReturn = physicalConnection;
+					physicalConnection = null;
+					returnPhysicalConnection(connectionToReturn, resetForReuse(connectionToReturn));
+				}
+				return null;
+			} else if(methodName.equals("isClosed")) {
+				return physicalConnection == null || physicalConnection.isClosed();
+			} else if(methodName.equals("equals")) {
+				return proxy == args[0];
+			} else if(methodName.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if(methodName.equals("toString")) {
+				return "Pooled MySQL connection (" + physicalConnection + ")";
+			}
+
+			if(physicalConnection == null) {
+				throw new SQLException("This connection has already been returned to the pool.");
+			}
+
+			Object result;
+			try {
+				result = method.invoke(physicalConnection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+
+			if(result instanceof Statement) {
+				//Long-lived borrowers (e.g. the archive record writer threads) open many statements over time
+				if(openedStatements.size() >= 64) {
+					removeClosedStatements();
+				}
+				openedStatements.add((Statement)result);
+			}
+
+			return result;
+		}
+
+		private void removeClosedStatements() throws SQLException {
+			Iterator<Statement> statementIterator = openedStatements.iterator();
+			while(statementIterator.hasNext()) {
+				if(statementIterator.next().isClosed()) {
+					statementIterator.remove();
+				}
+			}
+		}
+
+		/**
+		 * Closes leftover statements and rolls back uncommitted work.
+		 * @return true if the connection can be handed out again.
+		 */
+		private boolean resetForReuse(Connection connection) {
+			try {
+				for(Statement statement : openedStatements) {
+					//With cachePrepStmts on, closing a prepared statement puts it back into the driver's statement cache
+					statement.close();
+				}
+				openedStatements.clear();
+
+				if( ! connection.getAutoCommit() ) {
+					connection.rollback();
+				}
+				return true;
+			} catch (SQLException e) {
+				return false;
+			}
+		}
+	}
+
+}
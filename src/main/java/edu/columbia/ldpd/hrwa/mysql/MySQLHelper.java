@@ -9,6 +9,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -24,46 +25,79 @@ public class MySQLHelper {
 	
 	public static final String HRWA_MANAGER_TODO_DELETE = "DELETED";
 	public static final String HRWA_MANAGER_TODO_UPDATED = "UPDATED";
+	public static final String HRWA_MANAGER_TODO_METADATA_UPDATED = "METADATA_UPDATED"; //Only site-level fields changed, so Solr docs can be updated without re-extracting their content
 	public static final String HRWA_MANAGER_TODO_NEW = "NEW";
 	public static final String HRWA_MANAGER_TODO_NOINDEX = "NOINDEX";
+	public static final String HRWA_MANAGER_TODO_DEFERRED = "DEFERRED"; //Payload hasn't been read yet (no blob, no detected mimetype), see ArchiveRecordMaterializationFilter
 	public static final String HRWA_MANAGER_TODO_FIELD_NAME = "hrwa_manager_todo";
+	public static final String HRWA_MANAGER_TODO_AND_ID_INDEX_NAME = "hrwa_manager_todo_and_id";
 	
-	private static Connection staticConnWithAutoCommitOn = getNewDBConnection(true);
+	//Connection pool properties: cache parsed prepared statements on each pooled connection, and send batched INSERTs as multi-row INSERTs
+	private static final String MYSQL_CONNECTION_URL_PROPERTIES = "?cachePrepStmts=true&prepStmtCacheSize=250&prepStmtCacheSqlLimit=2048&rewriteBatchedStatements=true";
 	
+	//Leaves room for short-lived helper connections next to the one-connection-per-thread tasks
+	private static final int NUMBER_OF_EXTRA_POOLED_CONNECTIONS = 4;
+	
+	private static MySQLConnectionPool connectionPool = null;
+	
+	private static synchronized MySQLConnectionPool getConnectionPool() {
+		
+		if(connectionPool == null) {
+			//Load MySQL Driver
+			try {
+	            // This is a test to check that the driver is available.
+				// The newInstance() call is a work around for some broken Java implementations.
+	            Class.forName("com.mysql.jdbc.Driver").newInstance();
+	        } catch (Exception ex) { System.err.println("Could not load the mysql driver!"); }
+			
+			String url = "jdbc:mysql://" + HrwaManager.mysqlUrl + "/" + HrwaManager.mysqlDatabase + MYSQL_CONNECTION_URL_PROPERTIES;
+			connectionPool = new MySQLConnectionPool(url, HrwaManager.mysqlUsername, HrwaManager.mysqlPassword, HrwaManager.maxUsableProcessors + NUMBER_OF_EXTRA_POOLED_CONNECTIONS);
+		}
+		
+		return connectionPool;
+	}
+	
+	/**
+	 * Sizes the connection pool for a task that is about to start the given number of threads that each hold
+	 * a MySQL connection.  A few extra connections are added for short-lived helper queries.
+	 * @param numberOfThreadsThatHoldAConnection
+	 */
+	public static void setConnectionPoolSizeForThreads(int numberOfThreadsThatHoldAConnection) {
+		getConnectionPool().setMaxSize(numberOfThreadsThatHoldAConnection + NUMBER_OF_EXTRA_POOLED_CONNECTIONS);
+	}
+	
+	/**
+	 * Checks out a connection from the connection pool.  Calling close() on the returned
+	 * connection returns it to the pool (and rolls back anything that wasn't committed).
+	 * @param autoCommit
+	 * @return
+	 */
 	public static Connection getNewDBConnection(boolean autoCommit) {
 
-		Connection newConn = null;
-
-		//Step 1: Load MySQL Driver
-		try {
-            // This is a test to check that the driver is available.
-			// The newInstance() call is a work around for some broken Java implementations.
-            Class.forName("com.mysql.jdbc.Driver").newInstance();
-        } catch (Exception ex) { System.err.println("Could not load the mysql driver!"); }
-
-		//Step 2: Establish connection
-		
-		String url = "jdbc:mysql://" + HrwaManager.mysqlUrl + "/" + HrwaManager.mysqlDatabase;
 		try {
-			newConn = DriverManager.getConnection(url, HrwaManager.mysqlUsername, HrwaManager.mysqlPassword);
+			return getConnectionPool().getConnection(autoCommit);
 		} catch (SQLException ex) {
-			HrwaManager.writeToLog("Error: Could not connect to MySQL at url:" + url, true, HrwaManager.LOG_TYPE_ERROR);
+			HrwaManager.writeToLog("Error: Could not connect to MySQL at url:" + HrwaManager.mysqlUrl + "/" + HrwaManager.mysqlDatabase, true, HrwaManager.LOG_TYPE_ERROR);
 		    System.out.println("SQLException: " + ex.getMessage());
 		    System.out.println("SQLState: " + ex.getSQLState());
 		    System.out.println("VendorError: " + ex.getErrorCode());
 		    System.exit(HrwaManager.EXIT_CODE_ERROR);
 		}
-
-		try {
-			newConn.setAutoCommit(autoCommit);
-		} catch (SQLException e) { e.printStackTrace(); System.exit(HrwaManager.EXIT_CODE_ERROR); }
-
-		return newConn;
+		
+		return null; //this line is necessary to avoid a compiler error (if we don't return anything)
+	}
+	
+	public static void shutdownConnectionPool() {
+		if(connectionPool != null) {
+			connectionPool.shutdown();
+		}
 	}
 	
 	public static void createWebArchiveRecordsTableIfItDoesNotExist() throws SQLException {
 		
-		PreparedStatement pstmt0 = staticConnWithAutoCommitOn.prepareStatement(
+		Connection conn = getNewDBConnection(true);
+		
+		PreparedStatement pstmt0 = conn.prepareStatement(
 			"CREATE TABLE IF NOT EXISTS `" + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + "` (" +
 			"  `id` int(10) unsigned NOT NULL AUTO_INCREMENT COMMENT 'Auto-incremented unique numeric identifier for MySQL convenience.'," +
 			"  `ip` varchar(39) NOT NULL COMMENT 'IPv4 or IPv6 address of the host of the record crawled.'," +
@@ -73,7 +107,7 @@ public class MySQLHelper {
 			"  `offset_in_archive_file` bigint(20) unsigned NOT NULL COMMENT 'This is the byte offset address of the record in the archive file.'," +
 			"  `length` bigint(20) unsigned NOT NULL COMMENT 'Size of the content returned in the HTTP response in bytes. Largest will probably be video.'," +
 			"  `record_date` char(14) NOT NULL COMMENT 'Crawl date for this record.'," +
-			"  `blob_path` varchar(500) DEFAULT NULL COMMENT 'Filesystem path to the blob data associated with this record.  Header info is the blob_path + .header'," +
+			"  `blob_path` varchar(500) DEFAULT NULL COMMENT 'Filesystem path to the blob data associated with this record (header info is the blob_path + .header), a pack:<pack file>:<header offset>:<header length>:<payload length> location for packed blobs, or an archive:<archive file>:<record offset>:<payload length> location when no blob was written.'," +
 			"  `mimetype_from_header` varchar(255) DEFAULT NULL COMMENT 'Mimetype defined in the archive file header.'," +
 			"  `mimetype_detected` varchar(100) DEFAULT NULL COMMENT 'Mimetype detected by our archive_to_mysql indexer, using Apache Tika.  NULL if mimetype could not be detected.'," +
 			"  `reader_identifier` varchar(255) NOT NULL COMMENT 'Full filesystem path to the warc/arc file associated with this record (at the time when this record was indexed).'," +
@@ -85,6 +119,7 @@ public class MySQLHelper {
 			"  `load_timestamp` bigint(20) NOT NULL COMMENT 'Timestamp indicating when this record was indexed and inserted into mysql.'," +
 			"  `linked_via_related_host` tinyint(1) NOT NULL," +
 			"  `hrwa_manager_todo` varchar(50) DEFAULT NULL," +
+			"  `language_detected` varchar(10) DEFAULT NULL COMMENT 'Language code (e.g. fr) detected by language-detection.  NULL if language detection was disabled or inconclusive.'," +
 			"  PRIMARY KEY (`id`)," +
 			"  UNIQUE KEY `archive_file_and_offset` (`archive_file`,`offset_in_archive_file`)," +
 			"  KEY `mimetype_from_header` (`mimetype_from_header`)," +
@@ -95,18 +130,80 @@ public class MySQLHelper {
 			"  KEY `record_date` (`record_date`)," +
 			"  KEY `linked_via_related_host` (`linked_via_related_host`)," +
 			"  KEY `hrwa_manager_todo` (`hrwa_manager_todo`)," +
+			"  KEY `" + HRWA_MANAGER_TODO_AND_ID_INDEX_NAME + "` (`hrwa_manager_todo`,`id`)," +
 			"  KEY `archive_file` (`archive_file`)" +
 			") ENGINE=InnoDB DEFAULT CHARSET=utf8 AUTO_INCREMENT=1 ;"
 		);
 		
 		pstmt0.execute();
 		pstmt0.close();
+		conn.close();
+		
+		//Tables created before the (hrwa_manager_todo, id) index was introduced need to have it added
+		addHrwaManagerTodoAndIdIndexToWebArchiveRecordsTableIfItDoesNotExist();
+		
+		//Same for the language_detected column
+		addLanguageDetectedColumnToWebArchiveRecordsTableIfItDoesNotExist();
+		
+	}
+	
+	/**
+	 * Adds the language_detected column to web_archive_records tables that were created before it was introduced.
+	 * @throws SQLException
+	 */
+	public static void addLanguageDetectedColumnToWebArchiveRecordsTableIfItDoesNotExist() throws SQLException {
+		
+		Connection conn = getNewDBConnection(true);
+		
+		PreparedStatement pstmt1 = conn.prepareStatement("SHOW COLUMNS FROM `" + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + "` LIKE 'language_detected'");
+		ResultSet resultSet = pstmt1.executeQuery();
+		boolean columnExists = resultSet.next();
+		resultSet.close();
+		pstmt1.close();
 		
+		if( ! columnExists ) {
+			HrwaManager.writeToLog("Adding column `language_detected` to the " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + " table.  This may take a while...", true, HrwaManager.LOG_TYPE_STANDARD);
+			PreparedStatement pstmt2 = conn.prepareStatement("ALTER TABLE `" + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + "` ADD COLUMN `language_detected` varchar(10) DEFAULT NULL COMMENT 'Language code (e.g. fr) detected by language-detection.  NULL if language detection was disabled or inconclusive.'");
+			pstmt2.execute();
+			pstmt2.close();
+			HrwaManager.writeToLog("Column `language_detected` added.", true, HrwaManager.LOG_TYPE_STANDARD);
+		}
+		
+		conn.close();
+	}
+	
+	/**
+	 * The keyset queries in getWebArchiveRecordIdRangesWithHrwaManagerTodoValue() rely on an index on (hrwa_manager_todo, id).
+	 * Adding this index to a large existing table can take a while, but only needs to happen once.
+	 * @throws SQLException
+	 */
+	public static void addHrwaManagerTodoAndIdIndexToWebArchiveRecordsTableIfItDoesNotExist() throws SQLException {
+		
+		Connection conn = getNewDBConnection(true);
+		
+		PreparedStatement pstmt1 = conn.prepareStatement("SHOW INDEX FROM `" + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + "` WHERE Key_name = ?");
+		pstmt1.setString(1, HRWA_MANAGER_TODO_AND_ID_INDEX_NAME);
+		ResultSet resultSet = pstmt1.executeQuery();
+		boolean indexExists = resultSet.next();
+		resultSet.close();
+		pstmt1.close();
+		
+		if( ! indexExists ) {
+			HrwaManager.writeToLog("Adding index `" + HRWA_MANAGER_TODO_AND_ID_INDEX_NAME + "` to the " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + " table.  This may take a while...", true, HrwaManager.LOG_TYPE_STANDARD);
+			PreparedStatement pstmt2 = conn.prepareStatement("ALTER TABLE `" + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + "` ADD INDEX `" + HRWA_MANAGER_TODO_AND_ID_INDEX_NAME + "` (`hrwa_manager_todo`,`id`)");
+			pstmt2.execute();
+			pstmt2.close();
+			HrwaManager.writeToLog("Index `" + HRWA_MANAGER_TODO_AND_ID_INDEX_NAME + "` added.", true, HrwaManager.LOG_TYPE_STANDARD);
+		}
+		
+		conn.close();
 	}
 	
 	public static void createSitesTableIfItDoesNotExist() throws SQLException {
 		
-		PreparedStatement pstmt0 = staticConnWithAutoCommitOn.prepareStatement(
+		Connection conn = getNewDBConnection(true);
+		
+		PreparedStatement pstmt0 = conn.prepareStatement(
 			"CREATE TABLE IF NOT EXISTS `" + HrwaManager.MYSQL_SITES_TABLE_NAME + "` (" +
 			"  `id` int(11) unsigned NOT NULL AUTO_INCREMENT," +
 			"  `bib_key` varchar(10) NOT NULL," +
@@ -134,12 +231,15 @@ public class MySQLHelper {
 		
 		pstmt0.execute();
 		pstmt0.close();
+		conn.close();
 		
 	}
 	
 	public static void createFullyIndexedArchiveFilesTableIfItDoesNotExist() throws SQLException {
 		
-		PreparedStatement pstmt0 = staticConnWithAutoCommitOn.prepareStatement(
+		Connection conn = getNewDBConnection(true);
+		
+		PreparedStatement pstmt0 = conn.prepareStatement(
 			"CREATE TABLE IF NOT EXISTS `" + HrwaManager.MYSQL_FULLY_INDEXED_ARCHIVE_FILES_TABLE_NAME + "` (" +
 			"  `archive_file_name` varchar(255) NOT NULL," +
 			"  `crawl_year_and_month` varchar(7) NOT NULL," +
@@ -150,12 +250,15 @@ public class MySQLHelper {
 		
 		pstmt0.execute();
 		pstmt0.close();
+		conn.close();
 		
 	}
 	
 	public static void createMimetypeCodesTableIfItDoesNotExist() throws SQLException{
 		
-		PreparedStatement pstmt0 = staticConnWithAutoCommitOn.prepareStatement(
+		Connection conn = getNewDBConnection(true);
+		
+		PreparedStatement pstmt0 = conn.prepareStatement(
 			"CREATE TABLE IF NOT EXISTS `" + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + "` (" +
 			"`mimetype_detected` varchar(100) DEFAULT NULL," +
 			"`mimetype_code` varchar(100) DEFAULT NULL," +
@@ -169,12 +272,12 @@ public class MySQLHelper {
 		
 		//And now we need to verify that there aren't any records in this table (if it already existed)
 		
-		PreparedStatement pstmt1 = staticConnWithAutoCommitOn.prepareStatement("SELECT COUNT(*) FROM " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME);
+		PreparedStatement pstmt1 = conn.prepareStatement("SELECT COUNT(*) FROM " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME);
 		ResultSet resultSet = pstmt1.executeQuery();
 		if (resultSet.next()) {
 			if(resultSet.getInt(1) == 0) {
 				
-				PreparedStatement pstmt2 = staticConnWithAutoCommitOn.prepareStatement(
+				PreparedStatement pstmt2 = conn.prepareStatement(
 					"INSERT INTO `" + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + "` (`mimetype_detected`, `mimetype_code`) VALUES" +
 					"('application/rsd+xml', 'DISCOVERY')," +
 					"('application/x-mspublisher', 'OFFICE')," +
@@ -298,7 +401,9 @@ public class MySQLHelper {
 			}
 		 }
         
+		resultSet.close();
 		pstmt1.close();
+		conn.close();
 		
 	}
 	
@@ -310,9 +415,11 @@ public class MySQLHelper {
 	public static void updateRelatedHostsTableFromRelatedHostsFile() throws SQLException{
 		
 		HrwaManager.writeToLog("Updating related hosts table...", true, HrwaManager.LOG_TYPE_STANDARD);
+		
+		Connection conn = getNewDBConnection(true);
 			
 		//Create table
-		PreparedStatement pstmt1 = staticConnWithAutoCommitOn.prepareStatement(
+		PreparedStatement pstmt1 = conn.prepareStatement(
 			"CREATE TABLE IF NOT EXISTS `" + HrwaManager.MYSQL_RELATED_HOSTS_TABLE_NAME + "` (" +
 			"  `site_id` int(10) unsigned NOT NULL," +
 			"  `related_host` varchar(255) NOT NULL," +
@@ -382,7 +489,7 @@ public class MySQLHelper {
 			//And remove the last comma because it's not valid, and then add ")" to complete the insert statement 
 			relatedHostRecordsDeletionStatement = relatedHostRecordsDeletionStatement.substring(0, relatedHostRecordsDeletionStatement.length()-1) + ")";
 			
-			PreparedStatement pstmt2 = staticConnWithAutoCommitOn.prepareStatement(relatedHostRecordsDeletionStatement);
+			PreparedStatement pstmt2 = conn.prepareStatement(relatedHostRecordsDeletionStatement);
 			
 			pstmt2.execute();
 			pstmt2.close();
@@ -421,7 +528,7 @@ public class MySQLHelper {
 			//And remove the last comma because it's not valid
 			relatedHostRecordsInsertStatement = relatedHostRecordsInsertStatement.substring(0, relatedHostRecordsInsertStatement.length()-1);
 			
-			PreparedStatement pstmt3 = staticConnWithAutoCommitOn.prepareStatement(relatedHostRecordsInsertStatement);
+			PreparedStatement pstmt3 = conn.prepareStatement(relatedHostRecordsInsertStatement);
 			
 			pstmt3.execute();
 			pstmt3.close();
@@ -429,6 +536,8 @@ public class MySQLHelper {
 			HrwaManager.writeToLog("Addded " + relatedHostsToAddMappedToSiteSeeds.size() + " new related hosts.", true, HrwaManager.LOG_TYPE_STANDARD);
 		}
 		
+		conn.close();
+		
 	}
 	
 	/**
@@ -442,7 +551,8 @@ public class MySQLHelper {
 		HashMap<String, Integer> sitesMapToReturn = new HashMap<String, Integer>();
 		
 		try {
-			PreparedStatement pstmt = staticConnWithAutoCommitOn.prepareStatement("SELECT hoststring, id FROM " + HrwaManager.MYSQL_SITES_TABLE_NAME + (whereClause == null ? "" : " " + whereClause));
+			Connection conn = getNewDBConnection(true);
+			PreparedStatement pstmt = conn.prepareStatement("SELECT hoststring, id FROM " + HrwaManager.MYSQL_SITES_TABLE_NAME + (whereClause == null ? "" : " " + whereClause));
 			ResultSet resultSet = pstmt.executeQuery();
 			
 			while (resultSet.next()) {
@@ -453,6 +563,7 @@ public class MySQLHelper {
 			
 			resultSet.close();
 	        pstmt.close();
+	        conn.close();
 		} catch (SQLException e) {
 			HrwaManager.writeToLog("Error: Could not retrieve sites table records from DB", true, HrwaManager.LOG_TYPE_ERROR);
 			e.printStackTrace();
@@ -466,7 +577,8 @@ public class MySQLHelper {
 		HashSet<String> bibKeysToReturn = new HashSet<String>();
 		
 		try {
-			PreparedStatement pstmt = staticConnWithAutoCommitOn.prepareStatement("SELECT bib_key FROM " + HrwaManager.MYSQL_SITES_TABLE_NAME);
+			Connection conn = getNewDBConnection(true);
+			PreparedStatement pstmt = conn.prepareStatement("SELECT bib_key FROM " + HrwaManager.MYSQL_SITES_TABLE_NAME);
 			ResultSet resultSet = pstmt.executeQuery();
 			
 			while (resultSet.next()) {
@@ -477,6 +589,7 @@ public class MySQLHelper {
 			
 			resultSet.close();
 	        pstmt.close();
+	        conn.close();
 		} catch (SQLException e) {
 			HrwaManager.writeToLog("Error: Could not retrieve bib_keys from sites table.", true, HrwaManager.LOG_TYPE_ERROR);
 			e.printStackTrace();
@@ -490,7 +603,8 @@ public class MySQLHelper {
 		HashMap<String, String> bibKeysAndMarc005LastMofifiedStringsToReturn = new HashMap<String, String>();
 		
 		try {
-			PreparedStatement pstmt = staticConnWithAutoCommitOn.prepareStatement("SELECT bib_key, marc_005_last_modified FROM " + HrwaManager.MYSQL_SITES_TABLE_NAME);
+			Connection conn = getNewDBConnection(true);
+			PreparedStatement pstmt = conn.prepareStatement("SELECT bib_key, marc_005_last_modified FROM " + HrwaManager.MYSQL_SITES_TABLE_NAME);
 			ResultSet resultSet = pstmt.executeQuery();
 			
 			while (resultSet.next()) {
@@ -501,6 +615,7 @@ public class MySQLHelper {
 			
 			resultSet.close();
 	        pstmt.close();
+	        conn.close();
 		} catch (SQLException e) {
 			HrwaManager.writeToLog("Error: Could not retrieve bib_keys from sites table.", true, HrwaManager.LOG_TYPE_ERROR);
 			e.printStackTrace();
@@ -572,13 +687,19 @@ public class MySQLHelper {
 				if(existingRrecordsToUpdate.size() > 0) {
 					//Update existing records
 					
-					//Add new records
+					//MySQL applies SET assignments from left to right, so hrwa_manager_todo has to be set before the hoststring changes.
+					//If the hoststring stays the same, only site-level Solr fields change, and the site's records can get an atomic
+					//metadata update instead of a full re-extraction (if that's enabled).
+					String todoValueForChangedSite = HrwaManager.atomicSiteMetadataUpdates
+						? "CASE WHEN " + MySQLHelper.HRWA_MANAGER_TODO_FIELD_NAME + " = '" + MySQLHelper.HRWA_MANAGER_TODO_UPDATED + "' OR NOT (`hoststring` <=> ?) THEN '" + MySQLHelper.HRWA_MANAGER_TODO_UPDATED + "' ELSE '" + MySQLHelper.HRWA_MANAGER_TODO_METADATA_UPDATED + "' END"
+						: "'" + MySQLHelper.HRWA_MANAGER_TODO_UPDATED + "'";
+					
 					PreparedStatement pstmt2 = conn.prepareStatement(
 							"UPDATE `" + HrwaManager.MYSQL_SITES_TABLE_NAME + "` " +
-							" SET `creator_name` = ?, `hoststring` = ?, " +
+							" SET " + MySQLHelper.HRWA_MANAGER_TODO_FIELD_NAME + " = CASE WHEN " + MySQLHelper.HRWA_MANAGER_TODO_FIELD_NAME + " = '" + MySQLHelper.HRWA_MANAGER_TODO_NEW + "' THEN '" + MySQLHelper.HRWA_MANAGER_TODO_NEW + "' ELSE " + todoValueForChangedSite + " END," +
+							" `creator_name` = ?, `hoststring` = ?, " +
 							" `organization_type` = ?, `organization_based_in` = ?, `geographic_focus` = ?, " +
-							" `language` = ?, `original_urls` = ?, `marc_005_last_modified` = ?," +
-							" " + MySQLHelper.HRWA_MANAGER_TODO_FIELD_NAME + " = CASE WHEN " + MySQLHelper.HRWA_MANAGER_TODO_FIELD_NAME + " = '" + MySQLHelper.HRWA_MANAGER_TODO_NEW + "' THEN '" + MySQLHelper.HRWA_MANAGER_TODO_NEW + "' ELSE '" + MySQLHelper.HRWA_MANAGER_TODO_UPDATED + "' END" +
+							" `language` = ?, `original_urls` = ?, `marc_005_last_modified` = ?" +
 							" WHERE bib_key = ?;"
 					);
 					
@@ -587,15 +708,19 @@ public class MySQLHelper {
 						latestKnownBibKey = singleRecord.getSingleValuedFieldValue("bib_key"); //for debugging purposes
 						System.out.println("Processing: " + latestKnownBibKey);
 						
-						pstmt2.setString(1, singleRecord.getPipeDelimitedMultiValuedFieldString("creator_name"));
-						pstmt2.setString(2, singleRecord.getHostString());
-						pstmt2.setString(3, singleRecord.getSingleValuedFieldValue("organization_type"));
-						pstmt2.setString(4, singleRecord.getSingleValuedFieldValue("organization_based_in"));
-						pstmt2.setString(5, singleRecord.getPipeDelimitedMultiValuedFieldString("geographic_focus"));
-						pstmt2.setString(6, singleRecord.getPipeDelimitedMultiValuedFieldString("language"));
-						pstmt2.setString(7, singleRecord.getPipeDelimitedMultiValuedFieldString("original_urls"));
-						pstmt2.setString(8, singleRecord.getSingleValuedFieldValue("marc_005_last_modified"));
-						pstmt2.setString(9, singleRecord.getSingleValuedFieldValue("bib_key"));
+						int parameterIndex = 1;
+						if(HrwaManager.atomicSiteMetadataUpdates) {
+							pstmt2.setString(parameterIndex++, singleRecord.getHostString());
+						}
+						pstmt2.setString(parameterIndex++, singleRecord.getPipeDelimitedMultiValuedFieldString("creator_name"));
+						pstmt2.setString(parameterIndex++, singleRecord.getHostString());
+						pstmt2.setString(parameterIndex++, singleRecord.getSingleValuedFieldValue("organization_type"));
+						pstmt2.setString(parameterIndex++, singleRecord.getSingleValuedFieldValue("organization_based_in"));
+						pstmt2.setString(parameterIndex++, singleRecord.getPipeDelimitedMultiValuedFieldString("geographic_focus"));
+						pstmt2.setString(parameterIndex++, singleRecord.getPipeDelimitedMultiValuedFieldString("language"));
+						pstmt2.setString(parameterIndex++, singleRecord.getPipeDelimitedMultiValuedFieldString("original_urls"));
+						pstmt2.setString(parameterIndex++, singleRecord.getSingleValuedFieldValue("marc_005_last_modified"));
+						pstmt2.setString(parameterIndex++, singleRecord.getSingleValuedFieldValue("bib_key"));
 						
 						System.out.println("Updating bib_key record " + singleRecord.getSingleValuedFieldValue("bib_key") + " with value: " + singleRecord.getSingleValuedFieldValue("marc_005_last_modified"));
 						
@@ -630,7 +755,8 @@ public class MySQLHelper {
 		HashMap<String, Integer> relatedHostsMapToReturn = new HashMap<String, Integer>();
 
 		try {
-			PreparedStatement pstmt = staticConnWithAutoCommitOn.prepareStatement("SELECT related_host, site_id FROM " + HrwaManager.MYSQL_RELATED_HOSTS_TABLE_NAME + (whereClause == null ? "" : " " + whereClause));
+			Connection conn = getNewDBConnection(true);
+			PreparedStatement pstmt = conn.prepareStatement("SELECT related_host, site_id FROM " + HrwaManager.MYSQL_RELATED_HOSTS_TABLE_NAME + (whereClause == null ? "" : " " + whereClause));
 			ResultSet resultSet = pstmt.executeQuery();
 			
 			while (resultSet.next()) {
@@ -640,6 +766,7 @@ public class MySQLHelper {
 			
 			resultSet.close();
 	        pstmt.close();
+	        conn.close();
 		} catch (SQLException e) {
 			HrwaManager.writeToLog("Error: Could not retrieve records from HRWA MySQL related hosts table", true, HrwaManager.LOG_TYPE_ERROR);
 			e.printStackTrace();
@@ -675,17 +802,33 @@ public class MySQLHelper {
 		
 	}
 	
+	/**
+	 * Runs the given query and streams its rows instead of loading the whole result into memory.
+	 * Use this for bulk scans over web_archive_records.  See StreamingResultSetIterator for details.
+	 * @param sql
+	 * @param params Values for the query's ? placeholders, in order.
+	 * @return An iterator over the result rows.  Call close() if you stop iterating before the last row.
+	 * @throws SQLException
+	 */
+	public static StreamingResultSetIterator streamQuery(String sql, Object... params) throws SQLException {
+		return new StreamingResultSetIterator(sql, params);
+	}
+	
 	public static long getMaxIdFromWebArchiveRecordsTable() {
 
 		try {
 			
-			PreparedStatement pstmt1 = staticConnWithAutoCommitOn.prepareStatement("SELECT MAX(id) FROM " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME);
+			Connection conn = getNewDBConnection(true);
+			PreparedStatement pstmt1 = conn.prepareStatement("SELECT MAX(id) FROM " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME);
 			ResultSet resultSet = pstmt1.executeQuery();
-			if (resultSet.next()) {
-				return resultSet.getLong(1);
-			 }
-	        
-			pstmt1.close();
+			try {
+				if (resultSet.next()) {
+					return resultSet.getLong(1);
+				}
+			} finally {
+				//Closing the connection returns it to the pool and closes its statements
+				conn.close();
+			}
         
 		} catch (SQLException e) {
 			HrwaManager.writeToLog("An error occurred while attempting to retrieve the max id from the web archive records table.", true, HrwaManager.LOG_TYPE_ERROR);
@@ -700,20 +843,98 @@ public class MySQLHelper {
         return -1; //this line is necessary to avoid a compiler error (if we don't return anything)
 	}
 	
+	/**
+	 * Splits all web archive records with the given hrwa_manager_todo value into id ranges that each contain
+	 * (at most) recordsPerRange of those records.  Uses keyset ("seek") queries on the (hrwa_manager_todo, id)
+	 * index, so the cost depends on the number of matching records rather than on MAX(id).
+	 * 
+	 * The returned ranges are contiguous, starting at id 0: each range starts where the previous one ended and
+	 * ends right after the last matching id that it contains.  Ids that don't match the todo value can still fall
+	 * inside of a range, so queries against a range should still filter on hrwa_manager_todo.
+	 * @param hrwaManagerTodoValue
+	 * @param recordsPerRange
+	 * @return The ranges, in id order.  Empty if no records have the given todo value.
+	 */
+	public static ArrayList<MySQLRecordIdRange> getWebArchiveRecordIdRangesWithHrwaManagerTodoValue(String hrwaManagerTodoValue, int recordsPerRange) {
+		
+		ArrayList<MySQLRecordIdRange> idRanges = new ArrayList<MySQLRecordIdRange>();
+		
+		try {
+			
+			Connection conn = getNewDBConnection(true);
+			
+			PreparedStatement pstmt1 = conn.prepareStatement(
+				"SELECT id FROM " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME +
+				" FORCE INDEX (" + HRWA_MANAGER_TODO_AND_ID_INDEX_NAME + ")" +
+				" WHERE " + HRWA_MANAGER_TODO_FIELD_NAME + " = ? AND id > ?" +
+				" ORDER BY id LIMIT 1 OFFSET ?"
+			);
+			
+			//Instead of reading every matching id, we seek directly to the last id of each range
+			long nextRangeStartId = 0;
+			long lastIdOfPreviousRange = -1;
+			
+			while(true) {
+				pstmt1.setString(1, hrwaManagerTodoValue);
+				pstmt1.setLong(2, lastIdOfPreviousRange);
+				pstmt1.setInt(3, recordsPerRange - 1);
+				ResultSet resultSet = pstmt1.executeQuery();
+				
+				if (resultSet.next()) {
+					lastIdOfPreviousRange = resultSet.getLong(1);
+					resultSet.close();
+					idRanges.add(new MySQLRecordIdRange(nextRangeStartId, lastIdOfPreviousRange + 1));
+					nextRangeStartId = lastIdOfPreviousRange + 1;
+				} else {
+					resultSet.close();
+					break;
+				}
+			}
+			
+			pstmt1.close();
+			
+			//The final range holds the remaining (fewer than recordsPerRange) matching records, if there are any
+			PreparedStatement pstmt2 = conn.prepareStatement(
+				"SELECT MAX(id) FROM " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME +
+				" WHERE " + HRWA_MANAGER_TODO_FIELD_NAME + " = ? AND id > ?"
+			);
+			pstmt2.setString(1, hrwaManagerTodoValue);
+			pstmt2.setLong(2, lastIdOfPreviousRange);
+			ResultSet resultSet = pstmt2.executeQuery();
+			if (resultSet.next()) {
+				long maxId = resultSet.getLong(1);
+				if( ! resultSet.wasNull() ) {
+					idRanges.add(new MySQLRecordIdRange(nextRangeStartId, maxId + 1));
+				}
+			}
+			resultSet.close();
+			pstmt2.close();
+			conn.close();
+        
+		} catch (SQLException e) {
+			HrwaManager.writeToLog("An error occurred while attempting to retrieve the id ranges of " + hrwaManagerTodoValue + " records from the web archive records table.", true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+			System.exit(0);
+		}
+		
+		return idRanges;
+	}
+	
 	public static boolean archiveFileHasAlreadyBeenFullyIndexedIntoMySQL(String nameOfArchiveFile) {
 
 		try {
 			
-			PreparedStatement pstmt1 = staticConnWithAutoCommitOn.prepareStatement("SELECT COUNT(*) FROM " + HrwaManager.MYSQL_FULLY_INDEXED_ARCHIVE_FILES_TABLE_NAME + " WHERE archive_file_name = ?");
+			Connection conn = getNewDBConnection(true);
+			PreparedStatement pstmt1 = conn.prepareStatement("SELECT COUNT(*) FROM " + HrwaManager.MYSQL_FULLY_INDEXED_ARCHIVE_FILES_TABLE_NAME + " WHERE archive_file_name = ?");
 			pstmt1.setString(1, nameOfArchiveFile);
 			ResultSet resultSet = pstmt1.executeQuery();
-			if (resultSet.next()) {
-				if(resultSet.getInt(1) == 1) {
-					return true;
-				}
-			 }
+			boolean archiveFileHasAlreadyBeenFullyIndexed = resultSet.next() && resultSet.getInt(1) == 1;
 	        
+			resultSet.close();
 			pstmt1.close();
+			conn.close();
+			
+			return archiveFileHasAlreadyBeenFullyIndexed;
         
 		} catch (SQLException e) {
 			HrwaManager.writeToLog("An error occurred while checking the fully indexed archive files table to see if the following archive file has already been indexed: " + nameOfArchiveFile, true, HrwaManager.LOG_TYPE_ERROR);
@@ -724,13 +945,122 @@ public class MySQLHelper {
         return false;
 	}
 	
+	/**
+	 * Marks the UPDATED web archive records in the given id range as indexed (i.e. sets hrwa_manager_todo to NULL).
+	 * Only call this once the Solr documents for these records have been committed.
+	 * @param range
+	 */
+	public static void resetHrwaManagerTodoForIndexedWebArchiveRecords(MySQLRecordIdRange range) {
+		
+		try {
+			Connection conn = getNewDBConnection(true);
+			
+			PreparedStatement pstmt1 = conn.prepareStatement(
+				"UPDATE " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + 
+				" INNER JOIN " + HrwaManager.MYSQL_SITES_TABLE_NAME + " ON " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".site_id = " + HrwaManager.MYSQL_SITES_TABLE_NAME + ".id " +
+				" INNER JOIN " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + " ON " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".mimetype_detected =  " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + ".mimetype_detected" +
+				" SET " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + "." + HRWA_MANAGER_TODO_FIELD_NAME + " = NULL" + 
+				" WHERE" +
+				" " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".id >= ?" +
+				" AND " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".id < ?" +
+				" AND " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + "." + HRWA_MANAGER_TODO_FIELD_NAME + " = '" + HRWA_MANAGER_TODO_UPDATED + "'"
+			);
+			pstmt1.setLong(1, range.getStartId());
+			pstmt1.setLong(2, range.getEndId());
+			
+			pstmt1.execute();
+			
+			pstmt1.close();
+			//conn.commit(); No need to call commit because auto-commit == true
+	        conn.close();
+        
+		} catch (SQLException e) {
+			HrwaManager.writeToLog("An error occurred while attempting to reset the values of recently UPDATED mysql rows in the web archive recods table. Query batch: " + range, true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+			System.exit(0);
+		}
+	}
+	
+	/**
+	 * Marks the METADATA_UPDATED web archive records with ids below endId as done (i.e. sets hrwa_manager_todo to NULL).
+	 * Only call this once the atomic Solr updates for these records have been committed.
+	 * @param endId
+	 * @return The number of rows that were reset
+	 */
+	public static long resetHrwaManagerTodoForMetadataUpdatedWebArchiveRecords(long endId) {
+		
+		try {
+			Connection conn = getNewDBConnection(true);
+			
+			PreparedStatement pstmt1 = conn.prepareStatement(
+				"UPDATE " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + 
+				" SET " + HRWA_MANAGER_TODO_FIELD_NAME + " = NULL" + 
+				" WHERE " + HRWA_MANAGER_TODO_FIELD_NAME + " = '" + HRWA_MANAGER_TODO_METADATA_UPDATED + "'" +
+				" AND id < ?"
+			);
+			pstmt1.setLong(1, endId);
+			
+			long numberOfRowsReset = pstmt1.executeUpdate();
+			
+			pstmt1.close();
+	        conn.close();
+	        
+	        return numberOfRowsReset;
+        
+		} catch (SQLException e) {
+			HrwaManager.writeToLog("An error occurred while attempting to reset the values of recently METADATA_UPDATED mysql rows in the web archive records table.", true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+			System.exit(0);
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Marks the given web archive records as UPDATED, so that their Solr docs will be fully re-indexed.
+	 * @param ids
+	 */
+	public static void markWebArchiveRecordsAsUpdated(Collection<Long> ids) {
+		
+		if(ids.isEmpty()) {
+			return;
+		}
+		
+		try {
+			Connection conn = getNewDBConnection(false);
+			
+			PreparedStatement pstmt1 = conn.prepareStatement(
+				"UPDATE " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + 
+				" SET " + HRWA_MANAGER_TODO_FIELD_NAME + " = '" + HRWA_MANAGER_TODO_UPDATED + "'" +
+				" WHERE id = ?"
+			);
+			
+			for(Long id : ids) {
+				pstmt1.setLong(1, id);
+				pstmt1.addBatch();
+			}
+			pstmt1.executeBatch();
+			conn.commit();
+			
+			pstmt1.close();
+	        conn.close();
+        
+		} catch (SQLException e) {
+			HrwaManager.writeToLog("An error occurred while attempting to mark " + ids.size() + " web archive records as " + HRWA_MANAGER_TODO_UPDATED + ".", true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+			System.exit(0);
+		}
+	}
+	
 	public static void deleteWebArchiveRecordsByFile(String nameOfArchiveFile) {
 		try {
 			
-			PreparedStatement pstmt1 = staticConnWithAutoCommitOn.prepareStatement("DELETE FROM web_archive_records WHERE archive_file = ?");
+			Connection conn = getNewDBConnection(true);
+			PreparedStatement pstmt1 = conn.prepareStatement("DELETE FROM web_archive_records WHERE archive_file = ?");
 			pstmt1.setString(1, nameOfArchiveFile);
 			int numRowsDeleted = pstmt1.executeUpdate();
 			pstmt1.close();
+			conn.close();
 			
 			if(numRowsDeleted > 0) {
 				HrwaManager.writeToLog("Found partially indexed archive file! [" + nameOfArchiveFile + "]. Deleting partially indexed records.  Number of partially indexed records deleted: " + numRowsDeleted, true, HrwaManager.LOG_TYPE_STANDARD);
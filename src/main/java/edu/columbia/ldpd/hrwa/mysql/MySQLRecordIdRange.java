@@ -0,0 +1,28 @@
+package edu.columbia.ldpd.hrwa.mysql;
+
+/**
+ * A range of web_archive_records ids: startId (inclusive) to endId (exclusive).
+ */
+public class MySQLRecordIdRange {
+
+	private final long startId;
+	private final long endId;
+
+	public MySQLRecordIdRange(long startId, long endId) {
+		this.startId = startId;
+		this.endId = endId;
+	}
+
+	public long getStartId() {
+		return startId;
+	}
+
+	public long getEndId() {
+		return endId;
+	}
+
+	public String toString() {
+		return "(" + startId + " - " + (endId - 1) + ")";
+	}
+
+}
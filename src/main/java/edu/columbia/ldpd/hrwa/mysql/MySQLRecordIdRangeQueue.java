@@ -0,0 +1,111 @@
+package edu.columbia.ldpd.hrwa.mysql;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+/**
+ * Shared queue of web archive record id ranges for the MySQLArchiveRecordsToSolrTask's indexing threads.
+ *
+ * A closed queue just hands out a fixed list of ranges.  An open queue can also be extended while the
+ * indexing threads are running: extendThrough() turns newly committed ids into new ranges, which always
+ * start where the previous range ended (see IndexingCheckpointTracker).  Only full ranges are added until
+ * the queue is closed, so that a stream of small MySQL commits doesn't turn into a stream of tiny Solr batches.
+ *
+ * take() waits for new ranges while the queue is open, and returns null once it's closed and empty.
+ * extendThrough() waits while the queue is full, so a slow indexing stage holds back whoever is feeding it.
+ */
+public class MySQLRecordIdRangeQueue {
+
+	private final ArrayDeque<MySQLRecordIdRange> idRanges;
+	private final int maxNumberOfWaitingRanges;
+	private final int maxIdsPerRange;
+	private long nextRangeStartId;
+	private long committedThroughId;
+	private boolean isClosed;
+
+	/**
+	 * Creates a closed queue that holds the given ranges and nothing else.
+	 */
+	public MySQLRecordIdRangeQueue(Collection<MySQLRecordIdRange> idRanges) {
+		this.idRanges = new ArrayDeque<MySQLRecordIdRange>(idRanges);
+		this.maxNumberOfWaitingRanges = Integer.MAX_VALUE;
+		this.maxIdsPerRange = Integer.MAX_VALUE;
+		this.isClosed = true;
+	}
+
+	/**
+	 * Creates an open queue that starts out with the given ranges.
+	 * @param idRanges Contiguous ranges that are already known
+	 * @param nextRangeStartId Where the first range added by extendThrough() will start
+	 * @param maxIdsPerRange
+	 * @param maxNumberOfWaitingRanges extendThrough() blocks while this many ranges are waiting to be indexed
+	 */
+	public MySQLRecordIdRangeQueue(Collection<MySQLRecordIdRange> idRanges, long nextRangeStartId, int maxIdsPerRange, int maxNumberOfWaitingRanges) {
+		this.idRanges = new ArrayDeque<MySQLRecordIdRange>(idRanges);
+		this.maxNumberOfWaitingRanges = maxNumberOfWaitingRanges;
+		this.maxIdsPerRange = maxIdsPerRange;
+		this.nextRangeStartId = nextRangeStartId;
+		this.committedThroughId = nextRangeStartId;
+		this.isClosed = false;
+	}
+
+	/**
+	 * Lets the indexing threads know that every id below endId has been committed to MySQL.
+	 * @param endId exclusive
+	 * @throws InterruptedException
+	 */
+	public synchronized void extendThrough(long endId) throws InterruptedException {
+		if(isClosed) {
+			throw new IllegalStateException("Cannot extend a closed id range queue through id " + endId + ".");
+		}
+		committedThroughId = Math.max(committedThroughId, endId);
+
+		while(committedThroughId - nextRangeStartId >= maxIdsPerRange) {
+			while(idRanges.size() >= maxNumberOfWaitingRanges) {
+				wait();
+			}
+			addRange(nextRangeStartId + maxIdsPerRange);
+		}
+	}
+
+	/**
+	 * Adds whatever is left of the committed ids as one last range, and signals that no more ranges will be added.
+	 */
+	public synchronized void close() {
+		if(isClosed) {
+			return;
+		}
+		if(committedThroughId > nextRangeStartId) {
+			addRange(committedThroughId);
+		}
+		isClosed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Returns the next range, waiting for one if the queue is still open.
+	 * @return null once the queue is closed and every range has been handed out
+	 * @throws InterruptedException
+	 */
+	public synchronized MySQLRecordIdRange take() throws InterruptedException {
+		while(idRanges.isEmpty() && ! isClosed) {
+			wait();
+		}
+		MySQLRecordIdRange idRange = idRanges.poll();
+		if(idRange != null) {
+			notifyAll();
+		}
+		return idRange;
+	}
+
+	public synchronized int size() {
+		return idRanges.size();
+	}
+
+	private void addRange(long endId) {
+		idRanges.add(new MySQLRecordIdRange(nextRangeStartId, endId));
+		nextRangeStartId = endId;
+		notifyAll();
+	}
+
+}
@@ -0,0 +1,151 @@
+package edu.columbia.ldpd.hrwa.mysql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+
+/**
+ * Iterates over the rows of a (potentially huge) query result without buffering the whole result in heap.
+ *
+ * By default, Connector/J reads every row of a result set into memory before executeQuery() returns.  This
+ * iterator uses a forward-only, read-only statement with a fetch size of Integer.MIN_VALUE instead, which tells
+ * Connector/J to stream rows from the server one at a time.
+ *
+ * While a result is being streamed, its connection can't be used for any other statements, so every iterator
+ * owns its own connection.  The connection is closed (returned to the pool, with its session's net_write_timeout
+ * set back to what it was) when the last row has been read or when close() is called, so callers that stop early
+ * must call close().
+ *
+ * next() returns the underlying ResultSet, positioned at the next row.  Read the row's columns before calling
+ * hasNext() or next() again.  SQLExceptions that happen while iterating are rethrown as RuntimeExceptions.
+ */
+public class StreamingResultSetIterator implements Iterator<ResultSet> {
+
+	//Slow consumers (e.g. Solr indexing each row) can take a while between reads.  The server gives up on a
+	//streaming client after net_write_timeout seconds (60 by default), so we allow much longer gaps than that.
+	private static final int NET_WRITE_TIMEOUT_IN_SECONDS = 3600;
+
+	private final Connection conn;
+	private final long previousNetWriteTimeoutInSeconds;
+	private final PreparedStatement pstmt;
+	private final ResultSet resultSet;
+
+	private boolean rowIsBuffered = false;
+	private boolean closed = false;
+
+	/**
+	 * @param sql The query to run.
+	 * @param params Values for the query's ? placeholders, in order.
+	 * @throws SQLException
+	 */
+	public StreamingResultSetIterator(String sql, Object... params) throws SQLException {
+
+		conn = MySQLHelper.getNewDBConnection(true);
+
+		try {
+			Statement timeoutStatement = conn.createStatement();
+			ResultSet timeoutResultSet = timeoutStatement.executeQuery("SELECT @@SESSION.net_write_timeout");
+			timeoutResultSet.next();
+			previousNetWriteTimeoutInSeconds = timeoutResultSet.getLong(1);
+			timeoutResultSet.close();
+			timeoutStatement.close();
+		} catch (SQLException e) {
+			conn.close();
+			throw e;
+		}
+
+		try {
+			Statement timeoutStatement = conn.createStatement();
+			timeoutStatement.execute("SET SESSION net_write_timeout = " + NET_WRITE_TIMEOUT_IN_SECONDS);
+			timeoutStatement.close();
+
+			pstmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			pstmt.setFetchSize(Integer.MIN_VALUE);
+			for(int i = 0; i < params.length; i++) {
+				pstmt.setObject(i + 1, params[i]);
+			}
+			resultSet = pstmt.executeQuery();
+		} catch (SQLException e) {
+			restoreNetWriteTimeoutAndCloseConnection();
+			throw e;
+		}
+	}
+
+	public boolean hasNext() {
+		if(closed) {
+			return false;
+		}
+
+		if( ! rowIsBuffered ) {
+			try {
+				rowIsBuffered = resultSet.next();
+			} catch (SQLException e) {
+				close();
+				throw new RuntimeException("Error while streaming MySQL results: " + e.getMessage(), e);
+			}
+
+			if( ! rowIsBuffered ) {
+				close();
+			}
+		}
+
+		return rowIsBuffered;
+	}
+
+	public ResultSet next() {
+		if( ! hasNext() ) {
+			throw new NoSuchElementException();
+		}
+		rowIsBuffered = false;
+		return resultSet;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException("StreamingResultSetIterator is read-only.");
+	}
+
+	/**
+	 * Closes the result set and the connection that it was read from.  Closing a streaming result set early
+	 * makes Connector/J read (and discard) the remaining rows, so stopping early isn't free for huge results.
+	 */
+	public void close() {
+		if(closed) {
+			return;
+		}
+		closed = true;
+
+		try {
+			resultSet.close();
+			pstmt.close();
+		} catch (SQLException e) {
+			HrwaManager.writeToLog("Error: Could not close streaming MySQL result set: " + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+		} finally {
+			restoreNetWriteTimeoutAndCloseConnection();
+		}
+	}
+
+	/**
+	 * Connections are pooled, so the longer net_write_timeout mustn't stay on the session for the connection's next user.
+	 */
+	private void restoreNetWriteTimeoutAndCloseConnection() {
+		try {
+			Statement timeoutStatement = conn.createStatement();
+			timeoutStatement.execute("SET SESSION net_write_timeout = " + previousNetWriteTimeoutInSeconds);
+			timeoutStatement.close();
+		} catch (SQLException e) {
+			HrwaManager.writeToLog("Error: Could not restore net_write_timeout on MySQL connection: " + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+		}
+		try {
+			conn.close();
+		} catch (SQLException e) {
+			HrwaManager.writeToLog("Error: Could not close MySQL connection: " + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+		}
+	}
+
+}
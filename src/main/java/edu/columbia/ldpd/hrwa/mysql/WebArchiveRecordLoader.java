@@ -0,0 +1,92 @@
+package edu.columbia.ldpd.hrwa.mysql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+
+/**
+ * Loads new rows into the web_archive_records table in bulk.
+ *
+ * Rows are buffered by addRow() and sent to MySQL by flush().  Loaders never commit: the caller owns the
+ * transaction, so an archive file is only added to the fully indexed archive files table after all of its
+ * rows have been flushed and committed, no matter which loader is used.
+ *
+ * Loaders are not thread-safe.  Each writer thread should create its own.
+ */
+public abstract class WebArchiveRecordLoader {
+
+	public static final String MYSQL_BULK_LOAD_MODE_INSERT = "insert";
+	public static final String MYSQL_BULK_LOAD_MODE_LOAD_DATA = "loaddata";
+
+	/**
+	 * The columns that every row passed to addRow() provides values for, in order.
+	 */
+	public static final String[] COLUMN_NAMES = {
+		"ip", "url", "digest", "archive_file", "offset_in_archive_file",
+		"length", "record_date", "blob_path", "mimetype_from_header", "mimetype_detected",
+		"reader_identifier", "record_identifier", "archived_url", "status_code", "hoststring",
+		"site_id", "load_timestamp", "linked_via_related_host", MySQLHelper.HRWA_MANAGER_TODO_FIELD_NAME, "language_detected"
+	};
+
+	/**
+	 * java.sql.Types of the columns in COLUMN_NAMES.  Used when binding NULL values.
+	 */
+	protected static final int[] COLUMN_SQL_TYPES = {
+		Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.BIGINT,
+		Types.BIGINT, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR,
+		Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.VARCHAR,
+		Types.INTEGER, Types.BIGINT, Types.BOOLEAN, Types.VARCHAR, Types.VARCHAR
+	};
+
+	public static boolean isValidMySQLBulkLoadMode(String mysqlBulkLoadMode) {
+		return MYSQL_BULK_LOAD_MODE_INSERT.equals(mysqlBulkLoadMode) || MYSQL_BULK_LOAD_MODE_LOAD_DATA.equals(mysqlBulkLoadMode);
+	}
+
+	/**
+	 * Creates a loader for the current HrwaManager.mysqlBulkLoadMode.
+	 * @param conn A connection with auto-commit turned off.
+	 * @return
+	 * @throws SQLException
+	 */
+	public static WebArchiveRecordLoader createWebArchiveRecordLoader(Connection conn) throws SQLException {
+		if(MYSQL_BULK_LOAD_MODE_LOAD_DATA.equals(HrwaManager.mysqlBulkLoadMode)) {
+			return new LoadDataWebArchiveRecordLoader(conn);
+		} else {
+			return new InsertWebArchiveRecordLoader(conn);
+		}
+	}
+
+	protected static String getCommaDelimitedColumnNames() {
+		StringBuilder columnNames = new StringBuilder();
+		for(int i = 0; i < COLUMN_NAMES.length; i++) {
+			if(i > 0) {
+				columnNames.append(", ");
+			}
+			columnNames.append(COLUMN_NAMES[i]);
+		}
+		return columnNames.toString();
+	}
+
+	/**
+	 * Buffers a single row.
+	 * @param values One value per column in COLUMN_NAMES.  Use null for NULL.
+	 * @throws SQLException
+	 */
+	public abstract void addRow(Object[] values) throws SQLException;
+
+	/**
+	 * Number of rows that have been added since the last flush().
+	 */
+	public abstract int getNumberOfBufferedRows();
+
+	/**
+	 * Sends all buffered rows to MySQL.  Doesn't commit.
+	 * @throws SQLException
+	 */
+	public abstract void flush() throws SQLException;
+
+	public abstract void close() throws SQLException;
+
+}
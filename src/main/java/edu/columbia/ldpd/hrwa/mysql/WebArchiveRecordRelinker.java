@@ -0,0 +1,265 @@
+package edu.columbia.ldpd.hrwa.mysql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+
+/**
+ * Works out how a single web_archive_records row should change during regular maintenance, given the current
+ * hrwa_manager_todo states of the sites and related_hosts tables.
+ *
+ * The sites, related_hosts and mimetype_codes tables are small, so their relevant rows are loaded into memory once.
+ * RegularMaintenanceTask can then stream every web archive record a single time and only write back the rows that
+ * actually change, instead of running one windowed UPDATE ... JOIN pass over the whole table for every kind of change.
+ *
+ * relink() applies the same rules, in the same order, as the old UPDATE statements:
+ * 1. Records linked to a DELETED site are unlinked and marked as DELETED.
+ * 2. Unlinked records are linked to a NEW site with the same hoststring and marked as UPDATED.
+ * 3. Records that are still unlinked are linked through a NEW related host and marked as UPDATED.
+ * 4. Records linked to an UPDATED site are marked as UPDATED if their mimetype is one that we index.
+ *    Records linked to a METADATA_UPDATED site are marked as METADATA_UPDATED in the same way, unless they're
+ *    already waiting to be fully re-indexed.
+ * 5. Records that shouldn't be indexed (unlinked, or with an unwanted mimetype) have their hrwa_manager_todo reset to NULL.
+ * NOINDEX records are never changed.  DELETED records are left alone by the last rule, since they still need to be
+ * removed from Solr.  DEFERRED records (whose payload hasn't been read yet) are linked and unlinked like any other
+ * record, but keep their DEFERRED hrwa_manager_todo: they aren't in Solr yet, and DeferredRecordMaterializer
+ * picks the linked ones up once relinking is done.
+ *
+ * Hoststring and mimetype lookups are case-insensitive, just like the utf8_general_ci joins that they replace.
+ */
+public class WebArchiveRecordRelinker {
+
+	//Must match HrwaManager.DESIRED_SOLR_INDEXED_MIMETYPE_CODES_STRING_FOR_MYSQL_WHERE_CLAUSE_LIST
+	public static final Set<String> DESIRED_SOLR_INDEXED_MIMETYPE_CODES = new HashSet<String>(Arrays.asList(
+		"DOCUMENT", "HTML", "PDF", "SLIDESHOW", "SPREADSHEET", "XML"
+	));
+
+	private final Set<Integer> deletedSiteIds;
+	private final Set<Integer> updatedSiteIds;
+	private final Set<Integer> metadataUpdatedSiteIds;
+	private final Map<String, Integer> newSiteIdsByHoststring = new HashMap<String, Integer>();
+	private final Map<String, Integer> siteIdsByNewRelatedHost = new HashMap<String, Integer>();
+	private final Map<String, String> mimetypeCodesByMimetypeDetected = new HashMap<String, String>();
+
+	/**
+	 * @param deletedSiteIds Ids of sites with hrwa_manager_todo = 'DELETED'
+	 * @param updatedSiteIds Ids of sites with hrwa_manager_todo = 'UPDATED'
+	 * @param newSiteIdsByHoststring Ids of sites with hrwa_manager_todo = 'NEW', keyed by hoststring
+	 * @param siteIdsByNewRelatedHost Site ids of related hosts with hrwa_manager_todo = 'NEW', keyed by related_host
+	 * @param mimetypeCodesByMimetypeDetected Contents of the mimetype_codes table
+	 */
+	public WebArchiveRecordRelinker(Set<Integer> deletedSiteIds, Set<Integer> updatedSiteIds, Map<String, Integer> newSiteIdsByHoststring, Map<String, Integer> siteIdsByNewRelatedHost, Map<String, String> mimetypeCodesByMimetypeDetected) {
+		this(deletedSiteIds, updatedSiteIds, new HashSet<Integer>(), newSiteIdsByHoststring, siteIdsByNewRelatedHost, mimetypeCodesByMimetypeDetected);
+	}
+
+	/**
+	 * @param metadataUpdatedSiteIds Ids of sites with hrwa_manager_todo = 'METADATA_UPDATED'
+	 */
+	public WebArchiveRecordRelinker(Set<Integer> deletedSiteIds, Set<Integer> updatedSiteIds, Set<Integer> metadataUpdatedSiteIds, Map<String, Integer> newSiteIdsByHoststring, Map<String, Integer> siteIdsByNewRelatedHost, Map<String, String> mimetypeCodesByMimetypeDetected) {
+		this.deletedSiteIds = deletedSiteIds;
+		this.updatedSiteIds = updatedSiteIds;
+		this.metadataUpdatedSiteIds = metadataUpdatedSiteIds;
+		for(Map.Entry<String, Integer> entry : newSiteIdsByHoststring.entrySet()) {
+			this.newSiteIdsByHoststring.put(normalize(entry.getKey()), entry.getValue());
+		}
+		for(Map.Entry<String, Integer> entry : siteIdsByNewRelatedHost.entrySet()) {
+			this.siteIdsByNewRelatedHost.put(normalize(entry.getKey()), entry.getValue());
+		}
+		for(Map.Entry<String, String> entry : mimetypeCodesByMimetypeDetected.entrySet()) {
+			this.mimetypeCodesByMimetypeDetected.put(normalize(entry.getKey()), entry.getValue());
+		}
+	}
+
+	/**
+	 * Loads the current sites, related_hosts and mimetype_codes state from MySQL.
+	 * @return
+	 * @throws SQLException
+	 */
+	public static WebArchiveRecordRelinker loadFromMySQL() throws SQLException {
+
+		HashSet<Integer> deletedSiteIds = new HashSet<Integer>();
+		HashSet<Integer> updatedSiteIds = new HashSet<Integer>();
+		HashSet<Integer> metadataUpdatedSiteIds = new HashSet<Integer>();
+		HashMap<String, Integer> newSiteIdsByHoststring = new HashMap<String, Integer>();
+		HashMap<String, Integer> siteIdsByNewRelatedHost = new HashMap<String, Integer>();
+		HashMap<String, String> mimetypeCodesByMimetypeDetected = new HashMap<String, String>();
+
+		Connection conn = MySQLHelper.getNewDBConnection(true);
+
+		try {
+			PreparedStatement pstmt = conn.prepareStatement("SELECT id, hoststring, hrwa_manager_todo FROM " + HrwaManager.MYSQL_SITES_TABLE_NAME + " WHERE hrwa_manager_todo IS NOT NULL");
+			ResultSet resultSet = pstmt.executeQuery();
+			while(resultSet.next()) {
+				String siteTodo = resultSet.getString(3);
+				if(MySQLHelper.HRWA_MANAGER_TODO_DELETE.equals(siteTodo)) {
+					deletedSiteIds.add(resultSet.getInt(1));
+				} else if(MySQLHelper.HRWA_MANAGER_TODO_UPDATED.equals(siteTodo)) {
+					updatedSiteIds.add(resultSet.getInt(1));
+				} else if(MySQLHelper.HRWA_MANAGER_TODO_METADATA_UPDATED.equals(siteTodo)) {
+					metadataUpdatedSiteIds.add(resultSet.getInt(1));
+				} else if(MySQLHelper.HRWA_MANAGER_TODO_NEW.equals(siteTodo)) {
+					newSiteIdsByHoststring.put(resultSet.getString(2), resultSet.getInt(1));
+				}
+			}
+			resultSet.close();
+			pstmt.close();
+
+			//Only related hosts that point to an existing site can be used for linking
+			pstmt = conn.prepareStatement(
+				"SELECT related_host, related_hosts.site_id FROM " + HrwaManager.MYSQL_RELATED_HOSTS_TABLE_NAME +
+				" INNER JOIN " + HrwaManager.MYSQL_SITES_TABLE_NAME + " ON related_hosts.site_id = sites.id" +
+				" WHERE related_hosts.hrwa_manager_todo = ?"
+			);
+			pstmt.setString(1, MySQLHelper.HRWA_MANAGER_TODO_NEW);
+			resultSet = pstmt.executeQuery();
+			while(resultSet.next()) {
+				siteIdsByNewRelatedHost.put(resultSet.getString(1), resultSet.getInt(2));
+			}
+			resultSet.close();
+			pstmt.close();
+
+			pstmt = conn.prepareStatement("SELECT mimetype_detected, mimetype_code FROM " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + " WHERE mimetype_detected IS NOT NULL");
+			resultSet = pstmt.executeQuery();
+			while(resultSet.next()) {
+				mimetypeCodesByMimetypeDetected.put(resultSet.getString(1), resultSet.getString(2));
+			}
+			resultSet.close();
+			pstmt.close();
+		} finally {
+			conn.close();
+		}
+
+		return new WebArchiveRecordRelinker(deletedSiteIds, updatedSiteIds, metadataUpdatedSiteIds, newSiteIdsByHoststring, siteIdsByNewRelatedHost, mimetypeCodesByMimetypeDetected);
+	}
+
+	public int getNumberOfDeletedSites() {
+		return deletedSiteIds.size();
+	}
+
+	public int getNumberOfUpdatedSites() {
+		return updatedSiteIds.size();
+	}
+
+	public int getNumberOfMetadataUpdatedSites() {
+		return metadataUpdatedSiteIds.size();
+	}
+
+	public int getNumberOfNewSites() {
+		return newSiteIdsByHoststring.size();
+	}
+
+	public int getNumberOfNewRelatedHosts() {
+		return siteIdsByNewRelatedHost.size();
+	}
+
+	/**
+	 * Applies the maintenance rules to the given record, modifying it in place.
+	 * @param record
+	 * @return true if the record changed and needs to be written back to MySQL.
+	 */
+	public boolean relink(WebArchiveRecordLink record) {
+
+		if(MySQLHelper.HRWA_MANAGER_TODO_NOINDEX.equals(record.hrwaManagerTodo)) {
+			return false;
+		}
+
+		Integer originalSiteId = record.siteId;
+		boolean originalLinkedViaRelatedHost = record.linkedViaRelatedHost;
+		String originalHrwaManagerTodo = record.hrwaManagerTodo;
+		boolean materializationDeferred = MySQLHelper.HRWA_MANAGER_TODO_DEFERRED.equals(record.hrwaManagerTodo);
+
+		if(record.siteId != null && deletedSiteIds.contains(record.siteId)) {
+			record.siteId = null;
+			record.linkedViaRelatedHost = false;
+			record.hrwaManagerTodo = MySQLHelper.HRWA_MANAGER_TODO_DELETE;
+		}
+
+		String hoststring = normalize(record.hoststring);
+
+		if(record.siteId == null && hoststring != null) {
+			Integer siteId = newSiteIdsByHoststring.get(hoststring);
+			if(siteId != null) {
+				record.siteId = siteId;
+				record.linkedViaRelatedHost = false;
+				record.hrwaManagerTodo = MySQLHelper.HRWA_MANAGER_TODO_UPDATED;
+			}
+		}
+
+		if(record.siteId == null && hoststring != null) {
+			Integer siteId = siteIdsByNewRelatedHost.get(hoststring);
+			if(siteId != null) {
+				record.siteId = siteId;
+				record.linkedViaRelatedHost = true;
+				record.hrwaManagerTodo = MySQLHelper.HRWA_MANAGER_TODO_UPDATED;
+			}
+		}
+
+		boolean hasDesiredMimetype = hasDesiredSolrIndexedMimetype(record.mimetypeDetected);
+
+		if(record.siteId != null && updatedSiteIds.contains(record.siteId) && hasDesiredMimetype) {
+			record.hrwaManagerTodo = MySQLHelper.HRWA_MANAGER_TODO_UPDATED;
+		}
+
+		//A full re-index already picks up the new site metadata
+		if(record.siteId != null && metadataUpdatedSiteIds.contains(record.siteId) && hasDesiredMimetype && record.hrwaManagerTodo == null) {
+			record.hrwaManagerTodo = MySQLHelper.HRWA_MANAGER_TODO_METADATA_UPDATED;
+		}
+
+		if(record.hrwaManagerTodo != null && ! MySQLHelper.HRWA_MANAGER_TODO_DELETE.equals(record.hrwaManagerTodo) && (record.siteId == null || ! hasDesiredMimetype)) {
+			record.hrwaManagerTodo = null;
+		}
+
+		if(materializationDeferred) {
+			record.hrwaManagerTodo = MySQLHelper.HRWA_MANAGER_TODO_DEFERRED;
+		}
+
+		return ! equal(originalSiteId, record.siteId) || originalLinkedViaRelatedHost != record.linkedViaRelatedHost || ! equal(originalHrwaManagerTodo, record.hrwaManagerTodo);
+	}
+
+	public boolean hasDesiredSolrIndexedMimetype(String mimetypeDetected) {
+		if(mimetypeDetected == null) {
+			return false;
+		}
+		String mimetypeCode = mimetypeCodesByMimetypeDetected.get(normalize(mimetypeDetected));
+		return mimetypeCode != null && DESIRED_SOLR_INDEXED_MIMETYPE_CODES.contains(mimetypeCode);
+	}
+
+	private static String normalize(String value) {
+		return value == null ? null : value.toLowerCase();
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * The columns of a web_archive_records row that regular maintenance reads and writes.
+	 */
+	public static class WebArchiveRecordLink {
+
+		public final long id;
+		public final String hoststring;
+		public final String mimetypeDetected;
+		public Integer siteId;
+		public boolean linkedViaRelatedHost;
+		public String hrwaManagerTodo;
+
+		public WebArchiveRecordLink(long id, String hoststring, String mimetypeDetected, Integer siteId, boolean linkedViaRelatedHost, String hrwaManagerTodo) {
+			this.id = id;
+			this.hoststring = hoststring;
+			this.mimetypeDetected = mimetypeDetected;
+			this.siteId = siteId;
+			this.linkedViaRelatedHost = linkedViaRelatedHost;
+			this.hrwaManagerTodo = hrwaManagerTodo;
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+package edu.columbia.ldpd.hrwa.processorrunnables;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the progress of a single archive file as its records move through the
+ * ArchiveToMySQLTask pipeline.  Large files are split into shards that are read by
+ * different reader threads, and records from one file can be spread across several
+ * detector threads, so the writer stage uses this object to figure out when every
+ * record from the file has actually been written to MySQL.
+ */
+public class ArchiveFileIngestState {
+
+	private final String archiveFileName;
+	private final AtomicInteger numRecordsInFlight = new AtomicInteger(0);
+	private final AtomicInteger numShardsStillBeingRead;
+	private volatile boolean readComplete = false;
+	private volatile boolean readFailed = false;
+	private boolean writeFailed = false; //only touched by the single writer thread
+	private boolean finalized = false; //only touched by the single writer thread
+
+	public ArchiveFileIngestState(String archiveFileName) {
+		this(archiveFileName, 1);
+	}
+
+	public ArchiveFileIngestState(String archiveFileName, int numberOfShards) {
+		this.archiveFileName = archiveFileName;
+		this.numShardsStillBeingRead = new AtomicInteger(numberOfShards);
+	}
+
+	public String getArchiveFileName() {
+		return archiveFileName;
+	}
+
+	/**
+	 * Called by the reader stage before a record item for this file is placed on the queue.
+	 */
+	public void recordEnqueued() {
+		numRecordsInFlight.incrementAndGet();
+	}
+
+	/**
+	 * Called by the writer stage after a record item for this file has been added to the insert batch.
+	 */
+	public void recordWritten() {
+		numRecordsInFlight.decrementAndGet();
+	}
+
+	/**
+	 * Called by the writer stage when a record item for this file could not be added to the insert batch.
+	 * Must only be called by the writer thread.
+	 */
+	public void markRecordWriteFailed() {
+		this.writeFailed = true;
+	}
+
+	public boolean isWriteFailed() {
+		return writeFailed;
+	}
+
+	public int getNumRecordsInFlight() {
+		return numRecordsInFlight.get();
+	}
+
+	/**
+	 * Called by the reader stage once it has enqueued every record in one shard of this file.
+	 * The file counts as read once every one of its shards has been read.
+	 * @param successful false if reading stopped early because of an error
+	 */
+	public void markShardReadComplete(boolean successful) {
+		if( ! successful ) {
+			this.readFailed = true;
+		}
+		if(numShardsStillBeingRead.decrementAndGet() == 0) {
+			this.readComplete = true;
+		}
+	}
+
+	public boolean isReadComplete() {
+		return readComplete;
+	}
+
+	public boolean isReadFailed() {
+		return readFailed;
+	}
+
+	/**
+	 * Returns true exactly once: the first time that this file has been fully read
+	 * AND all of its records have been written. Must only be called by the writer thread.
+	 * @return
+	 */
+	public boolean claimFinalization() {
+		if( ! finalized && readComplete && numRecordsInFlight.get() == 0 ) {
+			finalized = true;
+			return true;
+		}
+		return false;
+	}
+
+}
@@ -1,24 +1,18 @@
 package edu.columbia.ldpd.hrwa.processorrunnables;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.BlockingQueue;
 
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.commons.lang.StringUtils;
 import org.archive.io.ArchiveReader;
 import org.archive.io.ArchiveReaderFactory;
@@ -26,243 +20,367 @@ import org.archive.io.arc.ARCRecord;
 import org.archive.io.arc.ARCRecordMetaData;
 import org.archive.nutchwax.tools.ArcReader;
 
-import com.googlecode.mp4parser.h264.model.HRDParameters;
-
 import edu.columbia.ldpd.hrwa.HrwaManager;
 import edu.columbia.ldpd.hrwa.MimetypeDetector;
+import edu.columbia.ldpd.hrwa.blobstore.BlobStore;
+import edu.columbia.ldpd.hrwa.blobstore.BlobWriter;
+import edu.columbia.ldpd.hrwa.blobstore.PayloadDigestCache;
+import edu.columbia.ldpd.hrwa.mysql.HoststringResolver;
 import edu.columbia.ldpd.hrwa.mysql.MySQLHelper;
-import edu.columbia.ldpd.hrwa.tasks.ArchiveToMySQLTask;
-import edu.columbia.ldpd.hrwa.util.common.MetadataUtils;
+import edu.columbia.ldpd.hrwa.util.common.MemoryBudget;
 
+/**
+ * Reader stage of the ArchiveToMySQLTask pipeline.
+ *
+ * Each reader pulls work off of the shared ArchiveFileWorkQueue.  New archive files are split
+ * into shards along gzip member boundaries (see ArchiveFileShardPlanner), and every free reader
+ * helps out with the shards of a large file.  For each shard, the reader decompresses the records,
+ * writes each relevant record's blob and header to the BlobStore and then hands a lightweight
+ * ArchiveRecordWorkItem off to the detector stage.  Mimetype detection and MySQL inserts happen
+ * on other threads, so a single very large archive file no longer keeps one thread busy with
+ * every step of the process.
+ *
+ * Records whose payload digest is already in the shared PayloadDigestCache reuse the existing blob
+ * (and, if it's known, the detected mimetype) instead of writing a new copy.
+ *
+ * Records that the shared ArchiveRecordMaterializationFilter defers (e.g. records from hosts that aren't linked to
+ * a site) are passed on without a blob or detection prefix.  Their payload is only read again if they get linked later.
+ */
 public class ArchiveFileProcessorRunnable implements Runnable {
-	
-	private static final String ARCHIVED_URL_PREFIX = "http://wayback.archive-it.org/1068/";
-	
+
 	private int uniqueRunnableId;
 	private long numRelevantArchiveRecordsProcessed = 0;
-	private final MimetypeDetector mimetypeDetector;
-	private Boolean isProcessingAnArchiveFile = false;
-	
-	private ConcurrentLinkedQueue<File> sharedReferenceToConcurrentLinkedQueueOfArchiveFiles;
-	
-	// Even though every instance of an ArchiveFileProcessorRunnable will have
-	// the same data stored in sitesMap and relatedHostsMap, I don't want to
-	// worry about thread safety and sharing data, so each thread will generate
-	// its own copy of these HashMaps. They're small objects anyway.
-	private final HashMap<String, Integer> sitesMap;
-	private final HashMap<String, Integer> relatedHostsMap;
-	
-	private Connection mySQLConn = null;
-	private PreparedStatement mainRecordInsertPstmt;
-	
-	public ArchiveFileProcessorRunnable(int uniqueNumericId, ConcurrentLinkedQueue<File> concurrentLinkedQueueOfArchiveFiles) {
+	private volatile boolean isProcessingAnArchiveFile = false;
+
+	private ArchiveFileWorkQueue sharedReferenceToArchiveFileWorkQueue;
+	private BlockingQueue<ArchiveRecordWorkItem> sharedReferenceToRecordDetectionQueue;
+	private MemoryBudget sharedReferenceToMemoryBudget;
+	private PayloadDigestCache sharedReferenceToPayloadDigestCache;
+	private ArchiveRecordMaterializationFilter sharedReferenceToMaterializationFilter;
+
+	//Blobs written by this reader only go into the shared cache once they've been flushed, since other threads can't read them until then
+	private final HashMap<String, String> blobPathsWrittenSinceLastFlush = new HashMap<String, String>();
+
+	//Also covers ARC record blobs, which don't have a digest yet when they're written
+	private boolean hasUnflushedBlobs = false;
+
+	//Each reader has its own BlobWriter (packed blob writers append to their own pack files)
+	private final BlobWriter blobWriter;
+
+	public ArchiveFileProcessorRunnable(int uniqueNumericId, ArchiveFileWorkQueue archiveFileWorkQueue, BlockingQueue<ArchiveRecordWorkItem> recordDetectionQueue, MemoryBudget memoryBudget, PayloadDigestCache payloadDigestCache, ArchiveRecordMaterializationFilter materializationFilter) {
 		//Assign uniqueNumericId
 		uniqueRunnableId = uniqueNumericId;
-		
-		//Pass reference to shared concurrentLinkedQueueOfArchiveFiles
-		sharedReferenceToConcurrentLinkedQueueOfArchiveFiles = concurrentLinkedQueueOfArchiveFiles;
-		
-		//Create a MimetypeDetector
-		mimetypeDetector = new MimetypeDetector();
-		
-		//Each ArchiveFileProcessorRunnable has its own unique connection to MySQL.
-		//Initialize the one and only database connection for this instance.
-		this.mySQLConn = MySQLHelper.getNewDBConnection(false);
-		
-		this.sitesMap = MySQLHelper.getSitesMap(null);
-		this.relatedHostsMap = MySQLHelper.getRelatedHostsMap(null);
-		
-		try {
-			setupMainInsertPreparedStatement();
-		} catch (SQLException e) {
-			HrwaManager.writeToLog("An SQLException occurred while calling preparing mainInsertPstmt.", true, HrwaManager.LOG_TYPE_ERROR);
-			e.printStackTrace();
-			System.exit(0);
-		}
 
+		//Pass reference to shared archiveFileWorkQueue
+		sharedReferenceToArchiveFileWorkQueue = archiveFileWorkQueue;
+
+		//Pass reference to the shared (bounded) queue that feeds the detector stage
+		sharedReferenceToRecordDetectionQueue = recordDetectionQueue;
+
+		//Detection prefixes are paid for out of the shared memory budget until the detector stage drops them
+		sharedReferenceToMemoryBudget = memoryBudget;
+
+		//Pass reference to the shared cache of blobs and detected mimetypes for payloads that have already been seen
+		sharedReferenceToPayloadDigestCache = payloadDigestCache;
+
+		//Pass reference to the shared filter that decides which records' payloads can be skipped for now
+		sharedReferenceToMaterializationFilter = materializationFilter;
+
+		blobWriter = BlobStore.createBlobWriter(uniqueNumericId);
 	}
-	
+
 	public int getUniqueRunnableId() {
 		return this.uniqueRunnableId;
 	}
 
 	public void run() {
-		
-		HrwaManager.writeToLog("Thread " + getUniqueRunnableId() + " has started!", true, HrwaManager.LOG_TYPE_STANDARD);
-		
-		File latestFileToProcess;
-		
-		while((latestFileToProcess = sharedReferenceToConcurrentLinkedQueueOfArchiveFiles.poll()) != null) {
-			
-			try {
-			
-				while(HrwaManager.getCurrentAppMemoryUsageInBytes() > HrwaManager.maxMemoryThresholdInBytesForStartingNewThreadProcesses) {
-					
-					//If current memory usage is too high, wait until it's lower before processing another file on this thread
-					try {
-						Thread.sleep(5000);
-						System.out.println("Thread " + this.uniqueRunnableId + ": sleeping for 5 seconds because current memory usage is too high to safely start an additional simutaneous file process.  Current memory usage: " + HrwaManager.bytesToMegabytes(HrwaManager.getCurrentAppMemoryUsageInBytes()) + " MB");
-					}
-					catch (InterruptedException e) { e.printStackTrace(); }
+
+		HrwaManager.writeToLog("Reader thread " + getUniqueRunnableId() + " has started!", true, HrwaManager.LOG_TYPE_STANDARD);
+
+		while(true) {
+
+			//Always finish the shards of files that have already been started before starting a new file
+			ArchiveFileShard latestShardToProcess = sharedReferenceToArchiveFileWorkQueue.pollShard();
+
+			if(latestShardToProcess != null) {
+				try {
+					processArchiveFileShard(latestShardToProcess);
+				} catch (Exception ex) {
+					//Catching any random uncaught exception related to this file so that one bad file doesn't crash this thread
+					HrwaManager.writeToLog("An unexpected error occurred while processing " + latestShardToProcess + ".  Moving onto the next file.", true, HrwaManager.LOG_TYPE_ERROR);
 				}
-				
-				if( ! HrwaManager.previewMode ) {
-					
-					if(MySQLHelper.archiveFileHasAlreadyBeenFullyIndexedIntoMySQL(latestFileToProcess.getName())) {
-						HrwaManager.writeToLog("Skipping the MySQL indexing of file (" + latestFileToProcess.getName() + ") because it has already been fully indexed", true, HrwaManager.LOG_TYPE_NOTICE);
-					} else {
-						//This archive file has NOT been fully indexed into MySQL.
-						//To ensure that we don't have any partially-indexed records in MySQL, we'll delete any partially indexed records from this file.
-						//This will allow us to safely stop and start the ArchiveToMySQLTask any time.
-						MySQLHelper.deleteWebArchiveRecordsByFile(latestFileToProcess.getName());
-						processArchiveFile(latestFileToProcess);
-					}
-				} else {
-					HrwaManager.writeToLog("PREVIEWING the MySQL indexing of file (" + latestFileToProcess.getName() + "). No actual database changes will be made.", true, HrwaManager.LOG_TYPE_NOTICE);
+				continue;
+			}
+
+			File latestFileToProcess = sharedReferenceToArchiveFileWorkQueue.pollFile();
+
+			if(latestFileToProcess != null) {
+				try {
+					planArchiveFile(latestFileToProcess);
+				} catch (Exception ex) {
+					HrwaManager.writeToLog("An unexpected error occurred while processing the file [" + latestFileToProcess.getName() + "].  Moving onto the next file.", true, HrwaManager.LOG_TYPE_ERROR);
+				} finally {
+					sharedReferenceToArchiveFileWorkQueue.filePlanningFinished();
 				}
-				
-			} catch (Exception ex) {
-				//Catching any random uncaught exception related to this file so that one bad file doesn't crash this thread
-				HrwaManager.writeToLog("An unexpected error occurred while processing the file [" + latestFileToProcess.getName() + "].  Moving onto the next file.", true, HrwaManager.LOG_TYPE_ERROR);
+				continue;
+			}
+
+			if(sharedReferenceToArchiveFileWorkQueue.isExhausted()) {
+				break;
+			}
+
+			//Another reader is in the middle of splitting up a file.  Wait a moment for its shards to show up.
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
 			}
-			
 		}
-		
+
 		try {
-			closeMainInsertPreparedStatement();
-		} catch (SQLException e) {
-			HrwaManager.writeToLog("An SQLException occurred while trying to close mainInsertPstmt.", true, HrwaManager.LOG_TYPE_ERROR);
+			blobWriter.close();
+		} catch (IOException e) {
+			HrwaManager.writeToLog("An error occurred while trying to close the blob writer for reader thread " + getUniqueRunnableId() + "\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
 			e.printStackTrace();
-			System.exit(0);
 		}
-		
-		HrwaManager.writeToLog("Thread " + getUniqueRunnableId() + " has stopped!", true, HrwaManager.LOG_TYPE_STANDARD);
+
+		HrwaManager.writeToLog("Reader thread " + getUniqueRunnableId() + " has stopped!", true, HrwaManager.LOG_TYPE_STANDARD);
 	}
-	
-	private void addNewArchiveFileToFullyIndexedArchiveFilesTable(String archiveFileName) {
-		
+
+	/**
+	 * Decides whether the given archive file needs to be indexed and, if so, splits it into shards
+	 * and adds those shards to the shared work queue.
+	 * @param archiveFile
+	 */
+	private void planArchiveFile(File archiveFile) {
+
+		if( HrwaManager.previewMode ) {
+			HrwaManager.writeToLog("PREVIEWING the MySQL indexing of file (" + archiveFile.getName() + "). No actual database changes will be made.", true, HrwaManager.LOG_TYPE_NOTICE);
+			return;
+		}
+
+		if(MySQLHelper.archiveFileHasAlreadyBeenFullyIndexedIntoMySQL(archiveFile.getName())) {
+			HrwaManager.writeToLog("Skipping the MySQL indexing of file (" + archiveFile.getName() + ") because it has already been fully indexed", true, HrwaManager.LOG_TYPE_NOTICE);
+			return;
+		}
+
+		//This archive file has NOT been fully indexed into MySQL.
+		//To ensure that we don't have any partially-indexed records in MySQL, we'll delete any partially indexed records from this file.
+		//This will allow us to safely stop and start the ArchiveToMySQLTask any time.
+		MySQLHelper.deleteWebArchiveRecordsByFile(archiveFile.getName());
+
+		List<ArchiveFileShard> shards;
 		try {
-			PreparedStatement pstmt = this.mySQLConn.prepareStatement("INSERT INTO " + HrwaManager.MYSQL_FULLY_INDEXED_ARCHIVE_FILES_TABLE_NAME + " (archive_file_name, crawl_year_and_month) VALUES (?,?);");
-			pstmt.setString(1, archiveFileName);
-			pstmt.setString(2, HrwaManager.getCaptureYearAndMonthStringFromArchiveFileName(archiveFileName));
-
-			pstmt.execute();
-		
-			this.mySQLConn.commit(); //need to commit explicitly because auto-commit is turned off for this.mySQLConn
-		} catch (SQLException e) {
-			HrwaManager.writeToLog("An SQL error occurred while attempting to add the following archive file to the fully indexed archive files table" + archiveFileName + "\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
-			e.printStackTrace();
-			System.exit(HrwaManager.EXIT_CODE_ERROR);
+			shards = ArchiveFileShardPlanner.planShards(archiveFile, HrwaManager.archiveFileShardSizeInBytes);
+		} catch (IOException e) {
+			HrwaManager.writeToLog("An error occurred while trying to split up the archive file at " + archiveFile.getPath() + ", so it will be read as a single shard.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			shards = Collections.singletonList(new ArchiveFileShard(archiveFile, new ArchiveFileIngestState(archiveFile.getName()), 0, 1, 0, archiveFile.length()));
 		}
+
+		if(shards.size() > 1) {
+			HrwaManager.writeToLog("Reader thread " + this.getUniqueRunnableId() + ": Split archive file " + archiveFile.getName() + " into " + shards.size() + " shards.", true, HrwaManager.LOG_TYPE_STANDARD);
+		}
+
+		sharedReferenceToArchiveFileWorkQueue.addShards(shards);
 	}
-	
-	public void processArchiveFile(File archiveFile) {
-		
-		HrwaManager.writeToLog("Thread " + this.getUniqueRunnableId() + ": Start process of archive file " + archiveFile.getName(), true, HrwaManager.LOG_TYPE_STANDARD);
-		
+
+	public void processArchiveFileShard(ArchiveFileShard shard) throws InterruptedException {
+
+		HrwaManager.writeToLog("Reader thread " + this.getUniqueRunnableId() + ": Start process of archive file " + shard, true, HrwaManager.LOG_TYPE_STANDARD);
+
+		File archiveFile = shard.getArchiveFile();
+		ArchiveFileIngestState archiveFileIngestState = shard.getArchiveFileIngestState();
+		boolean readSuccessful = false;
+
+		//Offsets reported by a reader that was opened on a shard's input stream are relative to the start of the shard
+		long offsetAdjustment = shard.isWholeFile() ? 0 : shard.getStartOffset();
+
 		//We need to get an ArchiveReader for this file
 		ArchiveReader archiveReader = null;
-		
+
+		isProcessingAnArchiveFile = true;
+
 		try {
-			
-			archiveReader = ArchiveReaderFactory.get(archiveFile);
-		
+
+			archiveReader = getArchiveReaderForShard(shard);
+
 			archiveReader.setDigest(true);
 
 			// Wrap archiveReader in NutchWAX ArcReader class, which converts WARC
 			// records to ARC records on-the-fly, returning null for any records that
 			// are not WARC-Type "response".
-			ArcReader arcReader = new ArcReader(archiveReader);
-			
-			String archiveFileName = archiveFile.getName();
-			
+			// Only the first shard of an ARC file starts with the filedesc:// header record.
+			ArcReader arcReader = new ArcReader(archiveReader, shard.getStartOffset() == 0);
+
 			// Loop through all archive records in this file
 			for (ARCRecord arcRecord : arcReader) {
-				
+
 				if (arcRecord == null) {
 					// WARC records that are not of WARC-Type response will be set to null, and we don't want to analyze these.
 					// Need to check for null.
-					//HrwaManager.writeToLog("Notice: Can't process null record in " + archiveFile.getPath(), true, HrwaManager.LOG_TYPE_NOTICE);
 				}
 				else if(arcRecord.getMetaData().getUrl().startsWith("dns:")) {
 					//Do not do mimetype/lang analysis on DNS records
-					//HrwaManager.writeToLog("Notice: Skipping DNS record in " + archiveFile.getPath(), true, HrwaManager.LOG_TYPE_NOTICE);
-					//HrwaManager.writeToLog(HrwaManager.getCurrentAppMemoryUsage(), true, HrwaManager.LOG_TYPE_MEMORY);
 				}
 				else
 				{
-					this.processSingleArchiveRecord(arcRecord, archiveFileName);
-					
+					ArchiveRecordWorkItem workItem = this.processSingleArchiveRecord(arcRecord, archiveFile, archiveFileIngestState, offsetAdjustment);
+
+					//Blocks if the detector stage has fallen behind, which keeps memory use bounded
+					archiveFileIngestState.recordEnqueued();
+					sharedReferenceToRecordDetectionQueue.put(workItem);
+
 					this.numRelevantArchiveRecordsProcessed++;
 					if(HrwaManager.verbose) {
-						System.out.println("Thread " + uniqueRunnableId + " records processed: " + this.numRelevantArchiveRecordsProcessed);
+						System.out.println("Reader thread " + uniqueRunnableId + " records read: " + this.numRelevantArchiveRecordsProcessed);
 					}
 				}
 			}
-			
-			try {
-				executeAndCommitLatestRecordBatch(); //make sure to commit any remaining records that didn't get committed as part of a regular batch!
-			} catch (SQLException e) {
-				HrwaManager.writeToLog("An error occurred while attempting to commit the last batch of records for archive file: " + archiveFileName + "\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
-				e.printStackTrace();
-				System.exit(HrwaManager.EXIT_CODE_ERROR);
-			}
-			
-			addNewArchiveFileToFullyIndexedArchiveFilesTable(archiveFileName);
-		
+
+			//Make sure that every blob from this shard is readable before the file can be marked as fully indexed
+			blobWriter.flush();
+			publishBlobPathsWrittenSinceLastFlush();
+
+			readSuccessful = true;
+
 		} catch (IOException e) {
 			HrwaManager.writeToLog("An error occurred while trying to read in the archive file at " + archiveFile.getPath() + "\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
-			HrwaManager.writeToLog("Skipping " + archiveFile.getPath() + " due to the read error. Moving on to the next file...", true, HrwaManager.LOG_TYPE_ERROR);
+			HrwaManager.writeToLog("Skipping " + shard + " due to the read error. Moving on to the next file...", true, HrwaManager.LOG_TYPE_ERROR);
 		} finally {
-			try {
-				archiveReader.close();
-			} catch (IOException e) {
-				HrwaManager.writeToLog("An error occurred while trying to close the ArchiveReader for file: " + archiveFile.getPath() + "\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
-				e.printStackTrace();
+			//Blobs that weren't flushed must never be shared with other threads
+			blobPathsWrittenSinceLastFlush.clear();
+			hasUnflushedBlobs = false;
+
+			if(archiveReader != null) {
+				try {
+					archiveReader.close();
+				} catch (IOException e) {
+					HrwaManager.writeToLog("An error occurred while trying to close the ArchiveReader for file: " + archiveFile.getPath() + "\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+					e.printStackTrace();
+				}
 			}
+
+			//Let the writer stage know that no more records are coming for this shard.
+			//The writer will only mark the file as fully indexed once all shards have been read successfully.
+			archiveFileIngestState.markShardReadComplete(readSuccessful);
+			sharedReferenceToRecordDetectionQueue.put(ArchiveRecordWorkItem.createEndOfArchiveFileMarker(archiveFileIngestState));
+
+			isProcessingAnArchiveFile = false;
 		}
-		
-		HrwaManager.writeToLog("Thread " + this.getUniqueRunnableId() + ": Processing of archive file " + archiveFile.getName() + " COMPLETE!", true, HrwaManager.LOG_TYPE_STANDARD);
-		
+
+		HrwaManager.writeToLog("Reader thread " + this.getUniqueRunnableId() + ": Reading of archive file " + shard + " COMPLETE!", true, HrwaManager.LOG_TYPE_STANDARD);
+
+	}
+
+	/**
+	 * Whole files are opened directly.  Shards are opened as a bounded stream over their byte range,
+	 * which the ArchiveReaderFactory can read from because each shard starts on a gzip member boundary.
+	 */
+	private ArchiveReader getArchiveReaderForShard(ArchiveFileShard shard) throws IOException {
+
+		if(shard.isWholeFile()) {
+			return ArchiveReaderFactory.get(shard.getArchiveFile());
+		}
+
+		InputStream shardInputStream = new FileInputStream(shard.getArchiveFile());
+		try {
+			ArchiveFileShardPlanner.skipFully(shardInputStream, shard.getStartOffset());
+		} catch (IOException e) {
+			shardInputStream.close();
+			throw e;
+		}
+		shardInputStream = new BoundedInputStream(new BufferedInputStream(shardInputStream, 65536), shard.getLength());
+
+		//The archive file name is passed as the reader id so that the factory can tell ARC and WARC files apart
+		return ArchiveReaderFactory.get(shard.getArchiveFile().getName(), shardInputStream, shard.getStartOffset() == 0);
 	}
-	
+
 	public long getNumRelevantArchiveRecordsProcessed() {
 		return this.numRelevantArchiveRecordsProcessed;
 	}
-	
-	private void processSingleArchiveRecord(ARCRecord arcRecord, String parentArchiveFileName) {
+
+	private ArchiveRecordWorkItem processSingleArchiveRecord(ARCRecord arcRecord, File archiveFile, ArchiveFileIngestState archiveFileIngestState, long offsetAdjustment) throws InterruptedException {
+
+		String parentArchiveFileName = archiveFileIngestState.getArchiveFileName();
+
 		//Important! Get http header before running record.skipHttpHeader()
 		String httpHeaderString = StringUtils.join(arcRecord.getHttpHeaders());
-		
+
 		try {
 			arcRecord.skipHttpHeader(); //This advances the read pointer to the blob portion of the archive record, excluding the header
 		} catch (IOException ex) {
 			HrwaManager.writeToLog("Error: Cannot skip header in archive record", true, HrwaManager.LOG_TYPE_ERROR);
 		}
-	
+
 		ARCRecordMetaData arcRecordMetaData = arcRecord.getMetaData();
-		
+		long offsetInArchiveFile = arcRecordMetaData.getOffset() + offsetAdjustment;
+
 		String pathToBlobFile;
-		String detectedMimetype;
-		
-		//Only create blob file and do mimetype detection for records with a 200 (success) status
-		if(arcRecord.getStatusCode() == 200) {
-			//Step 1: Create .blob file and .blob.header file
-			File newlyCreatedBlobFile = createBlobAndHeaderFilesForRecord(arcRecord, arcRecordMetaData, httpHeaderString, parentArchiveFileName);
-			
-			//Step 2: Run mimetype detection on blob file - Mimetype detection with Tika >= 1.2 is thread-safe.
-			detectedMimetype = mimetypeDetector.getMimetype(newlyCreatedBlobFile);
-			//System.out.println("Detected mimetype: " + detectedMimetype);
-			
-			pathToBlobFile = newlyCreatedBlobFile.getPath();
+		ByteArrayOutputStream detectionPrefix = null;
+		long detectionPrefixMemoryBudgetWeight = 0;
+
+		//Decided from record metadata only, before any payload bytes are read
+		boolean materializationDeferred = arcRecord.getStatusCode() == 200 && sharedReferenceToMaterializationFilter.shouldDefer(
+			HrwaManager.getHoststringFromUrl(arcRecordMetaData.getUrl()), arcRecordMetaData.getMimetype(), HoststringResolver.getCurrent()
+		);
+
+		//WARC records carry their payload digest in the record header, so unchanged payloads can be recognized before they're read.
+		//ARC record digests are only computed once the whole record has been read (see below).
+		boolean materializePayload = arcRecord.getStatusCode() == 200 && ! materializationDeferred;
+		String fileName = materializePayload ? MimetypeDetector.getFileNameFromURL(arcRecordMetaData.getUrl()) : null;
+		String existingBlobPath = materializePayload ? getExistingBlobPath(arcRecordMetaData.getDigest()) : null;
+		String reusedDetectedMimetype = null;
+
+		//Only create blobs for records with a 200 (success) status.
+		//The first bytes of each blob are captured as it's written, so that the detector stage
+		//can run mimetype detection without reading the blob back in from disk.
+		if(existingBlobPath != null) {
+			//Same payload as a blob that has already been written.  Reference it instead of writing another copy.
+			pathToBlobFile = existingBlobPath;
+			reusedDetectedMimetype = sharedReferenceToPayloadDigestCache.getDetectedMimetype(arcRecordMetaData.getDigest(), fileName);
+
+			if(reusedDetectedMimetype == null) {
+				//The earlier copy hasn't been through the detector yet, so we still need the first bytes for detection
+				detectionPrefixMemoryBudgetWeight = sharedReferenceToMemoryBudget.acquire(Math.min(arcRecordMetaData.getLength(), MimetypeDetector.DETECTION_PREFIX_LENGTH));
+				detectionPrefix = new ByteArrayOutputStream();
+				try {
+					BlobWriter.capturePrefix(arcRecord, detectionPrefix, MimetypeDetector.DETECTION_PREFIX_LENGTH);
+				} catch (IOException e) {
+					//The detector will read the existing blob instead
+					HrwaManager.writeToLog("Error: Could not read the first bytes of a record from archive file " + parentArchiveFileName + " for mimetype detection.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+					detectionPrefix = null;
+					sharedReferenceToMemoryBudget.release(detectionPrefixMemoryBudgetWeight);
+					detectionPrefixMemoryBudgetWeight = 0;
+				}
+			}
+		} else if(materializePayload) {
+			//Waits (without polling) if too many detection prefixes are already in flight
+			detectionPrefixMemoryBudgetWeight = sharedReferenceToMemoryBudget.acquire(Math.min(arcRecordMetaData.getLength(), MimetypeDetector.DETECTION_PREFIX_LENGTH));
+
+			//Write the blob and its header to the blob store
+			pathToBlobFile = null;
+			try {
+				detectionPrefix = new ByteArrayOutputStream();
+				pathToBlobFile = blobWriter.writeBlob(archiveFile, offsetInArchiveFile, httpHeaderString, arcRecord, detectionPrefix, MimetypeDetector.DETECTION_PREFIX_LENGTH);
+				hasUnflushedBlobs = true;
+				if(pathToBlobFile != null && arcRecordMetaData.getDigest() != null) {
+					blobPathsWrittenSinceLastFlush.put(arcRecordMetaData.getDigest(), pathToBlobFile);
+				}
+			} finally {
+				if(pathToBlobFile == null) {
+					detectionPrefix = null;
+					sharedReferenceToMemoryBudget.release(detectionPrefixMemoryBudgetWeight);
+					detectionPrefixMemoryBudgetWeight = 0;
+				}
+			}
 		} else {
 			pathToBlobFile = null;
-			detectedMimetype = null;
 		}
-		
-		//Step 3: If this archive record has no digest, create a digest.
+
+		//If this archive record has no digest, create a digest.
 		//IMPORTANT NOTE: DO NOT close the record until after you've already extracted blob/header info from it.
-		
+
 		// If there is no digest, then we assume we're reading an
         // ARCRecord and not a WARCRecord.  In that case, we close the
         // record, which updates the digest string.  Then we tweak the
@@ -284,182 +402,71 @@ public class ArchiveFileProcessorRunnable implements Runnable {
             // record digest.
         	arcRecordMetaData.setDigest( "sha1:" + arcRecord.getDigestStr() );
         }
-		
-		//Step 3: Insert all info into MySQL
-		try {
-			insertRecordIntoMySQLArchiveRecordTable(arcRecord, arcRecordMetaData, detectedMimetype, parentArchiveFileName, pathToBlobFile);
-		} catch (SQLException ex) {
-			HrwaManager.writeToLog("An error occurred while attempting to insert a new archive record row into MySQL.", true, HrwaManager.LOG_TYPE_ERROR);
-		}
-	}
-	
-	public void insertRecordIntoMySQLArchiveRecordTable(ARCRecord arcRecord, ARCRecordMetaData arcRecordMetaData, String detectedMimetype, String parentArchiveFileName, String pathToBlobFile) throws SQLException {
-		
-		String recordIdentifier = arcRecordMetaData.getRecordIdentifier();
-		String hoststring = HrwaManager.getHoststringFromUrl(arcRecordMetaData.getUrl());
-		
-		boolean linkedViaRelatedHost = false;
-		
-		int siteId = -1; //unless changed, this default -1 will translate to NULL when we do the database insert
-		
-		if (sitesMap.containsKey(hoststring)) {
-			siteId = sitesMap.get(hoststring); //but we're hoping to match to a site_id
-		}
-		else if (relatedHostsMap.containsKey(hoststring)) {
-			siteId = relatedHostsMap.get(hoststring); //and if we can't match to a site_id, we'll try matching to a related host
-			linkedViaRelatedHost = true;
-		}
-		
-		long loadTimestamp = System.currentTimeMillis()/1000L; //1000L because we want to use *long* divsion rather than *int* division.
-		
-		this.mainRecordInsertPstmt.setString(	1,  arcRecordMetaData.getIp()				);
-		this.mainRecordInsertPstmt.setString(	2,  arcRecordMetaData.getUrl()				);
-		this.mainRecordInsertPstmt.setString(	3,  arcRecordMetaData.getDigest()			);
-		this.mainRecordInsertPstmt.setString(	4,  parentArchiveFileName           		);
-		this.mainRecordInsertPstmt.setLong  (	5,  arcRecordMetaData.getOffset()			);
-		this.mainRecordInsertPstmt.setLong  (   6,  arcRecordMetaData.getLength()           );
-		this.mainRecordInsertPstmt.setString(	7,  arcRecordMetaData.getDate()				);
-		if(pathToBlobFile == null) {
-			this.mainRecordInsertPstmt.setNull( 8,  java.sql.Types.VARCHAR             		);
-		} else {
-			this.mainRecordInsertPstmt.setString( 8,  pathToBlobFile             			);
-		}
-		this.mainRecordInsertPstmt.setString(	9,  arcRecordMetaData.getMimetype()    		);
-		if(detectedMimetype == null) {
-			this.mainRecordInsertPstmt.setNull( 10,  java.sql.Types.VARCHAR             	);
-		} else {
-			this.mainRecordInsertPstmt.setString( 10, detectedMimetype      				);
-		}
-		this.mainRecordInsertPstmt.setString(	11, arcRecordMetaData.getReaderIdentifier()	);
-		this.mainRecordInsertPstmt.setString(	12, recordIdentifier						);
-		this.mainRecordInsertPstmt.setString(	13, ArchiveFileProcessorRunnable.ARCHIVED_URL_PREFIX + recordIdentifier);
-		this.mainRecordInsertPstmt.setInt   (   14, arcRecord.getStatusCode()				);
-		this.mainRecordInsertPstmt.setString(	15, hoststring								);
-		if(siteId > -1) {
-			this.mainRecordInsertPstmt.setInt(	16, siteId                					);
-		} else {
-			//Set site_id to NULL for records that aren't linked to a site
-			this.mainRecordInsertPstmt.setNull(	16, java.sql.Types.INTEGER                	);
-		}
-		this.mainRecordInsertPstmt.setLong  (	17, loadTimestamp							);
-		this.mainRecordInsertPstmt.setBoolean(	18, linkedViaRelatedHost					);
-		
-		if(siteId > -1) {
-			this.mainRecordInsertPstmt.setString  (	19, MySQLHelper.HRWA_MANAGER_TODO_UPDATED );
-		} else {
-			//Set hrwa_manager_todo to NULL for records that aren't linked to a site
-			this.mainRecordInsertPstmt.setNull    (	19, java.sql.Types.VARCHAR	);
-		}
-		
-		this.mainRecordInsertPstmt.addBatch();
-		if ((numRelevantArchiveRecordsProcessed + 1) % HrwaManager.mysqlCommitBatchSize == 0) {
-			// Batch execute group size: HrwaManager.mysqlCommitBatchSize
-			executeAndCommitLatestRecordBatch();
+
+        //Even when the blob had to be written (e.g. ARC records), the payload may already have been through the detector
+        if(pathToBlobFile != null && existingBlobPath == null) {
+        	reusedDetectedMimetype = sharedReferenceToPayloadDigestCache.getDetectedMimetype(arcRecordMetaData.getDigest(), fileName);
         }
+
+        ArchiveRecordWorkItem workItem = ArchiveRecordWorkItem.createRecordItem(archiveFileIngestState, arcRecordMetaData, offsetInArchiveFile, arcRecord.getStatusCode(), pathToBlobFile);
+        workItem.setMaterializationDeferred(materializationDeferred);
+        if(reusedDetectedMimetype != null) {
+        	//The detector stage passes items that already have a detected mimetype straight through
+        	workItem.setDetectedMimetype(reusedDetectedMimetype);
+        	workItem.setDetectedLanguage(sharedReferenceToPayloadDigestCache.getDetectedLanguage(arcRecordMetaData.getDigest()));
+        	sharedReferenceToMemoryBudget.release(detectionPrefixMemoryBudgetWeight);
+        } else {
+        	boolean detectionPrefixIsCompleteContent = detectionPrefix != null && detectionPrefix.size() < MimetypeDetector.DETECTION_PREFIX_LENGTH;
+        	if(pathToBlobFile != null && ! detectionPrefixIsCompleteContent) {
+        		//The detector may have to read the complete blob (e.g. container formats), so it has to be readable before the item is handed off
+        		flushUnflushedBlobs();
+        	}
+        	if(detectionPrefix != null) {
+        		workItem.setDetectionPrefix(detectionPrefix.toByteArray(), detectionPrefixIsCompleteContent);
+        		workItem.setDetectionPrefixMemoryBudgetWeight(detectionPrefixMemoryBudgetWeight);
+        	}
+        }
+        return workItem;
 	}
-	
-	public void executeAndCommitLatestRecordBatch() throws SQLException {
-		this.mainRecordInsertPstmt.executeBatch();
-		this.mySQLConn.commit();
-	}
-	
-	public boolean isProcessingAnArchiveFile() {
-		
-		boolean bool;
-		
-		synchronized (isProcessingAnArchiveFile) {
-			bool = isProcessingAnArchiveFile;
+
+	/**
+	 * Flushes the blob writer (and publishes the blobs written since the last flush) if this reader has written blobs
+	 * that other threads can't read yet.  Blobs from the shared PayloadDigestCache are always readable already.
+	 */
+	private void flushUnflushedBlobs() {
+		if( ! hasUnflushedBlobs ) {
+			return;
+		}
+		try {
+			blobWriter.flush();
+			publishBlobPathsWrittenSinceLastFlush();
+		} catch (IOException e) {
+			//The detector will fall back to whatever it can read, and the end-of-shard flush will report the problem again
+			HrwaManager.writeToLog("Error: Could not flush blob writer for reader thread " + getUniqueRunnableId() + " before mimetype detection.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
 		}
-		
-		return bool;
 	}
-	
+
 	/**
-	 * Creates a blob file for this record on the file system.
-	 * @param arcRecord
-	 * @return The newly created blob File.
+	 * Returns the blob_path of an existing blob with the given payload digest, or null.
 	 */
-	private File createBlobAndHeaderFilesForRecord(ARCRecord arcRecord, ARCRecordMetaData arcRecordMetaData, String httpHeaderString, String arcRecordParentArchiveFileName) {
-		
-		String fullPathToNewBlobFile = getBlobFilePathForRecord(arcRecord, arcRecordMetaData, arcRecordParentArchiveFileName);
-		
-		File blobFile = new File(fullPathToNewBlobFile);
-
-        //Step 1: Write out the .blob file
-
-        //Make directories if necessary
-        blobFile.getParentFile().mkdirs();
-
-        
-        // Write blob to file using method below in order to use less memory 
-        try {
-            FileOutputStream blobOutputStream = new FileOutputStream(blobFile);
-            byte [] buffer = checkout();
-            int len = 0;
-            while ((len = arcRecord.read(buffer)) != -1) {
-                blobOutputStream.write(buffer, 0, len);
-            }
-            blobOutputStream.flush();
-            blobOutputStream.close();
-            checkin(buffer);
-        } catch (IOException e) {
-            e.printStackTrace();
-            HrwaManager.writeToLog("Error: Could not write BLOB file (" + blobFile.getPath() + ") to disk.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
-        }
-
-        String blob_path_with_header_extension = blobFile.getPath() + ".header";
-
-        //Write out the header string to an associated .blob.header file
-        try {
-            FileUtils.writeStringToFile(new File(blob_path_with_header_extension), httpHeaderString);
-        } catch (IOException e) {
-            e.printStackTrace();
-            HrwaManager.writeToLog("Error: Could not write HEADER file (" + blob_path_with_header_extension + ") to disk.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
-        }
-        
-		return blobFile;
-	}
-	
-	private String getBlobFilePathForRecord(ARCRecord arcRecord, ARCRecordMetaData arcRecordMetaData, String arcRecordParentArchiveFileName) {
-		
-		//Get the captureYearAndMonthString from the name of this record's parent file
-		String captureYearAndMonthString = HrwaManager.getCaptureYearAndMonthStringFromArchiveFileName(arcRecordParentArchiveFileName);
-		
-		return HrwaManager.blobDirPath + File.separator + arcRecordParentArchiveFileName + File.separator + arcRecordMetaData.getOffset() + ".blob";
-	}
-	
-	//Only prepare the statement once.  No need to do it multiple times since we're inserting the same-formatted data over and over
-	public void setupMainInsertPreparedStatement() throws SQLException {
-	    this.mainRecordInsertPstmt = mySQLConn.prepareStatement (
-                "INSERT INTO " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME +
-                " ( ip, url, digest, archive_file, offset_in_archive_file, " +
-                "length, record_date, blob_path, mimetype_from_header, mimetype_detected, " +
-                "reader_identifier, record_identifier, archived_url, status_code, hoststring, " +
-                "site_id, load_timestamp, linked_via_related_host, " + MySQLHelper.HRWA_MANAGER_TODO_FIELD_NAME + ") " +
-                "VALUES ( ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
-        );
-	}
-	
-	public void closeMainInsertPreparedStatement() throws SQLException {
-	    this.mainRecordInsertPstmt.close();
+	private String getExistingBlobPath(String digest) {
+		if(digest == null) {
+			return null;
+		}
+		String blobPath = blobPathsWrittenSinceLastFlush.get(digest);
+		return blobPath != null ? blobPath : sharedReferenceToPayloadDigestCache.getBlobPath(digest);
 	}
-	
-	/* Byte check-in/check-out stuff */
-	
-	private static Deque<byte[]> BUFFER_POOL = new ArrayDeque<byte[]>();
-	private static byte[] checkout() {
-	    synchronized(BUFFER_POOL) {
-	        if (BUFFER_POOL.isEmpty()) {
-	            return new byte[8196];
-	        } else {
-	            return BUFFER_POOL.pop();
-	        }
-	    }
+
+	private void publishBlobPathsWrittenSinceLastFlush() {
+		for(Map.Entry<String, String> entry : blobPathsWrittenSinceLastFlush.entrySet()) {
+			sharedReferenceToPayloadDigestCache.putBlobPath(entry.getKey(), entry.getValue());
+		}
+		blobPathsWrittenSinceLastFlush.clear();
+		hasUnflushedBlobs = false;
 	}
-	private static void checkin(byte[] buffer) {
-	    synchronized(BUFFER_POOL) {
-	        BUFFER_POOL.add(buffer);
-	    }
+
+	public boolean isProcessingAnArchiveFile() {
+		return isProcessingAnArchiveFile;
 	}
-	
+
 }
@@ -0,0 +1,64 @@
+package edu.columbia.ldpd.hrwa.processorrunnables;
+
+import java.io.File;
+
+/**
+ * A byte range [startOffset, endOffset) of a single archive file.  Both offsets always fall
+ * on gzip member boundaries, so each shard can be decompressed and read independently
+ * of the others.  Small archive files are represented by a single shard that spans the whole file.
+ */
+public class ArchiveFileShard {
+
+	private final File archiveFile;
+	private final ArchiveFileIngestState archiveFileIngestState;
+	private final int shardNumber;
+	private final int totalNumberOfShards;
+	private final long startOffset;
+	private final long endOffset;
+
+	public ArchiveFileShard(File archiveFile, ArchiveFileIngestState archiveFileIngestState, int shardNumber, int totalNumberOfShards, long startOffset, long endOffset) {
+		this.archiveFile = archiveFile;
+		this.archiveFileIngestState = archiveFileIngestState;
+		this.shardNumber = shardNumber;
+		this.totalNumberOfShards = totalNumberOfShards;
+		this.startOffset = startOffset;
+		this.endOffset = endOffset;
+	}
+
+	public File getArchiveFile() {
+		return archiveFile;
+	}
+
+	public ArchiveFileIngestState getArchiveFileIngestState() {
+		return archiveFileIngestState;
+	}
+
+	public int getShardNumber() {
+		return shardNumber;
+	}
+
+	public int getTotalNumberOfShards() {
+		return totalNumberOfShards;
+	}
+
+	public long getStartOffset() {
+		return startOffset;
+	}
+
+	public long getEndOffset() {
+		return endOffset;
+	}
+
+	public long getLength() {
+		return endOffset - startOffset;
+	}
+
+	public boolean isWholeFile() {
+		return totalNumberOfShards == 1;
+	}
+
+	public String toString() {
+		return archiveFile.getName() + " (shard " + (shardNumber + 1) + " of " + totalNumberOfShards + ", bytes " + startOffset + "-" + endOffset + ")";
+	}
+
+}
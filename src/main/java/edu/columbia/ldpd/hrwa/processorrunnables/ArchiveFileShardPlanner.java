@@ -0,0 +1,163 @@
+package edu.columbia.ldpd.hrwa.processorrunnables;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Splits large archive files into shards that can be read in parallel.
+ *
+ * Archive-It (W)ARC files are concatenations of independent gzip members (one member per record),
+ * so a reader can start decompressing at any member boundary.  The planner picks evenly spaced
+ * target offsets in the file and moves each one forward to the next real member boundary.
+ * A candidate boundary (gzip magic bytes 1f 8b 08) is only accepted if it actually inflates to
+ * something that looks like the start of a WARC or ARC record, since those three bytes can
+ * also show up by chance inside compressed data.
+ */
+public class ArchiveFileShardPlanner {
+
+	private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+	private static final int RECORD_START_CHECK_LENGTH = 16;
+	private static final Pattern ARC_RECORD_START_PATTERN = Pattern.compile("\\A[a-zA-Z][a-zA-Z0-9+.\\-]*:");
+
+	/**
+	 * Creates the list of shards for the given archive file.  Files smaller than twice the
+	 * targetShardSizeInBytes (or any file, if targetShardSizeInBytes < 1) are returned as a single shard.
+	 * @param archiveFile
+	 * @param targetShardSizeInBytes
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<ArchiveFileShard> planShards(File archiveFile, long targetShardSizeInBytes) throws IOException {
+
+		long fileLength = archiveFile.length();
+
+		ArrayList<Long> shardStartOffsets = new ArrayList<Long>();
+		shardStartOffsets.add(Long.valueOf(0));
+
+		if(targetShardSizeInBytes > 0 && fileLength >= targetShardSizeInBytes * 2) {
+
+			int numberOfTargetShards = (int)(fileLength / targetShardSizeInBytes);
+			boolean isWarc = archiveFile.getName().endsWith("warc.gz");
+
+			RandomAccessFile randomAccessFile = new RandomAccessFile(archiveFile, "r");
+			try {
+				for(int i = 1; i < numberOfTargetShards; i++) {
+					long targetOffset = (fileLength / numberOfTargetShards) * i;
+					long previousShardStartOffset = shardStartOffsets.get(shardStartOffsets.size() - 1);
+					if(targetOffset <= previousShardStartOffset) {
+						continue;
+					}
+
+					long memberStartOffset = findGzipMemberStartAtOrAfter(archiveFile, randomAccessFile, targetOffset, isWarc);
+					if(memberStartOffset == -1) {
+						break; //no more record boundaries in the rest of the file
+					}
+					if(memberStartOffset > previousShardStartOffset) {
+						shardStartOffsets.add(Long.valueOf(memberStartOffset));
+					}
+				}
+			} finally {
+				randomAccessFile.close();
+			}
+		}
+
+		int totalNumberOfShards = shardStartOffsets.size();
+		ArchiveFileIngestState archiveFileIngestState = new ArchiveFileIngestState(archiveFile.getName(), totalNumberOfShards);
+
+		ArrayList<ArchiveFileShard> shards = new ArrayList<ArchiveFileShard>(totalNumberOfShards);
+		for(int i = 0; i < totalNumberOfShards; i++) {
+			long endOffset = (i + 1 < totalNumberOfShards) ? shardStartOffsets.get(i + 1) : fileLength;
+			shards.add(new ArchiveFileShard(archiveFile, archiveFileIngestState, i, totalNumberOfShards, shardStartOffsets.get(i), endOffset));
+		}
+
+		return shards;
+	}
+
+	/**
+	 * Returns the offset of the first verified gzip member that starts at or after the given offset, or -1 if there isn't one.
+	 */
+	protected static long findGzipMemberStartAtOrAfter(File archiveFile, RandomAccessFile randomAccessFile, long offset, boolean isWarc) throws IOException {
+
+		long fileLength = randomAccessFile.length();
+		byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+		long position = offset;
+
+		while(position < fileLength) {
+			randomAccessFile.seek(position);
+			int bytesRead = randomAccessFile.read(buffer);
+			if(bytesRead < 3) {
+				return -1;
+			}
+
+			for(int i = 0; i + 2 < bytesRead; i++) {
+				if(buffer[i] == (byte)0x1f && buffer[i + 1] == (byte)0x8b && buffer[i + 2] == (byte)0x08) {
+					long candidateOffset = position + i;
+					if(inflatesToArchiveRecordStart(archiveFile, candidateOffset, isWarc)) {
+						return candidateOffset;
+					}
+				}
+			}
+
+			//Overlap the next read by two bytes so that we don't miss a magic number that spans two reads
+			position += bytesRead - 2;
+		}
+
+		return -1;
+	}
+
+	private static boolean inflatesToArchiveRecordStart(File archiveFile, long candidateOffset, boolean isWarc) {
+
+		InputStream inputStream = null;
+
+		try {
+			inputStream = new FileInputStream(archiveFile);
+			skipFully(inputStream, candidateOffset);
+			inputStream = new GZIPInputStream(inputStream);
+
+			byte[] recordStart = new byte[RECORD_START_CHECK_LENGTH];
+			int totalBytesRead = 0;
+			int bytesRead;
+			while(totalBytesRead < recordStart.length && (bytesRead = inputStream.read(recordStart, totalBytesRead, recordStart.length - totalBytesRead)) != -1) {
+				totalBytesRead += bytesRead;
+			}
+
+			String recordStartString = new String(recordStart, 0, totalBytesRead, "US-ASCII");
+
+			if(isWarc) {
+				return recordStartString.startsWith("WARC/");
+			} else {
+				return ARC_RECORD_START_PATTERN.matcher(recordStartString).find();
+			}
+
+		} catch (IOException e) {
+			//Not a real gzip member (or a corrupt one).  Either way, we can't start a shard here.
+			return false;
+		} finally {
+			if(inputStream != null) {
+				try { inputStream.close(); } catch (IOException e) { /* ignore */ }
+			}
+		}
+	}
+
+	/**
+	 * InputStream.skip() is allowed to skip fewer bytes than requested, so keep skipping until we get there.
+	 */
+	public static void skipFully(InputStream inputStream, long numBytesToSkip) throws IOException {
+		long remaining = numBytesToSkip;
+		while(remaining > 0) {
+			long skipped = inputStream.skip(remaining);
+			if(skipped < 1) {
+				throw new IOException("Unable to skip to offset " + numBytesToSkip + " (reached end of stream)");
+			}
+			remaining -= skipped;
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+package edu.columbia.ldpd.hrwa.processorrunnables;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Shared work queue for the reader stage of the ArchiveToMySQLTask pipeline.
+ *
+ * Holds the archive files that haven't been looked at yet, plus the shards of files that
+ * have already been split up.  Readers always prefer shards, so that a large file which is
+ * already in progress gets finished by every free thread before new files are started.
+ *
+ * A reader that takes a file is responsible for calling filePlanningFinished() once it has
+ * added that file's shards (or decided to skip the file).  Until then, the queue is not
+ * considered exhausted, so idle readers wait around instead of exiting early.
+ *
+ * A queue can also be left open, so that files are added while the readers are already running
+ * (e.g. as soon as each one has been downloaded).  An open queue is never exhausted: whoever adds
+ * the files has to close() it once there won't be any more.  A file that has already been added
+ * (e.g. one that was found on disk and was also reported by a downloader) is only queued once.
+ */
+public class ArchiveFileWorkQueue {
+
+	private final ArrayDeque<File> archiveFiles;
+	private final ArrayDeque<ArchiveFileShard> archiveFileShards = new ArrayDeque<ArchiveFileShard>();
+	private int numFilesBeingPlanned = 0;
+	private boolean isClosed;
+	private final int maxNumberOfWaitingFiles;
+	private final HashSet<String> pathsOfAddedFiles = new HashSet<String>();
+
+	/**
+	 * Creates a closed queue that holds the given files and nothing else.
+	 */
+	public ArchiveFileWorkQueue(Collection<File> archiveFiles) {
+		this.archiveFiles = new ArrayDeque<File>(archiveFiles);
+		this.isClosed = true;
+		this.maxNumberOfWaitingFiles = Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Creates an empty open queue.
+	 * @param maxNumberOfWaitingFiles addFile() blocks while this many files are waiting to be read
+	 */
+	public ArchiveFileWorkQueue(int maxNumberOfWaitingFiles) {
+		this.archiveFiles = new ArrayDeque<File>();
+		this.isClosed = false;
+		this.maxNumberOfWaitingFiles = maxNumberOfWaitingFiles;
+	}
+
+	/**
+	 * Adds files to an open queue right away, no matter how many files are already waiting.
+	 */
+	public synchronized void addFilesWithoutWaiting(Collection<File> archiveFilesToAdd) {
+		for(File archiveFile : archiveFilesToAdd) {
+			if(isClosed) {
+				throw new IllegalStateException("Cannot add " + archiveFile.getPath() + " to a closed archive file work queue.");
+			}
+			if(pathsOfAddedFiles.add(archiveFile.getAbsolutePath())) {
+				archiveFiles.add(archiveFile);
+			}
+		}
+	}
+
+	/**
+	 * Adds a file to an open queue, waiting until the readers have caught up if too many files are already waiting.
+	 * @throws InterruptedException
+	 */
+	public synchronized void addFile(File archiveFile) throws InterruptedException {
+		if(isClosed) {
+			throw new IllegalStateException("Cannot add " + archiveFile.getPath() + " to a closed archive file work queue.");
+		}
+		while(archiveFiles.size() >= maxNumberOfWaitingFiles) {
+			wait();
+		}
+		if(pathsOfAddedFiles.add(archiveFile.getAbsolutePath())) {
+			archiveFiles.add(archiveFile);
+		}
+	}
+
+	/**
+	 * Signals that no more files will be added.  Readers exit once the remaining work is done.
+	 */
+	public synchronized void close() {
+		isClosed = true;
+	}
+
+	public synchronized ArchiveFileShard pollShard() {
+		return archiveFileShards.poll();
+	}
+
+	/**
+	 * Returns the next unplanned archive file, or null if there are none left.
+	 * Callers MUST call filePlanningFinished() after a non-null return.
+	 */
+	public synchronized File pollFile() {
+		File file = archiveFiles.poll();
+		if(file != null) {
+			numFilesBeingPlanned++;
+			notifyAll();
+		}
+		return file;
+	}
+
+	public synchronized void addShards(List<ArchiveFileShard> shards) {
+		archiveFileShards.addAll(shards);
+	}
+
+	public synchronized void filePlanningFinished() {
+		numFilesBeingPlanned--;
+	}
+
+	/**
+	 * Returns true when the queue is closed, there are no files or shards left and no other reader is about to add more shards.
+	 */
+	public synchronized boolean isExhausted() {
+		return isClosed && archiveFiles.isEmpty() && archiveFileShards.isEmpty() && numFilesBeingPlanned == 0;
+	}
+
+	public synchronized int getNumberOfRemainingFiles() {
+		return archiveFiles.size();
+	}
+
+}
@@ -0,0 +1,167 @@
+package edu.columbia.ldpd.hrwa.processorrunnables;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+import edu.columbia.ldpd.hrwa.LanguageDetector;
+import edu.columbia.ldpd.hrwa.MimetypeDetector;
+import edu.columbia.ldpd.hrwa.blobstore.BlobStore;
+import edu.columbia.ldpd.hrwa.blobstore.PayloadDigestCache;
+import edu.columbia.ldpd.hrwa.util.common.MemoryBudget;
+
+/**
+ * Detector stage of the ArchiveToMySQLTask pipeline.
+ *
+ * Takes record work items produced by the reader stage, runs mimetype detection on the first
+ * bytes of each record's blob (captured by the reader while writing the blob) and passes the
+ * item along to the MySQL writer stage.  The blob on disk is only re-read for container formats
+ * that can't be identified from a prefix.  If language detection is enabled, the language of html/text records is detected
+ * from the same prefix, with its markup stripped.  Items that the reader already gave a mimetype (from the
+ * PayloadDigestCache) and end-of-archive-file markers are passed through untouched.  The runnable stops when it receives a poison pill.
+ */
+public class ArchiveRecordDetectorRunnable implements Runnable {
+
+	private int uniqueRunnableId;
+	private long numRecordsDetected = 0;
+	private final MimetypeDetector mimetypeDetector;
+	private final LanguageDetector languageDetector;
+
+	private static final Pattern CHARSET_PATTERN = Pattern.compile("(?i)charset\\s*=\\s*[\"']?([\\w.:-]+)");
+
+	private BlockingQueue<ArchiveRecordWorkItem> sharedReferenceToRecordDetectionQueue;
+	private BlockingQueue<ArchiveRecordWorkItem> sharedReferenceToRecordWriteQueue;
+	private MemoryBudget sharedReferenceToMemoryBudget;
+	private PayloadDigestCache sharedReferenceToPayloadDigestCache;
+
+	public ArchiveRecordDetectorRunnable(int uniqueNumericId, BlockingQueue<ArchiveRecordWorkItem> recordDetectionQueue, BlockingQueue<ArchiveRecordWorkItem> recordWriteQueue, MemoryBudget memoryBudget, PayloadDigestCache payloadDigestCache) {
+		uniqueRunnableId = uniqueNumericId;
+		sharedReferenceToRecordDetectionQueue = recordDetectionQueue;
+		sharedReferenceToRecordWriteQueue = recordWriteQueue;
+		sharedReferenceToMemoryBudget = memoryBudget;
+		sharedReferenceToPayloadDigestCache = payloadDigestCache;
+
+		//Each detector gets its own MimetypeDetector (and LanguageDetector)
+		mimetypeDetector = new MimetypeDetector();
+		languageDetector = LanguageDetector.isEnabled() ? new LanguageDetector(HrwaManager.languageDetectionProfileDirPath) : null;
+	}
+
+	public int getUniqueRunnableId() {
+		return this.uniqueRunnableId;
+	}
+
+	public long getNumRecordsDetected() {
+		return this.numRecordsDetected;
+	}
+
+	public void run() {
+
+		HrwaManager.writeToLog("Detector thread " + getUniqueRunnableId() + " has started!", true, HrwaManager.LOG_TYPE_STANDARD);
+
+		try {
+			while(true) {
+				ArchiveRecordWorkItem workItem = sharedReferenceToRecordDetectionQueue.take();
+
+				if(workItem.isPoisonPill()) {
+					break;
+				}
+
+				if( ! workItem.isEndOfArchiveFileMarker() && workItem.getBlobPath() != null && workItem.getDetectedMimetype() == null ) {
+					try {
+						workItem.setDetectedMimetype(detectMimetype(workItem));
+						if(languageDetector != null) {
+							workItem.setDetectedLanguage(detectLanguage(workItem));
+						}
+						//Later captures of the same payload can skip detection
+						if(sharedReferenceToPayloadDigestCache.isEnabled()) {
+							sharedReferenceToPayloadDigestCache.putDetectedLanguage(workItem.getDigest(), workItem.getDetectedLanguage());
+							sharedReferenceToPayloadDigestCache.putDetectedMimetype(workItem.getDigest(), MimetypeDetector.getFileNameFromURL(workItem.getUrl()), workItem.getDetectedMimetype());
+						}
+					} catch (Exception ex) {
+						//One bad blob shouldn't take down the whole detector thread.  The record will be inserted without a detected mimetype.
+						HrwaManager.writeToLog("An error occurred during mimetype detection for blob " + workItem.getBlobPath() + ": " + ex.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+					}
+					//Release the prefix bytes so that items waiting in the write queue stay small
+					workItem.setDetectionPrefix(null, false);
+					sharedReferenceToMemoryBudget.release(workItem.getDetectionPrefixMemoryBudgetWeight());
+					workItem.setDetectionPrefixMemoryBudgetWeight(0);
+					this.numRecordsDetected++;
+				}
+
+				sharedReferenceToRecordWriteQueue.put(workItem);
+			}
+		} catch (InterruptedException e) {
+			HrwaManager.writeToLog("Detector thread " + getUniqueRunnableId() + " was interrupted.", true, HrwaManager.LOG_TYPE_ERROR);
+			Thread.currentThread().interrupt();
+		}
+
+		HrwaManager.writeToLog("Detector thread " + getUniqueRunnableId() + " has stopped!", true, HrwaManager.LOG_TYPE_STANDARD);
+	}
+
+	private String detectMimetype(ArchiveRecordWorkItem workItem) throws IOException {
+		return detectMimetype(mimetypeDetector, workItem.getUrl(), workItem.getBlobPath(), workItem.getDetectionPrefix(), workItem.isDetectionPrefixCompleteContent());
+	}
+
+	/**
+	 * Also used by DeferredRecordMaterializer, for blobs that are written during regular maintenance.
+	 * @param detectionPrefix The first bytes of the blob, or null to read them from the blob store.
+	 */
+	static String detectMimetype(MimetypeDetector mimetypeDetector, String url, String blobPath, byte[] detectionPrefix, boolean detectionPrefixIsCompleteContent) throws IOException {
+
+		//Mimetype detection with Tika >= 1.2 is thread-safe.
+		String fileName = MimetypeDetector.getFileNameFromURL(url);
+		File blobFile = BlobStore.getBlobFileIfStoredAsFile(blobPath);
+
+		if(blobFile != null) {
+			if(detectionPrefix == null) {
+				return mimetypeDetector.getMimetype(blobFile);
+			}
+			return mimetypeDetector.getMimetype(detectionPrefix, detectionPrefixIsCompleteContent, fileName, blobFile);
+		}
+
+		if(detectionPrefix == null) {
+			return mimetypeDetector.getMimetypeOfCompleteContent(BlobStore.openBlobInputStream(blobPath), fileName);
+		}
+
+		//Packed blob: if the prefix isn't enough, stream the complete blob out of its pack file
+		String mimetype = mimetypeDetector.getMimetype(detectionPrefix, detectionPrefixIsCompleteContent, fileName, null);
+		if( ! detectionPrefixIsCompleteContent && MimetypeDetector.requiresCompleteContentForDetection(mimetype) ) {
+			mimetype = mimetypeDetector.getMimetypeOfCompleteContent(BlobStore.openBlobInputStream(blobPath), fileName);
+		}
+		return mimetype;
+	}
+
+	private String detectLanguage(ArchiveRecordWorkItem workItem) {
+		return detectLanguage(languageDetector, workItem.getDetectedMimetype(), workItem.getMimetypeFromHeader(), workItem.getDetectionPrefix());
+	}
+
+	/**
+	 * Returns the language of an html/text record's detection prefix, or null.  Other formats would have to be extracted
+	 * first, so their language is left for the MySQLArchiveRecordsToSolrTask (in local extraction mode).
+	 */
+	static String detectLanguage(LanguageDetector languageDetector, String detectedMimetype, String mimetypeFromHeader, byte[] detectionPrefix) {
+
+		if(detectionPrefix == null || ! LanguageDetector.isTextMimetype(detectedMimetype)) {
+			return null;
+		}
+
+		Charset charset = Charset.forName("UTF-8");
+		if(mimetypeFromHeader != null) {
+			Matcher matcher = CHARSET_PATTERN.matcher(mimetypeFromHeader);
+			if(matcher.find()) {
+				try {
+					charset = Charset.forName(matcher.group(1));
+				} catch (IllegalArgumentException e) {
+					//Unknown or malformed charset.  Stick with UTF-8.
+				}
+			}
+		}
+
+		return languageDetector.getLanguageCode(LanguageDetector.stripMarkup(new String(detectionPrefix, charset)));
+	}
+
+}
@@ -0,0 +1,96 @@
+package edu.columbia.ldpd.hrwa.processorrunnables;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.columbia.ldpd.hrwa.mysql.HoststringResolver;
+
+/**
+ * Decides, from cheap record metadata only, which status 200 records don't need their payload to be read
+ * (no blob, no mimetype detection) while archive files are indexed into MySQL.  Most payload bytes belong to
+ * records that will never be indexed into Solr, either because their host isn't linked to a site, or because
+ * they're images, videos or audio files.
+ *
+ * Rules are given as a comma-separated list (see HrwaManager.materializationFilterRules):
+ * - unlinkedhost: the record's hoststring is neither a site nor a related host
+ * - headermimetype:&lt;prefix&gt;: the mimetype from the record header starts with the given prefix (e.g. headermimetype:image/)
+ *
+ * Deferred records still get their MySQL row, marked as DEFERRED.  Once regular maintenance links a deferred record
+ * to a site, DeferredRecordMaterializer reads its payload out of the archive file, unless a headermimetype rule still
+ * matches it.  Instances are immutable, so one instance is shared by every reader thread.
+ */
+public class ArchiveRecordMaterializationFilter {
+
+	public static final String RULE_UNLINKED_HOST = "unlinkedhost";
+	public static final String RULE_HEADER_MIMETYPE_PREFIX = "headermimetype:";
+
+	private final boolean deferUnlinkedHosts;
+	private final String[] deferredHeaderMimetypePrefixes;
+
+	private ArchiveRecordMaterializationFilter(boolean deferUnlinkedHosts, List<String> deferredHeaderMimetypePrefixes) {
+		this.deferUnlinkedHosts = deferUnlinkedHosts;
+		this.deferredHeaderMimetypePrefixes = deferredHeaderMimetypePrefixes.toArray(new String[deferredHeaderMimetypePrefixes.size()]);
+	}
+
+	/**
+	 * @param rules Comma-separated rules.  An empty string means that every record is materialized.
+	 * @return
+	 * @throws IllegalArgumentException if one of the rules isn't valid
+	 */
+	public static ArchiveRecordMaterializationFilter parse(String rules) {
+
+		boolean deferUnlinkedHosts = false;
+		List<String> deferredHeaderMimetypePrefixes = new ArrayList<String>();
+
+		for(String rule : rules.split(",")) {
+			rule = rule.trim();
+			if(rule.length() == 0) {
+				continue;
+			}
+
+			if(rule.equals(RULE_UNLINKED_HOST)) {
+				deferUnlinkedHosts = true;
+			} else if(rule.startsWith(RULE_HEADER_MIMETYPE_PREFIX) && rule.length() > RULE_HEADER_MIMETYPE_PREFIX.length()) {
+				deferredHeaderMimetypePrefixes.add(rule.substring(RULE_HEADER_MIMETYPE_PREFIX.length()).toLowerCase());
+			} else {
+				throw new IllegalArgumentException("Invalid materialization filter rule: " + rule);
+			}
+		}
+
+		return new ArchiveRecordMaterializationFilter(deferUnlinkedHosts, deferredHeaderMimetypePrefixes);
+	}
+
+	public boolean hasRules() {
+		return deferUnlinkedHosts || deferredHeaderMimetypePrefixes.length > 0;
+	}
+
+	/**
+	 * Returns true if the payload of a record with the given metadata shouldn't be read now.
+	 * @param hoststring The record's hoststring (see HrwaManager.getHoststringFromUrl())
+	 * @param mimetypeFromHeader Can be null
+	 * @param hoststringResolver The resolver that the MySQL writer links records with
+	 */
+	public boolean shouldDefer(String hoststring, String mimetypeFromHeader, HoststringResolver hoststringResolver) {
+		if(isExcludedByHeaderMimetype(mimetypeFromHeader)) {
+			return true;
+		}
+		return deferUnlinkedHosts && hoststringResolver.findEntry(hoststring) == HoststringResolver.NOT_FOUND;
+	}
+
+	/**
+	 * Returns true if a headermimetype rule matches.  Unlike the unlinkedhost rule, this doesn't change when sites are
+	 * added, so deferred records that match stay deferred.
+	 */
+	public boolean isExcludedByHeaderMimetype(String mimetypeFromHeader) {
+		if(mimetypeFromHeader == null) {
+			return false;
+		}
+		for(String prefix : deferredHeaderMimetypePrefixes) {
+			if(mimetypeFromHeader.regionMatches(true, 0, prefix, 0, prefix.length())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
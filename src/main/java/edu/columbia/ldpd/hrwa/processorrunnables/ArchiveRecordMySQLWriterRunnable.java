@@ -0,0 +1,251 @@
+package edu.columbia.ldpd.hrwa.processorrunnables;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+import edu.columbia.ldpd.hrwa.mysql.HoststringResolver;
+import edu.columbia.ldpd.hrwa.mysql.MySQLHelper;
+import edu.columbia.ldpd.hrwa.mysql.MySQLRecordIdRangeQueue;
+import edu.columbia.ldpd.hrwa.mysql.WebArchiveRecordLoader;
+
+/**
+ * Writer stage of the ArchiveToMySQLTask pipeline.
+ *
+ * Takes detected record work items, links them to sites/related hosts and bulk loads them into
+ * MySQL (see WebArchiveRecordLoader).  Once every record from an archive file has been written, the file is added to
+ * the fully indexed archive files table.  The runnable stops when it receives a poison pill.
+ *
+ * If it's given a MySQLRecordIdRangeQueue, the ids of newly written records are added to it after every commit,
+ * so that they can be indexed into Solr while this runnable keeps writing.
+ *
+ * A record that can't be added to the batch is skipped, and its archive file is not marked as fully indexed.
+ * A batch that can't be committed holds rows from several archive files, so that failure is fatal.
+ */
+public class ArchiveRecordMySQLWriterRunnable implements Runnable {
+
+	private static final String ARCHIVED_URL_PREFIX = "http://wayback.archive-it.org/1068/";
+
+	private long numRecordsWritten = 0;
+
+	private BlockingQueue<ArchiveRecordWorkItem> sharedReferenceToRecordWriteQueue;
+	private MySQLRecordIdRangeQueue sharedReferenceToCommittedRecordIdRangeQueue;
+
+	private Connection mySQLConn = null;
+	private WebArchiveRecordLoader webArchiveRecordLoader;
+
+	/**
+	 * @param recordWriteQueue
+	 * @param committedRecordIdRangeQueue Can be null
+	 */
+	public ArchiveRecordMySQLWriterRunnable(BlockingQueue<ArchiveRecordWorkItem> recordWriteQueue, MySQLRecordIdRangeQueue committedRecordIdRangeQueue) {
+
+		sharedReferenceToRecordWriteQueue = recordWriteQueue;
+		sharedReferenceToCommittedRecordIdRangeQueue = committedRecordIdRangeQueue;
+
+		//Initialize the one and only database connection for this instance.
+		this.mySQLConn = MySQLHelper.getNewDBConnection(false);
+
+		try {
+			this.webArchiveRecordLoader = WebArchiveRecordLoader.createWebArchiveRecordLoader(this.mySQLConn);
+		} catch (SQLException e) {
+			HrwaManager.writeToLog("An SQLException occurred while setting up the web archive record loader.", true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+			System.exit(0);
+		}
+	}
+
+	public long getNumRecordsWritten() {
+		return this.numRecordsWritten;
+	}
+
+	public void run() {
+
+		HrwaManager.writeToLog("MySQL writer thread has started!", true, HrwaManager.LOG_TYPE_STANDARD);
+
+		try {
+			while(true) {
+				ArchiveRecordWorkItem workItem = sharedReferenceToRecordWriteQueue.take();
+
+				if(workItem.isPoisonPill()) {
+					break;
+				}
+
+				if( ! workItem.isEndOfArchiveFileMarker() ) {
+					try {
+						insertRecordIntoMySQLArchiveRecordTable(workItem);
+					} catch (Exception ex) {
+						//Catch everything here, since this is the only writer thread and every other stage waits on it
+						HrwaManager.writeToLog("An error occurred while attempting to insert a new archive record row into MySQL for the record at offset " + workItem.getOffsetInArchiveFile() + " in archive file " + workItem.getArchiveFileName() + ", so that archive file will NOT be marked as fully indexed.\n" + ex.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+						workItem.getArchiveFileIngestState().markRecordWriteFailed();
+					}
+					workItem.getArchiveFileIngestState().recordWritten();
+
+					if (this.webArchiveRecordLoader.getNumberOfBufferedRows() >= HrwaManager.mysqlCommitBatchSize) {
+						// Batch execute group size: HrwaManager.mysqlCommitBatchSize
+						executeAndCommitLatestRecordBatchOrExit();
+					}
+				}
+
+				//Records from the same file are spread across several detector threads, so the
+				//end-of-file marker can arrive before the file's last records do.  Check on every item.
+				finalizeArchiveFileIfComplete(workItem.getArchiveFileIngestState());
+			}
+
+			//Make sure to commit any remaining records that didn't get committed as part of a regular batch!
+			executeAndCommitLatestRecordBatchOrExit();
+			this.webArchiveRecordLoader.close();
+			this.mySQLConn.close();
+
+		} catch (InterruptedException e) {
+			HrwaManager.writeToLog("MySQL writer thread was interrupted.", true, HrwaManager.LOG_TYPE_ERROR);
+			Thread.currentThread().interrupt();
+		} catch (SQLException e) {
+			HrwaManager.writeToLog("An error occurred while attempting to close the MySQL writer's connection.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+		} catch (RuntimeException e) {
+			//Without this thread, nothing drains the record write queue and every other stage would block forever
+			HrwaManager.writeToLog("An unexpected error occurred in the MySQL writer thread.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+			System.exit(HrwaManager.EXIT_CODE_ERROR);
+		}
+
+		HrwaManager.writeToLog("MySQL writer thread has stopped!", true, HrwaManager.LOG_TYPE_STANDARD);
+	}
+
+	private void finalizeArchiveFileIfComplete(ArchiveFileIngestState archiveFileIngestState) throws InterruptedException {
+
+		if( ! archiveFileIngestState.claimFinalization() ) {
+			return;
+		}
+
+		String archiveFileName = archiveFileIngestState.getArchiveFileName();
+
+		executeAndCommitLatestRecordBatchOrExit();
+
+		if(archiveFileIngestState.isReadFailed()) {
+			//Partially indexed records will be cleaned up the next time that this file is processed
+			HrwaManager.writeToLog("Archive file " + archiveFileName + " was not read completely, so it will NOT be marked as fully indexed.", true, HrwaManager.LOG_TYPE_ERROR);
+		} else if(archiveFileIngestState.isWriteFailed()) {
+			HrwaManager.writeToLog("Not all records from archive file " + archiveFileName + " could be written, so it will NOT be marked as fully indexed.", true, HrwaManager.LOG_TYPE_ERROR);
+		} else {
+			addNewArchiveFileToFullyIndexedArchiveFilesTable(archiveFileName);
+			HrwaManager.writeToLog("Processing of archive file " + archiveFileName + " COMPLETE!", true, HrwaManager.LOG_TYPE_STANDARD);
+		}
+	}
+
+	private void addNewArchiveFileToFullyIndexedArchiveFilesTable(String archiveFileName) {
+
+		try {
+			PreparedStatement pstmt = this.mySQLConn.prepareStatement("INSERT INTO " + HrwaManager.MYSQL_FULLY_INDEXED_ARCHIVE_FILES_TABLE_NAME + " (archive_file_name, crawl_year_and_month) VALUES (?,?);");
+			pstmt.setString(1, archiveFileName);
+			pstmt.setString(2, HrwaManager.getCaptureYearAndMonthStringFromArchiveFileName(archiveFileName));
+
+			pstmt.execute();
+			pstmt.close();
+
+			this.mySQLConn.commit(); //need to commit explicitly because auto-commit is turned off for this.mySQLConn
+		} catch (SQLException e) {
+			HrwaManager.writeToLog("An SQL error occurred while attempting to add the following archive file to the fully indexed archive files table" + archiveFileName + "\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+			System.exit(HrwaManager.EXIT_CODE_ERROR);
+		}
+	}
+
+	/**
+	 * Adds the record to the current batch.  Doesn't flush or commit the batch.
+	 */
+	public void insertRecordIntoMySQLArchiveRecordTable(ArchiveRecordWorkItem workItem) throws SQLException {
+
+		String recordIdentifier = workItem.getRecordIdentifier();
+		String hoststring = HrwaManager.getHoststringFromUrl(workItem.getUrl());
+
+		boolean linkedViaRelatedHost = false;
+
+		int siteId = -1; //unless changed, this default -1 will translate to NULL when we do the database insert
+
+		//We're hoping to match to a site_id, and if we can't, we'll try matching to a related host.
+		//The resolver is shared by all threads and is swapped out whenever the sites change, so get the current one for every record.
+		HoststringResolver hoststringResolver = HoststringResolver.getCurrent();
+		int hoststringEntry = hoststringResolver.findEntry(hoststring);
+		if (hoststringEntry != HoststringResolver.NOT_FOUND) {
+			siteId = hoststringResolver.getSiteId(hoststringEntry);
+			linkedViaRelatedHost = hoststringResolver.isLinkedViaRelatedHost(hoststringEntry);
+		}
+
+		long loadTimestamp = System.currentTimeMillis()/1000L; //1000L because we want to use *long* divsion rather than *int* division.
+
+		Object[] values = new Object[WebArchiveRecordLoader.COLUMN_NAMES.length];
+		values[0]  = workItem.getIp();
+		values[1]  = workItem.getUrl();
+		values[2]  = workItem.getDigest();
+		values[3]  = workItem.getArchiveFileName();
+		values[4]  = workItem.getOffsetInArchiveFile();
+		values[5]  = workItem.getLength();
+		values[6]  = workItem.getRecordDate();
+		values[7]  = workItem.getBlobPath();
+		values[8]  = workItem.getMimetypeFromHeader();
+		values[9]  = workItem.getDetectedMimetype();
+		values[10] = workItem.getReaderIdentifier();
+		values[11] = recordIdentifier;
+		values[12] = ArchiveRecordMySQLWriterRunnable.ARCHIVED_URL_PREFIX + recordIdentifier;
+		values[13] = workItem.getStatusCode();
+		values[14] = hoststring;
+		//site_id and hrwa_manager_todo are NULL for records that aren't linked to a site
+		values[15] = siteId > -1 ? Integer.valueOf(siteId) : null;
+		values[16] = loadTimestamp;
+		values[17] = linkedViaRelatedHost;
+		//Deferred records stay DEFERRED (even when linked) until DeferredRecordMaterializer has read their payload
+		values[18] = workItem.isMaterializationDeferred() ? MySQLHelper.HRWA_MANAGER_TODO_DEFERRED : (siteId > -1 ? MySQLHelper.HRWA_MANAGER_TODO_UPDATED : null);
+		values[19] = workItem.getDetectedLanguage();
+
+		this.webArchiveRecordLoader.addRow(values);
+		this.numRecordsWritten++;
+	}
+
+	/**
+	 * The loaders clear their buffer before sending it, so a failed batch can't be retried, and its rows (from several
+	 * archive files) have already been counted as written.  Stop rather than mark those files as fully indexed.
+	 */
+	private void executeAndCommitLatestRecordBatchOrExit() throws InterruptedException {
+		try {
+			executeAndCommitLatestRecordBatch();
+		} catch (InterruptedException e) {
+			throw e;
+		} catch (Exception e) {
+			HrwaManager.writeToLog("An error occurred while attempting to commit a batch of archive records. Stopping so that the archive files in this batch are not marked as fully indexed.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+			System.exit(HrwaManager.EXIT_CODE_ERROR);
+		}
+	}
+
+	public void executeAndCommitLatestRecordBatch() throws SQLException, InterruptedException {
+		boolean hasBufferedRows = this.webArchiveRecordLoader.getNumberOfBufferedRows() > 0;
+
+		this.webArchiveRecordLoader.flush();
+		this.mySQLConn.commit();
+
+		if(hasBufferedRows && sharedReferenceToCommittedRecordIdRangeQueue != null) {
+			//This is the only thread that adds records, so every id up to the current max has now been committed.
+			//This waits if the Solr indexing threads have fallen too far behind.
+			sharedReferenceToCommittedRecordIdRangeQueue.extendThrough(getMaxCommittedRecordId() + 1);
+		}
+	}
+
+	private long getMaxCommittedRecordId() throws SQLException {
+		PreparedStatement pstmt = this.mySQLConn.prepareStatement("SELECT MAX(id) FROM " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME);
+		try {
+			ResultSet resultSet = pstmt.executeQuery();
+			resultSet.next();
+			long maxId = resultSet.getLong(1);
+			resultSet.close();
+			return maxId;
+		} finally {
+			pstmt.close();
+		}
+	}
+
+}
@@ -0,0 +1,207 @@
+package edu.columbia.ldpd.hrwa.processorrunnables;
+
+import org.archive.io.arc.ARCRecordMetaData;
+
+/**
+ * A single unit of work that flows through the ArchiveToMySQLTask pipeline:
+ * reader stage -> mimetype detector stage -> MySQL writer stage.
+ *
+ * Besides regular archive record items, the same queues also carry two kinds of
+ * control items: end-of-archive-file markers (so that the writer knows when a
+ * file can be marked as fully indexed) and poison pills (which tell a stage
+ * thread to stop).
+ */
+public class ArchiveRecordWorkItem {
+
+	public static final ArchiveRecordWorkItem POISON_PILL = new ArchiveRecordWorkItem(null, true);
+
+	private final ArchiveFileIngestState archiveFileIngestState;
+	private final boolean isPoisonPill;
+	private final boolean isEndOfArchiveFileMarker;
+
+	//Archive record fields
+	private String ip;
+	private String url;
+	private String digest;
+	private long offsetInArchiveFile;
+	private long length;
+	private String recordDate;
+	private String blobPath;
+	private String mimetypeFromHeader;
+	private String detectedMimetype;
+	private String detectedLanguage;
+	private byte[] detectionPrefix;
+	private boolean detectionPrefixIsCompleteContent;
+	private long detectionPrefixMemoryBudgetWeight;
+	private String readerIdentifier;
+	private String recordIdentifier;
+	private int statusCode;
+	private boolean materializationDeferred;
+
+	private ArchiveRecordWorkItem(ArchiveFileIngestState archiveFileIngestState, boolean isPoisonPill) {
+		this.archiveFileIngestState = archiveFileIngestState;
+		this.isPoisonPill = isPoisonPill;
+		this.isEndOfArchiveFileMarker = ( ! isPoisonPill && archiveFileIngestState != null );
+	}
+
+	private ArchiveRecordWorkItem(ArchiveFileIngestState archiveFileIngestState, ARCRecordMetaData arcRecordMetaData, long offsetInArchiveFile, int statusCode, String blobPath) {
+		this.archiveFileIngestState = archiveFileIngestState;
+		this.isPoisonPill = false;
+		this.isEndOfArchiveFileMarker = false;
+
+		this.ip = arcRecordMetaData.getIp();
+		this.url = arcRecordMetaData.getUrl();
+		this.digest = arcRecordMetaData.getDigest();
+		this.offsetInArchiveFile = offsetInArchiveFile;
+		this.length = arcRecordMetaData.getLength();
+		this.recordDate = arcRecordMetaData.getDate();
+		this.mimetypeFromHeader = arcRecordMetaData.getMimetype();
+		this.readerIdentifier = arcRecordMetaData.getReaderIdentifier();
+		this.recordIdentifier = arcRecordMetaData.getRecordIdentifier();
+		this.statusCode = statusCode;
+		this.blobPath = blobPath;
+	}
+
+	/**
+	 * Creates a work item for a single archive record. Only metadata is copied out of
+	 * the ARCRecordMetaData object, so the underlying ARCRecord can be closed right away.
+	 * @param archiveFileIngestState State object for the archive file that this record came from.
+	 * @param arcRecordMetaData
+	 * @param offsetInArchiveFile Absolute offset of the record in its archive file (the metadata offset is relative to the shard being read).
+	 * @param statusCode
+	 * @param blobPath Path to the blob written for this record, or null if no blob was written.
+	 * @return
+	 */
+	public static ArchiveRecordWorkItem createRecordItem(ArchiveFileIngestState archiveFileIngestState, ARCRecordMetaData arcRecordMetaData, long offsetInArchiveFile, int statusCode, String blobPath) {
+		return new ArchiveRecordWorkItem(archiveFileIngestState, arcRecordMetaData, offsetInArchiveFile, statusCode, blobPath);
+	}
+
+	/**
+	 * Creates a marker that is placed on the queue after the last record of an archive file (or archive file shard).
+	 * @param archiveFileIngestState
+	 * @return
+	 */
+	public static ArchiveRecordWorkItem createEndOfArchiveFileMarker(ArchiveFileIngestState archiveFileIngestState) {
+		return new ArchiveRecordWorkItem(archiveFileIngestState, false);
+	}
+
+	public boolean isPoisonPill() {
+		return isPoisonPill;
+	}
+
+	public boolean isEndOfArchiveFileMarker() {
+		return isEndOfArchiveFileMarker;
+	}
+
+	public ArchiveFileIngestState getArchiveFileIngestState() {
+		return archiveFileIngestState;
+	}
+
+	public String getArchiveFileName() {
+		return archiveFileIngestState.getArchiveFileName();
+	}
+
+	public String getIp() {
+		return ip;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public String getDigest() {
+		return digest;
+	}
+
+	public long getOffsetInArchiveFile() {
+		return offsetInArchiveFile;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public String getRecordDate() {
+		return recordDate;
+	}
+
+	public String getBlobPath() {
+		return blobPath;
+	}
+
+	public String getMimetypeFromHeader() {
+		return mimetypeFromHeader;
+	}
+
+	public String getDetectedMimetype() {
+		return detectedMimetype;
+	}
+
+	public void setDetectedMimetype(String detectedMimetype) {
+		this.detectedMimetype = detectedMimetype;
+	}
+
+	/**
+	 * @return A language code (e.g. "fr"), or null if the language wasn't detected.
+	 */
+	public String getDetectedLanguage() {
+		return detectedLanguage;
+	}
+
+	public void setDetectedLanguage(String detectedLanguage) {
+		this.detectedLanguage = detectedLanguage;
+	}
+
+	/**
+	 * The first bytes of this record's blob, captured while the blob was being written.
+	 * @return The prefix, or null if no blob was written (or detection has already been done).
+	 */
+	public byte[] getDetectionPrefix() {
+		return detectionPrefix;
+	}
+
+	public boolean isDetectionPrefixCompleteContent() {
+		return detectionPrefixIsCompleteContent;
+	}
+
+	public void setDetectionPrefix(byte[] detectionPrefix, boolean detectionPrefixIsCompleteContent) {
+		this.detectionPrefix = detectionPrefix;
+		this.detectionPrefixIsCompleteContent = detectionPrefixIsCompleteContent;
+	}
+
+	/**
+	 * Bytes that the reader took from the MemoryBudget for this item's detection prefix.
+	 * The detector gives them back once it has dropped the prefix.
+	 */
+	public long getDetectionPrefixMemoryBudgetWeight() {
+		return detectionPrefixMemoryBudgetWeight;
+	}
+
+	public void setDetectionPrefixMemoryBudgetWeight(long detectionPrefixMemoryBudgetWeight) {
+		this.detectionPrefixMemoryBudgetWeight = detectionPrefixMemoryBudgetWeight;
+	}
+
+	public String getReaderIdentifier() {
+		return readerIdentifier;
+	}
+
+	public String getRecordIdentifier() {
+		return recordIdentifier;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return true if the reader skipped this record's payload because of an ArchiveRecordMaterializationFilter rule.
+	 */
+	public boolean isMaterializationDeferred() {
+		return materializationDeferred;
+	}
+
+	public void setMaterializationDeferred(boolean materializationDeferred) {
+		this.materializationDeferred = materializationDeferred;
+	}
+
+}
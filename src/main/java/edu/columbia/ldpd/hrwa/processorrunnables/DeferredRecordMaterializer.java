@@ -0,0 +1,197 @@
+package edu.columbia.ldpd.hrwa.processorrunnables;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+import edu.columbia.ldpd.hrwa.LanguageDetector;
+import edu.columbia.ldpd.hrwa.MimetypeDetector;
+import edu.columbia.ldpd.hrwa.blobstore.BlobStore;
+import edu.columbia.ldpd.hrwa.blobstore.BlobWriter;
+import edu.columbia.ldpd.hrwa.mysql.MySQLHelper;
+import edu.columbia.ldpd.hrwa.mysql.StreamingResultSetIterator;
+import edu.columbia.ldpd.hrwa.mysql.WebArchiveRecordRelinker;
+import edu.columbia.ldpd.hrwa.tasks.ArchiveToMySQLTask;
+
+/**
+ * Reads the payloads that the ArchiveToMySQLTask skipped (see ArchiveRecordMaterializationFilter), once regular
+ * maintenance has linked their records to a site.
+ *
+ * Every DEFERRED record that is linked to a site gets its blob written (straight from its offset in the archive file)
+ * and its mimetype and language detected, the same way that the ArchiveToMySQLTask pipeline would have done it.
+ * The record is then marked as UPDATED if it has a mimetype that we index, or has its hrwa_manager_todo reset to NULL
+ * otherwise.  Records that are still excluded by a headermimetype rule, and unlinked records, stay DEFERRED.
+ */
+public class DeferredRecordMaterializer {
+
+	private static final String[] VALID_ARCHIVE_FILE_EXTENSIONS = {"arc.gz", "warc.gz"};
+
+	private final ArchiveRecordMaterializationFilter materializationFilter;
+	private final WebArchiveRecordRelinker relinker;
+	private final MimetypeDetector mimetypeDetector;
+	private final LanguageDetector languageDetector;
+
+	//Archive files by name, only listed once there's a record to materialize
+	private HashMap<String, File> archiveFilesByName = null;
+
+	/**
+	 * @param materializationFilter The current rules.  Records that a headermimetype rule excludes aren't materialized.
+	 * @param relinker Used to find out if a materialized record has a mimetype that we index
+	 */
+	public DeferredRecordMaterializer(ArchiveRecordMaterializationFilter materializationFilter, WebArchiveRecordRelinker relinker) {
+		this.materializationFilter = materializationFilter;
+		this.relinker = relinker;
+		mimetypeDetector = new MimetypeDetector();
+		languageDetector = LanguageDetector.isEnabled() ? new LanguageDetector(HrwaManager.languageDetectionProfileDirPath) : null;
+	}
+
+	/**
+	 * Materializes every DEFERRED record that is linked to a site.  Updates are committed every
+	 * regularMaintenanceMySQLRowRetrievalSize rows, after the blobs that they point to have been flushed.
+	 * @return The number of records that were marked as UPDATED.
+	 * @throws SQLException
+	 */
+	public long materializeLinkedDeferredRecords() throws SQLException {
+
+		long numberOfRowsScanned = 0;
+		long numberOfRowsMaterialized = 0;
+		long numberOfRowsMarkedAsUpdated = 0;
+
+		BlobWriter blobWriter = BlobStore.createBlobWriter(0);
+
+		//The streaming connection can't be used for anything else until the scan is done, so updates go through a second connection
+		Connection updateConn = MySQLHelper.getNewDBConnection(false);
+
+		try {
+			//The DEFERRED condition makes sure that rows changed by anything else in the meantime are left alone
+			PreparedStatement updatePstmt = updateConn.prepareStatement(
+				"UPDATE " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME +
+				" SET blob_path = ?, mimetype_detected = ?, language_detected = ?, " + MySQLHelper.HRWA_MANAGER_TODO_FIELD_NAME + " = ?" +
+				" WHERE id = ? AND " + MySQLHelper.HRWA_MANAGER_TODO_FIELD_NAME + " = ?"
+			);
+			int numberOfBatchedUpdates = 0;
+
+			StreamingResultSetIterator recordIterator = MySQLHelper.streamQuery(
+				"SELECT id, url, archive_file, offset_in_archive_file, mimetype_from_header FROM " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME +
+				" WHERE " + MySQLHelper.HRWA_MANAGER_TODO_FIELD_NAME + " = ? AND site_id IS NOT NULL AND status_code = 200",
+				MySQLHelper.HRWA_MANAGER_TODO_DEFERRED
+			);
+
+			try {
+				while(recordIterator.hasNext()) {
+					ResultSet resultSet = recordIterator.next();
+					long id = resultSet.getLong(1);
+					String url = resultSet.getString(2);
+					String archiveFileName = resultSet.getString(3);
+					long offsetInArchiveFile = resultSet.getLong(4);
+					String mimetypeFromHeader = resultSet.getString(5);
+					numberOfRowsScanned++;
+
+					if(materializationFilter.isExcludedByHeaderMimetype(mimetypeFromHeader)) {
+						continue;
+					}
+
+					File archiveFile = getArchiveFile(archiveFileName);
+					if(archiveFile == null) {
+						HrwaManager.writeToLog("Error: Could not find archive file " + archiveFileName + " in " + HrwaManager.archiveFileDirPath + ", so deferred record " + id + " can't be materialized yet.", true, HrwaManager.LOG_TYPE_ERROR);
+						continue;
+					}
+
+					String blobPath;
+					String detectedMimetype = null;
+					String detectedLanguage = null;
+					try {
+						ByteArrayOutputStream detectionPrefix = new ByteArrayOutputStream();
+						blobPath = BlobStore.writeBlobForArchiveRecord(blobWriter, archiveFile, offsetInArchiveFile, detectionPrefix, MimetypeDetector.DETECTION_PREFIX_LENGTH);
+						if(blobPath == null) {
+							//The record stays DEFERRED, so the next maintenance run will try again
+							HrwaManager.writeToLog("Error: Could not write the blob for deferred record " + id + " at offset " + offsetInArchiveFile + " in " + archiveFileName + ", so it can't be materialized yet.", true, HrwaManager.LOG_TYPE_ERROR);
+							continue;
+						}
+
+						boolean detectionPrefixIsCompleteContent = detectionPrefix.size() < MimetypeDetector.DETECTION_PREFIX_LENGTH;
+						if( ! detectionPrefixIsCompleteContent ) {
+							//Container formats are detected from the complete blob, which has to be readable first
+							blobWriter.flush();
+						}
+						byte[] detectionPrefixBytes = detectionPrefix.toByteArray();
+						detectedMimetype = ArchiveRecordDetectorRunnable.detectMimetype(mimetypeDetector, url, blobPath, detectionPrefixBytes, detectionPrefixIsCompleteContent);
+						if(languageDetector != null) {
+							detectedLanguage = ArchiveRecordDetectorRunnable.detectLanguage(languageDetector, detectedMimetype, mimetypeFromHeader, detectionPrefixBytes);
+						}
+					} catch (IOException e) {
+						//The record stays DEFERRED, so the next maintenance run will try again
+						HrwaManager.writeToLog("Error: Could not materialize deferred record " + id + " at offset " + offsetInArchiveFile + " in " + archiveFileName + ".\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+						continue;
+					}
+
+					boolean hasDesiredMimetype = relinker.hasDesiredSolrIndexedMimetype(detectedMimetype);
+
+					updatePstmt.setString(1, blobPath);
+					updatePstmt.setString(2, detectedMimetype);
+					updatePstmt.setString(3, detectedLanguage);
+					updatePstmt.setString(4, hasDesiredMimetype ? MySQLHelper.HRWA_MANAGER_TODO_UPDATED : null);
+					updatePstmt.setLong(5, id);
+					updatePstmt.setString(6, MySQLHelper.HRWA_MANAGER_TODO_DEFERRED);
+					updatePstmt.addBatch();
+					numberOfBatchedUpdates++;
+					numberOfRowsMaterialized++;
+
+					if(hasDesiredMimetype) {
+						numberOfRowsMarkedAsUpdated++;
+					}
+
+					if(numberOfBatchedUpdates >= HrwaManager.regularMaintenanceMySQLRowRetrievalSize) {
+						//Rows must never point at blobs that other threads can't read yet
+						blobWriter.flush();
+						updatePstmt.executeBatch();
+						updateConn.commit();
+						numberOfBatchedUpdates = 0;
+						System.out.println("Materializing deferred web archive records. " + numberOfRowsScanned + " rows scanned, " + numberOfRowsMaterialized + " rows materialized so far...");
+					}
+				}
+			} finally {
+				recordIterator.close();
+			}
+
+			if(numberOfBatchedUpdates > 0) {
+				blobWriter.flush();
+				updatePstmt.executeBatch();
+				updateConn.commit();
+			}
+			updatePstmt.close();
+
+		} catch (IOException e) {
+			HrwaManager.writeToLog("Error: Could not flush blobs of deferred web archive records: " + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			System.exit(HrwaManager.EXIT_CODE_ERROR);
+		} finally {
+			updateConn.close();
+			try {
+				blobWriter.close();
+			} catch (IOException e) {
+				HrwaManager.writeToLog("Error: Could not close blob writer: " + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			}
+		}
+
+		HrwaManager.writeToLog("Materializing deferred web archive records -- Done! Linked DEFERRED rows scanned: " + numberOfRowsScanned + ", rows materialized: " + numberOfRowsMaterialized + " (" + numberOfRowsMarkedAsUpdated + " marked as UPDATED)", true, HrwaManager.LOG_TYPE_STANDARD);
+
+		return numberOfRowsMarkedAsUpdated;
+	}
+
+	private File getArchiveFile(String archiveFileName) {
+		if(archiveFilesByName == null) {
+			archiveFilesByName = new HashMap<String, File>();
+			for(File archiveFile : ArchiveToMySQLTask.getAlphabeticallySortedRecursiveListOfFilesFromArchiveDirectory(HrwaManager.archiveFileDirPath, VALID_ARCHIVE_FILE_EXTENSIONS)) {
+				archiveFilesByName.put(archiveFile.getName(), archiveFile);
+			}
+		}
+		return archiveFilesByName.get(archiveFileName);
+	}
+
+}
@@ -16,7 +16,6 @@ import java.util.Collection;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
@@ -32,26 +31,52 @@ import org.archive.nutchwax.tools.ArcReader;
 import com.googlecode.mp4parser.h264.model.HRDParameters;
 
 import edu.columbia.ldpd.hrwa.HrwaManager;
+import edu.columbia.ldpd.hrwa.LanguageDetector;
 import edu.columbia.ldpd.hrwa.MimetypeDetector;
 import edu.columbia.ldpd.hrwa.mysql.MySQLHelper;
+import edu.columbia.ldpd.hrwa.mysql.MySQLRecordIdRange;
+import edu.columbia.ldpd.hrwa.mysql.MySQLRecordIdRangeQueue;
+import edu.columbia.ldpd.hrwa.mysql.StreamingResultSetIterator;
 import edu.columbia.ldpd.hrwa.solr.ASFSolrIndexer;
+import edu.columbia.ldpd.hrwa.solr.SolrCommitPolicy;
 import edu.columbia.ldpd.hrwa.tasks.ArchiveToMySQLTask;
+import edu.columbia.ldpd.hrwa.util.common.MemoryBudget;
 import edu.columbia.ldpd.hrwa.util.common.MetadataUtils;
 
 public class MySQLArchiveRecordToSolrProcessorRunnable implements Runnable {
 	
+	//Rough heap cost of a record, for the shared MemoryBudget.  Local extraction holds the extracted text (two bytes per char,
+	//plus Tika's own buffers) until the document has actually been sent to Solr.  Server-side extraction streams the blob.
+	private static final long LOCAL_EXTRACTION_HEAP_BYTES_PER_RECORD_BYTE = 3;
+	private static final long HEAP_BYTES_PER_RECORD_OVERHEAD = 64 * 1024;
+	
 	private int uniqueRunnableId;
 	private long numArchiveRecordsIndexedIntoSolr = 0;
 	private Boolean isProcessingAMySQLQuery = false;
 	
-	private ConcurrentLinkedQueue<Long> sharedReferenceToConcurrentLinkedQueueOfMySQLRecordOffsets;
+	private MySQLRecordIdRangeQueue sharedReferenceToMySQLRecordIdRangeQueue;
+	private SolrCommitPolicy sharedReferenceToSolrCommitPolicy;
+	private MemoryBudget sharedReferenceToMemoryBudget;
+	
+	//Only used in local extraction mode, for records whose language wasn't detected at ingest time.  Null if language detection is disabled.
+	private LanguageDetector languageDetector;
 	
-	public MySQLArchiveRecordToSolrProcessorRunnable(int uniqueNumericId, ConcurrentLinkedQueue<Long> concurrentLinkedQueueOfMySQLRecordOffsets) {
+	public MySQLArchiveRecordToSolrProcessorRunnable(int uniqueNumericId, MySQLRecordIdRangeQueue mySQLRecordIdRangeQueue, SolrCommitPolicy solrCommitPolicy, MemoryBudget memoryBudget) {
 		//Assign uniqueNumericId
 		uniqueRunnableId = uniqueNumericId;
 		
-		//Pass reference to shared concurrentLinkedQueueOfArchiveFiles
-		sharedReferenceToConcurrentLinkedQueueOfMySQLRecordOffsets = concurrentLinkedQueueOfMySQLRecordOffsets;
+		//Pass reference to shared mySQLRecordIdRangeQueue
+		sharedReferenceToMySQLRecordIdRangeQueue = mySQLRecordIdRangeQueue;
+		
+		//Commits (and hrwa_manager_todo resets) are handled by the shared commit policy
+		sharedReferenceToSolrCommitPolicy = solrCommitPolicy;
+		
+		//Every record is paid for out of the shared memory budget while it's being processed
+		sharedReferenceToMemoryBudget = memoryBudget;
+		
+		if(LanguageDetector.isEnabled()) {
+			languageDetector = new LanguageDetector(HrwaManager.languageDetectionProfileDirPath);
+		}
 	}
 	
 	public int getUniqueRunnableId() {
@@ -61,31 +86,31 @@ public class MySQLArchiveRecordToSolrProcessorRunnable implements Runnable {
 	public void run() {
 		HrwaManager.writeToLog("Thread " + getUniqueRunnableId() + " has started!", true, HrwaManager.LOG_TYPE_STANDARD);
 		
-		Long latestMySQLRecordOffsetToProcess;
+		MySQLRecordIdRange latestMySQLRecordIdRangeToProcess;
 		
-		while((latestMySQLRecordOffsetToProcess = sharedReferenceToConcurrentLinkedQueueOfMySQLRecordOffsets.poll()) != null) {
+		while((latestMySQLRecordIdRangeToProcess = takeNextMySQLRecordIdRange()) != null) {
+			
+			boolean rangeIndexedSuccessfully = false;
 			
 			try {
 				
-				while(HrwaManager.getCurrentAppMemoryUsageInBytes() > HrwaManager.maxMemoryThresholdInBytesForStartingNewThreadProcesses) {
-					
-					//If current memory usage is too high, wait until it's lower before processing another MySQL batch on this thread
-					try {
-						Thread.sleep(5000);
-						System.out.println("Thread " + this.uniqueRunnableId + ": sleeping for 5 seconds because current memory usage is too high to safely start an additional simutaneous MySQL batch process.  Current memory usage: " + HrwaManager.bytesToMegabytes(HrwaManager.getCurrentAppMemoryUsageInBytes()) + " MB");
-					}
-					catch (InterruptedException e) { e.printStackTrace(); }
-				}
-				
 				if( ! HrwaManager.previewMode ) {
-					processMySQLArchiveRecordQueryAndSendToSolr(latestMySQLRecordOffsetToProcess);
+					processMySQLArchiveRecordQueryAndSendToSolr(latestMySQLRecordIdRangeToProcess);
+					rangeIndexedSuccessfully = true;
 				} else {
-					HrwaManager.writeToLog("PREVIEWING the Solr indexing of the results from the MySQL batch (" + latestMySQLRecordOffsetToProcess + " - " + (latestMySQLRecordOffsetToProcess+HrwaManager.mySQLToSolrRowRetrievalSize-1) + "). No actual Solr changes will be made.", true, HrwaManager.LOG_TYPE_NOTICE);
+					HrwaManager.writeToLog("PREVIEWING the Solr indexing of the results from the MySQL batch " + latestMySQLRecordIdRangeToProcess + ". No actual Solr changes will be made.", true, HrwaManager.LOG_TYPE_NOTICE);
 				}
 				
+			} catch (InterruptedException ex) {
+				HrwaManager.writeToLog("Thread " + getUniqueRunnableId() + " was interrupted while processing the MySQL batch " + latestMySQLRecordIdRangeToProcess + ".", true, HrwaManager.LOG_TYPE_ERROR);
+				Thread.currentThread().interrupt();
+				break;
 			} catch (Exception ex) {
 				//Catching any random uncaught exception related to this file so that one bad file doesn't crash this thread
-				HrwaManager.writeToLog("An unexpected error occurred while processing the MySQL batch [" + latestMySQLRecordOffsetToProcess + " - " + (latestMySQLRecordOffsetToProcess+HrwaManager.mySQLToSolrRowRetrievalSize-1)  + "].  Moving onto the next batch.", true, HrwaManager.LOG_TYPE_ERROR);
+				HrwaManager.writeToLog("An unexpected error occurred while processing the MySQL batch " + latestMySQLRecordIdRangeToProcess + ".  Moving onto the next batch.", true, HrwaManager.LOG_TYPE_ERROR);
+			} finally {
+				//Unsuccessful (and previewed) ranges keep their hrwa_manager_todo values
+				sharedReferenceToSolrCommitPolicy.rangeFinished(latestMySQLRecordIdRangeToProcess, rangeIndexedSuccessfully);
 			}
 			
 		}
@@ -93,45 +118,58 @@ public class MySQLArchiveRecordToSolrProcessorRunnable implements Runnable {
 		HrwaManager.writeToLog("Thread " + getUniqueRunnableId() + " has stopped!", true, HrwaManager.LOG_TYPE_STANDARD);
 	}
 	
-	public void processMySQLArchiveRecordQueryAndSendToSolr(long startingRecordIdForMySQLArchiveRecordRowsBeingProcessed) {
+	/**
+	 * Returns the next range to index, waiting for one if the queue is still being fed.
+	 * Returns null when there's nothing left to do (or if this thread was interrupted while waiting).
+	 */
+	private MySQLRecordIdRange takeNextMySQLRecordIdRange() {
+		try {
+			return sharedReferenceToMySQLRecordIdRangeQueue.take();
+		} catch (InterruptedException e) {
+			HrwaManager.writeToLog("Thread " + getUniqueRunnableId() + " was interrupted while waiting for the next MySQL batch.", true, HrwaManager.LOG_TYPE_ERROR);
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+	
+	public void processMySQLArchiveRecordQueryAndSendToSolr(MySQLRecordIdRange mySQLRecordIdRange) throws InterruptedException {
 		
-		HrwaManager.writeToLog("Thread " + this.getUniqueRunnableId() + ": Start process of results from MySQL batch: (" + startingRecordIdForMySQLArchiveRecordRowsBeingProcessed + " - " + (startingRecordIdForMySQLArchiveRecordRowsBeingProcessed+HrwaManager.mySQLToSolrRowRetrievalSize-1) + ")", true, HrwaManager.LOG_TYPE_STANDARD);
+		HrwaManager.writeToLog("Thread " + this.getUniqueRunnableId() + ": Start process of results from MySQL batch: " + mySQLRecordIdRange, true, HrwaManager.LOG_TYPE_STANDARD);
 		
 		try {
-			Connection conn = MySQLHelper.getNewDBConnection(true);
-			
-			PreparedStatement pstmt1 = conn.prepareStatement(
+			//Rows are streamed, so heap use doesn't depend on mySQLToSolrRowRetrievalSize
+			StreamingResultSetIterator rowIterator = MySQLHelper.streamQuery(
 				"SELECT " +
 				HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".id as id, archived_url, record_date, digest, archive_file, length, url, " +
 				HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".mimetype_detected as mimetype_detected, blob_path, " +
-				"mimetype_code, reader_identifier, record_identifier, status_code, " +
+				"mimetype_code, reader_identifier, record_identifier, status_code, language_detected, " +
 				"original_urls, bib_key, creator_name, " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".hoststring as hoststring, organization_type, organization_based_in, " +
 				"geographic_focus, language " +
 				" FROM " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + 
 				" INNER JOIN " + HrwaManager.MYSQL_SITES_TABLE_NAME + " ON " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".site_id = " + HrwaManager.MYSQL_SITES_TABLE_NAME + ".id " +
 				" INNER JOIN " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + " ON " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".mimetype_detected =  " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + ".mimetype_detected" +
 				" WHERE" +
-				" " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".id >= " + startingRecordIdForMySQLArchiveRecordRowsBeingProcessed +
-				" AND " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".id < " + (startingRecordIdForMySQLArchiveRecordRowsBeingProcessed + HrwaManager.mySQLToSolrRowRetrievalSize) +
+				" " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".id >= ?" +
+				" AND " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".id < ?" +
 				" AND " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".status_code = 200" +
 				" AND " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + ".mimetype_code IN " + HrwaManager.DESIRED_SOLR_INDEXED_MIMETYPE_CODES_STRING_FOR_MYSQL_WHERE_CLAUSE_LIST +
-				" AND " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + "." + MySQLHelper.HRWA_MANAGER_TODO_FIELD_NAME + " = '" + MySQLHelper.HRWA_MANAGER_TODO_UPDATED + "'"
+				" AND " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + "." + MySQLHelper.HRWA_MANAGER_TODO_FIELD_NAME + " = '" + MySQLHelper.HRWA_MANAGER_TODO_UPDATED + "'",
+				mySQLRecordIdRange.getStartId(), mySQLRecordIdRange.getEndId()
 			);
-			ResultSet resultSet = pstmt1.executeQuery();
-			
-			indexArchiveRecordMySQLResultSetToSolr(resultSet, startingRecordIdForMySQLArchiveRecordRowsBeingProcessed);
 			
-			resultSet.close();
-			pstmt1.close();
-	        conn.close();
+			try {
+				indexArchiveRecordMySQLResultSetToSolr(rowIterator, mySQLRecordIdRange);
+			} finally {
+				rowIterator.close();
+			}
         
 		} catch (SQLException e) {
-			HrwaManager.writeToLog("An error occurred while attempting to retrieve mysql archive record data from the web archive recods table. Query batch: (" + startingRecordIdForMySQLArchiveRecordRowsBeingProcessed + " - " + (startingRecordIdForMySQLArchiveRecordRowsBeingProcessed+HrwaManager.mySQLToSolrRowRetrievalSize-1) + ")", true, HrwaManager.LOG_TYPE_ERROR);
+			HrwaManager.writeToLog("An error occurred while attempting to retrieve mysql archive record data from the web archive recods table. Query batch: " + mySQLRecordIdRange, true, HrwaManager.LOG_TYPE_ERROR);
 			e.printStackTrace();
 			System.exit(0);
 		}
 		
-		HrwaManager.writeToLog("Thread " + this.getUniqueRunnableId() + ": Processing of results from MySQL query batch (" + startingRecordIdForMySQLArchiveRecordRowsBeingProcessed + " - " + (startingRecordIdForMySQLArchiveRecordRowsBeingProcessed+HrwaManager.mySQLToSolrRowRetrievalSize-1) + ") COMPLETE!", true, HrwaManager.LOG_TYPE_STANDARD);
+		HrwaManager.writeToLog("Thread " + this.getUniqueRunnableId() + ": Processing of results from MySQL query batch " + mySQLRecordIdRange + " COMPLETE!", true, HrwaManager.LOG_TYPE_STANDARD);
 		
 	}
 	
@@ -139,59 +177,99 @@ public class MySQLArchiveRecordToSolrProcessorRunnable implements Runnable {
 		return this.numArchiveRecordsIndexedIntoSolr;
 	}
 	
-	public void indexArchiveRecordMySQLResultSetToSolr(ResultSet resultSet, long startingRecordIdForMySQLArchiveRecordRowsBeingProcessed) throws SQLException {
+	public void indexArchiveRecordMySQLResultSetToSolr(StreamingResultSetIterator rowIterator, MySQLRecordIdRange mySQLRecordIdRange) throws SQLException, InterruptedException {
 		
-		ModifiableSolrParams modifiableSolrParams;
+		ArrayList<SolrInputDocument> solrInputDocumentBatch = new ArrayList<SolrInputDocument>(HrwaManager.solrDocumentBatchSize);
+		long solrInputDocumentBatchMemoryBudgetWeight = 0;
+		//Batches that were handed to ASFSolrIndexer.addDocumentsToSolr() stay on the heap in its queue until they've been sent,
+		//so their weight is only released after ASFSolrIndexer.waitForQueuedDocumentsToBeSent()
+		long queuedDocumentsMemoryBudgetWeight = 0;
 		
-		while (resultSet.next()) {
+		try {
+			while (rowIterator.hasNext()) {
+				ResultSet resultSet = rowIterator.next();
+				long estimatedHeapBytes = estimateHeapBytesNeededToIndexRecord(resultSet);
 				
-				ASFSolrIndexer.indexDocAndExtractMetadataToSolr(resultSet);
+				if(ASFSolrIndexer.isLocalExtractionMode()) {
+					long memoryBudgetWeight = sharedReferenceToMemoryBudget.tryAcquire(estimatedHeapBytes);
+					if(memoryBudgetWeight < 0) {
+						//Send the documents that we're holding before we wait, so that a thread that's waiting for memory never holds any.
+						//Otherwise, every thread could end up waiting for memory that's held by the others.
+						if( ! solrInputDocumentBatch.isEmpty() ) {
+							ASFSolrIndexer.addDocumentsToSolr(solrInputDocumentBatch);
+							solrInputDocumentBatch = new ArrayList<SolrInputDocument>(HrwaManager.solrDocumentBatchSize);
+							queuedDocumentsMemoryBudgetWeight += solrInputDocumentBatchMemoryBudgetWeight;
+							solrInputDocumentBatchMemoryBudgetWeight = 0;
+						}
+						if(queuedDocumentsMemoryBudgetWeight > 0) {
+							ASFSolrIndexer.waitForQueuedDocumentsToBeSent();
+							sharedReferenceToMemoryBudget.release(queuedDocumentsMemoryBudgetWeight);
+							queuedDocumentsMemoryBudgetWeight = 0;
+						}
+						memoryBudgetWeight = sharedReferenceToMemoryBudget.acquire(estimatedHeapBytes);
+					}
+					
+					SolrInputDocument solrInputDocument = null;
+					try {
+						solrInputDocument = ASFSolrIndexer.createSolrInputDocumentWithLocalExtraction(resultSet, languageDetector);
+					} finally {
+						if(solrInputDocument != null) {
+							solrInputDocumentBatch.add(solrInputDocument);
+							solrInputDocumentBatchMemoryBudgetWeight += memoryBudgetWeight;
+						} else {
+							sharedReferenceToMemoryBudget.release(memoryBudgetWeight);
+						}
+					}
+					
+					if(solrInputDocumentBatch.size() >= HrwaManager.solrDocumentBatchSize) {
+						ASFSolrIndexer.addDocumentsToSolr(solrInputDocumentBatch);
+						solrInputDocumentBatch = new ArrayList<SolrInputDocument>(HrwaManager.solrDocumentBatchSize);
+						queuedDocumentsMemoryBudgetWeight += solrInputDocumentBatchMemoryBudgetWeight;
+						solrInputDocumentBatchMemoryBudgetWeight = 0;
+					}
+				} else {
+					long memoryBudgetWeight = sharedReferenceToMemoryBudget.acquire(estimatedHeapBytes);
+					try {
+						ASFSolrIndexer.indexDocAndExtractMetadataToSolr(resultSet);
+					} finally {
+						sharedReferenceToMemoryBudget.release(memoryBudgetWeight);
+					}
+				}
 				
 				numArchiveRecordsIndexedIntoSolr++;
 				
 				if(HrwaManager.verbose) {
 					System.out.println("Thread " + this.getUniqueRunnableId() + ": Num records indexed into Solr: " + numArchiveRecordsIndexedIntoSolr);
 				}
+				
+			}
 			
+			if( ! solrInputDocumentBatch.isEmpty() ) {
+				ASFSolrIndexer.addDocumentsToSolr(solrInputDocumentBatch);
+				queuedDocumentsMemoryBudgetWeight += solrInputDocumentBatchMemoryBudgetWeight;
+				solrInputDocumentBatchMemoryBudgetWeight = 0;
+			}
+		} finally {
+			//Don't hold on to any weight between id ranges, since this thread may sit idle until the next one comes along
+			if(queuedDocumentsMemoryBudgetWeight > 0) {
+				ASFSolrIndexer.waitForQueuedDocumentsToBeSent();
+			}
+			sharedReferenceToMemoryBudget.release(solrInputDocumentBatchMemoryBudgetWeight + queuedDocumentsMemoryBudgetWeight);
 		}
 		
 		System.gc(); //Must garbage collect to make sure that closing file handles close themselves quickly enough.
 		
 		HrwaManager.writeToLog(HrwaManager.getCurrentAppMemoryUsageMessage(), true, HrwaManager.LOG_TYPE_MEMORY);
-		
-		if(ASFSolrIndexer.commit()) {
-			// // If everything committed successfully, mark this set of MySQL
-			// records as having been updated (i.e. set hrwa_manager_todo to
-			// NULL for these rows)
-			
-			try {
-				Connection conn = MySQLHelper.getNewDBConnection(true);
-				
-				String query = "UPDATE " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + 
-						" INNER JOIN " + HrwaManager.MYSQL_SITES_TABLE_NAME + " ON " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".site_id = " + HrwaManager.MYSQL_SITES_TABLE_NAME + ".id " +
-						" INNER JOIN " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + " ON " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".mimetype_detected =  " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + ".mimetype_detected" +
-						" SET " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + "." + MySQLHelper.HRWA_MANAGER_TODO_FIELD_NAME + " = NULL" + 
-						" WHERE" +
-						" " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".id >= " + startingRecordIdForMySQLArchiveRecordRowsBeingProcessed +
-						" AND " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".id < " + (startingRecordIdForMySQLArchiveRecordRowsBeingProcessed + HrwaManager.mySQLToSolrRowRetrievalSize) +
-						" AND " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + "." + MySQLHelper.HRWA_MANAGER_TODO_FIELD_NAME + " = '" + MySQLHelper.HRWA_MANAGER_TODO_UPDATED + "'"; 
-				
-				System.out.println(query);
-				
-				PreparedStatement pstmt1 = conn.prepareStatement(query);
-				
-				pstmt1.execute();
-				
-				pstmt1.close();
-				//conn.commit(); No need to call commit because auto-commit == true
-		        conn.close();
-	        
-			} catch (SQLException e) {
-				HrwaManager.writeToLog("An error occurred while attempting to reset the values of recently UPDATED mysql rows in the web archive recods table. Query batch: (" + startingRecordIdForMySQLArchiveRecordRowsBeingProcessed + " - " + (startingRecordIdForMySQLArchiveRecordRowsBeingProcessed+HrwaManager.mySQLToSolrRowRetrievalSize-1) + ")", true, HrwaManager.LOG_TYPE_ERROR);
-				e.printStackTrace();
-				System.exit(0);
-			}
+	}
+	
+	/**
+	 * Returns the number of bytes that processing the given web archive record row is expected to hold on the heap.
+	 */
+	private static long estimateHeapBytesNeededToIndexRecord(ResultSet resultSet) throws SQLException {
+		if(ASFSolrIndexer.isLocalExtractionMode()) {
+			return HEAP_BYTES_PER_RECORD_OVERHEAD + (resultSet.getLong("length") * LOCAL_EXTRACTION_HEAP_BYTES_PER_RECORD_BYTE);
 		}
+		return HEAP_BYTES_PER_RECORD_OVERHEAD;
 	}
 	
 }
@@ -7,25 +7,39 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.ConcurrentUpdateSolrServer;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.client.solrj.request.ContentStreamUpdateRequest;
 import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.SolrPingResponse;
 import org.apache.solr.client.solrj.response.UpdateResponse;
 import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.client.solrj.util.ClientUtils;
 
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.util.ContentStream;
 import org.apache.solr.handler.extraction.ExtractingParams;
 import org.apache.solr.request.SolrRequestInfo;
 
 import edu.columbia.ldpd.hrwa.HrwaManager;
+import edu.columbia.ldpd.hrwa.LanguageDetector;
+import edu.columbia.ldpd.hrwa.blobstore.BlobStore;
 
 /**
  * It is very important that this class is entirely static. We do not want more
@@ -42,8 +56,35 @@ import edu.columbia.ldpd.hrwa.HrwaManager;
  */
 public class ASFSolrIndexer {
 	
+	public static final String SOLR_EXTRACTION_MODE_SERVER = "server";
+	public static final String SOLR_EXTRACTION_MODE_LOCAL = "local";
+	
+	//Number of ids per deleteById request, and number of field values per delete-by-query request (kept well below Solr's default maxBooleanClauses of 1024)
+	public static final int SOLR_DELETE_BY_ID_CHUNK_SIZE = 1000;
+	public static final int SOLR_DELETE_BY_QUERY_CHUNK_SIZE = 100;
+	
+	//Results of sendAtomicUpdates()
+	public static final int ATOMIC_UPDATE_SENT = 0;
+	public static final int ATOMIC_UPDATE_VERSION_CONFLICT = 1;
+	public static final int ATOMIC_UPDATE_FAILED = 2;
+	
 	private static HttpSolrServer asfSolrServer;
 	
+	//Only used in local extraction mode.  Sends queued documents to Solr on background threads.
+	private static ConcurrentUpdateSolrServer asfConcurrentUpdateSolrServer;
+	private static final AtomicLong numberOfFailedBackgroundUpdates = new AtomicLong(0);
+	
+	//Null when the extracted text cache is disabled
+	private static ExtractedTextCache extractedTextCache;
+	
+	public static boolean isValidSolrExtractionMode(String solrExtractionMode) {
+		return SOLR_EXTRACTION_MODE_SERVER.equals(solrExtractionMode) || SOLR_EXTRACTION_MODE_LOCAL.equals(solrExtractionMode);
+	}
+	
+	public static boolean isLocalExtractionMode() {
+		return SOLR_EXTRACTION_MODE_LOCAL.equals(HrwaManager.solrExtractionMode);
+	}
+	
 	/* HttpSolrServer preferences*/
 	public static void initSingleSolrServerObject() {
 		asfSolrServer = new HttpSolrServer( HrwaManager.asfSolrUrl );
@@ -52,6 +93,21 @@ public class ASFSolrIndexer {
 		asfSolrServer.setDefaultMaxConnectionsPerHost(HrwaManager.maxUsableProcessors);
 		asfSolrServer.setMaxTotalConnections(HrwaManager.maxUsableProcessors);
 		
+		if(isLocalExtractionMode()) {
+			//Room for two batches per indexing thread before the indexing threads have to wait for the background senders
+			asfConcurrentUpdateSolrServer = new ConcurrentUpdateSolrServer( HrwaManager.asfSolrUrl, HrwaManager.maxUsableProcessors * 2, HrwaManager.maxUsableProcessors ) {
+				public void handleError(Throwable ex) {
+					numberOfFailedBackgroundUpdates.incrementAndGet();
+					HrwaManager.writeToLog("Error: An exception was encountered while sending a batch of documents to the ASF Solr server in the background.\n" + ex.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+				}
+			};
+		}
+		
+		if(HrwaManager.extractedTextCacheSizeInMegabytes > 0) {
+			extractedTextCache = new ExtractedTextCache(new File(ExtractedTextCache.getCacheDirPath()), HrwaManager.extractedTextCacheSizeInMegabytes * 1024L * 1024L);
+			HrwaManager.writeToLog(extractedTextCache.getStatisticsMessage(), true, HrwaManager.LOG_TYPE_STANDARD);
+		}
+		
 		performTestSolrServerPing(); //Make sure that we can connect to Solr.
 	}
 	
@@ -69,64 +125,59 @@ public class ASFSolrIndexer {
 	}
 	
 	/**
-	 * Immediately commits the given batch of documents to Solr
-	 * @param docBatch
-	 * @throws IOException 
-	 * @throws SolrServerException 
+	 * Sends the blob for the given web archive record row to the Solr Cell extracting request handler,
+	 * along with the row's metadata (as literal params).
+	 * @param resultSet
 	 * @throws SQLException 
 	 */
 	public static void indexDocAndExtractMetadataToSolr(ResultSet resultSet) throws SQLException {
 				
-		String recordDate = resultSet.getString( "record_date" );
 		String mimetypeDetected   = resultSet.getString( "mimetype_detected" );
 		
-		
-		String blobPath = resultSet.getString( "blob_path" );
+		String blobPath = getBlobPathIfBlobExists(resultSet);
 		if(blobPath == null) {
-			HrwaManager.writeToLog("Web archive record field `blob_path` was NULL for the row with id:" + resultSet.getLong("id") + ". Either this indicates a problem, or this row wasn't originally meant to be indexed into Solr. Are we ignoring it because we only want records with a status code of 200 (success)? Actual status code for this record: " + resultSet.getString("status_code"), true, HrwaManager.LOG_TYPE_ERROR);
 			return;
 		}
 		
-		File blobFile = new File(blobPath);
-		
-		// Early exit if we can't find the blob file
-		if ( ! blobFile.exists() ) {
-			HrwaManager.writeToLog("Unable to index solr record because an expected blob file could not be found at: " + blobFile.getPath() , true, HrwaManager.LOG_TYPE_ERROR);
-			return;
+		//Solr Cell doesn't give us the text that it extracts, so the cache is only filled in local extraction mode (or by the
+		//RebuildExtractedTextCacheTask), but cached text saves Solr Cell from having to extract it again.  Cache entries hold
+		//the metadata fields that Solr Cell would have mapped (see LocalContentExtractor), so the document comes out the same.
+		if(extractedTextCache != null) {
+			ExtractedText extractedText = extractedTextCache.get(resultSet.getString( "digest" ), mimetypeDetected);
+			if(extractedText != null) {
+				SolrInputDocument solrInputDocument = createMetadataSolrInputDocument(resultSet);
+				extractedText.addToSolrInputDocument(solrInputDocument);
+				try {
+					if(HrwaManager.solrCommitWithinMs > 0) {
+						asfSolrServer.add(solrInputDocument, HrwaManager.solrCommitWithinMs);
+					} else {
+						asfSolrServer.add(solrInputDocument);
+					}
+				} catch (SolrServerException e) {
+					HrwaManager.writeToLog("Error: SolrServerException encountered while attempting to index a document with cached text to the ASF Solr server.  Archive record table row id: " + resultSet.getInt("id") + "\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+					e.printStackTrace();
+				} catch (IOException e) {
+					HrwaManager.writeToLog("Error: IOException encountered while attempting to index a document with cached text to the ASF Solr server.  Archive record table row id: " + resultSet.getInt("id") + "\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+					e.printStackTrace();
+				}
+				return;
+			}
 		}
 				
 		//We need to use a ContentStreamUpdateRequest so that we can use the extracting request handler
 		ContentStreamUpdateRequest updateRequest = new ContentStreamUpdateRequest("/update/extract");
 		try {
-			updateRequest.addFile(blobFile, mimetypeDetected);
+			updateRequest.addContentStream(new BlobContentStream(blobPath, mimetypeDetected));
 			
 			ModifiableSolrParams modifiableSolrParams = new ModifiableSolrParams();
 			
-			//Single-valued Solr fields
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "archived_url", 			resultSet.getString( "archived_url" ));
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "date_of_capture_yyyy", 	recordDate.substring( 0, 4 ));
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "date_of_capture_yyyymm", 	recordDate.substring( 0, 6 ));
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "date_of_capture_yyyymmdd",	recordDate.substring( 0, 8 ));
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "digest", 					resultSet.getString( "digest" ));
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "filename", 				resultSet.getString( "archive_file" ));
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "length", 					resultSet.getString( "length" ));
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "original_url", 			resultSet.getString( "url" ));
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "mimetype", 				mimetypeDetected);
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "mimetype_code", 			resultSet.getString( "mimetype_code" ));
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "reader_identifier",		resultSet.getString( "reader_identifier" ));
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "record_date", 				resultSet.getString( "record_date" ));
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "record_identifier", 		resultSet.getString( "record_identifier" ));
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "status_code", 				resultSet.getString( "status_code" ));
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "bib_key", 					resultSet.getString( "bib_key" ));
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "domain", 					resultSet.getString( "hoststring" ));
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "organization_type", 		resultSet.getString( "organization_type" ));
-			modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + "organization_based_in", 	resultSet.getString( "organization_based_in" ));			
-			
-			//Multi-valued Solr fields
-			addMultivaluedLiteralParams(modifiableSolrParams, "creator_name", resultSet.getString( "creator_name" ));
-			addMultivaluedLiteralParams(modifiableSolrParams, "geographic_focus", resultSet.getString( "geographic_focus" ));
-			addMultivaluedLiteralParams(modifiableSolrParams, "language", resultSet.getString( "language" ));
-			addMultivaluedLiteralParams(modifiableSolrParams, "website_original_urls", resultSet.getString( "original_urls" ));
+			//Every metadata field is sent as a literal (multi-valued fields as multiple literals)
+			SolrInputDocument metadataDocument = createMetadataSolrInputDocument(resultSet);
+			for(String solrFieldName : metadataDocument.getFieldNames()) {
+				for(Object value : metadataDocument.getFieldValues(solrFieldName)) {
+					modifiableSolrParams.add(ExtractingParams.LITERALS_PREFIX + solrFieldName, value.toString());
+				}
+			}
 			
 			//"contents" field comes from extracting request handler (Solr Cell)
 			
@@ -145,23 +196,26 @@ public class ASFSolrIndexer {
 			
 			updateRequest.setParams(modifiableSolrParams);
 			//updateRequest.setAction(AbstractUpdateRequest.ACTION.COMMIT, true, true);
+			if(HrwaManager.solrCommitWithinMs > 0) {
+				updateRequest.setCommitWithin(HrwaManager.solrCommitWithinMs);
+			}
 			
 			try {
 				if(asfSolrServer.request(updateRequest) == null) {
-					HrwaManager.writeToLog("Error: Could not upload file to solr: " + blobFile.getPath(), true, HrwaManager.LOG_TYPE_ERROR);
+					HrwaManager.writeToLog("Error: Could not upload file to solr: " + blobPath, true, HrwaManager.LOG_TYPE_ERROR);
 				}
 			} catch (SolrServerException e) {
 				e.printStackTrace();
 				HrwaManager.writeToLog("Error: SolrServerException encountered while attempting to index a document to the ASF Solr server.  Archive record table row id: " + resultSet.getInt("id") + "\n" +
 				e.getMessage() + "\n" +
-				"Problematic file: " + blobFile
+				"Problematic file: " + blobPath
 				, true, HrwaManager.LOG_TYPE_ERROR);
 			}
 			
 		} catch (IOException e1) {
-			HrwaManager.writeToLog("An error occurred while trying to send a file to Solr for content extraction: " + blobFile.getPath() + "\n" +
+			HrwaManager.writeToLog("An error occurred while trying to send a file to Solr for content extraction: " + blobPath + "\n" +
 			e1.getMessage() + "\n" +
-			"Problematic file: " + blobFile, true, HrwaManager.LOG_TYPE_ERROR);
+			"Problematic file: " + blobPath, true, HrwaManager.LOG_TYPE_ERROR);
 			e1.printStackTrace();
 		} catch (Exception e2) {
 			HrwaManager.writeToLog("Error: Unknown Exception encountered while attempting to index a document to the ASF Solr server.  Archive record table row id: " + resultSet.getInt("id") + "\n" +
@@ -184,14 +238,240 @@ public class ASFSolrIndexer {
 		}
 	}
 	
-	public static void addMultivaluedLiteralParams(ModifiableSolrParams modifiableSolrParams, String solrFieldName, String multivaluedString) {
+	/**
+	 * Runs content extraction locally (see LocalContentExtractor) and returns a complete SolrInputDocument
+	 * for the given web archive record row, or null if the row can't be indexed.  The returned document
+	 * can be sent to Solr with addDocumentsToSolr().  If the extracted text cache is enabled, payloads that
+	 * were already extracted once are read from the cache instead.
+	 * If the row has no language_detected value (e.g. a PDF, whose language can't be detected at ingest time) and a
+	 * languageDetector is given, the language is detected from the extracted text.
+	 * @param resultSet
+	 * @param languageDetector Can be null.  Must not be shared with other threads.
+	 * @return
+	 * @throws SQLException
+	 */
+	public static SolrInputDocument createSolrInputDocumentWithLocalExtraction(ResultSet resultSet, LanguageDetector languageDetector) throws SQLException {
+		
+		String blobPath = getBlobPathIfBlobExists(resultSet);
+		if(blobPath == null) {
+			return null;
+		}
+		
+		SolrInputDocument solrInputDocument = createMetadataSolrInputDocument(resultSet);
+		try {
+			String digest = resultSet.getString( "digest" );
+			String mimetypeDetected = resultSet.getString( "mimetype_detected" );
+			
+			ExtractedText extractedText = extractedTextCache == null ? null : extractedTextCache.get(digest, mimetypeDetected);
+			if(extractedText == null) {
+				extractedText = LocalContentExtractor.extractContent(blobPath, mimetypeDetected);
+				if(extractedTextCache != null) {
+					extractedTextCache.put(digest, mimetypeDetected, extractedText);
+				}
+			}
+			extractedText.addToSolrInputDocument(solrInputDocument);
+			
+			if(languageDetector != null && solrInputDocument.getFieldValue("language_detected") == null) {
+				addFieldIfNotNull(solrInputDocument, "language_detected", languageDetector.getLanguageCode(extractedText.getContents()));
+			}
+		} catch (Exception e) {
+			HrwaManager.writeToLog("An error occurred while extracting content locally.  Archive record table row id: " + resultSet.getInt("id") + "\n" +
+			e.getMessage() + "\n" +
+			"Problematic file: " + blobPath, true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+			return null;
+		}
+		
+		return solrInputDocument;
+	}
+	
+	/**
+	 * Queues the given documents for sending to Solr.  Documents are sent in the background by the
+	 * ConcurrentUpdateSolrServer, so send failures are only reported through getNumberOfFailedBackgroundUpdates().
+	 */
+	public static void addDocumentsToSolr(Collection<SolrInputDocument> solrInputDocuments) {
+		try {
+			if(HrwaManager.solrCommitWithinMs > 0) {
+				asfConcurrentUpdateSolrServer.add(solrInputDocuments, HrwaManager.solrCommitWithinMs);
+			} else {
+				asfConcurrentUpdateSolrServer.add(solrInputDocuments);
+			}
+		} catch (SolrServerException e) {
+			numberOfFailedBackgroundUpdates.incrementAndGet();
+			HrwaManager.writeToLog("Error: SolrServerException encountered while attempting to queue a batch of " + solrInputDocuments.size() + " documents for the ASF Solr server.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+		} catch (IOException e) {
+			numberOfFailedBackgroundUpdates.incrementAndGet();
+			HrwaManager.writeToLog("Error: IOException encountered while attempting to queue a batch of " + solrInputDocuments.size() + " documents for the ASF Solr server.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Waits until every document that was queued with addDocumentsToSolr() has been sent to Solr (or has failed to send),
+	 * so that the queue no longer holds on to them.  Documents that other threads queue in the meantime wait until this returns.
+	 */
+	public static void waitForQueuedDocumentsToBeSent() {
+		if(asfConcurrentUpdateSolrServer != null) {
+			asfConcurrentUpdateSolrServer.blockUntilFinished();
+		}
+	}
+	
+	public static long getNumberOfFailedBackgroundUpdates() {
+		return numberOfFailedBackgroundUpdates.get();
+	}
+	
+	/**
+	 * Returns the record's blob_path, or null (after logging the problem) if the record doesn't have a blob that we can index.
+	 */
+	private static String getBlobPathIfBlobExists(ResultSet resultSet) throws SQLException {
+		
+		String blobPath = resultSet.getString( "blob_path" );
+		if(blobPath == null) {
+			HrwaManager.writeToLog("Web archive record field `blob_path` was NULL for the row with id:" + resultSet.getLong("id") + ". Either this indicates a problem, or this row wasn't originally meant to be indexed into Solr. Are we ignoring it because we only want records with a status code of 200 (success)? Actual status code for this record: " + resultSet.getString("status_code"), true, HrwaManager.LOG_TYPE_ERROR);
+			return null;
+		}
+		
+		// Early exit if we can't find the blob
+		if ( ! BlobStore.blobExists(blobPath) ) {
+			HrwaManager.writeToLog("Unable to index solr record because an expected blob could not be found at: " + blobPath , true, HrwaManager.LOG_TYPE_ERROR);
+			return null;
+		}
+		
+		return blobPath;
+	}
+	
+	/**
+	 * Creates a SolrInputDocument holding all of the metadata fields for the given web archive record row
+	 * (i.e. everything except for the extracted content).
+	 */
+	public static SolrInputDocument createMetadataSolrInputDocument(ResultSet resultSet) throws SQLException {
+		
+		String recordDate = resultSet.getString( "record_date" );
+		SolrInputDocument solrInputDocument = new SolrInputDocument();
+		
+		//Single-valued Solr fields
+		addFieldIfNotNull(solrInputDocument, "archived_url", 				resultSet.getString( "archived_url" ));
+		addFieldIfNotNull(solrInputDocument, "date_of_capture_yyyy", 		recordDate.substring( 0, 4 ));
+		addFieldIfNotNull(solrInputDocument, "date_of_capture_yyyymm", 	recordDate.substring( 0, 6 ));
+		addFieldIfNotNull(solrInputDocument, "date_of_capture_yyyymmdd",	recordDate.substring( 0, 8 ));
+		addFieldIfNotNull(solrInputDocument, "digest", 					resultSet.getString( "digest" ));
+		addFieldIfNotNull(solrInputDocument, "filename", 					resultSet.getString( "archive_file" ));
+		addFieldIfNotNull(solrInputDocument, "length", 					resultSet.getString( "length" ));
+		addFieldIfNotNull(solrInputDocument, "original_url", 				resultSet.getString( "url" ));
+		addFieldIfNotNull(solrInputDocument, "mimetype", 					resultSet.getString( "mimetype_detected" ));
+		addFieldIfNotNull(solrInputDocument, "mimetype_code", 				resultSet.getString( "mimetype_code" ));
+		addFieldIfNotNull(solrInputDocument, "reader_identifier",			resultSet.getString( "reader_identifier" ));
+		addFieldIfNotNull(solrInputDocument, "record_date", 				recordDate);
+		addFieldIfNotNull(solrInputDocument, "record_identifier", 			resultSet.getString( "record_identifier" ));
+		addFieldIfNotNull(solrInputDocument, "status_code", 				resultSet.getString( "status_code" ));
+		addFieldIfNotNull(solrInputDocument, "language_detected", 			resultSet.getString( "language_detected" ));
+		addFieldIfNotNull(solrInputDocument, "bib_key", 					resultSet.getString( "bib_key" ));
+		addFieldIfNotNull(solrInputDocument, "domain", 					resultSet.getString( "hoststring" ));
+		addFieldIfNotNull(solrInputDocument, "organization_type", 			resultSet.getString( "organization_type" ));
+		addFieldIfNotNull(solrInputDocument, "organization_based_in", 		resultSet.getString( "organization_based_in" ));
+		
+		//Multi-valued Solr fields
+		addMultivaluedFields(solrInputDocument, "creator_name", resultSet.getString( "creator_name" ));
+		addMultivaluedFields(solrInputDocument, "geographic_focus", resultSet.getString( "geographic_focus" ));
+		addMultivaluedFields(solrInputDocument, "language", resultSet.getString( "language" ));
+		addMultivaluedFields(solrInputDocument, "website_original_urls", resultSet.getString( "original_urls" ));
+		
+		return solrInputDocument;
+	}
+	
+	private static void addFieldIfNotNull(SolrInputDocument solrInputDocument, String solrFieldName, String value) {
+		if(value != null) {
+			solrInputDocument.addField(solrFieldName, value);
+		}
+	}
+	
+	public static void addMultivaluedFields(SolrInputDocument solrInputDocument, String solrFieldName, String multivaluedString) {
+		for ( String value : getMultivaluedFieldValues(multivaluedString) ) {
+			solrInputDocument.addField( solrFieldName, value );
+		}
+	}
+	
+	private static List<String> getMultivaluedFieldValues(String multivaluedString) {
+		if ( null == multivaluedString ) {
+			return Collections.emptyList();
+		}
 		String[] values = StringUtils.split(multivaluedString.substring(1) , HrwaManager.multiValuedFieldMySQLSeparatorPrefixChar);
 		if ( null == values ) {
-			return;
+			return Collections.emptyList();
+		}
+		List<String> valueList = new ArrayList<String>(values.length);
+		Collections.addAll(valueList, values);
+		return valueList;
+	}
+	
+	/**
+	 * Creates an atomic update document that replaces the site metadata fields of an existing Solr document, leaving its
+	 * extracted content alone.  The resultSet row must include the record_identifier and the site fields from the sites table.
+	 * Because _version_ is set to 1, Solr rejects the update (rather than creating a stub document) if the document isn't already in the index.
+	 * Atomic updates only work if every field in the ASF Solr schema is stored, except for copyField destinations (id and
+	 * the *__facet fields), which must not be stored.  Solr fills those again from their (updated) source fields.
+	 */
+	public static SolrInputDocument createSiteMetadataAtomicUpdateDocument(ResultSet resultSet) throws SQLException {
+		
+		SolrInputDocument solrInputDocument = new SolrInputDocument();
+		solrInputDocument.addField("record_identifier", resultSet.getString( "record_identifier" ));
+		solrInputDocument.addField("_version_", 1L);
+		
+		//Single-valued Solr fields
+		addAtomicSetField(solrInputDocument, "bib_key", 					resultSet.getString( "bib_key" ));
+		addAtomicSetField(solrInputDocument, "organization_type", 			resultSet.getString( "organization_type" ));
+		addAtomicSetField(solrInputDocument, "organization_based_in", 		resultSet.getString( "organization_based_in" ));
+		
+		//Multi-valued Solr fields
+		addAtomicSetField(solrInputDocument, "creator_name", getMultivaluedFieldValues(resultSet.getString( "creator_name" )));
+		addAtomicSetField(solrInputDocument, "geographic_focus", getMultivaluedFieldValues(resultSet.getString( "geographic_focus" )));
+		addAtomicSetField(solrInputDocument, "language", getMultivaluedFieldValues(resultSet.getString( "language" )));
+		addAtomicSetField(solrInputDocument, "website_original_urls", getMultivaluedFieldValues(resultSet.getString( "original_urls" )));
+		
+		return solrInputDocument;
+	}
+	
+	/**
+	 * Setting a field to null (or to an empty list) removes it from the document.
+	 */
+	private static void addAtomicSetField(SolrInputDocument solrInputDocument, String solrFieldName, Object value) {
+		if(value instanceof List && ((List<?>)value).isEmpty()) {
+			value = null;
 		}
-		for ( String value : values ) {
-			modifiableSolrParams.add( ExtractingParams.LITERALS_PREFIX + solrFieldName, value );
+		Map<String, Object> setOperation = new HashMap<String, Object>();
+		setOperation.put("set", value);
+		solrInputDocument.addField(solrFieldName, setOperation);
+	}
+	
+	/**
+	 * Sends the given atomic update documents to Solr and waits for the response, so that the caller knows which batches failed.
+	 * Documents are made visible by commitWithin (when enabled) or by the next commit.
+	 * @return ATOMIC_UPDATE_SENT on success, ATOMIC_UPDATE_VERSION_CONFLICT if Solr rejected the batch because one of the documents
+	 * isn't in the index (see the _version_ in createSiteMetadataAtomicUpdateDocument), or ATOMIC_UPDATE_FAILED for any other error
+	 * (e.g. Solr is down or timed out).
+	 */
+	public static int sendAtomicUpdates(Collection<SolrInputDocument> solrInputDocuments) {
+		try {
+			if(HrwaManager.solrCommitWithinMs > 0) {
+				asfSolrServer.add(solrInputDocuments, HrwaManager.solrCommitWithinMs);
+			} else {
+				asfSolrServer.add(solrInputDocuments);
+			}
+			return ATOMIC_UPDATE_SENT;
+		} catch (SolrServerException e) {
+			HrwaManager.writeToLog("Error: SolrServerException encountered while attempting to send a batch of " + solrInputDocuments.size() + " atomic updates to the ASF Solr server.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+		} catch (IOException e) {
+			HrwaManager.writeToLog("Error: IOException encountered while attempting to send a batch of " + solrInputDocuments.size() + " atomic updates to the ASF Solr server.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+		} catch (SolrException e) {
+			if(e.code() == SolrException.ErrorCode.CONFLICT.code) {
+				//Expected for records that were never indexed, so this isn't logged as an error
+				return ATOMIC_UPDATE_VERSION_CONFLICT;
+			}
+			HrwaManager.writeToLog("Error: SolrException encountered while attempting to send a batch of " + solrInputDocuments.size() + " atomic updates to the ASF Solr server.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
 		}
+		
+		return ATOMIC_UPDATE_FAILED;
 	}
 	
 	public static void deleteAsfDocumentByUniqueIdRecordIdentifier(String recordItentifier, boolean commitImmediately) {
@@ -210,13 +490,79 @@ public class ASFSolrIndexer {
 		}
 	}
 	
+	/**
+	 * Deletes the documents with the given record_identifiers (unique ids) without committing.
+	 * See deleteAsfDocumentsByRecordIdentifiers(Iterator) for details.
+	 */
+	public static boolean deleteAsfDocumentsByRecordIdentifiers(Collection<String> recordIdentifiers) {
+		return deleteAsfDocumentsByRecordIdentifiers(recordIdentifiers.iterator());
+	}
+	
+	/**
+	 * Deletes the documents with the given record_identifiers (unique ids) without committing.
+	 * Ids are sent in deleteById requests of SOLR_DELETE_BY_ID_CHUNK_SIZE ids each, and several requests are in flight at once,
+	 * so the iterator can be a stream over millions of ids.  Returns after every request has been answered.
+	 * @param recordIdentifiers
+	 * @return true if every delete request succeeded.
+	 */
+	public static boolean deleteAsfDocumentsByRecordIdentifiers(Iterator<String> recordIdentifiers) {
+		
+		PipelinedDeleteSender pipelinedDeleteSender = new PipelinedDeleteSender();
+		
+		List<String> chunk = new ArrayList<String>(SOLR_DELETE_BY_ID_CHUNK_SIZE);
+		while(recordIdentifiers.hasNext()) {
+			chunk.add(recordIdentifiers.next());
+			if(chunk.size() == SOLR_DELETE_BY_ID_CHUNK_SIZE) {
+				pipelinedDeleteSender.sendDeleteById(chunk);
+				chunk = new ArrayList<String>(SOLR_DELETE_BY_ID_CHUNK_SIZE);
+			}
+		}
+		if(chunk.size() > 0) {
+			pipelinedDeleteSender.sendDeleteById(chunk);
+		}
+		
+		return pipelinedDeleteSender.finish();
+	}
+	
+	/**
+	 * Deletes all documents whose solrFieldName field (e.g. bib_key or domain) has one of the given values, without committing.
+	 * This is much faster than deleting documents one id at a time when a whole site goes away.
+	 * @param solrFieldName
+	 * @param values
+	 * @return true if every delete request succeeded.
+	 */
+	public static boolean deleteAsfDocumentsByFieldValues(String solrFieldName, Collection<String> values) {
+		
+		PipelinedDeleteSender pipelinedDeleteSender = new PipelinedDeleteSender();
+		
+		Iterator<String> valueIterator = values.iterator();
+		while(valueIterator.hasNext()) {
+			StringBuilder query = new StringBuilder(solrFieldName + ":(");
+			for(int i = 0; i < SOLR_DELETE_BY_QUERY_CHUNK_SIZE && valueIterator.hasNext(); i++) {
+				if(i > 0) {
+					query.append(" OR ");
+				}
+				query.append('"').append(ClientUtils.escapeQueryChars(valueIterator.next())).append('"');
+			}
+			query.append(')');
+			pipelinedDeleteSender.sendDeleteByQuery(query.toString());
+		}
+		
+		return pipelinedDeleteSender.finish();
+	}
+	
 	/**
 	 * Returns true on success, false on failure.
 	 * @return
 	 */
 	public static boolean commit() {
 		try {
-			asfSolrServer.commit();
+			if(asfConcurrentUpdateSolrServer != null) {
+				//Blocks until all queued documents have been sent, then commits
+				asfConcurrentUpdateSolrServer.commit();
+			} else {
+				asfSolrServer.commit();
+			}
 			return true;
 		} catch (SolrServerException e) {
 			HrwaManager.writeToLog("Error: SolrServerException encountered while attempting to commit a batch of documents to the ASF Solr server at: " + HrwaManager.asfSolrUrl, true, HrwaManager.LOG_TYPE_ERROR);
@@ -229,13 +575,111 @@ public class ASFSolrIndexer {
 		return false;
 	}
 	
+	/**
+	 * Makes recently added documents searchable without flushing them to stable storage.
+	 * Returns true on success, false on failure.
+	 * @return
+	 */
+	public static boolean softCommit() {
+		try {
+			if(asfConcurrentUpdateSolrServer != null) {
+				asfConcurrentUpdateSolrServer.commit(false, false, true);
+			} else {
+				asfSolrServer.commit(false, false, true);
+			}
+			return true;
+		} catch (SolrServerException e) {
+			HrwaManager.writeToLog("Error: SolrServerException encountered while attempting to soft commit to the ASF Solr server at: " + HrwaManager.asfSolrUrl, true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+		} catch (IOException e) {
+			HrwaManager.writeToLog("Error: IOException encountered while attempting to soft commit to the ASF Solr server at: " + HrwaManager.asfSolrUrl, true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+		}
+		
+		return false;
+	}
+	
 	/**
 	 * Must call this method once we're done with the HttpSolrServer object.
 	 * Closes the single HttpSolrServer connection. 
 	 */
 	public static void shutdownSingleSolrServerObject() {
 		commit();
+		if(extractedTextCache != null) {
+			HrwaManager.writeToLog(extractedTextCache.getStatisticsMessage(), true, HrwaManager.LOG_TYPE_STANDARD);
+			extractedTextCache = null;
+		}
+		if(asfConcurrentUpdateSolrServer != null) {
+			asfConcurrentUpdateSolrServer.shutdown();
+			asfConcurrentUpdateSolrServer = null;
+		}
 		asfSolrServer.shutdown();
 	}
 	
+	/**
+	 * Sends delete requests through the shared HttpSolrServer on a few background threads.
+	 * 
+	 * Delete requests aren't streamed by ConcurrentUpdateSolrServer (SolrJ 4.1 sends them synchronously),
+	 * so we do our own pipelining here.  The work queue is bounded, and the calling thread sends a request
+	 * itself when the queue is full, so a fast producer can't build up an unbounded backlog of ids.
+	 */
+	private static class PipelinedDeleteSender {
+		
+		private final ThreadPoolExecutor threadPoolExecutor;
+		private final AtomicLong numberOfFailedRequests = new AtomicLong(0);
+		
+		public PipelinedDeleteSender() {
+			//One thread per HttpSolrServer connection
+			int numberOfThreads = Math.max(1, HrwaManager.maxUsableProcessors);
+			threadPoolExecutor = new ThreadPoolExecutor(
+				numberOfThreads, numberOfThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(numberOfThreads * 2),
+				new ThreadPoolExecutor.CallerRunsPolicy()
+			);
+		}
+		
+		public void sendDeleteById(final List<String> recordIdentifiers) {
+			threadPoolExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						asfSolrServer.deleteById(recordIdentifiers);
+					} catch (Exception e) {
+						numberOfFailedRequests.incrementAndGet();
+						HrwaManager.writeToLog("Error: " + e.getClass().getSimpleName() + " encountered while attempting to delete " + recordIdentifiers.size() + " ASF records (starting with record_identifier: " + recordIdentifiers.get(0) + ")\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+					}
+				}
+			});
+		}
+		
+		public void sendDeleteByQuery(final String query) {
+			threadPoolExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						asfSolrServer.deleteByQuery(query);
+					} catch (Exception e) {
+						numberOfFailedRequests.incrementAndGet();
+						HrwaManager.writeToLog("Error: " + e.getClass().getSimpleName() + " encountered while attempting to delete ASF records by query: " + query + "\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+					}
+				}
+			});
+		}
+		
+		/**
+		 * Waits for all requests to be answered.
+		 * @return true if every request succeeded.
+		 */
+		public boolean finish() {
+			threadPoolExecutor.shutdown();
+			try {
+				while( ! threadPoolExecutor.awaitTermination(1, TimeUnit.MINUTES) ) {
+					HrwaManager.writeToLog("Still waiting for Solr delete requests to finish...", true, HrwaManager.LOG_TYPE_STANDARD);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return numberOfFailedRequests.get() == 0;
+		}
+	}
+	
 }
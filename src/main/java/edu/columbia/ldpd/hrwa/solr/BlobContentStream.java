@@ -0,0 +1,30 @@
+package edu.columbia.ldpd.hrwa.solr;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.solr.common.util.ContentStreamBase;
+
+import edu.columbia.ldpd.hrwa.blobstore.BlobStore;
+
+/**
+ * ContentStream for a blob in the BlobStore.  Works for both individually stored blob files and
+ * blobs inside of pack files, so the extracting request handler never needs a real File.
+ */
+public class BlobContentStream extends ContentStreamBase {
+
+	private final String blobPath;
+
+	public BlobContentStream(String blobPath, String contentType) {
+		this.blobPath = blobPath;
+		this.name = blobPath;
+		this.sourceInfo = "blob";
+		this.size = Long.valueOf(BlobStore.getBlobLength(blobPath));
+		this.contentType = contentType;
+	}
+
+	public InputStream getStream() throws IOException {
+		return BlobStore.openBlobInputStream(blobPath);
+	}
+
+}
@@ -0,0 +1,63 @@
+package edu.columbia.ldpd.hrwa.solr;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * The Solr fields that content extraction produces for a single payload (see LocalContentExtractor):
+ * the body text ("contents") and the fields that are mapped from the document metadata ("title", "rd_author", etc.).
+ */
+public class ExtractedText {
+
+	public static final String TITLE_FIELD_NAME = "title";
+
+	private final String contents;
+	private final Map<String, List<String>> metadataFields;
+
+	/**
+	 * @param contents The body text.  Never null.
+	 * @param metadataFields Solr field values mapped from the document metadata, by Solr field name.
+	 */
+	public ExtractedText(String contents, Map<String, List<String>> metadataFields) {
+		this.contents = contents;
+		this.metadataFields = Collections.unmodifiableMap(new LinkedHashMap<String, List<String>>(metadataFields));
+	}
+
+	/**
+	 * @param contents The body text.  Never null.
+	 * @param title Can be null.
+	 */
+	public ExtractedText(String contents, String title) {
+		this(contents, title == null ? Collections.<String, List<String>>emptyMap() : Collections.singletonMap(TITLE_FIELD_NAME, Collections.singletonList(title)));
+	}
+
+	public String getContents() {
+		return contents;
+	}
+
+	/**
+	 * Returns the first title value, or null.
+	 */
+	public String getTitle() {
+		List<String> titles = metadataFields.get(TITLE_FIELD_NAME);
+		return titles == null || titles.isEmpty() ? null : titles.get(0);
+	}
+
+	public Map<String, List<String>> getMetadataFields() {
+		return metadataFields;
+	}
+
+	public void addToSolrInputDocument(SolrInputDocument solrInputDocument) {
+		solrInputDocument.addField("contents", contents);
+		for(Map.Entry<String, List<String>> metadataField : metadataFields.entrySet()) {
+			for(String value : metadataField.getValue()) {
+				solrInputDocument.addField(metadataField.getKey(), value);
+			}
+		}
+	}
+
+}
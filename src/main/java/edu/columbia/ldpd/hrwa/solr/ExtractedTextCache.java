@@ -0,0 +1,349 @@
+package edu.columbia.ldpd.hrwa.solr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+
+/**
+ * Keeps the text that was extracted from each payload on local disk, keyed by payload digest, so that re-indexing
+ * a record whose payload was already extracted once (e.g. after a Solr schema change or a Solr server rebuild) only
+ * has to read a small gzipped file instead of running Tika over the whole blob again.
+ *
+ * Each entry is a single gzipped file at &lt;cacheDir&gt;/&lt;first two digest characters&gt;/&lt;digest&gt;.txt.gz, holding the
+ * extracted text along with the Solr fields that were mapped from the Tika metadata (title, rd_author, etc.), so that a
+ * cache hit produces the same document as a fresh extraction.
+ * Entries also record the mimetype that was passed to Tika, since a different mimetype hint can produce different
+ * text.  An entry for the same digest with a different mimetype, or one written in an older format, counts as a miss.
+ *
+ * The cache is bounded by maxSizeInBytes.  Reading an entry refreshes its last modified time, and once the cache
+ * grows past its limit, the least recently used entries are deleted until it's back down to EVICTION_TARGET_RATIO
+ * of the limit.  Entries are written to a temp file first and then renamed, so readers never see a partial entry.
+ * One instance can be shared by all indexing threads.
+ */
+public class ExtractedTextCache {
+
+	public static final String CACHE_DIR_NAME = "extracted_text";
+	public static final String ENTRY_FILE_EXTENSION = ".txt.gz";
+
+	//Bump this whenever the entry format (or the way that text is extracted) changes.  Older entries are then re-extracted.
+	private static final int FORMAT_VERSION = 2;
+
+	private static final double EVICTION_TARGET_RATIO = 0.9;
+
+	//Refreshing the last modified time on every read would turn every cache hit into a write
+	private static final long LAST_USED_TIME_RESOLUTION_IN_MS = 24 * 60 * 60 * 1000L;
+
+	private final File cacheDir;
+	private final long maxSizeInBytes;
+	private final AtomicLong totalSizeInBytes = new AtomicLong(0);
+	private final AtomicBoolean evictionIsRunning = new AtomicBoolean(false);
+
+	private final AtomicLong numberOfHits = new AtomicLong(0);
+	private final AtomicLong numberOfMisses = new AtomicLong(0);
+	private final AtomicLong numberOfEntriesWritten = new AtomicLong(0);
+	private final AtomicLong numberOfEntriesEvicted = new AtomicLong(0);
+
+	/**
+	 * The cache lives alongside the blobs, in &lt;blobdir&gt;/extracted_text
+	 */
+	public static String getCacheDirPath() {
+		return HrwaManager.blobDirPath + File.separator + CACHE_DIR_NAME;
+	}
+
+	/**
+	 * @param cacheDir Created if it doesn't exist yet.
+	 * @param maxSizeInBytes
+	 */
+	public ExtractedTextCache(File cacheDir, long maxSizeInBytes) {
+		if(maxSizeInBytes <= 0) {
+			throw new IllegalArgumentException("An ExtractedTextCache must have a positive maximum size.  Given: " + maxSizeInBytes);
+		}
+		this.cacheDir = cacheDir;
+		this.maxSizeInBytes = maxSizeInBytes;
+
+		cacheDir.mkdirs();
+		for(CacheEntryFile entryFile : listEntryFiles()) {
+			totalSizeInBytes.addAndGet(entryFile.length);
+		}
+	}
+
+	/**
+	 * Returns the cached text for the given payload, or null if it isn't in the cache.
+	 * @param digest Payload digest (e.g. "sha1:PD3SS4WWZVFWTDC63RU2MWX7BVC2Y2VA").  Can be null.
+	 * @param mimetype The mimetype that will be passed to the content extractor.  Can be null.
+	 */
+	public ExtractedText get(String digest, String mimetype) {
+		File entryFile = getEntryFile(digest);
+		if(entryFile == null) {
+			return null;
+		}
+
+		ExtractedText extractedText = null;
+		try {
+			DataInputStream dataInputStream = openEntry(entryFile);
+			try {
+				if(entryHeaderMatches(dataInputStream, mimetype)) {
+					LinkedHashMap<String, List<String>> metadataFields = new LinkedHashMap<String, List<String>>();
+					int numberOfMetadataFields = dataInputStream.readInt();
+					for(int i = 0; i < numberOfMetadataFields; i++) {
+						String solrFieldName = readString(dataInputStream);
+						int numberOfValues = dataInputStream.readInt();
+						ArrayList<String> values = new ArrayList<String>(numberOfValues);
+						for(int j = 0; j < numberOfValues; j++) {
+							values.add(readString(dataInputStream));
+						}
+						metadataFields.put(solrFieldName, values);
+					}
+					String contents = readString(dataInputStream);
+					extractedText = new ExtractedText(contents, metadataFields);
+				}
+			} finally {
+				dataInputStream.close();
+			}
+		} catch (FileNotFoundException e) {
+			//Not cached (or just evicted)
+		} catch (IOException e) {
+			HrwaManager.writeToLog("Error: Could not read extracted text cache entry " + entryFile.getPath() + ". It will be re-extracted.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+		}
+
+		if(extractedText == null) {
+			numberOfMisses.incrementAndGet();
+			return null;
+		}
+
+		numberOfHits.incrementAndGet();
+		long now = System.currentTimeMillis();
+		if(entryFile.lastModified() < now - LAST_USED_TIME_RESOLUTION_IN_MS) {
+			entryFile.setLastModified(now);
+		}
+		return extractedText;
+	}
+
+	/**
+	 * Returns true if there's an up-to-date entry for the given payload, without reading the cached text.
+	 */
+	public boolean contains(String digest, String mimetype) {
+		File entryFile = getEntryFile(digest);
+		if(entryFile == null || ! entryFile.exists()) {
+			return false;
+		}
+
+		try {
+			DataInputStream dataInputStream = openEntry(entryFile);
+			try {
+				return entryHeaderMatches(dataInputStream, mimetype);
+			} finally {
+				dataInputStream.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Stores the text that was extracted for the given payload, replacing any older entry for the same digest.
+	 * Failures are logged, since the text can always be extracted again.
+	 */
+	public void put(String digest, String mimetype, ExtractedText extractedText) {
+		File entryFile = getEntryFile(digest);
+		if(entryFile == null || extractedText == null) {
+			return;
+		}
+
+		entryFile.getParentFile().mkdirs();
+		File tempFile = new File(entryFile.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+		long previousEntrySize = entryFile.length();
+
+		try {
+			DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tempFile))));
+			try {
+				dataOutputStream.writeInt(FORMAT_VERSION);
+				writeString(dataOutputStream, mimetype);
+				dataOutputStream.writeInt(extractedText.getMetadataFields().size());
+				for(Map.Entry<String, List<String>> metadataField : extractedText.getMetadataFields().entrySet()) {
+					writeString(dataOutputStream, metadataField.getKey());
+					dataOutputStream.writeInt(metadataField.getValue().size());
+					for(String value : metadataField.getValue()) {
+						writeString(dataOutputStream, value);
+					}
+				}
+				writeString(dataOutputStream, extractedText.getContents());
+			} finally {
+				dataOutputStream.close();
+			}
+
+			//The previous entry (if any) is replaced
+			if( ! tempFile.renameTo(entryFile) ) {
+				throw new IOException("Could not rename " + tempFile.getPath() + " to " + entryFile.getPath());
+			}
+		} catch (IOException e) {
+			HrwaManager.writeToLog("Error: Could not write extracted text cache entry " + entryFile.getPath() + "\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			tempFile.delete();
+			return;
+		}
+
+		numberOfEntriesWritten.incrementAndGet();
+		if(totalSizeInBytes.addAndGet(entryFile.length() - previousEntrySize) > maxSizeInBytes) {
+			evictLeastRecentlyUsedEntries();
+		}
+	}
+
+	/**
+	 * Deletes the least recently used entries until the cache is back down to EVICTION_TARGET_RATIO of its maximum size.
+	 * If another thread is already evicting, this returns right away.
+	 */
+	public void evictLeastRecentlyUsedEntries() {
+		if( ! evictionIsRunning.compareAndSet(false, true) ) {
+			return;
+		}
+
+		try {
+			ArrayList<CacheEntryFile> entryFiles = listEntryFiles();
+			Collections.sort(entryFiles, new Comparator<CacheEntryFile>() {
+				public int compare(CacheEntryFile entryFile1, CacheEntryFile entryFile2) {
+					return entryFile1.lastModified < entryFile2.lastModified ? -1 : (entryFile1.lastModified == entryFile2.lastModified ? 0 : 1);
+				}
+			});
+
+			//Recount while we're at it, in case entries were changed by someone else
+			long actualTotalSizeInBytes = 0;
+			for(CacheEntryFile entryFile : entryFiles) {
+				actualTotalSizeInBytes += entryFile.length;
+			}
+
+			long targetSizeInBytes = (long)(maxSizeInBytes * EVICTION_TARGET_RATIO);
+			long sizeOfEvictedEntries = 0;
+			for(CacheEntryFile entryFile : entryFiles) {
+				if(actualTotalSizeInBytes - sizeOfEvictedEntries <= targetSizeInBytes) {
+					break;
+				}
+				if(entryFile.file.delete()) {
+					sizeOfEvictedEntries += entryFile.length;
+					numberOfEntriesEvicted.incrementAndGet();
+				}
+			}
+
+			//Entries that were written while we were evicting are already counted in totalSizeInBytes, but not in actualTotalSizeInBytes
+			totalSizeInBytes.addAndGet(-sizeOfEvictedEntries);
+		} finally {
+			evictionIsRunning.set(false);
+		}
+	}
+
+	public long getTotalSizeInBytes() {
+		return totalSizeInBytes.get();
+	}
+
+	public String getStatisticsMessage() {
+		return "Extracted text cache: " + numberOfHits.get() + " hits, " + numberOfMisses.get() + " misses, " +
+			numberOfEntriesWritten.get() + " entries written, " + numberOfEntriesEvicted.get() + " entries evicted (" +
+			HrwaManager.bytesToMegabytes(totalSizeInBytes.get()) + " of " + HrwaManager.bytesToMegabytes(maxSizeInBytes) + " MB used)";
+	}
+
+	/**
+	 * Returns null for a null digest.
+	 */
+	private File getEntryFile(String digest) {
+		if(digest == null) {
+			return null;
+		}
+
+		//Drop the algorithm prefix (e.g. "sha1:") and anything that doesn't belong in a file name
+		String entryName = digest.substring(digest.indexOf(':') + 1).replaceAll("[^A-Za-z0-9]", "");
+		if(entryName.length() < 2) {
+			return null;
+		}
+
+		return new File(cacheDir, entryName.substring(0, 2) + File.separator + entryName + ENTRY_FILE_EXTENSION);
+	}
+
+	private static DataInputStream openEntry(File entryFile) throws IOException {
+		return new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(entryFile))));
+	}
+
+	private static boolean entryHeaderMatches(DataInputStream dataInputStream, String mimetype) throws IOException {
+		if(dataInputStream.readInt() != FORMAT_VERSION) {
+			return false;
+		}
+		String entryMimetype = readString(dataInputStream);
+		return entryMimetype == null ? mimetype == null : entryMimetype.equals(mimetype);
+	}
+
+	/**
+	 * DataOutputStream.writeUTF() is limited to 64 KB, which isn't enough for extracted text
+	 */
+	private static void writeString(DataOutputStream dataOutputStream, String value) throws IOException {
+		if(value == null) {
+			dataOutputStream.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		dataOutputStream.writeInt(bytes.length);
+		dataOutputStream.write(bytes);
+	}
+
+	private static String readString(DataInputStream dataInputStream) throws IOException {
+		int length = dataInputStream.readInt();
+		if(length == -1) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		dataInputStream.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private ArrayList<CacheEntryFile> listEntryFiles() {
+		ArrayList<CacheEntryFile> entryFiles = new ArrayList<CacheEntryFile>();
+		File[] shardDirs = cacheDir.listFiles();
+		if(shardDirs == null) {
+			return entryFiles;
+		}
+		for(File shardDir : shardDirs) {
+			File[] files = shardDir.listFiles();
+			if(files == null) {
+				continue;
+			}
+			for(File file : files) {
+				if(file.getName().endsWith(ENTRY_FILE_EXTENSION)) {
+					entryFiles.add(new CacheEntryFile(file));
+				}
+			}
+		}
+		return entryFiles;
+	}
+
+	/**
+	 * Snapshot of an entry's size and last modified time, so that sorting doesn't stat every file over and over.
+	 */
+	private static class CacheEntryFile {
+
+		private final File file;
+		private final long length;
+		private final long lastModified;
+
+		public CacheEntryFile(File file) {
+			this.file = file;
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+		}
+	}
+
+}
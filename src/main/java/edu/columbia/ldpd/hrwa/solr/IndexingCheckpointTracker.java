@@ -0,0 +1,84 @@
+package edu.columbia.ldpd.hrwa.solr;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import edu.columbia.ldpd.hrwa.mysql.MySQLRecordIdRange;
+
+/**
+ * Keeps track of which id ranges have been indexed into Solr.  Ranges are handed out in id order
+ * but can finish in any order (there are multiple indexing threads), so this class works out the
+ * "acknowledged through" id: every range below it has finished.
+ *
+ * Adjacent successful ranges below the checkpoint are merged, so that their hrwa_manager_todo values
+ * can be reset with as few updates as possible once the documents are durable in Solr.  Failed ranges
+ * still move the checkpoint forward, but they are never handed out for a reset.
+ *
+ * All ranges must be contiguous (each range starts where the previous one ended).
+ */
+public class IndexingCheckpointTracker {
+
+	private long acknowledgedThroughId;
+
+	//Finished ranges that are waiting on an earlier range, keyed by start id
+	private final HashMap<Long, FinishedRange> finishedRangesByStartId = new HashMap<Long, FinishedRange>();
+
+	private final ArrayList<MySQLRecordIdRange> acknowledgedSuccessfulRanges = new ArrayList<MySQLRecordIdRange>();
+
+	/**
+	 * @param firstRangeStartId Start id of the first range that will be handed out.
+	 */
+	public IndexingCheckpointTracker(long firstRangeStartId) {
+		this.acknowledgedThroughId = firstRangeStartId;
+	}
+
+	public synchronized void rangeFinished(MySQLRecordIdRange range, boolean successful) {
+
+		finishedRangesByStartId.put(range.getStartId(), new FinishedRange(range.getEndId(), successful));
+
+		//Move the checkpoint forward through every finished range that it now touches
+		FinishedRange finishedRange;
+		while((finishedRange = finishedRangesByStartId.remove(acknowledgedThroughId)) != null) {
+			long rangeEndId = finishedRange.endId;
+
+			if(finishedRange.successful) {
+				int lastIndex = acknowledgedSuccessfulRanges.size() - 1;
+				if(lastIndex >= 0 && acknowledgedSuccessfulRanges.get(lastIndex).getEndId() == acknowledgedThroughId) {
+					acknowledgedSuccessfulRanges.set(lastIndex, new MySQLRecordIdRange(acknowledgedSuccessfulRanges.get(lastIndex).getStartId(), rangeEndId));
+				} else {
+					acknowledgedSuccessfulRanges.add(new MySQLRecordIdRange(acknowledgedThroughId, rangeEndId));
+				}
+			}
+
+			acknowledgedThroughId = rangeEndId;
+		}
+	}
+
+	/**
+	 * Every id below this one belongs to a range that has finished (successfully or not).
+	 */
+	public synchronized long getAcknowledgedThroughId() {
+		return acknowledgedThroughId;
+	}
+
+	/**
+	 * Returns (and forgets about) the successful ranges below the checkpoint.
+	 */
+	public synchronized List<MySQLRecordIdRange> takeAcknowledgedSuccessfulRanges() {
+		List<MySQLRecordIdRange> ranges = new ArrayList<MySQLRecordIdRange>(acknowledgedSuccessfulRanges);
+		acknowledgedSuccessfulRanges.clear();
+		return ranges;
+	}
+
+	private static class FinishedRange {
+		private final long endId;
+		private final boolean successful;
+
+		private FinishedRange(long endId, boolean successful) {
+			this.endId = endId;
+			this.successful = successful;
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+package edu.columbia.ldpd.hrwa.solr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.DateUtil;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.sax.BodyContentHandler;
+import org.xml.sax.SAXException;
+
+import edu.columbia.ldpd.hrwa.blobstore.BlobStore;
+
+/**
+ * Does the work of the Solr Cell extracting request handler on this machine instead of on the Solr server.
+ *
+ * The body text goes into "contents", and the document metadata is mapped to Solr fields the same way that the
+ * /update/extract handler in solrconf/asf/solr4.2-asf.solrconfig.xml maps it (lowernames, fmap.*, uprefix ignored_),
+ * so both extraction modes produce the same documents.  Metadata that would end up in an ignored_* field is dropped.
+ * AutoDetectParser is thread-safe, so a single instance is shared by all indexing threads.
+ */
+public class LocalContentExtractor {
+
+	private static final AutoDetectParser autoDetectParser = new AutoDetectParser();
+
+	//The fmap.* params of the /update/extract handler (fmap.content is the body text, which is handled separately)
+	private static final Map<String, String> FIELD_NAME_MAPPINGS = new HashMap<String, String>();
+	static {
+		FIELD_NAME_MAPPINGS.put("subject", "rd_subject");
+		FIELD_NAME_MAPPINGS.put("description", "rd_description");
+		FIELD_NAME_MAPPINGS.put("comments", "rd_comments");
+		FIELD_NAME_MAPPINGS.put("author", "rd_author");
+		FIELD_NAME_MAPPINGS.put("keywords", "rd_keywords");
+		FIELD_NAME_MAPPINGS.put("category", "rd_category");
+		FIELD_NAME_MAPPINGS.put("content_type", "rd_content_type");
+		FIELD_NAME_MAPPINGS.put("last_modified", "rd_last_modified");
+		FIELD_NAME_MAPPINGS.put("links", "rd_links");
+	}
+
+	//Schema fields that mapped metadata names can land in.  All of them are multi-valued in the solr4.2 schema.
+	//Any other name isn't in the schema (or is one of our literal fields, which Solr Cell doesn't let metadata override),
+	//so Solr Cell would have prefixed it with ignored_.
+	private static final Set<String> METADATA_FIELD_NAMES = new HashSet<String>(Arrays.asList(
+		ExtractedText.TITLE_FIELD_NAME, "rd_subject", "rd_description", "rd_comments", "rd_author", "rd_keywords", "rd_category",
+		"rd_resourcename", "rd_url", "rd_content_type", "rd_last_modified", "rd_links"
+	));
+
+	private static final Set<String> DATE_FIELD_NAMES = new HashSet<String>(Arrays.asList("rd_last_modified"));
+
+	//DateUtil's defaults plus the date.formats of the /update/extract handler
+	private static final Collection<String> DATE_FORMATS = new ArrayList<String>(DateUtil.DEFAULT_DATE_FORMATS);
+	static {
+		DATE_FORMATS.add("yyyyMMdd");
+	}
+
+	/**
+	 * Extracts the text and metadata fields of the given blob into the given document.
+	 * @param solrInputDocument
+	 * @param blobPath
+	 * @param mimetype Passed to Tika as a hint, just like the stream.type param that we send to Solr Cell.
+	 * @throws IOException
+	 * @throws TikaException
+	 */
+	public static void extractContentIntoSolrInputDocument(SolrInputDocument solrInputDocument, String blobPath, String mimetype) throws IOException, TikaException {
+		extractContent(blobPath, mimetype).addToSolrInputDocument(solrInputDocument);
+	}
+
+	/**
+	 * Extracts the text and metadata fields of the given blob.
+	 * @param blobPath
+	 * @param mimetype Passed to Tika as a hint, just like the stream.type param that we send to Solr Cell.
+	 * @throws IOException
+	 * @throws TikaException
+	 */
+	public static ExtractedText extractContent(String blobPath, String mimetype) throws IOException, TikaException {
+
+		//-1 disables the write limit, same as Solr Cell
+		BodyContentHandler bodyContentHandler = new BodyContentHandler(-1);
+		Metadata metadata = new Metadata();
+		if(mimetype != null) {
+			metadata.set(Metadata.CONTENT_TYPE, mimetype);
+		}
+
+		InputStream blobInputStream = BlobStore.openBlobInputStream(blobPath);
+		try {
+			autoDetectParser.parse(blobInputStream, bodyContentHandler, metadata, new ParseContext());
+		} catch (SAXException e) {
+			throw new TikaException("Could not extract content from blob: " + blobPath, e);
+		} finally {
+			blobInputStream.close();
+		}
+
+		return new ExtractedText(bodyContentHandler.toString(), mapMetadataToSolrFields(metadata));
+	}
+
+	/**
+	 * Maps Tika metadata names to Solr field names like Solr Cell's SolrContentHandler does: every character that isn't
+	 * a letter or digit becomes an underscore, the name is lowercased and then the fmap.* params are applied.
+	 * Date values are normalized to the Solr date format.  Values that can't be parsed as a date are dropped, since
+	 * Solr would reject the whole document because of them.
+	 */
+	static LinkedHashMap<String, List<String>> mapMetadataToSolrFields(Metadata metadata) {
+
+		LinkedHashMap<String, List<String>> metadataFields = new LinkedHashMap<String, List<String>>();
+
+		for(String metadataName : metadata.names()) {
+			String solrFieldName = getMappedFieldName(metadataName);
+			if( ! METADATA_FIELD_NAMES.contains(solrFieldName) ) {
+				continue;
+			}
+
+			for(String value : metadata.getValues(metadataName)) {
+				if(DATE_FIELD_NAMES.contains(solrFieldName)) {
+					try {
+						value = DateUtil.getThreadLocalDateFormat().format(DateUtil.parseDate(value, DATE_FORMATS));
+					} catch (ParseException e) {
+						continue;
+					}
+				}
+
+				List<String> values = metadataFields.get(solrFieldName);
+				if(values == null) {
+					values = new ArrayList<String>();
+					metadataFields.put(solrFieldName, values);
+				}
+				values.add(value);
+			}
+		}
+
+		return metadataFields;
+	}
+
+	private static String getMappedFieldName(String metadataName) {
+		StringBuilder lowerName = new StringBuilder(metadataName.length());
+		for(int i = 0; i < metadataName.length(); i++) {
+			char c = metadataName.charAt(i);
+			lowerName.append(Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : '_');
+		}
+		String mappedFieldName = FIELD_NAME_MAPPINGS.get(lowerName.toString());
+		return mappedFieldName != null ? mappedFieldName : lowerName.toString();
+	}
+
+}
@@ -0,0 +1,127 @@
+package edu.columbia.ldpd.hrwa.solr;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+import edu.columbia.ldpd.hrwa.mysql.MySQLHelper;
+import edu.columbia.ldpd.hrwa.mysql.MySQLRecordIdRange;
+
+/**
+ * Decides when the MySQLArchiveRecordsToSolrTask commits to Solr, and when web archive records get their
+ * hrwa_manager_todo value reset.
+ *
+ * Per-window mode (HrwaManager.solrCommitWithinMs and HrwaManager.solrSoftCommitIntervalMs are both 0):
+ * Every indexing thread does a hard commit after each id range, then resets that range.  This is the
+ * original behavior.
+ *
+ * Deferred mode: Documents are sent with commitWithin and/or made visible by periodic soft commits.
+ * Hard commits only happen every HrwaManager.solrHardCommitIntervalMs (if > 0) and once at the end.
+ * After each hard commit, every successful range below the IndexingCheckpointTracker's
+ * "acknowledged through" id is reset.  Rows are never reset before their documents are durable,
+ * so the final index (and MySQL) state is the same as in per-window mode.
+ */
+public class SolrCommitPolicy {
+
+	private final IndexingCheckpointTracker checkpointTracker;
+	private ScheduledExecutorService commitScheduler = null;
+
+	//If any background update fails between two hard commits, none of the ranges from that period are reset
+	private long numberOfFailedBackgroundUpdatesAtLastHardCommit;
+
+	public SolrCommitPolicy(long firstRangeStartId) {
+		this.checkpointTracker = new IndexingCheckpointTracker(firstRangeStartId);
+		this.numberOfFailedBackgroundUpdatesAtLastHardCommit = ASFSolrIndexer.getNumberOfFailedBackgroundUpdates();
+	}
+
+	public static boolean isDeferredCommitMode() {
+		return HrwaManager.solrCommitWithinMs > 0 || HrwaManager.solrSoftCommitIntervalMs > 0;
+	}
+
+	/**
+	 * Starts the periodic soft/hard commits (deferred mode only).
+	 */
+	public void start() {
+
+		if( ! isDeferredCommitMode() ) {
+			return;
+		}
+
+		commitScheduler = Executors.newSingleThreadScheduledExecutor();
+
+		if(HrwaManager.solrSoftCommitIntervalMs > 0) {
+			commitScheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					ASFSolrIndexer.softCommit();
+				}
+			}, HrwaManager.solrSoftCommitIntervalMs, HrwaManager.solrSoftCommitIntervalMs, TimeUnit.MILLISECONDS);
+		}
+
+		if(HrwaManager.solrHardCommitIntervalMs > 0) {
+			commitScheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					hardCommitAndResetAcknowledgedRanges();
+				}
+			}, HrwaManager.solrHardCommitIntervalMs, HrwaManager.solrHardCommitIntervalMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Called by an indexing thread once it's done with an id range.
+	 * @param range
+	 * @param successful false if the range could not be indexed (its rows will stay UPDATED).
+	 */
+	public void rangeFinished(MySQLRecordIdRange range, boolean successful) {
+
+		checkpointTracker.rangeFinished(range, successful);
+
+		if( ! isDeferredCommitMode() && successful ) {
+			hardCommitAndResetAcknowledgedRanges();
+		}
+	}
+
+	/**
+	 * Stops the periodic commits and does the final hard commit.  Call this once all indexing threads are done.
+	 */
+	public void finish() {
+
+		if(commitScheduler != null) {
+			commitScheduler.shutdown();
+			try {
+				commitScheduler.awaitTermination(5, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+
+		hardCommitAndResetAcknowledgedRanges();
+
+		HrwaManager.writeToLog("Final Solr hard commit done. All web archive record ids below " + checkpointTracker.getAcknowledgedThroughId() + " have been processed.", true, HrwaManager.LOG_TYPE_STANDARD);
+	}
+
+	private synchronized void hardCommitAndResetAcknowledgedRanges() {
+
+		//Take the ranges before committing, so that we only reset ranges whose documents were sent before the commit
+		List<MySQLRecordIdRange> rangesToReset = checkpointTracker.takeAcknowledgedSuccessfulRanges();
+
+		if( ! ASFSolrIndexer.commit() ) {
+			HrwaManager.writeToLog("Solr hard commit failed. The following ranges will stay marked as " + MySQLHelper.HRWA_MANAGER_TODO_UPDATED + ": " + rangesToReset, true, HrwaManager.LOG_TYPE_ERROR);
+			return;
+		}
+
+		long numberOfFailedBackgroundUpdates = ASFSolrIndexer.getNumberOfFailedBackgroundUpdates();
+		if(numberOfFailedBackgroundUpdates != numberOfFailedBackgroundUpdatesAtLastHardCommit) {
+			//Failed background updates aren't tied to a specific range, so to be safe we don't reset anything from this period
+			numberOfFailedBackgroundUpdatesAtLastHardCommit = numberOfFailedBackgroundUpdates;
+			HrwaManager.writeToLog("Some documents could not be sent to Solr since the last hard commit. The following ranges will stay marked as " + MySQLHelper.HRWA_MANAGER_TODO_UPDATED + ": " + rangesToReset, true, HrwaManager.LOG_TYPE_ERROR);
+			return;
+		}
+
+		for(MySQLRecordIdRange range : rangesToReset) {
+			MySQLHelper.resetHrwaManagerTodoForIndexedWebArchiveRecords(range);
+		}
+	}
+
+}
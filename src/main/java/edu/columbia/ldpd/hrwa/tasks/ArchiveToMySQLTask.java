@@ -22,6 +22,8 @@ import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -51,25 +53,100 @@ import com.gargoylesoftware.htmlunit.html.HtmlElement;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
 
 import edu.columbia.ldpd.hrwa.HrwaManager;
+import edu.columbia.ldpd.hrwa.blobstore.BlobStoreLock;
+import edu.columbia.ldpd.hrwa.blobstore.PayloadDigestCache;
+import edu.columbia.ldpd.hrwa.mysql.HoststringResolver;
 import edu.columbia.ldpd.hrwa.mysql.MySQLHelper;
+import edu.columbia.ldpd.hrwa.mysql.MySQLRecordIdRangeQueue;
 import edu.columbia.ldpd.hrwa.processorrunnables.ArchiveFileProcessorRunnable;
+import edu.columbia.ldpd.hrwa.processorrunnables.ArchiveFileWorkQueue;
+import edu.columbia.ldpd.hrwa.processorrunnables.ArchiveRecordDetectorRunnable;
+import edu.columbia.ldpd.hrwa.processorrunnables.ArchiveRecordMaterializationFilter;
+import edu.columbia.ldpd.hrwa.processorrunnables.ArchiveRecordMySQLWriterRunnable;
+import edu.columbia.ldpd.hrwa.processorrunnables.ArchiveRecordWorkItem;
+import edu.columbia.ldpd.hrwa.util.common.MemoryBudget;
 
 public class ArchiveToMySQLTask extends HrwaTask {
 	
 	private String[] validArchiveFileExtensions = {"arc.gz", "warc.gz"};
 	
-	//How many threads will we create?  HrwaManager.maxUsableProcessors
+	//Capacity (per processor) of the bounded queues that connect the pipeline stages.
+	//Items waiting for detection carry up to 64KB of blob content each, so this shouldn't get too big.
+	private static final int RECORD_QUEUE_CAPACITY_PER_PROCESSOR = 250;
+
+	//Records flow through three stages:
+	// 1) HrwaManager.maxUsableProcessors reader threads (decompression + blob writing)
+	// 2) HrwaManager.maxUsableProcessors detector threads (mimetype detection)
+	// 3) One MySQL writer thread (site linking + batched inserts)
 	private ArrayList<ArchiveFileProcessorRunnable> archiveRecordProcessorRunnables;
 	private ArrayList<Future<ArchiveFileProcessorRunnable>> archiveRecordProcessorFutures;
+	private ArrayList<ArchiveRecordDetectorRunnable> archiveRecordDetectorRunnables;
+	private ArrayList<Future<ArchiveRecordDetectorRunnable>> archiveRecordDetectorFutures;
+	private ArchiveRecordMySQLWriterRunnable archiveRecordMySQLWriterRunnable;
+	private Future<ArchiveRecordMySQLWriterRunnable> archiveRecordMySQLWriterFuture;
+	private BlockingQueue<ArchiveRecordWorkItem> recordDetectionQueue;
+	private BlockingQueue<ArchiveRecordWorkItem> recordWriteQueue;
 	private ExecutorService fixedThreadPoolExecutorService;
+	
+	//Heap used by in-flight detection prefixes.  Readers wait on this (instead of polling overall heap usage) when it runs out.
+	private MemoryBudget memoryBudget;
+	
+	//Blobs and detected mimetypes of recently seen payloads, so that unchanged recaptures aren't written and detected again
+	private PayloadDigestCache payloadDigestCache;
+	
+	//Decides which records are written to MySQL without reading their payloads (see HrwaManager.materializationFilterRules)
+	private ArchiveRecordMaterializationFilter materializationFilter;
+	
+	//Only set when this task runs alongside the tasks that feed it and consume its output (see QuarterlyMaintenanceTask)
+	private ArchiveFileWorkQueue openArchiveFileWorkQueue = null;
+	private MySQLRecordIdRangeQueue committedRecordIdRangeQueue = null;
 
 	public ArchiveToMySQLTask() {
+		this(new MemoryBudget(HrwaManager.maxMemoryThresholdInBytesForStartingNewThreadProcesses));
+	}
+	
+	/**
+	 * Creates a task that reads archive files from an open work queue as they arrive, instead of listing the archive file directory
+	 * once, and that adds the ids of the records that it commits to committedRecordIdRangeQueue.  The task ends once the work queue has been closed
+	 * and everything on it has been written.  committedRecordIdRangeQueue is NOT closed by this task.
+	 * @param openArchiveFileWorkQueue
+	 * @param committedRecordIdRangeQueue
+	 * @param memoryBudget
+	 */
+	public ArchiveToMySQLTask(ArchiveFileWorkQueue openArchiveFileWorkQueue, MySQLRecordIdRangeQueue committedRecordIdRangeQueue, MemoryBudget memoryBudget) {
+		this(memoryBudget);
+		this.openArchiveFileWorkQueue = openArchiveFileWorkQueue;
+		this.committedRecordIdRangeQueue = committedRecordIdRangeQueue;
+	}
+	
+	private ArchiveToMySQLTask(MemoryBudget memoryBudget) {
 		archiveRecordProcessorRunnables = new ArrayList<ArchiveFileProcessorRunnable>(HrwaManager.maxUsableProcessors);
 		archiveRecordProcessorFutures = new ArrayList<Future<ArchiveFileProcessorRunnable>>(HrwaManager.maxUsableProcessors);
-		fixedThreadPoolExecutorService = Executors.newFixedThreadPool(HrwaManager.maxUsableProcessors);
+		archiveRecordDetectorRunnables = new ArrayList<ArchiveRecordDetectorRunnable>(HrwaManager.maxUsableProcessors);
+		archiveRecordDetectorFutures = new ArrayList<Future<ArchiveRecordDetectorRunnable>>(HrwaManager.maxUsableProcessors);
+		recordDetectionQueue = new ArrayBlockingQueue<ArchiveRecordWorkItem>(HrwaManager.maxUsableProcessors * RECORD_QUEUE_CAPACITY_PER_PROCESSOR);
+		recordWriteQueue = new ArrayBlockingQueue<ArchiveRecordWorkItem>(HrwaManager.maxUsableProcessors * RECORD_QUEUE_CAPACITY_PER_PROCESSOR);
+		fixedThreadPoolExecutorService = Executors.newFixedThreadPool(getTotalNumberOfPipelineThreads());
+		this.memoryBudget = memoryBudget;
+		payloadDigestCache = new PayloadDigestCache(HrwaManager.payloadDigestCacheSize);
+		materializationFilter = ArchiveRecordMaterializationFilter.parse(HrwaManager.materializationFilterRules);
+	}
+
+	private int getTotalNumberOfPipelineThreads() {
+		return (HrwaManager.maxUsableProcessors * 2) + 1;
 	}
 	
 	public void runTask() {
+		//Readers write blobs, so the CompactBlobStoreTask has to wait until this task is done
+		BlobStoreLock blobStoreLock = acquireBlobStoreLockForWriting();
+		try {
+			indexArchiveFiles();
+		} finally {
+			blobStoreLock.release();
+		}
+	}
+	
+	private void indexArchiveFiles() {
 		
 		writeTaskHeaderMessageAndSetStartTime();
 		
@@ -78,7 +155,7 @@ public class ArchiveToMySQLTask extends HrwaTask {
 		
 		int numberOfArchiveFilesToProcess = listOfArchiveFiles.size();
 		
-		if(numberOfArchiveFilesToProcess < 1) {
+		if(numberOfArchiveFilesToProcess < 1 && openArchiveFileWorkQueue == null) {
 			HrwaManager.writeToLog("No files found for indexing in directory: " + HrwaManager.archiveFileDirPath, true, HrwaManager.LOG_TYPE_ERROR);
 			System.exit(HrwaManager.EXIT_CODE_ERROR);
 		}
@@ -107,28 +184,36 @@ public class ArchiveToMySQLTask extends HrwaTask {
 			HrwaManager.writeToLog("Error: Could not create one of the required MySQL tables.", true, HrwaManager.LOG_TYPE_ERROR);
 		}
 		
-		//Now we'll turn this list into a ConcurrentLinkedQueue<File>.  It's thread-safe!  Nice!  
-		ConcurrentLinkedQueue<File> concurrentLinkedQueueOfArchiveFiles = new ConcurrentLinkedQueue<File>(listOfArchiveFiles);
+		//Records are linked to sites using the sites and related_hosts tables as they are right now
+		HoststringResolver.reloadFromMySQL();
+		
+		ArchiveFileWorkQueue archiveFileWorkQueue;
+		
+		if(openArchiveFileWorkQueue == null) {
+			//Readers run short MySQL queries for every archive file, and the writer thread holds one connection for the whole run
+			MySQLHelper.setConnectionPoolSizeForThreads(HrwaManager.maxUsableProcessors + 1);
+			
+			//Now we'll turn this list into a thread-safe work queue.  Readers will split large files into shards as they go.
+			archiveFileWorkQueue = new ArchiveFileWorkQueue(listOfArchiveFiles);
+		} else {
+			//The pool was sized by whoever created the open queue.  Files that are already on disk go first, and new ones are added as they arrive.
+			archiveFileWorkQueue = openArchiveFileWorkQueue;
+			archiveFileWorkQueue.addFilesWithoutWaiting(listOfArchiveFiles);
+		}
 		
 		
-		initializeArchiveRecordProcessorThreads(concurrentLinkedQueueOfArchiveFiles);
+		initializeArchiveRecordProcessorThreads(archiveFileWorkQueue);
 		
 		
-		//Have this main thread wait around until all processors are done completing all tasks
+		//Have this main thread wait around until all readers are done reading all archive files
 		//Poll the processor every once in a while
 		while(someArchiveRecordProcessorsAreStillRunning()) {
-			
-			try {
-				Thread.sleep(5000);
-			}
-			catch (InterruptedException e) { e.printStackTrace(); }
-			
-			System.out.println("Total number of archive records processed: " + this.getTotalNumberOfRelevantArchiveRecordsProcessedAtThisExactMoment()); //This doesn't need to be logged.
-			System.out.println(HrwaManager.getCurrentAppRunTime()); //This doesn't need to be logged.
-			HrwaManager.writeToLog(HrwaManager.getCurrentAppMemoryUsageMessage(), true, HrwaManager.LOG_TYPE_MEMORY); //This doesn't need to be logged.
-			
+			waitAndPrintProgress();
 		}
 		
+		//All of the reader threads have completed, so we can drain and stop the later stages, in order
+		stopDetectorAndWriterStages();
+		
 		//All of the processor threads have completed!
 		checkForAndLogAnyChildThreadArchiveRecordProcessorsExceptions();
 		
@@ -136,13 +221,59 @@ public class ArchiveToMySQLTask extends HrwaTask {
 		shutDownThreadExecutorService();
 		
 		HrwaManager.writeToLog("Total number of archive records processed: " + this.getTotalNumberOfRelevantArchiveRecordsProcessedAtThisExactMoment(), true, HrwaManager.LOG_TYPE_STANDARD);
+		HrwaManager.writeToLog(memoryBudget.getStatisticsMessage(), true, HrwaManager.LOG_TYPE_STANDARD);
+		HrwaManager.writeToLog(payloadDigestCache.getStatisticsMessage(), true, HrwaManager.LOG_TYPE_STANDARD);
 		System.out.println(HrwaManager.getCurrentAppRunTime()); //This doesn't need to be logged.
 		
 		writeTaskFooterMessageAndPrintTotalTime();
 		
 	}
 	
+	private void waitAndPrintProgress() {
+		try {
+			Thread.sleep(5000);
+		}
+		catch (InterruptedException e) { e.printStackTrace(); }
+		
+		System.out.println("Total number of archive records processed: " + this.getTotalNumberOfRelevantArchiveRecordsProcessedAtThisExactMoment() + " (read: " + this.getTotalNumberOfArchiveRecordsReadAtThisExactMoment() + ", detection queue: " + recordDetectionQueue.size() + ", write queue: " + recordWriteQueue.size() + ")"); //This doesn't need to be logged.
+		System.out.println(HrwaManager.getCurrentAppRunTime()); //This doesn't need to be logged.
+		HrwaManager.writeToLog(HrwaManager.getCurrentAppMemoryUsageMessage(), true, HrwaManager.LOG_TYPE_MEMORY); //This doesn't need to be logged.
+		HrwaManager.writeToLog(memoryBudget.getStatisticsMessage(), true, HrwaManager.LOG_TYPE_MEMORY);
+	}
+	
+	/**
+	 * Sends one poison pill per detector thread, waits for the detectors to drain the detection queue,
+	 * and then does the same for the single writer thread.  Stopping the stages in order guarantees that
+	 * every record that was read makes it into MySQL before the task ends.
+	 */
+	private void stopDetectorAndWriterStages() {
+		try {
+			for(int i = 0; i < archiveRecordDetectorRunnables.size(); i++) {
+				recordDetectionQueue.put(ArchiveRecordWorkItem.POISON_PILL);
+			}
+			while(someArchiveRecordDetectorsAreStillRunning()) {
+				waitAndPrintProgress();
+			}
+			
+			recordWriteQueue.put(ArchiveRecordWorkItem.POISON_PILL);
+			while( ! archiveRecordMySQLWriterFuture.isDone() ) {
+				waitAndPrintProgress();
+			}
+		} catch (InterruptedException e) {
+			HrwaManager.writeToLog("Interrupted while waiting for the detector and writer threads to finish.", true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Returns the number of archive records that have been fully processed (i.e. written to MySQL).
+	 * @return
+	 */
 	public long getTotalNumberOfRelevantArchiveRecordsProcessedAtThisExactMoment() {
+		return archiveRecordMySQLWriterRunnable == null ? 0 : archiveRecordMySQLWriterRunnable.getNumRecordsWritten();
+	}
+	
+	public long getTotalNumberOfArchiveRecordsReadAtThisExactMoment() {
 		
 		long total = 0;
 		
@@ -166,10 +297,26 @@ public class ArchiveToMySQLTask extends HrwaTask {
 			try {
 				archiveRecordProcessorFutures.get(i).get(); //.get() method will throw any uncaught exceptions from this thread
 			} catch (Exception e) {
-				HrwaManager.writeToLog("During the final child thread exception check, an uncaught exception was found on thread " + i + ": " + e.getMessage(),  true, HrwaManager.LOG_TYPE_ERROR);
+				HrwaManager.writeToLog("During the final child thread exception check, an uncaught exception was found on reader thread " + i + ": " + e.getMessage(),  true, HrwaManager.LOG_TYPE_ERROR);
 				e.printStackTrace();
 			}
 		}
+		
+		for(int i = 0; i < archiveRecordDetectorFutures.size(); i++) {
+			try {
+				archiveRecordDetectorFutures.get(i).get();
+			} catch (Exception e) {
+				HrwaManager.writeToLog("During the final child thread exception check, an uncaught exception was found on detector thread " + i + ": " + e.getMessage(),  true, HrwaManager.LOG_TYPE_ERROR);
+				e.printStackTrace();
+			}
+		}
+		
+		try {
+			archiveRecordMySQLWriterFuture.get();
+		} catch (Exception e) {
+			HrwaManager.writeToLog("During the final child thread exception check, an uncaught exception was found on the MySQL writer thread: " + e.getMessage(),  true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+		}
 	}
 	
 	/**
@@ -187,13 +334,38 @@ public class ArchiveToMySQLTask extends HrwaTask {
 		return false;
 	}
 	
-	public void initializeArchiveRecordProcessorThreads(ConcurrentLinkedQueue<File> concurrentLinkedQueueOfArchiveFiles) {
+	/**
+	 * Returns true if at least one of the detectors is still running.
+	 * @return
+	 */
+	public boolean someArchiveRecordDetectorsAreStillRunning() {
+		
+		for(Future<ArchiveRecordDetectorRunnable> singleArchiveRecordDetectorFuture : archiveRecordDetectorFutures) {
+			if( ! singleArchiveRecordDetectorFuture.isDone() ) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public void initializeArchiveRecordProcessorThreads(ArchiveFileWorkQueue archiveFileWorkQueue) {
 		
 		HrwaManager.writeToLog("Starting processor threads...", true, HrwaManager.LOG_TYPE_STANDARD);
 		
+		//Start the later stages first so that they're ready as soon as the readers produce records
+		archiveRecordMySQLWriterRunnable = new ArchiveRecordMySQLWriterRunnable(recordWriteQueue, committedRecordIdRangeQueue);
+		archiveRecordMySQLWriterFuture = (Future<ArchiveRecordMySQLWriterRunnable>)fixedThreadPoolExecutorService.submit(archiveRecordMySQLWriterRunnable);
+		
+		for(int i = 0; i < HrwaManager.maxUsableProcessors; i++) {
+			archiveRecordDetectorRunnables.add(i, new ArchiveRecordDetectorRunnable(i, recordDetectionQueue, recordWriteQueue, memoryBudget, payloadDigestCache));
+			archiveRecordDetectorFutures.add(i, (Future<ArchiveRecordDetectorRunnable>)fixedThreadPoolExecutorService.submit(archiveRecordDetectorRunnables.get(i)));
+		}
+		
 		for(int i = 0; i < HrwaManager.maxUsableProcessors; i++) {
 			//Create thread
-			archiveRecordProcessorRunnables.add(i, new ArchiveFileProcessorRunnable(i, concurrentLinkedQueueOfArchiveFiles));
+			archiveRecordProcessorRunnables.add(i, new ArchiveFileProcessorRunnable(i, archiveFileWorkQueue, recordDetectionQueue, memoryBudget, payloadDigestCache, materializationFilter));
 			
 			//And submit it to the fixedThreadPoolExecutorService so that it will run.
 			//The submit method will return a Future that we can use to check the runnable's
@@ -202,7 +374,7 @@ public class ArchiveToMySQLTask extends HrwaTask {
 			archiveRecordProcessorFutures.add(i, (Future<ArchiveFileProcessorRunnable>)fixedThreadPoolExecutorService.submit(archiveRecordProcessorRunnables.get(i)));
 		}
 		
-		HrwaManager.writeToLog("All " + HrwaManager.maxUsableProcessors + " processors started!", true, HrwaManager.LOG_TYPE_STANDARD);
+		HrwaManager.writeToLog("All " + HrwaManager.maxUsableProcessors + " reader threads, " + HrwaManager.maxUsableProcessors + " detector threads and 1 MySQL writer thread started!", true, HrwaManager.LOG_TYPE_STANDARD);
 	}
 	
 	////////////////////////////////
@@ -285,7 +457,7 @@ public class ArchiveToMySQLTask extends HrwaTask {
 		}
 		fixedThreadPoolExecutorService.shutdownNow();
 		
-		HrwaManager.writeToLog("All " + HrwaManager.maxUsableProcessors + " threads have been shut down.", true, HrwaManager.LOG_TYPE_STANDARD);
+		HrwaManager.writeToLog("All " + getTotalNumberOfPipelineThreads() + " threads have been shut down.", true, HrwaManager.LOG_TYPE_STANDARD);
 	}
 	
 }
@@ -0,0 +1,292 @@
+package edu.columbia.ldpd.hrwa.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+import edu.columbia.ldpd.hrwa.blobstore.BlobLocation;
+import edu.columbia.ldpd.hrwa.blobstore.BlobStore;
+import edu.columbia.ldpd.hrwa.blobstore.BlobStoreLock;
+import edu.columbia.ldpd.hrwa.blobstore.PackedBlobWriter;
+import edu.columbia.ldpd.hrwa.mysql.MySQLHelper;
+import edu.columbia.ldpd.hrwa.mysql.StreamingResultSetIterator;
+
+/**
+ * Reclaims space in the packed blob store.  Pack files are append-only, so when web archive records
+ * are deleted (or re-indexed into new pack files), their old bytes stay behind.  This task:
+ *
+ * 1) Deletes pack files that are no longer referenced by any web_archive_records row.
+ * 2) Rewrites pack files whose live data makes up less than MIN_LIVE_BYTES_RATIO of the file, copying
+ *    only the live blobs into new pack files and pointing blob_path at the new locations.
+ *
+ * Pack files that are still being written look like pack files with no live references, so this task refuses to run
+ * while the ArchiveToMySQLTask or the RegularMaintenanceTask holds the BlobStoreLock.  As an extra safeguard, pack files
+ * that are still open in this process, or that were modified after the live bytes scan started, are left alone.
+ *
+ * Pack files on disk are matched to blob_path values by canonical path, so a -blobdir that is spelled differently from
+ * the one that the blobs were written with (relative vs. absolute, trailing slash, symlinks) still matches.
+ */
+public class CompactBlobStoreTask extends HrwaTask {
+
+	public static final double MIN_LIVE_BYTES_RATIO = 0.5;
+
+	public CompactBlobStoreTask() {
+
+	}
+
+	public void runTask() {
+
+		writeTaskHeaderMessageAndSetStartTime();
+
+		BlobStoreLock blobStoreLock;
+		try {
+			blobStoreLock = BlobStoreLock.tryAcquireForCompaction();
+		} catch (IOException e) {
+			HrwaManager.writeToLog("Error: Could not lock the blob store in " + HrwaManager.blobDirPath + ".\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			System.exit(HrwaManager.EXIT_CODE_ERROR);
+			return;
+		}
+
+		if(blobStoreLock == null) {
+			HrwaManager.writeToLog("Error: Blobs are being written by an ArchiveToMySQLTask or RegularMaintenanceTask right now, so the blob store can't be compacted.  Try again once that task is done.", true, HrwaManager.LOG_TYPE_ERROR);
+			writeTaskFooterMessageAndPrintTotalTime();
+			return;
+		}
+
+		try {
+			compactPackFiles();
+		} finally {
+			blobStoreLock.release();
+		}
+
+		writeTaskFooterMessageAndPrintTotalTime();
+	}
+
+	private void compactPackFiles() {
+
+		File packDir = new File(BlobStore.getPackDirPath());
+		File[] packFiles = packDir.listFiles();
+
+		if(packFiles == null) {
+			HrwaManager.writeToLog("No pack directory found at " + packDir.getPath() + ". There is nothing to compact.", true, HrwaManager.LOG_TYPE_STANDARD);
+			return;
+		}
+
+		Connection conn = MySQLHelper.getNewDBConnection(false);
+
+		try {
+			//Modification times can have a resolution of one second
+			long scanStartTime = (System.currentTimeMillis() / 1000) * 1000;
+			HashMap<String, PackFileUsage> usagePerCanonicalPackFilePath = getUsagePerCanonicalPackFilePath();
+
+			long numPackFilesDeleted = 0;
+			long numPackFilesRewritten = 0;
+			long numBytesReclaimed = 0;
+
+			//Compacted blobs go into new pack files.  These aren't in the packFiles array, so we never revisit them during this run.
+			PackedBlobWriter compactedBlobWriter = new PackedBlobWriter("compacted-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()));
+
+			try {
+				for(File packFile : packFiles) {
+
+					if( ! packFile.getName().endsWith(PackedBlobWriter.PACK_FILE_EXTENSION) ) {
+						continue;
+					}
+
+					if(PackedBlobWriter.isOpenForWriting(packFile) || packFile.lastModified() >= scanStartTime) {
+						HrwaManager.writeToLog("Skipping pack file that is still being written: " + packFile.getPath(), true, HrwaManager.LOG_TYPE_STANDARD);
+						continue;
+					}
+
+					PackFileUsage packFileUsage = usagePerCanonicalPackFilePath.get(packFile.getCanonicalPath());
+					long packFileSize = packFile.length();
+
+					if(packFileUsage == null) {
+						HrwaManager.writeToLog("Deleting unreferenced pack file: " + packFile.getPath() + " (" + HrwaManager.bytesToMegabytes(packFileSize) + " MB)", true, HrwaManager.LOG_TYPE_STANDARD);
+						if( ! HrwaManager.previewMode ) {
+							packFile.delete();
+						}
+						numPackFilesDeleted++;
+						numBytesReclaimed += packFileSize;
+					} else if(packFileUsage.liveBytes < packFileSize * MIN_LIVE_BYTES_RATIO) {
+						HrwaManager.writeToLog("Rewriting pack file: " + packFile.getPath() + " (" + HrwaManager.bytesToMegabytes(packFileUsage.liveBytes) + " of " + HrwaManager.bytesToMegabytes(packFileSize) + " MB still in use)", true, HrwaManager.LOG_TYPE_STANDARD);
+						if( ! HrwaManager.previewMode ) {
+							rewritePackFile(conn, packFile, packFileUsage, compactedBlobWriter);
+						}
+						numPackFilesRewritten++;
+						numBytesReclaimed += packFileSize - packFileUsage.liveBytes;
+					}
+				}
+			} finally {
+				compactedBlobWriter.close();
+			}
+
+			HrwaManager.writeToLog("Done compacting blob store! Pack files deleted: " + numPackFilesDeleted + ", pack files rewritten: " + numPackFilesRewritten + ", space reclaimed: " + HrwaManager.bytesToMegabytes(numBytesReclaimed) + " MB", true, HrwaManager.LOG_TYPE_STANDARD);
+
+			conn.close();
+
+		} catch (SQLException e) {
+			HrwaManager.writeToLog("Error: An SQLException occurred while compacting the blob store.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+			System.exit(HrwaManager.EXIT_CODE_ERROR);
+		} catch (IOException e) {
+			HrwaManager.writeToLog("Error: An IOException occurred while compacting the blob store.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+			System.exit(HrwaManager.EXIT_CODE_ERROR);
+		}
+	}
+
+	/**
+	 * Live bytes in a single pack file, and every spelling of its path that blob_path values use.
+	 */
+	private static class PackFileUsage {
+		private long liveBytes = 0;
+		private final LinkedHashSet<String> storedPackFilePaths = new LinkedHashSet<String>();
+		//Blobs that are shared by several records are only counted once
+		private HashSet<Long> countedHeaderOffsets = new HashSet<Long>();
+	}
+
+	/**
+	 * Single streaming pass over web_archive_records that adds up the number of referenced bytes in each pack file,
+	 * keyed by the canonical path of the pack file.  Blobs that are shared by several records (see PayloadDigestCache)
+	 * are only counted once.  This is done here (one header offset per live blob) rather than with a SELECT DISTINCT,
+	 * which would make MySQL build and sort a temporary table before returning the first row.
+	 */
+	private HashMap<String, PackFileUsage> getUsagePerCanonicalPackFilePath() throws SQLException, IOException {
+
+		HashMap<String, PackFileUsage> usagePerCanonicalPackFilePath = new HashMap<String, PackFileUsage>();
+
+		//There are only a few distinct pack file paths, so each one is only canonicalized once
+		HashMap<String, PackFileUsage> usagePerStoredPackFilePath = new HashMap<String, PackFileUsage>();
+
+		StreamingResultSetIterator rowIterator = MySQLHelper.streamQuery(
+			"SELECT blob_path FROM " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME +
+			" WHERE blob_path LIKE '" + BlobLocation.PACKED_BLOB_PATH_PREFIX + "%'"
+		);
+
+		long numberOfRowsCounted = 0;
+		try {
+			while(rowIterator.hasNext()) {
+				BlobLocation blobLocation = BlobLocation.parse(rowIterator.next().getString(1));
+
+				PackFileUsage packFileUsage = usagePerStoredPackFilePath.get(blobLocation.getPackFilePath());
+				if(packFileUsage == null) {
+					String canonicalPackFilePath = new File(blobLocation.getPackFilePath()).getCanonicalPath();
+					packFileUsage = usagePerCanonicalPackFilePath.get(canonicalPackFilePath);
+					if(packFileUsage == null) {
+						packFileUsage = new PackFileUsage();
+						usagePerCanonicalPackFilePath.put(canonicalPackFilePath, packFileUsage);
+					}
+					packFileUsage.storedPackFilePaths.add(blobLocation.getPackFilePath());
+					usagePerStoredPackFilePath.put(blobLocation.getPackFilePath(), packFileUsage);
+				}
+
+				if(packFileUsage.countedHeaderOffsets.add(Long.valueOf(blobLocation.getHeaderOffset()))) {
+					packFileUsage.liveBytes += blobLocation.getTotalLength();
+				}
+
+				numberOfRowsCounted++;
+				if(numberOfRowsCounted % HrwaManager.regularMaintenanceMySQLRowRetrievalSize == 0) {
+					System.out.println("Counting live pack file bytes. " + numberOfRowsCounted + " rows counted so far...");
+				}
+			}
+		} finally {
+			rowIterator.close();
+		}
+
+		//The offsets are only needed for counting
+		for(PackFileUsage packFileUsage : usagePerCanonicalPackFilePath.values()) {
+			packFileUsage.countedHeaderOffsets = null;
+		}
+
+		return usagePerCanonicalPackFilePath;
+	}
+
+	/**
+	 * Copies all live blobs in packFile to compactedBlobWriter, updates their blob_path values and then deletes packFile.
+	 * The old pack file is only deleted after the blob_path updates have been committed, so an interrupted run never
+	 * loses data (at worst, it leaves behind an unreferenced pack file that the next run will delete).
+	 * A blob that is shared by several records is only copied once, and all of those records point at the copy.
+	 * Rows are found by every spelling of the pack file path that the live bytes scan came across.
+	 */
+	private void rewritePackFile(Connection conn, File packFile, PackFileUsage packFileUsage, PackedBlobWriter compactedBlobWriter) throws SQLException, IOException {
+
+		PreparedStatement updatePstmt = conn.prepareStatement(
+			"UPDATE " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + " SET blob_path = ? WHERE id = ?"
+		);
+
+		HashMap<String, String> newBlobPathsByOldBlobPath = new HashMap<String, String>();
+
+		for(String storedPackFilePath : packFileUsage.storedPackFilePaths) {
+			copyLiveBlobs(packFile, storedPackFilePath, updatePstmt, newBlobPathsByOldBlobPath, compactedBlobWriter);
+		}
+
+		//New blobs must be on disk before any row points to them
+		compactedBlobWriter.flush();
+		updatePstmt.executeBatch();
+		conn.commit();
+		updatePstmt.close();
+
+		packFile.delete();
+	}
+
+	/**
+	 * Copies the blobs of the rows whose blob_path uses the given spelling of packFile's path, and adds their
+	 * blob_path updates to updatePstmt's batch.
+	 */
+	private void copyLiveBlobs(File packFile, String storedPackFilePath, PreparedStatement updatePstmt, HashMap<String, String> newBlobPathsByOldBlobPath, PackedBlobWriter compactedBlobWriter) throws SQLException, IOException {
+
+		//LIKE wildcard characters in the path can only lead to extra matches, which are filtered out below
+		StreamingResultSetIterator rowIterator = MySQLHelper.streamQuery(
+			"SELECT id, blob_path FROM " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + " WHERE blob_path LIKE ?",
+			BlobLocation.PACKED_BLOB_PATH_PREFIX + storedPackFilePath + ":%"
+		);
+
+		try {
+			while(rowIterator.hasNext()) {
+				ResultSet resultSet = rowIterator.next();
+				String oldBlobPath = resultSet.getString("blob_path");
+				if( ! BlobLocation.parse(oldBlobPath).getPackFilePath().equals(storedPackFilePath) ) {
+					continue;
+				}
+
+				String newBlobPath = newBlobPathsByOldBlobPath.get(oldBlobPath);
+				if(newBlobPath != null) {
+					updatePstmt.setString(1, newBlobPath);
+					updatePstmt.setLong(2, resultSet.getLong("id"));
+					updatePstmt.addBatch();
+					continue;
+				}
+
+				InputStream payloadInputStream = BlobStore.openBlobInputStream(oldBlobPath);
+				try {
+					newBlobPath = compactedBlobWriter.writeBlob(packFile, resultSet.getLong("id"), BlobStore.readBlobHeader(oldBlobPath), payloadInputStream, null, 0);
+				} finally {
+					payloadInputStream.close();
+				}
+
+				if(newBlobPath == null) {
+					throw new IOException("Could not copy blob " + oldBlobPath + " while rewriting pack file " + packFile.getPath());
+				}
+				newBlobPathsByOldBlobPath.put(oldBlobPath, newBlobPath);
+
+				updatePstmt.setString(1, newBlobPath);
+				updatePstmt.setLong(2, resultSet.getLong("id"));
+				updatePstmt.addBatch();
+			}
+		} finally {
+			rowIterator.close();
+		}
+	}
+
+}
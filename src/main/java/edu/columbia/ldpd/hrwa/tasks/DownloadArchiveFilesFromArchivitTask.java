@@ -1,33 +1,38 @@
 package edu.columbia.ldpd.hrwa.tasks;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringWriter;
 import java.net.MalformedURLException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.io.IOUtils;
 
 import com.gargoylesoftware.htmlunit.BrowserVersion;
 import com.gargoylesoftware.htmlunit.DefaultCredentialsProvider;
 import com.gargoylesoftware.htmlunit.FailingHttpStatusCodeException;
-import com.gargoylesoftware.htmlunit.Page;
 import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
 import com.gargoylesoftware.htmlunit.WebResponse;
-import com.gargoylesoftware.htmlunit.html.DomElement;
-import com.gargoylesoftware.htmlunit.html.DomNodeList;
-import com.gargoylesoftware.htmlunit.html.HtmlElement;
-import com.gargoylesoftware.htmlunit.html.HtmlPage;
 
 import edu.columbia.ldpd.hrwa.HrwaManager;
+import edu.columbia.ldpd.hrwa.archiveit.ArchiveFileListingEntry;
+import edu.columbia.ldpd.hrwa.archiveit.ArchiveFileManifest;
+import edu.columbia.ldpd.hrwa.archiveit.ArchiveItFileListingParser;
+import edu.columbia.ldpd.hrwa.processorrunnables.ArchiveFileWorkQueue;
+import edu.columbia.ldpd.hrwa.util.common.PerHostConnectionLimiter;
+import edu.columbia.ldpd.hrwa.util.common.ResumableDownloader;
 
 public class DownloadArchiveFilesFromArchivitTask extends HrwaTask {
 	
@@ -36,9 +41,39 @@ public class DownloadArchiveFilesFromArchivitTask extends HrwaTask {
 	//HRWA Collection: 1068
 	
 	private static String pathToTempDownloadDir = HrwaManager.tmpDirPath + File.separatorChar + "downloads";
+	
+	private static final long DOWNLOAD_PROGRESS_REPORT_INTERVAL_IN_MILLIS = 30000;
+	private static final String PARTIAL_DOWNLOAD_FILE_EXTENSION = ".part";
+	private static final int MAX_DOWNLOAD_ATTEMPTS = 5;
+	private static final long DOWNLOAD_RETRY_DELAY_IN_MILLIS = 30000;
+	
+	//Shared by all download threads
+	private final PerHostConnectionLimiter perHostConnectionLimiter;
+	private final ResumableDownloader resumableDownloader;
+	private ArchiveFileManifest archiveFileManifest;
+	private final AtomicInteger numDownloadsStarted = new AtomicInteger(0);
+	private final AtomicInteger successCount = new AtomicInteger(0);
+	private final AtomicInteger failCount = new AtomicInteger(0);
+	private final AtomicLong numBytesDownloaded = new AtomicLong(0);
+	private long downloadStartTime = 0;
+	
+	//If set, every successfully downloaded file is added to this queue (see QuarterlyMaintenanceTask)
+	private ArchiveFileWorkQueue downloadedArchiveFileWorkQueue = null;
 
 	public DownloadArchiveFilesFromArchivitTask() {
-		
+		perHostConnectionLimiter = new PerHostConnectionLimiter(HrwaManager.maxDownloadsPerHost);
+		resumableDownloader = new ResumableDownloader(HrwaManager.archiveItUsername, HrwaManager.archiveItPassword, true, MAX_DOWNLOAD_ATTEMPTS, DOWNLOAD_RETRY_DELAY_IN_MILLIS, numBytesDownloaded);
+	}
+	
+	/**
+	 * Creates a task that adds every file to the given (open) work queue as soon as it has been downloaded and verified,
+	 * so that it can be indexed while the other downloads are still running.  Download threads wait if the queue is full.
+	 * The queue is NOT closed by this task.
+	 * @param downloadedArchiveFileWorkQueue
+	 */
+	public DownloadArchiveFilesFromArchivitTask(ArchiveFileWorkQueue downloadedArchiveFileWorkQueue) {
+		this();
+		this.downloadedArchiveFileWorkQueue = downloadedArchiveFileWorkQueue;
 	}
 	
 	public void runTask() {
@@ -60,10 +95,12 @@ public class DownloadArchiveFilesFromArchivitTask extends HrwaTask {
 	
 	private void performDownload() {
 		
-		ArrayList<HashMap<String, String>> filesToDownload = new ArrayList<HashMap<String, String>>();
+		ArrayList<ArchiveFileListingEntry> filesToDownload = new ArrayList<ArchiveFileListingEntry>();
 		
 		try {
 			
+			archiveFileManifest = ArchiveFileManifest.load(getManifestFile());
+			
 		    WebClient webClient = webClientAuthenticator();
 			
 			//Get list of filesToDownload (which ignores already-downloaded files)
@@ -72,6 +109,8 @@ public class DownloadArchiveFilesFromArchivitTask extends HrwaTask {
 			webClientCloseWindow(webClient);
 			
 			downloadArchiveFiles(filesToDownload);
+			
+			saveManifest();
 		} catch (FailingHttpStatusCodeException e) {
 			HrwaManager.writeToLog("Error: Unable to connect to ArchiveIt's site. Did you supply a valid username and password as command line arguments? If so, is the Archive-It site working properly? (archiveFileDownloadPageUrl: " + archiveFileDownloadPageUrl + ")", true, HrwaManager.LOG_TYPE_ERROR);
 			e.printStackTrace();
@@ -82,6 +121,26 @@ public class DownloadArchiveFilesFromArchivitTask extends HrwaTask {
 		}
 	}
 
+	/**
+	 * Returns the location of the local copy of this collection's file listing (see ArchiveFileManifest).
+	 */
+	private File getManifestFile() {
+		return new File(HrwaManager.archiveFileDirPath + File.separator + "archive-it-collection-" + HrwaManager.archiveItCollectionId + "-manifest.tsv");
+	}
+	
+	private void saveManifest() {
+		if( HrwaManager.previewMode ) {
+			HrwaManager.writeToLog("PREVIEW NOTE: Not saving the archive file manifest at " + getManifestFile().getPath(), true, HrwaManager.LOG_TYPE_STANDARD);
+			return;
+		}
+		
+		try {
+			archiveFileManifest.save();
+		} catch (IOException e) {
+			HrwaManager.writeToLog("Error: Could not save the archive file manifest at " + getManifestFile().getPath() + ". The next run will check the disk for every listed file.\n" + convertStackTraceToString(e), true, HrwaManager.LOG_TYPE_ERROR);
+		}
+	}
+
 	private void webClientCloseWindow(WebClient webClient) {
 		webClient.closeAllWindows();
 	}
@@ -95,106 +154,59 @@ public class DownloadArchiveFilesFromArchivitTask extends HrwaTask {
 		return webClient;
 	}
 	
-	private ArrayList<HashMap<String, String>> getListOfFilesToDownload(WebClient webClient) throws FailingHttpStatusCodeException, MalformedURLException, IOException {
+	private ArrayList<ArchiveFileListingEntry> getListOfFilesToDownload(WebClient webClient) throws FailingHttpStatusCodeException, MalformedURLException, IOException {
 		
 		HrwaManager.writeToLog("Retreiving list of possible archive files to download...", true, HrwaManager.LOG_TYPE_STANDARD);
 		
-		ArrayList<HashMap<String, String>> filesToDownload = new ArrayList<HashMap<String, String>>();
+		ArrayList<ArchiveFileListingEntry> filesToDownload = new ArrayList<ArchiveFileListingEntry>();
 		
-		HtmlPage page = webClient.getPage(archiveFileDownloadPageUrl);
+		//The listing is streamed through a lightweight parser instead of being loaded into a browser DOM
+		WebResponse listingResponse = webClient.loadWebResponse(new WebRequest(new URL(archiveFileDownloadPageUrl)));
+		if(listingResponse.getStatusCode() != 200) {
+			throw new FailingHttpStatusCodeException(listingResponse);
+		}
 		
-		HrwaManager.writeToLog("Done retreiving list of possible archive files to download!\nAnalyzing list to determine which files have already been downloaded...", true, HrwaManager.LOG_TYPE_STANDARD);
+		List<ArchiveFileListingEntry> listing;
+		Reader listingReader = new BufferedReader(new InputStreamReader(listingResponse.getContentAsStream(), listingResponse.getContentCharset()));
+		try {
+			listing = new ArchiveItFileListingParser(archiveFileDownloadDomain).parse(listingReader);
+		} finally {
+			listingReader.close();
+		}
 		
-		//Working with all relevant <tr> elements on this page (which are contained within the second table)
-		DomElement targetTBodyElement = page.getElementsByTagName("tbody").get(1);
-		targetTBodyElement.normalize();
+		int numNewOrChangedListedFiles = archiveFileManifest.updateListing(listing);
 		
-		int numListedArchiveFilesFoundInHtml = 0;
-		int trProgressCounter = 0;
+		HrwaManager.writeToLog("Done retreiving list of possible archive files to download! (" + listing.size() + " listed, " + numNewOrChangedListedFiles + " new or changed since the last run)\nAnalyzing list to determine which files have already been downloaded...", true, HrwaManager.LOG_TYPE_STANDARD);
 		
-		DomNodeList<HtmlElement> trElements = targetTBodyElement.getElementsByTagName("tr");
-		int totalNumTrElementsToScanThrough = trElements.getLength();
+		int numListedArchiveFilesFoundInHtml = 0;
 		
-		for(HtmlElement singleTrElement: trElements) {
+		for(ArchiveFileListingEntry listingEntry : listing) {
 			
-			if( ! singleTrElement.asXml().contains(".gz") ) {
-				//Ignore this tr because it doesn't contain info about an archive .gz file
+			if(listingEntry.getCaptureYearAndMonthString() == null) {
+				HrwaManager.writeToLog("Error: Skipped file at [" + listingEntry.getFileName() + "] because a capture year/month combo could not be parsed from its name." , true, HrwaManager.LOG_TYPE_ERROR);
 				continue;
 			}
 			
-			String fileName = null;
-			String downloadUrl = null;
-			String expectedMD5Hash = null;
-			String captureYearAndMonthString = null;
-			
-			HtmlElement downloadInfoAnchorElement = null;
-			HtmlElement md5InfoTrElement = null;
-			
-			DomNodeList<HtmlElement> tdElements = singleTrElement.getElementsByTagName("td");
-			
-			if(tdElements.size() != 2) {
+			if(HrwaManager.requiredmonth.length() > 0 && ! listingEntry.getCaptureYearAndMonthString().equalsIgnoreCase(HrwaManager.requiredmonth)) {
+				//The file is out of scope of the required month
 				continue;
 			}
-
-			downloadInfoAnchorElement = tdElements.get(0).getElementsByTagName("a").get(0);
-			md5InfoTrElement = tdElements.get(1);
-			
-			//System.out.println("downloadInfoAnchorElement: " + downloadInfoAnchorElement.asXml());
-			//System.out.println("md5InfoTrElement: " + md5InfoTrElement.asXml());
 			
-			//Get file name and download url
-			fileName = downloadInfoAnchorElement.getTextContent().trim();
-			downloadUrl = downloadInfoAnchorElement.getAttribute("href").trim();
-			expectedMD5Hash = md5InfoTrElement.getTextContent().trim();
+			numListedArchiveFilesFoundInHtml++;
 			
-			if( ! downloadUrl.startsWith("http") ) {
-				downloadUrl = archiveFileDownloadDomain + downloadUrl;
+			//Finally, let's check to see if we've already downloaded this file.  If we have, then we don't want to add it to filesToDownload.
+			//Files that the manifest already knows about don't need to be looked for on disk.
+			boolean isFileDownloaded = archiveFileManifest.isDownloaded(listingEntry);
+			if( ! isFileDownloaded && new File(getDestinationDirForArchiveFile(listingEntry.getCaptureYearAndMonthString()) + File.separator + listingEntry.getFileName()).exists() ) {
+				isFileDownloaded = true;
+				archiveFileManifest.markDownloaded(listingEntry);
 			}
 			
-			//Extract crawl date from file name
-			captureYearAndMonthString = HrwaManager.getCaptureYearAndMonthStringFromArchiveFileName(fileName);
-			boolean isFileDownloaded = false;
-			if(captureYearAndMonthString != null ) {
-				
-				//Finally, let's check to see if we've already downloaded this file.  If we have, then we don't want to add it to filesToDownload
-				if( new File(getDestinationDirForArchiveFile(captureYearAndMonthString) + File.separator + fileName).exists() ) {
-					isFileDownloaded = true;
-				}  
-					
-				if(HrwaManager.requiredmonth.length()>0){
-					if(captureYearAndMonthString.equalsIgnoreCase(HrwaManager.requiredmonth)){
-						numListedArchiveFilesFoundInHtml++;
-						if(isFileDownloaded){
-							HrwaManager.writeToLog("No need to download file [" + downloadUrl + "] because it has already been downloaded.", true, HrwaManager.LOG_TYPE_NOTICE);
-						} else {
-							HashMap<String, String> archiveFileInfoMap = getArchiveDownloadFileInfo(
-									fileName, downloadUrl, expectedMD5Hash,
-									captureYearAndMonthString);
-							filesToDownload.add(archiveFileInfoMap);
-						}
-					} // else the file is out of scope of the required month
-				} else {
-					// Check all the files for this collection
-					if(isFileDownloaded){
-						HrwaManager.writeToLog("No need to download file [" + downloadUrl + "] because it has already been downloaded.", true, HrwaManager.LOG_TYPE_NOTICE);
-					} else {
-						HashMap<String, String> archiveFileInfoMap = getArchiveDownloadFileInfo(
-								fileName, downloadUrl, expectedMD5Hash,
-								captureYearAndMonthString);
-						filesToDownload.add(archiveFileInfoMap);
-					}
-					numListedArchiveFilesFoundInHtml++;
-				}
+			if(isFileDownloaded){
+				HrwaManager.writeToLog("No need to download file [" + listingEntry.getDownloadUrl() + "] because it has already been downloaded.", true, HrwaManager.LOG_TYPE_NOTICE);
 			} else {
-				HrwaManager.writeToLog("Error: Skipped file at [" + fileName + "] because a capture year/month combo could not be parsed from its name." , true, HrwaManager.LOG_TYPE_ERROR);
+				filesToDownload.add(listingEntry);
 			}
-			
-			trProgressCounter++;
-			
-			System.out.println("Number of downloadable archive files found so far: " + numListedArchiveFilesFoundInHtml); //This doesn't need to be logged.
-			System.out.println("Analyzing..." + (100*trProgressCounter/totalNumTrElementsToScanThrough) + "%"); //This doesn't need to be logged.
-			System.out.println(HrwaManager.getCurrentAppRunTime()); //This doesn't need to be logged.
-			
 		}
 		
 		HrwaManager.writeToLog("Total number of downloadable archive files found: " + numListedArchiveFilesFoundInHtml, true, HrwaManager.LOG_TYPE_STANDARD);
@@ -202,76 +214,123 @@ public class DownloadArchiveFilesFromArchivitTask extends HrwaTask {
 		
 		return filesToDownload;
 	}
-
-	private HashMap<String, String> getArchiveDownloadFileInfo(String fileName,
-			String downloadUrl, String expectedMD5Hash,
-			String captureYearAndMonthString) {
-		HashMap<String, String> archiveFileInfoMap = new HashMap<String, String>();
-		
-		archiveFileInfoMap.put("fileName", fileName);
-		archiveFileInfoMap.put("downloadUrl", downloadUrl);
-		archiveFileInfoMap.put("expectedMD5Hash", expectedMD5Hash);
-		archiveFileInfoMap.put("captureYearAndMonthString", captureYearAndMonthString);
-		return archiveFileInfoMap;
+	
+	private void downloadArchiveFiles(ArrayList<ArchiveFileListingEntry> listOfFilesToDownload)  {
+		
+		final int numFilesToDownload = listOfFilesToDownload.size();
+		int numDownloadThreads = Math.max(1, Math.min(HrwaManager.maxConcurrentDownloads, numFilesToDownload));
+		
+		HrwaManager.writeToLog("Downloading " + numFilesToDownload + " files using up to " + numDownloadThreads + " concurrent downloads (and at most " + perHostConnectionLimiter.getMaxConnectionsPerHost() + " per host).", true, HrwaManager.LOG_TYPE_STANDARD);
+		
+		downloadStartTime = System.currentTimeMillis();
+		
+		ExecutorService downloadExecutorService = Executors.newFixedThreadPool(numDownloadThreads);
+		for(final ArchiveFileListingEntry archiveFileToDownload : listOfFilesToDownload) {
+			downloadExecutorService.execute(new Runnable() {
+				public void run() {
+					downloadSingleArchiveFile(archiveFileToDownload, numFilesToDownload);
+				}
+			});
+		}
+		downloadExecutorService.shutdown();
+		
+		try {
+			while( ! downloadExecutorService.awaitTermination(DOWNLOAD_PROGRESS_REPORT_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS) ) {
+				HrwaManager.writeToLog(getDownloadProgressMessage(numFilesToDownload), true, HrwaManager.LOG_TYPE_STANDARD);
+				System.out.println(HrwaManager.getCurrentAppRunTime()); //This doesn't need to be logged.
+			}
+		} catch (InterruptedException e) {
+			HrwaManager.writeToLog("Error: Interrupted while waiting for downloads to complete. Stopping all in-progress downloads.", true, HrwaManager.LOG_TYPE_ERROR);
+			downloadExecutorService.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		
+		HrwaManager.writeToLog("Completing downloading the files. ", true, HrwaManager.LOG_TYPE_STANDARD);
+		HrwaManager.writeToLog("Total number of files: "+numFilesToDownload, true, HrwaManager.LOG_TYPE_STANDARD);
+		HrwaManager.writeToLog("Successfully downloaded: "+successCount.get()+"\nFailed to downloaded: "+failCount.get(), true, HrwaManager.LOG_TYPE_STANDARD);
+		HrwaManager.writeToLog(getDownloadProgressMessage(numFilesToDownload), true, HrwaManager.LOG_TYPE_STANDARD);
 	}
 	
-	private void downloadArchiveFiles(ArrayList<HashMap<String, String>> listOfFilesToDownload)  {
+	/**
+	 * Downloads a single archive file to the temp directory and then moves it to its final destination.
+	 * Runs on one of the download threads, so everything that it touches must be thread-safe.
+	 */
+	private void downloadSingleArchiveFile(ArchiveFileListingEntry archiveFileToDownload, int numFilesToDownload) {
+		
+		// Download file to temp directory in case the download process
+		// is interrupted, so that we're never left with incomplete files
+		// in the final download directory.  A partial download that was
+		// left behind by an earlier run is resumed.
+		File partialDownloadFile = new File(DownloadArchiveFilesFromArchivitTask.pathToTempDownloadDir + File.separator + archiveFileToDownload.getFileName() + PARTIAL_DOWNLOAD_FILE_EXTENSION);
 		
-		int numFilesToDownload = listOfFilesToDownload.size();
-		int counter = 1;
+		HrwaManager.writeToLog("Download " + numDownloadsStarted.incrementAndGet() + " of " + numFilesToDownload + ": " + archiveFileToDownload.getFileName(), true, HrwaManager.LOG_TYPE_STANDARD);
 		
-		int successCount = 0;
-		int failCount = 0;
+		if( HrwaManager.previewMode ) {
+			HrwaManager.writeToLog("PREVIEW NOTE: Pretending to download the file at " + archiveFileToDownload.getDownloadUrl() + "...", true, HrwaManager.LOG_TYPE_STANDARD);
+			HrwaManager.writeToLog("PREVIEW NOTE: Pretend success!", true, HrwaManager.LOG_TYPE_STANDARD);
+			return;
+		}
 		
-		for(HashMap<String, String> singleArchiveFileInfo : listOfFilesToDownload) {
-			// Download file to temp directory in case the download process
-			// is interrupted, so that we're never left with incomplete files
-			// in the final download directory.
-			String tempFileDownloadLocation = DownloadArchiveFilesFromArchivitTask.pathToTempDownloadDir + File.separator + singleArchiveFileInfo.get("fileName");
+		try {
+			boolean encounterError;
+			String host = perHostConnectionLimiter.acquire(archiveFileToDownload.getDownloadUrl());
+			try {
+				encounterError = downloadFile( archiveFileToDownload.getDownloadUrl(), partialDownloadFile, archiveFileToDownload.getExpectedMD5Hash());
+			} finally {
+				perHostConnectionLimiter.release(host);
+			}
 			
-			//There shouldn't be any file current at tempFileDownloadLocation, but let's check just in case someone moved a file there unintentionally
-			if(new File(tempFileDownloadLocation).exists()) {
-				//A file already exists at tempFileDownloadLocation.  This is not good, and should never happen.
-				HrwaManager.writeToLog("Error: Could not create temp file at " + tempFileDownloadLocation + " because a file with the same name already exists there. Skipping download of this file (" + singleArchiveFileInfo.get("fileName") + ").", true, HrwaManager.LOG_TYPE_ERROR);
-				failCount++;
-				continue; //skip download of this file
+			if(encounterError) {
+				failCount.incrementAndGet();
+				return;
 			}
 			
-			HrwaManager.writeToLog("Download " + counter + " of " + numFilesToDownload + ": ", true, HrwaManager.LOG_TYPE_STANDARD);
+			//Create final destination directory
+			String destinationDirectory = getDestinationDirForArchiveFile(archiveFileToDownload.getCaptureYearAndMonthString()); 
+			(new File(destinationDirectory)).mkdirs();
 			
-			if( HrwaManager.previewMode ) {
-				HrwaManager.writeToLog("PREVIEW NOTE: Pretending to download the file at " + singleArchiveFileInfo.get("downloadUrl") + "...", true, HrwaManager.LOG_TYPE_STANDARD);
-				HrwaManager.writeToLog("PREVIEW NOTE: Pretend success!", true, HrwaManager.LOG_TYPE_STANDARD);
-			}
-			else {
+			//Move the fully-downloaded file from the temp directory to its permanent download location
+			File downloadedFile = new File(destinationDirectory + File.separator + archiveFileToDownload.getFileName());
+			if( ! partialDownloadFile.renameTo(downloadedFile) ) {
+				//File could not be moved for some reason.  This is not good, and should never happen.
+				HrwaManager.writeToLog("Error: For some reason, the fully-downloaded archive file at " + partialDownloadFile.getPath() + " could not be moved to its final destination. It will be left in the temp directory.", true, HrwaManager.LOG_TYPE_ERROR);
+				failCount.incrementAndGet();
+			} else{
+				archiveFileManifest.markDownloaded(archiveFileToDownload);
+				successCount.incrementAndGet();
 				
-				try {
-					boolean encounterError = downloadFile( singleArchiveFileInfo.get("downloadUrl"), tempFileDownloadLocation, singleArchiveFileInfo.get("expectedMD5Hash"));
-					//Create final destination directory
-					String destinationDirectory = getDestinationDirForArchiveFile(singleArchiveFileInfo.get("captureYearAndMonthString")); 
-					(new File(destinationDirectory)).mkdirs();
-					
-					//Move the fully-downloaded file from the temp directory to its permanent download location
-					if( ! new File(tempFileDownloadLocation).renameTo(new File(destinationDirectory + File.separator + singleArchiveFileInfo.get("fileName"))) ) {
-						//File could not be moved for some reason.  This is not good, and should never happen.
-						HrwaManager.writeToLog("Error: For some reason, the fully-downloaded archive file at " + tempFileDownloadLocation + " could not be moved to its final destination. It will be left in the temp directory.", true, HrwaManager.LOG_TYPE_ERROR);
-						failCount++;
-					} else if(encounterError){
-						failCount++;
-					} else{
-						successCount++;
-					}
-				} catch (Exception e) {
-					HrwaManager.writeToLog("Error: Downloading "+singleArchiveFileInfo.get("downloadUrl")+"\n"+convertStackTraceToString(e),true,HrwaManager.LOG_TYPE_ERROR);
-					failCount++;
+				if(downloadedArchiveFileWorkQueue != null) {
+					addDownloadedFileToWorkQueue(downloadedFile);
 				}
 			}
-			counter++;
-			System.out.println(HrwaManager.getCurrentAppRunTime()); //This doesn't need to be logged.
+		} catch (InterruptedException e) {
+			HrwaManager.writeToLog("Error: Interrupted while downloading " + archiveFileToDownload.getDownloadUrl() + ".", true, HrwaManager.LOG_TYPE_ERROR);
+			failCount.incrementAndGet();
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			HrwaManager.writeToLog("Error: Downloading "+archiveFileToDownload.getDownloadUrl()+"\n"+convertStackTraceToString(e),true,HrwaManager.LOG_TYPE_ERROR);
+			failCount.incrementAndGet();
 		}
-		HrwaManager.writeToLog("Completing downloading the files. ", true, HrwaManager.LOG_TYPE_STANDARD);
-		HrwaManager.writeToLog("Total number of files: "+numFilesToDownload, true, HrwaManager.LOG_TYPE_STANDARD);
-		HrwaManager.writeToLog("Successfully downloaded: "+successCount+"\nFailed to downloaded: "+failCount, true, HrwaManager.LOG_TYPE_STANDARD);
+	}
+	
+	private void addDownloadedFileToWorkQueue(File downloadedFile) {
+		try {
+			downloadedArchiveFileWorkQueue.addFile(downloadedFile);
+		} catch (InterruptedException e) {
+			//The download itself succeeded, and the file will be picked up by the next ArchiveToMySQLTask
+			HrwaManager.writeToLog("Error: Interrupted while waiting to queue " + downloadedFile.getPath() + " for indexing. It will not be indexed during this run.", true, HrwaManager.LOG_TYPE_ERROR);
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private String getDownloadProgressMessage(int numFilesToDownload) {
+		long elapsedTimeInMillis = Math.max(1, System.currentTimeMillis() - downloadStartTime);
+		long bytesDownloaded = numBytesDownloaded.get();
+		double megabytesPerSecond = (bytesDownloaded / 1048576.0) / (elapsedTimeInMillis / 1000.0);
+		
+		return "Download progress: " + (successCount.get() + failCount.get()) + " of " + numFilesToDownload + " files done" +
+			" (" + successCount.get() + " succeeded, " + failCount.get() + " failed), " +
+			HrwaManager.bytesToMegabytes(bytesDownloaded) + " MB downloaded at " + String.format("%.2f", megabytesPerSecond) + " MB/s";
 	}
 
 	private String convertStackTraceToString(Exception e) {
@@ -285,105 +344,50 @@ public class DownloadArchiveFilesFromArchivitTask extends HrwaTask {
 		return HrwaManager.archiveFileDirPath + File.separator + captureYearAndMonthString;
 	}
 	
-	private boolean downloadFile(String downloadUrl, String pathToDownloadLocation, String md5HashToValidateAgainst) throws FailingHttpStatusCodeException, MalformedURLException, IOException, NoSuchAlgorithmException {
+	/**
+	 * Downloads (or resumes the download of) a single file, verifying its length and MD5 digest.  The digest is
+	 * computed while the file is being written, so the downloaded file is never read back.
+	 * A file that fails verification is discarded, so that the next run downloads it again from the start.
+	 * @return true if the download failed or the file couldn't be verified
+	 */
+	private boolean downloadFile(String downloadUrl, File partialDownloadFile, String md5HashToValidateAgainst) throws IOException, InterruptedException {
 		
 		HrwaManager.writeToLog("Downloading file at " + downloadUrl, true, HrwaManager.LOG_TYPE_STANDARD);
 		System.out.println("This may take a while...");
-	    WebClient webClient = webClientAuthenticator();
-
-		Page pageToDownload = webClient.getPage(downloadUrl);
-		WebResponse response = pageToDownload.getWebResponse();
-		
-		long contentLengthFromHeader = Long.parseLong(
-			(response.getResponseHeaderValue("Content-length") == null ?
-			"0" : response.getResponseHeaderValue("Content-length"))
-		);
-		
-		File archiveFile = new File(pathToDownloadLocation);
-		archiveFile.createNewFile();
-		FileOutputStream archiveFileOutputStream = new FileOutputStream(archiveFile);
-		InputStream pageContentAsInputStream = response.getContentAsStream();
-		IOUtils.copy(pageContentAsInputStream, archiveFileOutputStream);
-		pageContentAsInputStream.close();
-		archiveFileOutputStream.close();
-		
-		archiveFileOutputStream = null;
-		pageContentAsInputStream = null;
+		
+		ResumableDownloader.DownloadResult downloadResult = resumableDownloader.download(downloadUrl, partialDownloadFile);
 		boolean encounteredError = true;
 		
-		if(contentLengthFromHeader > 0) {
-			long sizeInBytesOfDownloadedFile = archiveFile.length();
+		if(downloadResult.isLengthVerified()) {
+			HrwaManager.writeToLog("-- Header Content-Length matches downloaded file size (" + downloadUrl + ").", true, HrwaManager.LOG_TYPE_STANDARD);
 			
-			//Verify that the downloaded file size matches the header Content-Length value
-			if(contentLengthFromHeader == sizeInBytesOfDownloadedFile) {
-				HrwaManager.writeToLog("-- Header Content-Length matches downloaded file size.", true, HrwaManager.LOG_TYPE_STANDARD);
-
+			md5HashToValidateAgainst = md5HashToValidateAgainst.toLowerCase(); //lower case supplied hash to validate against
+			
+			//Verify that the MD5 hash of the file matches the expected MD5 hash from Archive-It's web page
+			if(downloadResult.getMD5Hex().equals(md5HashToValidateAgainst)) {
 				
-				FileInputStream fis = new FileInputStream(archiveFile);
-				String md5HashOfDownloadedFile = computeMD5(fis);
-				fis.close();
+				HrwaManager.writeToLog("-- Calculated MD5 digest matches expected MD5 digest (" + md5HashToValidateAgainst + ") for file at: " + downloadUrl, true, HrwaManager.LOG_TYPE_STANDARD);
 				
-				md5HashToValidateAgainst = md5HashToValidateAgainst.toLowerCase(); //lower case supplied hash to validate against
+				encounteredError = false;
 				
-				//Verify that the MD5 hash of the file matches the expected MD5 hash from Archive-It's web page				
-				if(md5HashOfDownloadedFile.equals(md5HashToValidateAgainst)) {
-					
-					HrwaManager.writeToLog("-- Calculated MD5 digest matches expected MD5 digest (" + md5HashToValidateAgainst + ").", true, HrwaManager.LOG_TYPE_STANDARD);
-					
-					encounteredError = false;
-					
-				} else {
-					HrwaManager.writeToLog("Error: Calculated MD5 digest does not match expected MD5 digest for file at: " + downloadUrl, true, HrwaManager.LOG_TYPE_ERROR);
-					HrwaManager.writeToLog("-- Expected value: " + md5HashToValidateAgainst + ", Dynamically calculated value: " + md5HashOfDownloadedFile, true, HrwaManager.LOG_TYPE_ERROR);
-				}
+			} else {
+				HrwaManager.writeToLog("Error: Calculated MD5 digest does not match expected MD5 digest for file at: " + downloadUrl, true, HrwaManager.LOG_TYPE_ERROR);
+				HrwaManager.writeToLog("-- Expected value: " + md5HashToValidateAgainst + ", Dynamically calculated value: " + downloadResult.getMD5Hex(), true, HrwaManager.LOG_TYPE_ERROR);
 			}
-			
 		} else {
 			HrwaManager.writeToLog("Error: Could not determine content length from http header for file at: " + downloadUrl, true, HrwaManager.LOG_TYPE_ERROR);
 		}
 		
 		if(encounteredError) {
-			HrwaManager.writeToLog("Download completed with errors. See error log for more details.", true, HrwaManager.LOG_TYPE_STANDARD);
+			ResumableDownloader.discardPartialDownload(partialDownloadFile);
+			HrwaManager.writeToLog("Download of " + downloadUrl + " completed with errors, and the downloaded file was discarded. See error log for more details.", true, HrwaManager.LOG_TYPE_STANDARD);
 		} else {
-			HrwaManager.writeToLog("Download completed successfully.", true, HrwaManager.LOG_TYPE_STANDARD);
+			HrwaManager.writeToLog("Download of " + downloadUrl + " completed successfully.", true, HrwaManager.LOG_TYPE_STANDARD);
 		}
 		
-		webClientCloseWindow(webClient);
 		return encounteredError;
 	}
 	
-	/**
-	 * Computes the MD5 hash for the file defined by file input stream
-	 * @param fis input stream for the file
-	 * @return
-	 */
-	private String computeMD5(FileInputStream fis) throws java.io.IOException, NoSuchAlgorithmException{
-		MessageDigest digest = MessageDigest.getInstance("MD5");
-		
-		byte[] bytesBuffer = new byte[1024];
-		int bytesRead = -1;
-		while ((bytesRead = fis.read(bytesBuffer)) != -1) {
-			digest.update(bytesBuffer, 0, bytesRead);
-		}
-		fis.close();
-		return convertByteArrayToHexString(digest.digest());
-	}
-	
-	
-	/**
-	 * Converts the bytearray to String
-	 * @param arrayBytes
-	 * @return
-	 */
-	private static String convertByteArrayToHexString(byte[] arrayBytes) {
-	    StringBuffer stringBuffer = new StringBuffer();
-	    for (int i = 0; i < arrayBytes.length; i++) {
-	        stringBuffer.append(Integer.toString((arrayBytes[i] & 0xff) + 0x100, 16)
-	                .substring(1));
-	    }
-	    return stringBuffer.toString().toLowerCase();
-	}
-
 	/**
 	 * Creates the temp download directory where in-progress downloads are placed.  
 	 */
@@ -403,7 +407,7 @@ public class DownloadArchiveFilesFromArchivitTask extends HrwaTask {
 		
 		if(tempDownloadDir.isDirectory()){
 			if(tempDownloadDir.list().length > 0) {
-				HrwaManager.writeToLog("Error: Cannot delete temp download dir (at " + DownloadArchiveFilesFromArchivitTask.pathToTempDownloadDir  + ") because it still contains one or more incomplete archive file downloads.", true, HrwaManager.LOG_TYPE_ERROR);
+				HrwaManager.writeToLog("Error: Cannot delete temp download dir (at " + DownloadArchiveFilesFromArchivitTask.pathToTempDownloadDir  + ") because it still contains one or more incomplete archive file downloads. They will be resumed the next time that this task runs.", true, HrwaManager.LOG_TYPE_ERROR);
 			} else {
 				//Directory is empty.  We can delete it!
 				tempDownloadDir.delete();
@@ -1,7 +1,10 @@
 package edu.columbia.ldpd.hrwa.tasks;
 
+import java.io.IOException;
+
 import edu.columbia.ldpd.hrwa.HrwaManager;
 import edu.columbia.ldpd.hrwa.TimeStringFormat;
+import edu.columbia.ldpd.hrwa.blobstore.BlobStoreLock;
 
 public abstract class HrwaTask {
 	
@@ -30,4 +33,17 @@ public abstract class HrwaTask {
 				HrwaManager.LOG_TYPE_STANDARD);
 	}
 	
+	/**
+	 * Tasks that write blobs hold this lock until they're done, so that the CompactBlobStoreTask can't run at the same time.
+	 */
+	protected BlobStoreLock acquireBlobStoreLockForWriting() {
+		try {
+			return BlobStoreLock.acquireForWriting();
+		} catch (IOException e) {
+			HrwaManager.writeToLog("Error: Could not lock the blob store in " + HrwaManager.blobDirPath + ".\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			System.exit(HrwaManager.EXIT_CODE_ERROR);
+			return null;
+		}
+	}
+	
 }
@@ -34,6 +34,7 @@ import java.util.regex.Pattern;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.solr.common.SolrInputDocument;
 import org.archive.io.ArchiveReader;
 import org.archive.io.ArchiveReaderFactory;
 import org.archive.io.arc.ARCRecord;
@@ -52,9 +53,14 @@ import com.gargoylesoftware.htmlunit.html.HtmlPage;
 
 import edu.columbia.ldpd.hrwa.HrwaManager;
 import edu.columbia.ldpd.hrwa.mysql.MySQLHelper;
+import edu.columbia.ldpd.hrwa.mysql.MySQLRecordIdRange;
+import edu.columbia.ldpd.hrwa.mysql.MySQLRecordIdRangeQueue;
+import edu.columbia.ldpd.hrwa.mysql.StreamingResultSetIterator;
 import edu.columbia.ldpd.hrwa.processorrunnables.ArchiveFileProcessorRunnable;
 import edu.columbia.ldpd.hrwa.processorrunnables.MySQLArchiveRecordToSolrProcessorRunnable;
 import edu.columbia.ldpd.hrwa.solr.ASFSolrIndexer;
+import edu.columbia.ldpd.hrwa.solr.SolrCommitPolicy;
+import edu.columbia.ldpd.hrwa.util.common.MemoryBudget;
 
 public class MySQLArchiveRecordsToSolrTask extends HrwaTask {
 	
@@ -62,11 +68,28 @@ public class MySQLArchiveRecordsToSolrTask extends HrwaTask {
 	private ArrayList<MySQLArchiveRecordToSolrProcessorRunnable> mySQLArchiveRecordToSolrProcessorRunnables;
 	private ArrayList<Future<MySQLArchiveRecordToSolrProcessorRunnable>> mySQLArchiveRecordToSolrProcessorFutures;
 	private ExecutorService fixedThreadPoolExecutorService;
+	
+	//Atomic update documents are tiny, so these batches can be much bigger than solrDocumentBatchSize
+	private static final int ATOMIC_UPDATE_BATCH_SIZE = 1000;
+	
+	//Heap used by records that are being extracted or are waiting to be sent to Solr.  Threads wait on this instead of polling overall heap usage.
+	private MemoryBudget memoryBudget;
+	
+	//Only set when another task is writing new records while this one runs (see openQueueForNewlyCommittedRecords())
+	private MySQLRecordIdRangeQueue openMySQLRecordIdRangeQueue = null;
 
 	public MySQLArchiveRecordsToSolrTask() {
+		this(new MemoryBudget(HrwaManager.maxMemoryThresholdInBytesForStartingNewThreadProcesses));
+	}
+	
+	/**
+	 * @param memoryBudget For when this task shares the heap with other tasks that are running at the same time
+	 */
+	public MySQLArchiveRecordsToSolrTask(MemoryBudget memoryBudget) {
 		mySQLArchiveRecordToSolrProcessorRunnables = new ArrayList<MySQLArchiveRecordToSolrProcessorRunnable>(HrwaManager.maxUsableProcessors);
 		mySQLArchiveRecordToSolrProcessorFutures = new ArrayList<Future<MySQLArchiveRecordToSolrProcessorRunnable>>(HrwaManager.maxUsableProcessors);
 		fixedThreadPoolExecutorService = Executors.newFixedThreadPool(HrwaManager.maxUsableProcessors);
+		this.memoryBudget = memoryBudget;
 	}
 	
 	public void runTask() {
@@ -75,20 +98,27 @@ public class MySQLArchiveRecordsToSolrTask extends HrwaTask {
 		
 		ASFSolrIndexer.initSingleSolrServerObject();
 		
-		//Get the highest id in the web archive records table
-		HrwaManager.writeToLog("Retrieving max(id) from MySQL web archive records table...", true, HrwaManager.LOG_TYPE_STANDARD);
-		long maxWebArchiveRecordMySQLId = MySQLHelper.getMaxIdFromWebArchiveRecordsTable();
-		HrwaManager.writeToLog("Max(id) from MySQL web archive records table: " + maxWebArchiveRecordMySQLId, true, HrwaManager.LOG_TYPE_STANDARD);
+		//Runs first, so that records whose atomic update failed are picked up by the full re-index below
+		refreshSiteMetadataOfMetadataUpdatedRecords();
 		
-		//Then generate the list of MySQL offsets that will be used my child threads as they loop through all MySQL archive records
-		ConcurrentLinkedQueue<Long> concurrentLinkedQueueOfMySQLRecordOffsets = new ConcurrentLinkedQueue<Long>();
+		MySQLRecordIdRangeQueue mySQLRecordIdRangeQueue;
 		
-		for(long nextRecordRetrievalOffset = 0; nextRecordRetrievalOffset < maxWebArchiveRecordMySQLId; nextRecordRetrievalOffset += HrwaManager.mySQLToSolrRowRetrievalSize) {
-			concurrentLinkedQueueOfMySQLRecordOffsets.add(nextRecordRetrievalOffset);
+		if(openMySQLRecordIdRangeQueue == null) {
+			//Every processor thread streams its rows over its own connection, and the commit policy needs one for hrwa_manager_todo resets
+			MySQLHelper.setConnectionPoolSizeForThreads(HrwaManager.maxUsableProcessors + 1);
+			
+			mySQLRecordIdRangeQueue = new MySQLRecordIdRangeQueue(getIdRangesOfUpdatedRecords());
+		} else {
+			//The pool was sized by whoever opened the queue, since the writing task shares it
+			HrwaManager.writeToLog("New id ranges will be indexed as soon as they are committed to MySQL.", true, HrwaManager.LOG_TYPE_STANDARD);
+			mySQLRecordIdRangeQueue = openMySQLRecordIdRangeQueue;
 		}
 		
+		//The ranges are contiguous and start at id 0
+		SolrCommitPolicy solrCommitPolicy = new SolrCommitPolicy(0);
+		solrCommitPolicy.start();
 		
-		initializeMySQLArchiveRecordToSolrProcessorThreads(concurrentLinkedQueueOfMySQLRecordOffsets);
+		initializeMySQLArchiveRecordToSolrProcessorThreads(mySQLRecordIdRangeQueue, solrCommitPolicy, memoryBudget);
 		
 		
 		//Have this main thread wait around until all processors are done completing all tasks
@@ -100,25 +130,198 @@ public class MySQLArchiveRecordsToSolrTask extends HrwaTask {
 			}
 			catch (InterruptedException e) { e.printStackTrace(); }
 			
-			System.out.println("Total number of MySQL archive records processed: " + this.getTotalNumberOfRelevantArchiveRecordsIndexedIntoSolrAtThisExactMoment()); //This doesn't need to be logged.
+			System.out.println("Total number of MySQL archive records processed: " + this.getTotalNumberOfRelevantArchiveRecordsIndexedIntoSolrAtThisExactMoment() + " (id ranges waiting: " + mySQLRecordIdRangeQueue.size() + ")"); //This doesn't need to be logged.
 			System.out.println(HrwaManager.getCurrentAppRunTime()); //This doesn't need to be logged.
 			HrwaManager.writeToLog(HrwaManager.getCurrentAppMemoryUsageMessage(), true, HrwaManager.LOG_TYPE_MEMORY); //This doesn't need to be logged.
+			HrwaManager.writeToLog(memoryBudget.getStatisticsMessage(), true, HrwaManager.LOG_TYPE_MEMORY);
 			
 		}
 		
 		//All of the processor threads have completed!
 		checkForAndLogAnyChildThreadArchiveRecordProcessorsExceptions();
 		
+		//Final hard commit (and hrwa_manager_todo reset for everything that was indexed since the last hard commit)
+		solrCommitPolicy.finish();
+		
 		//Now we need to shut down the thread executor service
 		shutDownThreadExecutorService();
 		
 		HrwaManager.writeToLog("Total number of MySQL archive records processed: " + this.getTotalNumberOfRelevantArchiveRecordsIndexedIntoSolrAtThisExactMoment(), true, HrwaManager.LOG_TYPE_STANDARD);
+		HrwaManager.writeToLog(memoryBudget.getStatisticsMessage(), true, HrwaManager.LOG_TYPE_STANDARD);
 		System.out.println(HrwaManager.getCurrentAppRunTime()); //This doesn't need to be logged.
 		
 		writeTaskFooterMessageAndPrintTotalTime();
 		
 	}
 	
+	/**
+	 * Puts this task in streaming mode, for when it runs alongside an ArchiveToMySQLTask.  Must be called before
+	 * any new records are written.  The returned queue starts out with the id ranges of the records that are
+	 * already UPDATED, and is extended with the ids of new records as they are committed.  The indexing threads
+	 * keep waiting for new ranges until the queue is closed.
+	 * @return
+	 */
+	public MySQLRecordIdRangeQueue openQueueForNewlyCommittedRecords() {
+		
+		ArrayList<MySQLRecordIdRange> mySQLRecordIdRanges = getIdRangesOfUpdatedRecords();
+		
+		//Every id below firstNewRecordId already exists, so new records are never mixed into the ranges above
+		long firstNewRecordId = MySQLHelper.getMaxIdFromWebArchiveRecordsTable() + 1;
+		long endOfExistingRanges = mySQLRecordIdRanges.isEmpty() ? 0 : mySQLRecordIdRanges.get(mySQLRecordIdRanges.size() - 1).getEndId();
+		if(endOfExistingRanges < firstNewRecordId) {
+			//Ranges have to be contiguous.  This one has no UPDATED records in it, so it's cheap to query.
+			mySQLRecordIdRanges.add(new MySQLRecordIdRange(endOfExistingRanges, firstNewRecordId));
+		}
+		
+		openMySQLRecordIdRangeQueue = new MySQLRecordIdRangeQueue(mySQLRecordIdRanges, firstNewRecordId, HrwaManager.mySQLToSolrRowRetrievalSize, HrwaManager.maxUsableProcessors * 2);
+		
+		return openMySQLRecordIdRangeQueue;
+	}
+	
+	/**
+	 * Sends atomic updates with the current site metadata for every METADATA_UPDATED record, so that records belonging to a site
+	 * whose catalog record changed don't have their content re-extracted.  Records whose update is rejected by Solr with a
+	 * version conflict (because they were never indexed) are marked as UPDATED instead, and are fully re-indexed.  In streaming
+	 * mode, the UPDATED id ranges have already been computed at this point, so those records are picked up by the next run.
+	 * If Solr can't be reached or fails in any other way, the pass stops and the remaining records stay METADATA_UPDATED,
+	 * so they're retried during the next run.
+	 */
+	private void refreshSiteMetadataOfMetadataUpdatedRecords() {
+		
+		if( HrwaManager.previewMode ) {
+			HrwaManager.writeToLog("Skipping atomic site metadata updates because we're in preview mode.", true, HrwaManager.LOG_TYPE_STANDARD);
+			return;
+		}
+		
+		HrwaManager.writeToLog("Sending atomic site metadata updates for " + MySQLHelper.HRWA_MANAGER_TODO_METADATA_UPDATED + " records...", true, HrwaManager.LOG_TYPE_STANDARD);
+		
+		//Anything that becomes METADATA_UPDATED after this point is left for the next run
+		long endId = MySQLHelper.getMaxIdFromWebArchiveRecordsTable() + 1;
+		
+		long numberOfUpdatedDocuments = 0;
+		ArrayList<Long> idsOfFailedDocuments = new ArrayList<Long>();
+		boolean aborted = false;
+		
+		try {
+			StreamingResultSetIterator rowIterator = MySQLHelper.streamQuery(
+				"SELECT " +
+				HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".id as id, record_identifier, " +
+				"original_urls, bib_key, creator_name, organization_type, organization_based_in, geographic_focus, language " +
+				" FROM " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + 
+				" INNER JOIN " + HrwaManager.MYSQL_SITES_TABLE_NAME + " ON " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".site_id = " + HrwaManager.MYSQL_SITES_TABLE_NAME + ".id " +
+				" INNER JOIN " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + " ON " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".mimetype_detected =  " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + ".mimetype_detected" +
+				" WHERE" +
+				" " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + "." + MySQLHelper.HRWA_MANAGER_TODO_FIELD_NAME + " = '" + MySQLHelper.HRWA_MANAGER_TODO_METADATA_UPDATED + "'" +
+				" AND " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".id < ?" +
+				" AND " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".status_code = 200" +
+				" AND " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + ".mimetype_code IN " + HrwaManager.DESIRED_SOLR_INDEXED_MIMETYPE_CODES_STRING_FOR_MYSQL_WHERE_CLAUSE_LIST,
+				endId
+			);
+			
+			try {
+				ArrayList<SolrInputDocument> batch = new ArrayList<SolrInputDocument>(ATOMIC_UPDATE_BATCH_SIZE);
+				ArrayList<Long> batchIds = new ArrayList<Long>(ATOMIC_UPDATE_BATCH_SIZE);
+				while(rowIterator.hasNext()) {
+					ResultSet resultSet = rowIterator.next();
+					batch.add(ASFSolrIndexer.createSiteMetadataAtomicUpdateDocument(resultSet));
+					batchIds.add(resultSet.getLong("id"));
+					
+					if(batch.size() == ATOMIC_UPDATE_BATCH_SIZE) {
+						int numberOfUpdatedDocumentsInBatch = sendAtomicUpdateBatch(batch, batchIds, idsOfFailedDocuments);
+						if(numberOfUpdatedDocumentsInBatch < 0) {
+							aborted = true;
+							break;
+						}
+						numberOfUpdatedDocuments += numberOfUpdatedDocumentsInBatch;
+						batch.clear();
+						batchIds.clear();
+					}
+				}
+				if( ! aborted && batch.size() > 0) {
+					int numberOfUpdatedDocumentsInBatch = sendAtomicUpdateBatch(batch, batchIds, idsOfFailedDocuments);
+					if(numberOfUpdatedDocumentsInBatch < 0) {
+						aborted = true;
+					} else {
+						numberOfUpdatedDocuments += numberOfUpdatedDocumentsInBatch;
+					}
+				}
+			} finally {
+				rowIterator.close();
+			}
+		} catch (SQLException e) {
+			HrwaManager.writeToLog("Error: An error occurred while retrieving " + MySQLHelper.HRWA_MANAGER_TODO_METADATA_UPDATED + " records from the web archive records table.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			System.exit(HrwaManager.EXIT_CODE_ERROR);
+		}
+		
+		if(idsOfFailedDocuments.size() > 0) {
+			MySQLHelper.markWebArchiveRecordsAsUpdated(idsOfFailedDocuments);
+		}
+		
+		if(aborted) {
+			//Updates that were already sent are harmless to send again
+			HrwaManager.writeToLog("Error: Stopped sending atomic site metadata updates because of a Solr error. The remaining " + MySQLHelper.HRWA_MANAGER_TODO_METADATA_UPDATED + " records will be retried during the next run.", true, HrwaManager.LOG_TYPE_ERROR);
+			return;
+		}
+		
+		//Only forget about the METADATA_UPDATED records once their updates are safely committed
+		if(numberOfUpdatedDocuments > 0 && ! ASFSolrIndexer.commit()) {
+			HrwaManager.writeToLog("Error: Could not commit the atomic site metadata updates. The " + MySQLHelper.HRWA_MANAGER_TODO_METADATA_UPDATED + " records will be retried during the next run.", true, HrwaManager.LOG_TYPE_ERROR);
+			return;
+		}
+		long numberOfResetRecords = MySQLHelper.resetHrwaManagerTodoForMetadataUpdatedWebArchiveRecords(endId);
+		
+		HrwaManager.writeToLog("Atomic site metadata updates sent: " + numberOfUpdatedDocuments + ", records marked for full re-indexing instead: " + idsOfFailedDocuments.size() + ", " + MySQLHelper.HRWA_MANAGER_TODO_METADATA_UPDATED + " records reset: " + numberOfResetRecords, true, HrwaManager.LOG_TYPE_STANDARD);
+	}
+	
+	/**
+	 * Solr rejects a whole batch if one of its documents is missing from the index, so a batch with a version conflict is retried
+	 * one document at a time.  Only the documents with a version conflict are added to idsOfFailedDocuments.
+	 * @return The number of documents that were updated, or -1 if Solr failed for any other reason.
+	 */
+	private int sendAtomicUpdateBatch(ArrayList<SolrInputDocument> batch, ArrayList<Long> batchIds, ArrayList<Long> idsOfFailedDocuments) {
+		
+		int batchResult = ASFSolrIndexer.sendAtomicUpdates(batch);
+		if(batchResult == ASFSolrIndexer.ATOMIC_UPDATE_SENT) {
+			return batch.size();
+		} else if(batchResult == ASFSolrIndexer.ATOMIC_UPDATE_FAILED) {
+			return -1;
+		}
+		
+		int numberOfUpdatedDocuments = 0;
+		for(int i = 0; i < batch.size(); i++) {
+			int documentResult = ASFSolrIndexer.sendAtomicUpdates(Collections.singletonList(batch.get(i)));
+			if(documentResult == ASFSolrIndexer.ATOMIC_UPDATE_SENT) {
+				numberOfUpdatedDocuments++;
+			} else if(documentResult == ASFSolrIndexer.ATOMIC_UPDATE_VERSION_CONFLICT) {
+				idsOfFailedDocuments.add(batchIds.get(i));
+			} else {
+				return -1;
+			}
+		}
+		return numberOfUpdatedDocuments;
+	}
+	
+	/**
+	 * Generates id ranges that each hold mySQLToSolrRowRetrievalSize UPDATED records.  Child threads pull these ranges
+	 * off of a shared queue, so id windows that don't contain any UPDATED records are never queried.
+	 */
+	private ArrayList<MySQLRecordIdRange> getIdRangesOfUpdatedRecords() {
+		
+		//Make sure that the keyset queries below can use the (hrwa_manager_todo, id) index
+		try {
+			MySQLHelper.addHrwaManagerTodoAndIdIndexToWebArchiveRecordsTableIfItDoesNotExist();
+		} catch (SQLException e) {
+			HrwaManager.writeToLog("Error: Could not add the " + MySQLHelper.HRWA_MANAGER_TODO_AND_ID_INDEX_NAME + " index to the MySQL web archive records table.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			System.exit(HrwaManager.EXIT_CODE_ERROR);
+		}
+		
+		HrwaManager.writeToLog("Retrieving id ranges of " + MySQLHelper.HRWA_MANAGER_TODO_UPDATED + " records from MySQL web archive records table...", true, HrwaManager.LOG_TYPE_STANDARD);
+		ArrayList<MySQLRecordIdRange> mySQLRecordIdRanges = MySQLHelper.getWebArchiveRecordIdRangesWithHrwaManagerTodoValue(MySQLHelper.HRWA_MANAGER_TODO_UPDATED, HrwaManager.mySQLToSolrRowRetrievalSize);
+		HrwaManager.writeToLog("Number of id ranges to process: " + mySQLRecordIdRanges.size(), true, HrwaManager.LOG_TYPE_STANDARD);
+		
+		return mySQLRecordIdRanges;
+	}
+	
 	public long getTotalNumberOfRelevantArchiveRecordsIndexedIntoSolrAtThisExactMoment() {
 		
 		long total = 0;
@@ -164,13 +367,13 @@ public class MySQLArchiveRecordsToSolrTask extends HrwaTask {
 		return false;
 	}
 	
-	public void initializeMySQLArchiveRecordToSolrProcessorThreads(ConcurrentLinkedQueue<Long> concurrentLinkedQueueOfMySQLRecordOffsets) {
+	public void initializeMySQLArchiveRecordToSolrProcessorThreads(MySQLRecordIdRangeQueue mySQLRecordIdRangeQueue, SolrCommitPolicy solrCommitPolicy, MemoryBudget memoryBudget) {
 		
 		HrwaManager.writeToLog("Starting processor threads...", true, HrwaManager.LOG_TYPE_STANDARD);
 		
 		for(int i = 0; i < HrwaManager.maxUsableProcessors; i++) {
 			//Create thread
-			mySQLArchiveRecordToSolrProcessorRunnables.add(i, new MySQLArchiveRecordToSolrProcessorRunnable(i, concurrentLinkedQueueOfMySQLRecordOffsets));
+			mySQLArchiveRecordToSolrProcessorRunnables.add(i, new MySQLArchiveRecordToSolrProcessorRunnable(i, mySQLRecordIdRangeQueue, solrCommitPolicy, memoryBudget));
 			
 			//And submit it to the fixedThreadPoolExecutorService so that it will run.
 			//The submit method will return a Future that we can use to check the runnable's
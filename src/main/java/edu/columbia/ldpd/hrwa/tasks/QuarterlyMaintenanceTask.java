@@ -22,6 +22,7 @@ import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -50,11 +51,17 @@ import com.gargoylesoftware.htmlunit.html.HtmlPage;
 
 import edu.columbia.ldpd.hrwa.HrwaManager;
 import edu.columbia.ldpd.hrwa.mysql.MySQLHelper;
+import edu.columbia.ldpd.hrwa.mysql.MySQLRecordIdRangeQueue;
+import edu.columbia.ldpd.hrwa.processorrunnables.ArchiveFileWorkQueue;
 import edu.columbia.ldpd.hrwa.processorrunnables.ArchiveFileProcessorRunnable;
 import edu.columbia.ldpd.hrwa.processorrunnables.MySQLArchiveRecordToSolrProcessorRunnable;
 import edu.columbia.ldpd.hrwa.solr.ASFSolrIndexer;
+import edu.columbia.ldpd.hrwa.util.common.MemoryBudget;
 
 public class QuarterlyMaintenanceTask extends HrwaTask {
+	
+	//Downloaded files that are waiting to be read, per reader thread.  Downloads wait when the readers fall this far behind.
+	private static final int MAX_WAITING_ARCHIVE_FILES_PER_READER = 2;
 
 	public QuarterlyMaintenanceTask() {
 		
@@ -64,6 +71,18 @@ public class QuarterlyMaintenanceTask extends HrwaTask {
 		
 		writeTaskHeaderMessageAndSetStartTime();
 		
+		if(HrwaManager.streamQuarterlyMaintenance) {
+			runStagesAtTheSameTime();
+		} else {
+			runStagesOneAfterAnother();
+		}
+		
+		writeTaskFooterMessageAndPrintTotalTime();
+		
+	}
+	
+	private void runStagesOneAfterAnother() {
+		
 		//Download archive files
 		HrwaTask downloadArchiveFilesFromArchivitTask = new DownloadArchiveFilesFromArchivitTask();
 		downloadArchiveFilesFromArchivitTask.runTask();
@@ -79,8 +98,78 @@ public class QuarterlyMaintenanceTask extends HrwaTask {
 		HrwaTask mySQLArchiveRecordsToSolrTask = new MySQLArchiveRecordsToSolrTask();
 		mySQLArchiveRecordsToSolrTask.runTask();
 		
-		writeTaskFooterMessageAndPrintTotalTime();
+	}
+	
+	/**
+	 * Runs the same three tasks as runStagesOneAfterAnother(), but overlaps them: every archive file is queued for
+	 * indexing as soon as it has been downloaded, and every batch of records is queued for Solr indexing as soon as it
+	 * has been committed to MySQL.  Each stage waits when the next one falls too far behind, so the queues between
+	 * them stay small.  Each stage ends once the stage before it has ended and its queue is empty.
+	 */
+	private void runStagesAtTheSameTime() {
+		
+		//Both indexing stages hold MySQL connections and heap at the same time, so they share the pool and split the memory budget
+		MySQLHelper.setConnectionPoolSizeForThreads((HrwaManager.maxUsableProcessors + 1) * 2);
+		long memoryBudgetPerStageInBytes = HrwaManager.maxMemoryThresholdInBytesForStartingNewThreadProcesses / 2;
 		
+		try {
+			MySQLHelper.createWebArchiveRecordsTableIfItDoesNotExist();
+		} catch (SQLException e) {
+			HrwaManager.writeToLog("Error: Could not create the MySQL web archive records table.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			System.exit(HrwaManager.EXIT_CODE_ERROR);
+		}
+		
+		//The Solr stage has to find the existing UPDATED records before any new ones are written
+		MySQLArchiveRecordsToSolrTask mySQLArchiveRecordsToSolrTask = new MySQLArchiveRecordsToSolrTask(new MemoryBudget(memoryBudgetPerStageInBytes));
+		final MySQLRecordIdRangeQueue committedRecordIdRangeQueue = mySQLArchiveRecordsToSolrTask.openQueueForNewlyCommittedRecords();
+		
+		final ArchiveFileWorkQueue archiveFileWorkQueue = new ArchiveFileWorkQueue(HrwaManager.maxUsableProcessors * MAX_WAITING_ARCHIVE_FILES_PER_READER);
+		final HrwaTask downloadArchiveFilesFromArchivitTask = new DownloadArchiveFilesFromArchivitTask(archiveFileWorkQueue);
+		final HrwaTask archiveToMySQLTask = new ArchiveToMySQLTask(archiveFileWorkQueue, committedRecordIdRangeQueue, new MemoryBudget(memoryBudgetPerStageInBytes));
+		
+		ExecutorService stageExecutorService = Executors.newFixedThreadPool(2);
+		
+		Future<?> downloadFuture = stageExecutorService.submit(new Runnable() {
+			public void run() {
+				try {
+					downloadArchiveFilesFromArchivitTask.runTask();
+				} finally {
+					//No matter how the downloads ended, the readers can stop once they've read everything that was downloaded
+					archiveFileWorkQueue.close();
+				}
+			}
+		});
+		
+		Future<?> archiveToMySQLFuture = stageExecutorService.submit(new Runnable() {
+			public void run() {
+				try {
+					archiveToMySQLTask.runTask();
+				} finally {
+					//Adds the last (partial) range of committed records
+					committedRecordIdRangeQueue.close();
+				}
+			}
+		});
+		
+		stageExecutorService.shutdown();
+		
+		//Solr indexing runs on this thread, and returns once the MySQL stage is done and everything it wrote has been indexed
+		mySQLArchiveRecordsToSolrTask.runTask();
+		
+		waitForStage(downloadFuture, "download");
+		waitForStage(archiveToMySQLFuture, "ArchiveToMySQL");
+	}
+	
+	private void waitForStage(Future<?> stageFuture, String stageName) {
+		try {
+			stageFuture.get(); //.get() method will throw any uncaught exceptions from this stage
+		} catch (InterruptedException e) {
+			HrwaManager.writeToLog("Interrupted while waiting for the " + stageName + " stage to finish.", true, HrwaManager.LOG_TYPE_ERROR);
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			HrwaManager.writeToLog("An uncaught exception was found in the " + stageName + " stage: " + e.getCause(), true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+		}
 	}
 	
 }
@@ -0,0 +1,131 @@
+package edu.columbia.ldpd.hrwa.tasks;
+
+import java.io.File;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+import edu.columbia.ldpd.hrwa.blobstore.BlobStore;
+import edu.columbia.ldpd.hrwa.mysql.MySQLHelper;
+import edu.columbia.ldpd.hrwa.mysql.StreamingResultSetIterator;
+import edu.columbia.ldpd.hrwa.solr.ExtractedTextCache;
+import edu.columbia.ldpd.hrwa.solr.LocalContentExtractor;
+
+/**
+ * Fills the extracted text cache (see ExtractedTextCache) for every indexable web archive record, without touching Solr.
+ * Payloads that already have an up-to-date cache entry are skipped, so this can be re-run at any time, e.g. to warm the
+ * cache before rebuilding the ASF Solr core from scratch, or after FORMAT_VERSION has changed.  Extraction runs locally
+ * with Tika on HrwaManager.maxUsableProcessors threads.
+ */
+public class RebuildExtractedTextCacheTask extends HrwaTask {
+
+	private final AtomicLong numberOfPayloadsExtracted = new AtomicLong(0);
+	private final AtomicLong numberOfExtractionErrors = new AtomicLong(0);
+
+	public RebuildExtractedTextCacheTask() {
+
+	}
+
+	public void runTask() {
+
+		writeTaskHeaderMessageAndSetStartTime();
+
+		ExtractedTextCache extractedTextCache = new ExtractedTextCache(new File(ExtractedTextCache.getCacheDirPath()), HrwaManager.extractedTextCacheSizeInMegabytes * 1024L * 1024L);
+		HrwaManager.writeToLog(extractedTextCache.getStatisticsMessage(), true, HrwaManager.LOG_TYPE_STANDARD);
+
+		//The calling thread extracts a payload itself when every extraction thread is busy, so we never hold more than a few rows' worth of work
+		int numberOfThreads = Math.max(1, HrwaManager.maxUsableProcessors);
+		ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
+			numberOfThreads, numberOfThreads, 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(numberOfThreads * 2),
+			new ThreadPoolExecutor.CallerRunsPolicy()
+		);
+
+		long numberOfRecordsChecked = 0;
+		long numberOfRecordsAlreadyCached = 0;
+
+		try {
+			StreamingResultSetIterator rowIterator = MySQLHelper.streamQuery(
+				"SELECT digest, blob_path, " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".mimetype_detected as mimetype_detected" +
+				" FROM " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME +
+				" INNER JOIN " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + " ON " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".mimetype_detected =  " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + ".mimetype_detected" +
+				" WHERE " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".status_code = 200" +
+				" AND " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + ".mimetype_code IN " + HrwaManager.DESIRED_SOLR_INDEXED_MIMETYPE_CODES_STRING_FOR_MYSQL_WHERE_CLAUSE_LIST +
+				" AND " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".site_id IS NOT NULL" +
+				" AND digest IS NOT NULL AND blob_path IS NOT NULL"
+			);
+
+			try {
+				while(rowIterator.hasNext()) {
+					ResultSet resultSet = rowIterator.next();
+					String digest = resultSet.getString("digest");
+					String blobPath = resultSet.getString("blob_path");
+					String mimetypeDetected = resultSet.getString("mimetype_detected");
+
+					numberOfRecordsChecked++;
+					if(numberOfRecordsChecked % HrwaManager.regularMaintenanceMySQLRowRetrievalSize == 0) {
+						System.out.println("Records checked: " + numberOfRecordsChecked + ", payloads extracted: " + numberOfPayloadsExtracted.get()); //This doesn't need to be logged.
+					}
+
+					//Recaptures of unchanged pages share a digest, so most rows are already cached
+					if(extractedTextCache.contains(digest, mimetypeDetected)) {
+						numberOfRecordsAlreadyCached++;
+						continue;
+					}
+
+					if( ! HrwaManager.previewMode ) {
+						threadPoolExecutor.execute(createExtractionRunnable(extractedTextCache, digest, blobPath, mimetypeDetected));
+					}
+				}
+			} finally {
+				rowIterator.close();
+			}
+		} catch (SQLException e) {
+			HrwaManager.writeToLog("Error: An SQLException occurred while rebuilding the extracted text cache.\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			e.printStackTrace();
+			System.exit(HrwaManager.EXIT_CODE_ERROR);
+		}
+
+		threadPoolExecutor.shutdown();
+		try {
+			threadPoolExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		HrwaManager.writeToLog("Done rebuilding the extracted text cache! Records checked: " + numberOfRecordsChecked + ", already cached: " + numberOfRecordsAlreadyCached + ", payloads extracted: " + numberOfPayloadsExtracted.get() + ", extraction errors: " + numberOfExtractionErrors.get(), true, HrwaManager.LOG_TYPE_STANDARD);
+		HrwaManager.writeToLog(extractedTextCache.getStatisticsMessage(), true, HrwaManager.LOG_TYPE_STANDARD);
+
+		writeTaskFooterMessageAndPrintTotalTime();
+	}
+
+	private Runnable createExtractionRunnable(final ExtractedTextCache extractedTextCache, final String digest, final String blobPath, final String mimetypeDetected) {
+		return new Runnable() {
+			public void run() {
+				//Another thread may have extracted the same payload in the meantime
+				if(extractedTextCache.contains(digest, mimetypeDetected)) {
+					return;
+				}
+
+				if( ! BlobStore.blobExists(blobPath) ) {
+					numberOfExtractionErrors.incrementAndGet();
+					HrwaManager.writeToLog("Error: Could not find the blob at: " + blobPath, true, HrwaManager.LOG_TYPE_ERROR);
+					return;
+				}
+
+				try {
+					extractedTextCache.put(digest, mimetypeDetected, LocalContentExtractor.extractContent(blobPath, mimetypeDetected));
+					numberOfPayloadsExtracted.incrementAndGet();
+				} catch (Exception e) {
+					numberOfExtractionErrors.incrementAndGet();
+					HrwaManager.writeToLog("Error: " + e.getClass().getSimpleName() + " encountered while extracting text from blob: " + blobPath + "\n" + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+				}
+			}
+		};
+	}
+
+}
@@ -12,6 +12,7 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.text.SimpleDateFormat;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -49,8 +50,15 @@ import com.gargoylesoftware.htmlunit.html.HtmlElement;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
 
 import edu.columbia.ldpd.hrwa.HrwaManager;
+import edu.columbia.ldpd.hrwa.blobstore.BlobStoreLock;
 import edu.columbia.ldpd.hrwa.mysql.MySQLHelper;
+import edu.columbia.ldpd.hrwa.mysql.MySQLRecordIdRange;
+import edu.columbia.ldpd.hrwa.mysql.StreamingResultSetIterator;
+import edu.columbia.ldpd.hrwa.mysql.WebArchiveRecordRelinker;
+import edu.columbia.ldpd.hrwa.mysql.WebArchiveRecordRelinker.WebArchiveRecordLink;
 import edu.columbia.ldpd.hrwa.processorrunnables.ArchiveFileProcessorRunnable;
+import edu.columbia.ldpd.hrwa.processorrunnables.ArchiveRecordMaterializationFilter;
+import edu.columbia.ldpd.hrwa.processorrunnables.DeferredRecordMaterializer;
 import edu.columbia.ldpd.hrwa.processorrunnables.MySQLArchiveRecordToSolrProcessorRunnable;
 import edu.columbia.ldpd.hrwa.solr.ASFSolrIndexer;
 
@@ -61,6 +69,16 @@ public class RegularMaintenanceTask extends HrwaTask {
 	}
 	
 	public void runTask() {
+		//Deferred records get their blobs written during maintenance, so the CompactBlobStoreTask has to wait until this task is done
+		BlobStoreLock blobStoreLock = acquireBlobStoreLockForWriting();
+		try {
+			runMaintenance();
+		} finally {
+			blobStoreLock.release();
+		}
+	}
+	
+	private void runMaintenance() {
 		
 		writeTaskHeaderMessageAndSetStartTime();
 		
@@ -70,15 +88,13 @@ public class RegularMaintenanceTask extends HrwaTask {
 		HrwaTask sitesToSolrAndMySQLTask = new SitesToSolrAndMySQLTask();
 		sitesToSolrAndMySQLTask.runTask();
 		
-		//Update unlinked web archive records that should be linked to new sites (linked by sites table hoststring or related_hosts table entries)
-		//Do this in batches of 1000 to avoid massive MySQL joins that can cause memory problems or major slowdowns
-		
-		long maxWebArchiveRecordMySQLId = MySQLHelper.getMaxIdFromWebArchiveRecordsTable();
+		//Relink web archive records to new/updated/deleted sites and related hosts.
+		//The small sites and related_hosts tables are loaded into memory, and web_archive_records is streamed once.
+		//Only rows that actually change are written back, in batches, on a separate connection.
 		
 		Connection conn = MySQLHelper.getNewDBConnection(true); //we want auto-commit to be on!
 		PreparedStatement pstmt;
 		ResultSet resultSet;
-		long currentRecordRetrievalOffset;
 		long rowsAffected;
 		
 		try {
@@ -105,272 +121,139 @@ public class RegularMaintenanceTask extends HrwaTask {
 				System.exit(HrwaManager.EXIT_CODE_ERROR);
 			}
 			
-			//Get number of DELETED sites.  If > 0, then we want to run through MySQL and unlink these sites from their corresponding web archive records, marking each web archive record hrwa_manager_todo field as DELETED 
-			if(MySQLHelper.getSitesMap("WHERE sites.hrwa_manager_todo = 'DELETED'").size() > 0) {
+			WebArchiveRecordRelinker relinker = WebArchiveRecordRelinker.loadFromMySQL();
+			HrwaManager.writeToLog("Relinking web archive records. DELETED sites: " + relinker.getNumberOfDeletedSites() + ", NEW sites: " + relinker.getNumberOfNewSites() + ", NEW related hosts: " + relinker.getNumberOfNewRelatedHosts() + ", UPDATED sites: " + relinker.getNumberOfUpdatedSites() + ", METADATA_UPDATED sites: " + relinker.getNumberOfMetadataUpdatedSites(), true, HrwaManager.LOG_TYPE_STANDARD);
 			
-				pstmt = conn.prepareStatement(
-					"UPDATE web_archive_records" +
-					" INNER JOIN sites ON web_archive_records.site_id = sites.id" +
-					" SET web_archive_records.site_id = NULL, web_archive_records.hrwa_manager_todo = 'DELETED', web_archive_records.linked_via_related_host = 0" +  
-					" WHERE" + 
-					" web_archive_records.id >= ?" +
-					" AND web_archive_records.id <= ?" +
-					" AND sites.hrwa_manager_todo = 'DELETED'" +
-					" AND web_archive_records.site_id IS NOT NULL" +
-					" AND (" +
-						" web_archive_records.hrwa_manager_todo IS NULL" +
-						" OR" +
-						" web_archive_records.hrwa_manager_todo != 'NOINDEX'" +
-					" )"
-				);
-				
-				for(currentRecordRetrievalOffset = 0, rowsAffected = 0; currentRecordRetrievalOffset < maxWebArchiveRecordMySQLId; currentRecordRetrievalOffset += HrwaManager.regularMaintenanceMySQLRowRetrievalSize) {
-					System.out.println("Unlinking and marking for deletion any web archive records linked to DELETED sites. MySQL batch " + (currentRecordRetrievalOffset/HrwaManager.regularMaintenanceMySQLRowRetrievalSize) + " of " + (maxWebArchiveRecordMySQLId/HrwaManager.regularMaintenanceMySQLRowRetrievalSize) + " (" + rowsAffected + " rows updated so far)...");
-					pstmt.setLong(1, currentRecordRetrievalOffset);
-					pstmt.setLong(2, currentRecordRetrievalOffset + HrwaManager.regularMaintenanceMySQLRowRetrievalSize);
-					rowsAffected += pstmt.executeUpdate();
-				}
-				
-				pstmt.close();
-				
-				HrwaManager.writeToLog("Done linking web archive records to NEW sites! " +
-				"Affected rows: " + rowsAffected, true, HrwaManager.LOG_TYPE_STANDARD);
-				
-				totalNumberOfWebArchiveRecordRowsUpdatedByThisTask += rowsAffected;
-		
+			totalNumberOfWebArchiveRecordRowsUpdatedByThisTask += relinkAllWebArchiveRecords(relinker);
+			
+			//Records whose payloads were skipped by the ArchiveToMySQLTask can only be indexed once they've been read
+			DeferredRecordMaterializer deferredRecordMaterializer = new DeferredRecordMaterializer(ArchiveRecordMaterializationFilter.parse(HrwaManager.materializationFilterRules), relinker);
+			totalNumberOfWebArchiveRecordRowsUpdatedByThisTask += deferredRecordMaterializer.materializeLinkedDeferredRecords();
+			
+			//Now that the record changes have been committed, the sites and related hosts todo states have been handled
+			pstmt = conn.prepareStatement("UPDATE sites SET hrwa_manager_todo = NULL WHERE hrwa_manager_todo = 'NEW'");
+			HrwaManager.writeToLog("Total number of hrwa_manager_todo='NEW' sites reset to NULL: " + pstmt.executeUpdate(), true, HrwaManager.LOG_TYPE_STANDARD);
+			pstmt.close();
+			
+			pstmt = conn.prepareStatement("UPDATE related_hosts SET hrwa_manager_todo = NULL WHERE hrwa_manager_todo = 'NEW'");
+			HrwaManager.writeToLog("Total number of hrwa_manager_todo='NEW' related_hosts reset to NULL: " + pstmt.executeUpdate(), true, HrwaManager.LOG_TYPE_STANDARD);
+			pstmt.close();
+			
+			pstmt = conn.prepareStatement("UPDATE sites SET hrwa_manager_todo = NULL WHERE hrwa_manager_todo = 'UPDATED'");
+			HrwaManager.writeToLog("Total number of hrwa_manager_todo='UPDATED' sites reset to NULL: " + pstmt.executeUpdate(), true, HrwaManager.LOG_TYPE_STANDARD);
+			pstmt.close();
+			
+			pstmt = conn.prepareStatement("UPDATE sites SET hrwa_manager_todo = NULL WHERE hrwa_manager_todo = 'METADATA_UPDATED'");
+			HrwaManager.writeToLog("Total number of hrwa_manager_todo='METADATA_UPDATED' sites reset to NULL: " + pstmt.executeUpdate(), true, HrwaManager.LOG_TYPE_STANDARD);
+			pstmt.close();
+			
+			//Records that are marked as DELETED (by this run, or by an earlier run that didn't finish) need to be removed from Solr
+			//before we reset them.  Otherwise, we'd lose track of the Solr docs that need to be deleted.
+			ArrayList<MySQLRecordIdRange> deletedRecordIdRanges = MySQLHelper.getWebArchiveRecordIdRangesWithHrwaManagerTodoValue(MySQLHelper.HRWA_MANAGER_TODO_DELETE, HrwaManager.regularMaintenanceMySQLRowRetrievalSize);
+			
+			if(deletedRecordIdRanges.size() > 0) {
 				
 				//And now do a Solr doc deletion for all MySQL web_archive_records marked as DELETED
-				pstmt = conn.prepareStatement(
-					"SELECT record_identifier FROM web_archive_records" +
-					" WHERE" + 
-					" web_archive_records.id >= ?" +
-					" AND web_archive_records.id <= ?" +
-					" AND hrwa_manager_todo = 'DELETED'"
-				);
-				
 				ASFSolrIndexer.initSingleSolrServerObject();
 				
-				for(currentRecordRetrievalOffset = 0, rowsAffected = 0; currentRecordRetrievalOffset < maxWebArchiveRecordMySQLId; currentRecordRetrievalOffset += HrwaManager.regularMaintenanceMySQLRowRetrievalSize) {
-					System.out.println("Deleting solr docs that are defined as DELETED in the web_archive_records table. MySQL batch " + (currentRecordRetrievalOffset/HrwaManager.regularMaintenanceMySQLRowRetrievalSize) + " of " + (maxWebArchiveRecordMySQLId/HrwaManager.regularMaintenanceMySQLRowRetrievalSize) + " (" + rowsAffected + " rows updated so far)...");
-					
-					pstmt.setLong(1, currentRecordRetrievalOffset);
-					pstmt.setLong(2, currentRecordRetrievalOffset + HrwaManager.regularMaintenanceMySQLRowRetrievalSize);
-					
-					resultSet = pstmt.executeQuery();
-					while(resultSet.next()) {
-						ASFSolrIndexer.deleteAsfDocumentByUniqueIdRecordIdentifier(resultSet.getString(1), false);
-						System.out.println("Deleted document from solr: " + resultSet.getString(1));
-					}
-					resultSet.close();
-					ASFSolrIndexer.commit();
+				//Docs of DELETED sites can be removed with a few delete-by-query requests on their bib_keys
+				ArrayList<String> deletedSiteBibKeys = new ArrayList<String>();
+				pstmt = conn.prepareStatement("SELECT bib_key FROM sites WHERE sites.hrwa_manager_todo = 'DELETED'");
+				resultSet = pstmt.executeQuery();
+				while(resultSet.next()) {
+					deletedSiteBibKeys.add(resultSet.getString(1));
 				}
-				
+				resultSet.close();
 				pstmt.close();
 				
-				ASFSolrIndexer.shutdownSingleSolrServerObject();
-				
-				//And now that we've successfully deleted all of these unwawnted mysql records from solr, let's mark these hrwa_manager_todo = DELETED web archive records as hrwa_manager_todo = NULL
-				pstmt = conn.prepareStatement(
-					"UPDATE web_archive_records" +
-					" SET web_archive_records.hrwa_manager_todo = NULL" +  
-					" WHERE" + 
-					" web_archive_records.id >= ?" +
-					" AND web_archive_records.id <= ?" +
-					" AND web_archive_records.hrwa_manager_todo = 'DELETED'"
-				);
+				boolean solrDeletesSucceeded = true;
 				
-				for(currentRecordRetrievalOffset = 0, rowsAffected = 0; currentRecordRetrievalOffset < maxWebArchiveRecordMySQLId; currentRecordRetrievalOffset += HrwaManager.regularMaintenanceMySQLRowRetrievalSize) {
-					System.out.println("Unlinking and marking for deletion any web archive records linked to DELETED sites. MySQL batch " + (currentRecordRetrievalOffset/HrwaManager.regularMaintenanceMySQLRowRetrievalSize) + " of " + (maxWebArchiveRecordMySQLId/HrwaManager.regularMaintenanceMySQLRowRetrievalSize) + " (" + rowsAffected + " rows updated so far)...");
-					pstmt.setLong(1, currentRecordRetrievalOffset);
-					pstmt.setLong(2, currentRecordRetrievalOffset + HrwaManager.regularMaintenanceMySQLRowRetrievalSize);
-					rowsAffected += pstmt.executeUpdate();
+				if(deletedSiteBibKeys.size() > 0) {
+					System.out.println("Deleting solr docs for " + deletedSiteBibKeys.size() + " DELETED sites by bib_key...");
+					solrDeletesSucceeded = ASFSolrIndexer.deleteAsfDocumentsByFieldValues("bib_key", deletedSiteBibKeys);
 				}
 				
-				pstmt.close();
-				
-				HrwaManager.writeToLog("Done deleting unwanted MySQL records from Solr! " +
-				"Affected rows: " + rowsAffected, true, HrwaManager.LOG_TYPE_STANDARD);
-				
-				totalNumberOfWebArchiveRecordRowsUpdatedByThisTask += rowsAffected;
-				
-				//And we'll also want to remove the deleted sites from the sites table now that we're done with it
-				pstmt = conn.prepareStatement(
-					"DELETE FROM sites WHERE sites.hrwa_manager_todo = 'DELETED'"
-				);
-				
-				rowsAffected = pstmt.executeUpdate();
-				pstmt.close();
-				
-				HrwaManager.writeToLog("Number of hrwa_manager_todo = DELETED sites deleted from the sites table: " + rowsAffected, true, HrwaManager.LOG_TYPE_STANDARD);
-				
-			} else {
-				HrwaManager.writeToLog("No DELETED sites found, so no deleted-sites-related updates were necessary.", true, HrwaManager.LOG_TYPE_STANDARD);
-			}
-			
-			//Get number of NEW sites.  If > 0, then we want to go through all unlinked web archive records and link them to a site
-			if(MySQLHelper.getSitesMap("WHERE sites.hrwa_manager_todo = 'NEW'").size() > 0) {
-			
-				pstmt = conn.prepareStatement(
-					"UPDATE web_archive_records" +
-					" INNER JOIN sites ON web_archive_records.hoststring = sites.hoststring" +
-					" SET web_archive_records.site_id = sites.id, web_archive_records.hrwa_manager_todo = 'UPDATED', web_archive_records.linked_via_related_host = 0" +  
+				//Then delete every DELETED record by id, which also covers records that were left over from an earlier run.
+				//Ids are streamed from MySQL and sent to Solr in large, pipelined deleteById requests.
+				final StreamingResultSetIterator deletedRecordIterator = MySQLHelper.streamQuery(
+					"SELECT record_identifier FROM web_archive_records" +
 					" WHERE" + 
-					" web_archive_records.id >= ?" +
-					" AND web_archive_records.id <= ?" +
-					" AND web_archive_records.site_id IS NULL" + 
-					" AND sites.hrwa_manager_todo = 'NEW'" +
-					" AND (" +
-						" web_archive_records.hrwa_manager_todo IS NULL" +
-						" OR" +
-						" web_archive_records.hrwa_manager_todo != 'NOINDEX'" +
-					" )"
+					" hrwa_manager_todo = 'DELETED'"
 				);
+				final long[] numberOfRecordIdentifiersRead = new long[1];
 				
-				for(currentRecordRetrievalOffset = 0, rowsAffected = 0; currentRecordRetrievalOffset < maxWebArchiveRecordMySQLId; currentRecordRetrievalOffset += HrwaManager.regularMaintenanceMySQLRowRetrievalSize) {
-					System.out.println("Linking web archive records to NEW sites. MySQL batch " + (currentRecordRetrievalOffset/HrwaManager.regularMaintenanceMySQLRowRetrievalSize) + " of " + (maxWebArchiveRecordMySQLId/HrwaManager.regularMaintenanceMySQLRowRetrievalSize) + " (" + rowsAffected + " rows updated so far)...");
-					pstmt.setLong(1, currentRecordRetrievalOffset);
-					pstmt.setLong(2, currentRecordRetrievalOffset + HrwaManager.regularMaintenanceMySQLRowRetrievalSize);
-					rowsAffected += pstmt.executeUpdate();
+				try {
+					solrDeletesSucceeded &= ASFSolrIndexer.deleteAsfDocumentsByRecordIdentifiers(new Iterator<String>() {
+						public boolean hasNext() {
+							return deletedRecordIterator.hasNext();
+						}
+						public String next() {
+							try {
+								numberOfRecordIdentifiersRead[0]++;
+								if(numberOfRecordIdentifiersRead[0] % 100000 == 0) {
+									System.out.println("Deleting solr docs that are defined as DELETED in the web_archive_records table. (" + numberOfRecordIdentifiersRead[0] + " docs sent so far)...");
+								}
+								return deletedRecordIterator.next().getString(1);
+							} catch (SQLException e) {
+								throw new RuntimeException("Error while reading record_identifier: " + e.getMessage(), e);
+							}
+						}
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					});
+				} finally {
+					deletedRecordIterator.close();
 				}
-				HrwaManager.writeToLog("Linking web archive records to NEW sites -- Done! " +
-				"Affected rows: " + rowsAffected, true, HrwaManager.LOG_TYPE_STANDARD);
 				
-				totalNumberOfWebArchiveRecordRowsUpdatedByThisTask += rowsAffected;
-		
-				pstmt.close();
-				
-				//Once all of this updating is done, set the hrwa_manager_todo status to NULL for all sites that were previously marked as NEW 
+				solrDeletesSucceeded &= ASFSolrIndexer.commit();
 				
-				pstmt = conn.prepareStatement("UPDATE sites SET hrwa_manager_todo = NULL WHERE hrwa_manager_todo = 'NEW'");
-				HrwaManager.writeToLog("Total number of hrwa_manager_todo='NEW' sites reset to NULL: " + pstmt.executeUpdate(), true, HrwaManager.LOG_TYPE_STANDARD);
-			
-			} else {
-				HrwaManager.writeToLog("No NEW sites found, so no sites-related updates were necessary.", true, HrwaManager.LOG_TYPE_STANDARD);
-			}
-			
-			//For NEW related hosts, we'll also update unlinked web archive records that should be linked via related hosts to sites
-			//Do this in groups of 1000 to avoid massive MySQL joins that can cause memory problems or major slowdowns
-			
-			//Get number of NEW related hosts.  If > 0, then we want to go through all unlinked web archive records and link them to a site THROUGH a related host
-			if(MySQLHelper.getRelatedHostsMap("WHERE related_hosts.hrwa_manager_todo = 'NEW'").size() > 0) {
-				pstmt = conn.prepareStatement(
-					"UPDATE web_archive_records" +
-					" INNER JOIN related_hosts ON web_archive_records.hoststring = related_hosts.related_host" +
-					" INNER JOIN sites ON related_hosts.site_id = sites.id" +
-					" SET web_archive_records.site_id = sites.id, web_archive_records.hrwa_manager_todo = 'UPDATED', linked_via_related_host = 1" +
-					" WHERE" +
-					" web_archive_records.id >= ?" +
-					" AND web_archive_records.id <= ?" +
-					" AND web_archive_records.site_id IS NULL" +
-					" AND related_hosts.hrwa_manager_todo = 'NEW'" +
-					" AND (" +
-						" web_archive_records.hrwa_manager_todo IS NULL" +
-						" OR" +
-						" web_archive_records.hrwa_manager_todo != 'NOINDEX'" +
-					" )"
-				);
+				ASFSolrIndexer.shutdownSingleSolrServerObject();
 				
-				for(currentRecordRetrievalOffset = 0, rowsAffected = 0; currentRecordRetrievalOffset < maxWebArchiveRecordMySQLId; currentRecordRetrievalOffset += HrwaManager.regularMaintenanceMySQLRowRetrievalSize) {
-					System.out.println("Linking web archive records to NEW related hosts. MySQL batch " + (currentRecordRetrievalOffset/HrwaManager.regularMaintenanceMySQLRowRetrievalSize) + " of " + (maxWebArchiveRecordMySQLId/HrwaManager.regularMaintenanceMySQLRowRetrievalSize) + " (" + rowsAffected + " rows updated so far)...");
-					pstmt.setLong(1, currentRecordRetrievalOffset);
-					pstmt.setLong(2, currentRecordRetrievalOffset + HrwaManager.regularMaintenanceMySQLRowRetrievalSize);
-					rowsAffected += pstmt.executeUpdate();
-				}
-				HrwaManager.writeToLog("Linking web archive records to NEW related hosts -- Done! " +
-						"Affected rows: " + rowsAffected, true, HrwaManager.LOG_TYPE_STANDARD);
+				HrwaManager.writeToLog("Number of DELETED web archive record docs sent to Solr for deletion: " + numberOfRecordIdentifiersRead[0], true, HrwaManager.LOG_TYPE_STANDARD);
 				
-				totalNumberOfWebArchiveRecordRowsUpdatedByThisTask += rowsAffected;
+				if( ! solrDeletesSucceeded ) {
+					//Leave the records marked as DELETED so that the next run will try to delete them again
+					HrwaManager.writeToLog("Error: Some Solr delete requests failed, so web archive records will stay marked as DELETED until the next RegularMaintenanceTask run.", true, HrwaManager.LOG_TYPE_ERROR);
+				} else {
 				
-				pstmt.close();
+					//And now that we've successfully deleted all of these unwawnted mysql records from solr, let's mark these hrwa_manager_todo = DELETED web archive records as hrwa_manager_todo = NULL
+					pstmt = conn.prepareStatement(
+						"UPDATE web_archive_records" +
+						" SET web_archive_records.hrwa_manager_todo = NULL" +  
+						" WHERE" + 
+						" web_archive_records.hrwa_manager_todo = 'DELETED'" +
+						" AND web_archive_records.id >= ?" +
+						" AND web_archive_records.id < ?"
+					);
 				
-				//Once all of this updating is done, set the hrwa_manager_todo status to NULL for all related hosts that were previously marked as NEW 
-				pstmt = conn.prepareStatement("UPDATE related_hosts SET hrwa_manager_todo = NULL WHERE hrwa_manager_todo = 'NEW'");
-				HrwaManager.writeToLog("Total number of hrwa_manager_todo='NEW' related_hosts reset to NULL: " + pstmt.executeUpdate(), true, HrwaManager.LOG_TYPE_STANDARD);
+					rowsAffected = 0;
+					for(MySQLRecordIdRange deletedRecordIdRange : deletedRecordIdRanges) {
+						System.out.println("Resetting hrwa_manager_todo for web archive records that were deleted from Solr. Records " + deletedRecordIdRange + " (" + rowsAffected + " rows updated so far)...");
+						pstmt.setLong(1, deletedRecordIdRange.getStartId());
+						pstmt.setLong(2, deletedRecordIdRange.getEndId());
+						rowsAffected += pstmt.executeUpdate();
+					}
 				
-			} else {
-				HrwaManager.writeToLog("No NEW related hosts found, so no related-hosts-related updates were necessary.", true, HrwaManager.LOG_TYPE_STANDARD);
-			}
-			
-			//For UPDATED sites, we'll also update the archive records that are related to these updated sites
-			//Do this in groups of 1000 to avoid massive MySQL joins that could cause memory problems or major slowdowns
-			
-			//Get number of UPDATED sites.  If > 0, then we want to mark all linked web archive records as UPDATED
-			if(MySQLHelper.getSitesMap("WHERE sites.hrwa_manager_todo = 'UPDATED'").size() > 0) {
-			
-				pstmt = conn.prepareStatement(
-					"UPDATE web_archive_records" +
-					" INNER JOIN sites ON web_archive_records.site_id = sites.id" +
-					" INNER JOIN " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + " ON " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".mimetype_detected =  " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + ".mimetype_detected" +
-					" SET web_archive_records.hrwa_manager_todo = 'UPDATED'" +
-					" WHERE" +
-					" web_archive_records.id >= ?" + 
-					" AND web_archive_records.id <= ?" +
-					" AND web_archive_records.site_id IS NOT NULL" +
-					" AND (" +
-						" web_archive_records.hrwa_manager_todo IS NULL" +
-						" OR" +
-						" web_archive_records.hrwa_manager_todo != 'NOINDEX'" +
-					" )" +
-					" AND sites.hrwa_manager_todo = 'UPDATED'" +
-					" AND " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + ".mimetype_code IN " + HrwaManager.DESIRED_SOLR_INDEXED_MIMETYPE_CODES_STRING_FOR_MYSQL_WHERE_CLAUSE_LIST
-				);
+					pstmt.close();
 				
-				for(currentRecordRetrievalOffset = 0, rowsAffected = 0; currentRecordRetrievalOffset < maxWebArchiveRecordMySQLId; currentRecordRetrievalOffset += HrwaManager.regularMaintenanceMySQLRowRetrievalSize) {
-					System.out.println("Updating web archive records hrwa_manager_todo = 'UPDATED' where associated site has been marked as UPDATED. MySQL batch " + (currentRecordRetrievalOffset/HrwaManager.regularMaintenanceMySQLRowRetrievalSize) + " of " + (maxWebArchiveRecordMySQLId/HrwaManager.regularMaintenanceMySQLRowRetrievalSize) + " (" + rowsAffected + " rows updated so far)...");
-					pstmt.setLong(1, currentRecordRetrievalOffset);
-					pstmt.setLong(2, currentRecordRetrievalOffset + HrwaManager.regularMaintenanceMySQLRowRetrievalSize);
-					rowsAffected += pstmt.executeUpdate();
+					HrwaManager.writeToLog("Done deleting unwanted MySQL records from Solr! " +
+					"Affected rows: " + rowsAffected, true, HrwaManager.LOG_TYPE_STANDARD);
 				}
-				HrwaManager.writeToLog("Done updating web archive records where associated site has been marked as UPDATED! " +
-				"Affected rows: " + rowsAffected, true, HrwaManager.LOG_TYPE_STANDARD);
-		
-				totalNumberOfWebArchiveRecordRowsUpdatedByThisTask += rowsAffected;
-				
-				pstmt.close();
 				
-				//One all of this updating is done, set the hrwa_manager_todo status to NULL for all sites that were previously marked as UPDATED 
-				
-				pstmt = conn.prepareStatement("UPDATE sites SET hrwa_manager_todo = NULL WHERE hrwa_manager_todo = 'UPDATED'");
-				HrwaManager.writeToLog("Total number of hrwa_manager_todo='UPDATED' sites reset to NULL: " + pstmt.executeUpdate(), true, HrwaManager.LOG_TYPE_STANDARD);
-			
 			} else {
-				HrwaManager.writeToLog("No NEW sites found, so no sites-related updates were necessary.", true, HrwaManager.LOG_TYPE_STANDARD);
+				HrwaManager.writeToLog("No DELETED web archive records found, so no Solr deletions were necessary.", true, HrwaManager.LOG_TYPE_STANDARD);
 			}
 			
-			//Now Scan through all web_archive_records table rows and set hrwa_manager_todo to NULL
-			//for all archive records that should not be indexed.
+			//And we'll also want to remove the deleted sites from the sites table now that we're done with it
 			pstmt = conn.prepareStatement(
-				"UPDATE web_archive_records" +
-				" LEFT OUTER JOIN " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + " ON " + HrwaManager.MYSQL_WEB_ARCHIVE_RECORDS_TABLE_NAME + ".mimetype_detected =  " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + ".mimetype_detected" +
-				" SET hrwa_manager_todo = NULL" +
-				" WHERE" +
-				" web_archive_records.id >= ?" +
-				" AND" +
-				" web_archive_records.id <= ?" +
-				" AND" +
-				" web_archive_records.hrwa_manager_todo IS NOT NULL" +
-				" AND (" +
-				//	" web_archive_records.hrwa_manager_todo IS NULL" +
-				//	" OR" +
-					" web_archive_records.hrwa_manager_todo != 'NOINDEX'" +
-				" )" +
-				" AND (" +
-					" site_id IS NULL" +
-					" OR " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + ".mimetype_code IS NULL" +
-					" OR " + HrwaManager.MYSQL_MIMETYPE_CODES_TABLE_NAME + ".mimetype_code NOT IN " + HrwaManager.DESIRED_SOLR_INDEXED_MIMETYPE_CODES_STRING_FOR_MYSQL_WHERE_CLAUSE_LIST +
-				" )"
+				"DELETE FROM sites WHERE sites.hrwa_manager_todo = 'DELETED'"
 			);
 			
-			for(currentRecordRetrievalOffset = 0, rowsAffected = 0; currentRecordRetrievalOffset < maxWebArchiveRecordMySQLId; currentRecordRetrievalOffset += HrwaManager.regularMaintenanceMySQLRowRetrievalSize) {
-				System.out.println("Setting hrwa_manager_todo = NULL for items that we don't want to index. MySQL batch " + (currentRecordRetrievalOffset/HrwaManager.regularMaintenanceMySQLRowRetrievalSize) + " of " + (maxWebArchiveRecordMySQLId/HrwaManager.regularMaintenanceMySQLRowRetrievalSize) + " (" + rowsAffected + " rows updated so far)...");
-				pstmt.setLong(1, currentRecordRetrievalOffset);
-				pstmt.setLong(2, currentRecordRetrievalOffset + HrwaManager.regularMaintenanceMySQLRowRetrievalSize);
-				rowsAffected += pstmt.executeUpdate();
-			}
-			HrwaManager.writeToLog("Setting hrwa_manager_todo = NULL for items that we don't want to index -- Done! " +
-			"Affected rows: " + rowsAffected, true, HrwaManager.LOG_TYPE_STANDARD);
-			
+			rowsAffected = pstmt.executeUpdate();
 			pstmt.close();
+			
+			HrwaManager.writeToLog("Number of hrwa_manager_todo = DELETED sites deleted from the sites table: " + rowsAffected, true, HrwaManager.LOG_TYPE_STANDARD);
 		
 		} catch (SQLException e) {
 			e.printStackTrace();
@@ -398,4 +281,94 @@ public class RegularMaintenanceTask extends HrwaTask {
 		
 	}
 	
+	/**
+	 * Streams (id, hoststring, site_id, linked_via_related_host, mimetype_detected, hrwa_manager_todo) for every web archive record,
+	 * applies the relinker's rules to each row and writes back the rows that changed.
+	 * Changed rows are committed every regularMaintenanceMySQLRowRetrievalSize rows.
+	 * @param relinker
+	 * @return The number of rows that were marked as UPDATED, METADATA_UPDATED or DELETED.
+	 * @throws SQLException
+	 */
+	private long relinkAllWebArchiveRecords(WebArchiveRecordRelinker relinker) throws SQLException {
+		
+		long numberOfRowsScanned = 0;
+		long numberOfRowsChanged = 0;
+		long numberOfRowsMarkedAsUpdatedOrDeleted = 0;
+		
+		//The streaming connection can't be used for anything else until the scan is done, so updates go through a second connection
+		Connection updateConn = MySQLHelper.getNewDBConnection(false);
+		
+		try {
+			PreparedStatement updatePstmt = updateConn.prepareStatement(
+				"UPDATE web_archive_records" +
+				" SET site_id = ?, linked_via_related_host = ?, hrwa_manager_todo = ?" +
+				" WHERE id = ?"
+			);
+			int numberOfBatchedUpdates = 0;
+			
+			StreamingResultSetIterator recordIterator = MySQLHelper.streamQuery(
+				"SELECT id, hoststring, site_id, linked_via_related_host, mimetype_detected, hrwa_manager_todo FROM web_archive_records"
+			);
+			
+			try {
+				while(recordIterator.hasNext()) {
+					ResultSet resultSet = recordIterator.next();
+					int siteId = resultSet.getInt(3);
+					boolean siteIdIsNull = resultSet.wasNull();
+					WebArchiveRecordLink record = new WebArchiveRecordLink(
+						resultSet.getLong(1),
+						resultSet.getString(2),
+						resultSet.getString(5),
+						siteIdIsNull ? null : Integer.valueOf(siteId),
+						resultSet.getBoolean(4),
+						resultSet.getString(6)
+					);
+					numberOfRowsScanned++;
+					
+					if( ! relinker.relink(record) ) {
+						continue;
+					}
+					
+					if(record.siteId == null) {
+						updatePstmt.setNull(1, Types.INTEGER);
+					} else {
+						updatePstmt.setInt(1, record.siteId);
+					}
+					updatePstmt.setBoolean(2, record.linkedViaRelatedHost);
+					updatePstmt.setString(3, record.hrwaManagerTodo);
+					updatePstmt.setLong(4, record.id);
+					updatePstmt.addBatch();
+					numberOfBatchedUpdates++;
+					numberOfRowsChanged++;
+					
+					if(record.hrwaManagerTodo != null && ! MySQLHelper.HRWA_MANAGER_TODO_DEFERRED.equals(record.hrwaManagerTodo)) {
+						numberOfRowsMarkedAsUpdatedOrDeleted++;
+					}
+					
+					if(numberOfBatchedUpdates >= HrwaManager.regularMaintenanceMySQLRowRetrievalSize) {
+						updatePstmt.executeBatch();
+						updateConn.commit();
+						numberOfBatchedUpdates = 0;
+						System.out.println("Relinking web archive records. " + numberOfRowsScanned + " rows scanned, " + numberOfRowsChanged + " rows updated so far...");
+					}
+				}
+			} finally {
+				recordIterator.close();
+			}
+			
+			if(numberOfBatchedUpdates > 0) {
+				updatePstmt.executeBatch();
+				updateConn.commit();
+			}
+			updatePstmt.close();
+			
+		} finally {
+			updateConn.close();
+		}
+		
+		HrwaManager.writeToLog("Relinking web archive records -- Done! Rows scanned: " + numberOfRowsScanned + ", rows updated: " + numberOfRowsChanged + " (" + numberOfRowsMarkedAsUpdatedOrDeleted + " marked as UPDATED, METADATA_UPDATED or DELETED)", true, HrwaManager.LOG_TYPE_STANDARD);
+		
+		return numberOfRowsMarkedAsUpdatedOrDeleted;
+	}
+	
 }
@@ -23,6 +23,7 @@ import edu.columbia.ldpd.hrwa.HrwaSiteRecord;
 import edu.columbia.ldpd.hrwa.clio.Main;
 import edu.columbia.ldpd.hrwa.clio.SolrDoc;
 import edu.columbia.ldpd.hrwa.marc.z3950.MARCFetcher;
+import edu.columbia.ldpd.hrwa.mysql.HoststringResolver;
 import edu.columbia.ldpd.hrwa.mysql.MySQLHelper;
 import edu.columbia.ldpd.hrwa.solr.SolrIndexer;
 
@@ -164,6 +165,9 @@ public class SitesToSolrAndMySQLTask extends HrwaTask {
 			HrwaManager.writeToLog("Error: Could not update the MySQL related hosts tables.", true, HrwaManager.LOG_TYPE_ERROR);
 			e.printStackTrace();
 		}
+        
+        //Any archive records that are written after this point should be linked using the updated sites and related hosts
+        HoststringResolver.reloadFromMySQL();
 		
 		//If the temp directories are empty, delete them (and all files in them)
 		try {
@@ -0,0 +1,162 @@
+package edu.columbia.ldpd.hrwa.util.common;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import edu.columbia.ldpd.hrwa.TimeStringFormat;
+
+/**
+ * A weighted semaphore for heap memory.  Threads acquire the number of bytes that they expect a unit of work
+ * (e.g. an archive record) to hold on the heap, and release them once that work is done.  When the budget is used
+ * up, acquire() blocks until enough bytes have been released.  Waiters are woken up as soon as bytes are released
+ * and are served in FIFO order, so a large request can't be starved by a steady stream of small ones.
+ *
+ * Requests for more than the whole budget are reduced to the size of the budget.  Such a request waits until
+ * nothing else is in flight and then runs alone, which is the best that we can do for a single huge record.
+ *
+ * acquire() returns the number of bytes that were actually taken from the budget.  Pass that number to release().
+ */
+public class MemoryBudget {
+
+	private final long capacityInBytes;
+	private long bytesInUse = 0;
+	private long peakBytesInUse = 0;
+
+	//Tokens of waiting threads, in arrival order
+	private final Deque<Object> waiters = new ArrayDeque<Object>();
+
+	private long numberOfAcquisitions = 0;
+	private long numberOfAcquisitionsThatWaited = 0;
+	private long totalWaitTimeInMillis = 0;
+	private long maxWaitTimeInMillis = 0;
+
+	public MemoryBudget(long capacityInBytes) {
+		if(capacityInBytes < 1) {
+			throw new IllegalArgumentException("A MemoryBudget needs a capacity of at least 1 byte.  Given: " + capacityInBytes);
+		}
+		this.capacityInBytes = capacityInBytes;
+	}
+
+	/**
+	 * Takes the given number of bytes from the budget, waiting for other threads to release bytes if necessary.
+	 * @param bytes
+	 * @return The number of bytes taken, which must be passed to release() later.
+	 * @throws InterruptedException
+	 */
+	public synchronized long acquire(long bytes) throws InterruptedException {
+
+		long weight = getWeight(bytes);
+		numberOfAcquisitions++;
+
+		if(waiters.isEmpty() && fits(weight)) {
+			take(weight);
+			return weight;
+		}
+
+		Object token = new Object();
+		waiters.addLast(token);
+		long waitStartTime = System.currentTimeMillis();
+
+		try {
+			while(waiters.peekFirst() != token || ! fits(weight)) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			waiters.remove(token);
+			//The next waiter might be able to go now
+			notifyAll();
+			throw e;
+		}
+
+		waiters.removeFirst();
+		take(weight);
+
+		long waitTimeInMillis = System.currentTimeMillis() - waitStartTime;
+		numberOfAcquisitionsThatWaited++;
+		totalWaitTimeInMillis += waitTimeInMillis;
+		maxWaitTimeInMillis = Math.max(maxWaitTimeInMillis, waitTimeInMillis);
+
+		//The next waiter might fit as well
+		notifyAll();
+
+		return weight;
+	}
+
+	/**
+	 * Takes the given number of bytes from the budget if that can be done without waiting.
+	 * @param bytes
+	 * @return The number of bytes taken, which must be passed to release() later, or -1 if nothing was taken.
+	 */
+	public synchronized long tryAcquire(long bytes) {
+
+		long weight = getWeight(bytes);
+
+		if( ! waiters.isEmpty() || ! fits(weight) ) {
+			return -1;
+		}
+
+		numberOfAcquisitions++;
+		take(weight);
+		return weight;
+	}
+
+	/**
+	 * Gives back bytes that were returned by acquire() or tryAcquire().
+	 * @param weight
+	 */
+	public synchronized void release(long weight) {
+		if(weight <= 0) {
+			return;
+		}
+		bytesInUse = Math.max(0, bytesInUse - weight);
+		notifyAll();
+	}
+
+	public long getCapacityInBytes() {
+		return capacityInBytes;
+	}
+
+	public synchronized long getBytesInUse() {
+		return bytesInUse;
+	}
+
+	public synchronized long getPeakBytesInUse() {
+		return peakBytesInUse;
+	}
+
+	public synchronized long getNumberOfAcquisitions() {
+		return numberOfAcquisitions;
+	}
+
+	public synchronized long getNumberOfAcquisitionsThatWaited() {
+		return numberOfAcquisitionsThatWaited;
+	}
+
+	public synchronized long getTotalWaitTimeInMillis() {
+		return totalWaitTimeInMillis;
+	}
+
+	public synchronized long getMaxWaitTimeInMillis() {
+		return maxWaitTimeInMillis;
+	}
+
+	public synchronized String getStatisticsMessage() {
+		return "Memory budget: " + (bytesInUse/1048576) + "/" + (capacityInBytes/1048576) + " MB in use (peak: " + (peakBytesInUse/1048576) + " MB)" +
+			", " + numberOfAcquisitionsThatWaited + " of " + numberOfAcquisitions + " acquisitions waited for memory" +
+			" (total wait: " + TimeStringFormat.getTimeString(totalWaitTimeInMillis/1000) + ", longest wait: " + maxWaitTimeInMillis + " ms)";
+	}
+
+	private long getWeight(long bytes) {
+		return Math.max(0, Math.min(bytes, capacityInBytes));
+	}
+
+	private boolean fits(long weight) {
+		return bytesInUse + weight <= capacityInBytes;
+	}
+
+	private void take(long weight) {
+		bytesInUse += weight;
+		peakBytesInUse = Math.max(peakBytesInUse, bytesInUse);
+	}
+
+}
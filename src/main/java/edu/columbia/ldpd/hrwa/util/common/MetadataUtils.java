@@ -1,15 +1,96 @@
 package edu.columbia.ldpd.hrwa.util.common;
 
 import java.net.MalformedURLException;
-import java.net.URL;
 
 public class MetadataUtils {
 
 	public static String parseHoststring( String url ) throws MalformedURLException {
-		URL urlobj = new URL( url );
-    	String hoststring = urlobj.getHost().replaceFirst( "\\Awww[\\w]?\\.", "" );
-    	
-    	return hoststring;
-    }
+		String hoststring = extractHoststring(url);
+		if(hoststring == null) {
+			throw new MalformedURLException("Could not find a host in url: " + url);
+		}
+		return hoststring;
+	}
+
+	/**
+	 * Returns the host of an absolute url (scheme://[userinfo@]host[:port]...), minus a leading "www." (or "www1.", "www2.", etc.),
+	 * or null if the url doesn't have an authority part (e.g. dns:example.org).
+	 *
+	 * This runs for every archive record, so it scans the url string directly instead of building a java.net.URL,
+	 * and allocates nothing but the returned String.
+	 */
+	public static String extractHoststring( String url ) {
+		if(url == null) {
+			return null;
+		}
+
+		//Like java.net.URL, ignore surrounding whitespace
+		int start = 0;
+		int end = url.length();
+		while(start < end && url.charAt(start) <= ' ') { start++; }
+		while(end > start && url.charAt(end - 1) <= ' ') { end--; }
+
+		//Scheme, followed by "://"
+		int i = start;
+		while(i < end && isSchemeChar(url.charAt(i))) { i++; }
+		if(i == start || i + 3 > end || url.charAt(i) != ':' || url.charAt(i + 1) != '/' || url.charAt(i + 2) != '/') {
+			return null;
+		}
+
+		int authorityStart = i + 3;
+		int authorityEnd = authorityStart;
+		while(authorityEnd < end) {
+			char c = url.charAt(authorityEnd);
+			if(c == '/' || c == '?' || c == '#') {
+				break;
+			}
+			authorityEnd++;
+		}
+
+		//Skip the userinfo
+		int hostStart = authorityStart;
+		for(int j = authorityEnd - 1; j >= authorityStart; j--) {
+			if(url.charAt(j) == '@') {
+				hostStart = j + 1;
+				break;
+			}
+		}
+
+		//Drop the port (IPv6 literals keep their brackets, like java.net.URL.getHost())
+		int hostEnd = authorityEnd;
+		if(hostStart < hostEnd && url.charAt(hostStart) == '[') {
+			int closingBracket = url.indexOf(']', hostStart);
+			if(closingBracket != -1 && closingBracket < authorityEnd) {
+				hostEnd = closingBracket + 1;
+			}
+		} else {
+			for(int j = hostStart; j < authorityEnd; j++) {
+				if(url.charAt(j) == ':') {
+					hostEnd = j;
+					break;
+				}
+			}
+		}
+
+		//Same as replaceFirst("\\Awww[\\w]?\\.", ""), which is case-sensitive.  The host keeps its case, like java.net.URL.getHost(),
+		//so that hoststrings stay identical to the ones that are already in MySQL.
+		if(hostEnd - hostStart > 3 && url.startsWith("www", hostStart)) {
+			if(url.charAt(hostStart + 3) == '.') {
+				hostStart += 4;
+			} else if(hostEnd - hostStart > 4 && isWordChar(url.charAt(hostStart + 3)) && url.charAt(hostStart + 4) == '.') {
+				hostStart += 5;
+			}
+		}
+
+		return url.substring(hostStart, hostEnd);
+	}
+
+	private static boolean isSchemeChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.';
+	}
+
+	private static boolean isWordChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
 
 }
@@ -0,0 +1,80 @@
+package edu.columbia.ldpd.hrwa.util.common;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of simultaneous connections to any single host.  Each host gets its own fair semaphore,
+ * created the first time that a URL on that host is seen, so downloads from different hosts never wait for each other.
+ *
+ * Usage:
+ * String host = limiter.acquire(url);
+ * try { ... } finally { limiter.release(host); }
+ */
+public class PerHostConnectionLimiter {
+
+	private final int maxConnectionsPerHost;
+	private final HashMap<String, Semaphore> semaphoresByHost = new HashMap<String, Semaphore>();
+
+	public PerHostConnectionLimiter(int maxConnectionsPerHost) {
+		if(maxConnectionsPerHost < 1) {
+			throw new IllegalArgumentException("A PerHostConnectionLimiter needs to allow at least 1 connection per host.  Given: " + maxConnectionsPerHost);
+		}
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	/**
+	 * Waits until a connection to the host of the given URL is available, and takes it.
+	 * @param url
+	 * @return The host that the connection was taken for, which must be passed to release() later.
+	 * @throws InterruptedException
+	 */
+	public String acquire(String url) throws InterruptedException {
+		String host = getHost(url);
+		getSemaphoreForHost(host).acquire();
+		return host;
+	}
+
+	public void release(String host) {
+		getSemaphoreForHost(host).release();
+	}
+
+	/**
+	 * Returns the number of connections to the given host that are in use right now.
+	 * @param host
+	 * @return
+	 */
+	public int getNumberOfConnectionsInUse(String host) {
+		return maxConnectionsPerHost - getSemaphoreForHost(host).availablePermits();
+	}
+
+	private synchronized Semaphore getSemaphoreForHost(String host) {
+		Semaphore semaphore = semaphoresByHost.get(host);
+		if(semaphore == null) {
+			semaphore = new Semaphore(maxConnectionsPerHost, true);
+			semaphoresByHost.put(host, semaphore);
+		}
+		return semaphore;
+	}
+
+	/**
+	 * Returns the lowercased host of the given URL.  URLs that can't be parsed all share the "" host,
+	 * so they're still limited (and will fail later on, when they're actually requested).
+	 * @param url
+	 * @return
+	 */
+	public static String getHost(String url) {
+		try {
+			return new URL(url).getHost().toLowerCase();
+		} catch (MalformedURLException e) {
+			return "";
+		}
+	}
+
+}
@@ -0,0 +1,519 @@
+package edu.columbia.ldpd.hrwa.util.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+
+/**
+ * Downloads a single large file over HTTP(S) into a partial download file, resuming with Range requests when a
+ * transfer fails part of the way through.
+ *
+ * The MD5 digest is computed while the bytes are written to disk, so the finished file never has to be read again.
+ * Alongside the partial download file, a small .state properties file records the URL and the ETag/Last-Modified
+ * validators that the server sent.  If the process stops, the next download() call for the same URL and partial
+ * download file picks up where the last one left off (re-hashing only the bytes that are already on disk).
+ * Resumed requests send If-Range, so a file that changed on the server is fetched again from the start.  The same
+ * happens when the server ignores or refuses the Range header.
+ *
+ * Redirects are followed here rather than by HttpURLConnection, which won't follow a redirect from http to https (or
+ * back).  Credentials are only sent to the host of the URL that was asked for, never to a host that it redirects to.
+ */
+public class ResumableDownloader {
+
+	public static final String PARTIAL_DOWNLOAD_STATE_FILE_EXTENSION = ".state";
+
+	private static final int BUFFER_SIZE = 1048576;
+	private static final int CONNECT_TIMEOUT_IN_MILLIS = 60000;
+	//A stalled transfer fails after this long, and is then resumed
+	private static final int READ_TIMEOUT_IN_MILLIS = 300000;
+	private static final int MAX_REDIRECTS = 10;
+
+	private static final String STATE_URL = "url";
+	private static final String STATE_ETAG = "etag";
+	private static final String STATE_LAST_MODIFIED = "lastModified";
+	private static final String STATE_TOTAL_LENGTH = "totalLength";
+
+	private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+	private final String basicAuthorizationHeaderValue;
+	private final boolean useInsecureSSL;
+	private final int maxAttempts;
+	private final long retryDelayInMillis;
+	private final AtomicLong sharedReferenceToByteCounter;
+
+	/**
+	 * @param username Username for HTTP basic authentication, or null
+	 * @param password Password for HTTP basic authentication, or null
+	 * @param useInsecureSSL If true, HTTPS certificates and host names are not checked (like HtmlUnit's setUseInsecureSSL())
+	 * @param maxAttempts The number of times that a download is attempted (and resumed) before giving up
+	 * @param retryDelayInMillis How long to wait before the second attempt.  Later attempts wait proportionally longer.
+	 * @param byteCounter Counter that every received byte is added to (e.g. for throughput reporting), or null
+	 */
+	public ResumableDownloader(String username, String password, boolean useInsecureSSL, int maxAttempts, long retryDelayInMillis, AtomicLong byteCounter) {
+		if(maxAttempts < 1) {
+			throw new IllegalArgumentException("A ResumableDownloader needs to make at least 1 attempt.  Given: " + maxAttempts);
+		}
+
+		if(username != null && username.length() > 0) {
+			try {
+				basicAuthorizationHeaderValue = "Basic " + Base64.encodeBase64String((username + ":" + password).getBytes("UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		} else {
+			basicAuthorizationHeaderValue = null;
+		}
+
+		this.useInsecureSSL = useInsecureSSL;
+		this.maxAttempts = maxAttempts;
+		this.retryDelayInMillis = retryDelayInMillis;
+		this.sharedReferenceToByteCounter = byteCounter;
+	}
+
+	public static File getPartialDownloadStateFile(File partialDownloadFile) {
+		return new File(partialDownloadFile.getPath() + PARTIAL_DOWNLOAD_STATE_FILE_EXTENSION);
+	}
+
+	/**
+	 * Deletes a partial download file and its state file, so that the next download starts from the beginning.
+	 */
+	public static void discardPartialDownload(File partialDownloadFile) {
+		partialDownloadFile.delete();
+		getPartialDownloadStateFile(partialDownloadFile).delete();
+	}
+
+	/**
+	 * Downloads the file at the given URL into partialDownloadFile, resuming an earlier partial download of the same URL if there is one.
+	 * When this method returns, partialDownloadFile holds the complete file and its state file has been removed.
+	 * @param url
+	 * @param partialDownloadFile
+	 * @return The MD5 digest and length of the complete file
+	 * @throws IOException If the download still failed after maxAttempts attempts, or failed in a way that retrying won't fix
+	 * @throws InterruptedException
+	 */
+	public DownloadResult download(String url, File partialDownloadFile) throws IOException, InterruptedException {
+
+		File stateFile = getPartialDownloadStateFile(partialDownloadFile);
+		Properties state = loadState(stateFile);
+
+		if(partialDownloadFile.exists() && ! url.equals(state.getProperty(STATE_URL))) {
+			//We don't know where these bytes came from, so they can't be trusted
+			HrwaManager.writeToLog("Discarding the partial download at " + partialDownloadFile.getPath() + " because it doesn't belong to " + url, true, HrwaManager.LOG_TYPE_NOTICE);
+			discardPartialDownload(partialDownloadFile);
+			state = new Properties();
+		}
+		state.setProperty(STATE_URL, url);
+
+		PartialDownload partialDownload = new PartialDownload(partialDownloadFile, stateFile, state);
+		IOException lastException = null;
+
+		for(int attempt = 1; attempt <= maxAttempts; attempt++) {
+
+			if(attempt > 1) {
+				HrwaManager.writeToLog("Resuming download of " + url + " at byte " + partialDownloadFile.length() + " (attempt " + attempt + " of " + maxAttempts + ")", true, HrwaManager.LOG_TYPE_NOTICE);
+				Thread.sleep(retryDelayInMillis * (attempt - 1));
+			}
+
+			try {
+				partialDownload.catchUpWithFileOnDisk();
+				transfer(url, partialDownload);
+				stateFile.delete();
+				return new DownloadResult(Hex.encodeHexString(partialDownload.digest.digest()), partialDownload.bytesHashed, partialDownload.totalLength >= 0);
+			} catch (HttpStatusException e) {
+				if( ! e.isRetryable() ) {
+					throw e;
+				}
+				lastException = e;
+			} catch (IOException e) {
+				lastException = e;
+			}
+
+			HrwaManager.writeToLog("Download attempt " + attempt + " of " + maxAttempts + " for " + url + " failed: " + lastException.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+		}
+
+		throw new IOException("Could not download " + url + " after " + maxAttempts + " attempts.  The " + partialDownloadFile.length() + " bytes received so far were kept in " + partialDownloadFile.getPath() + " and will be resumed next time.", lastException);
+	}
+
+	/**
+	 * Makes a single request, appending whatever the server sends to the partial download.
+	 * Returns normally once the download is complete.
+	 */
+	private void transfer(String url, PartialDownload partialDownload) throws IOException {
+
+		long offset = partialDownload.bytesHashed;
+		//Only accept a partial response if the file hasn't changed since we started downloading it
+		String validator = partialDownload.state.getProperty(STATE_ETAG, partialDownload.state.getProperty(STATE_LAST_MODIFIED));
+
+		HttpURLConnection conn = openConnectionFollowingRedirects(url, offset, validator);
+
+		try {
+			int responseCode = conn.getResponseCode();
+
+			if(responseCode == HttpURLConnection.HTTP_PARTIAL && offset > 0) {
+				Matcher contentRangeMatcher = CONTENT_RANGE_PATTERN.matcher(String.valueOf(conn.getHeaderField("Content-Range")));
+				if( ! contentRangeMatcher.find() || Long.parseLong(contentRangeMatcher.group(1)) != offset ) {
+					partialDownload.restart();
+					throw new IOException("Server sent an unexpected Content-Range (" + conn.getHeaderField("Content-Range") + ") when asked for bytes " + offset + "-.  Starting over.");
+				}
+				partialDownload.totalLength = "*".equals(contentRangeMatcher.group(3)) ? -1 : Long.parseLong(contentRangeMatcher.group(3));
+			} else if(responseCode == HttpURLConnection.HTTP_OK) {
+				if(offset > 0) {
+					HrwaManager.writeToLog("The server sent all of " + url + " instead of the requested range (it doesn't support ranges, or the file has changed).  Starting over.", true, HrwaManager.LOG_TYPE_NOTICE);
+					partialDownload.restart();
+				}
+				partialDownload.totalLength = parseLong(conn.getHeaderField("Content-Length"), -1);
+				rememberValidators(conn, partialDownload.state);
+			} else if(responseCode == 416 && offset > 0) {
+				//Range Not Satisfiable: either we already have every byte, or the file on the server got shorter
+				long totalLength = parseLong(partialDownload.state.getProperty(STATE_TOTAL_LENGTH), -1);
+				if(totalLength == offset) {
+					partialDownload.totalLength = totalLength;
+					return;
+				}
+				partialDownload.restart();
+				throw new IOException("The server refused to send bytes " + offset + "- of " + url + ".  Starting over.");
+			} else {
+				throw new HttpStatusException(responseCode, "Server responded with HTTP " + responseCode + " for " + url);
+			}
+
+			if(partialDownload.totalLength >= 0) {
+				partialDownload.state.setProperty(STATE_TOTAL_LENGTH, String.valueOf(partialDownload.totalLength));
+			}
+			saveState(partialDownload.stateFile, partialDownload.state);
+
+			InputStream responseInputStream = conn.getInputStream();
+			try {
+				partialDownload.append(Channels.newChannel(responseInputStream), sharedReferenceToByteCounter);
+			} finally {
+				responseInputStream.close();
+			}
+		} finally {
+			conn.disconnect();
+		}
+
+		if(partialDownload.totalLength >= 0 && partialDownload.bytesHashed != partialDownload.totalLength) {
+			throw new IOException("Connection closed after " + partialDownload.bytesHashed + " of " + partialDownload.totalLength + " bytes");
+		}
+	}
+
+	/**
+	 * Sends the request, following up to MAX_REDIRECTS redirects.
+	 * @return A connection whose response is not a redirect
+	 */
+	private HttpURLConnection openConnectionFollowingRedirects(String url, long offset, String validator) throws IOException {
+		URL originalUrl = new URL(url);
+		URL currentUrl = originalUrl;
+
+		for(int numberOfRedirects = 0; ; numberOfRedirects++) {
+			//Never send credentials to another host, or over plain http once they've been sent over https
+			boolean sendCredentials = currentUrl.getHost().equalsIgnoreCase(originalUrl.getHost())
+				&& ! ("https".equalsIgnoreCase(originalUrl.getProtocol()) && ! "https".equalsIgnoreCase(currentUrl.getProtocol()));
+
+			HttpURLConnection conn = openConnection(currentUrl, sendCredentials);
+			if(offset > 0) {
+				conn.setRequestProperty("Range", "bytes=" + offset + "-");
+				if(validator != null) {
+					conn.setRequestProperty("If-Range", validator);
+				}
+			}
+
+			int responseCode;
+			try {
+				responseCode = conn.getResponseCode();
+			} catch (IOException e) {
+				conn.disconnect();
+				throw e;
+			}
+			if( ! isRedirect(responseCode) ) {
+				return conn;
+			}
+
+			String location = conn.getHeaderField("Location");
+			conn.disconnect();
+			if(location == null) {
+				throw new HttpStatusException(responseCode, "Server responded with HTTP " + responseCode + " but no Location for " + currentUrl);
+			}
+			if(numberOfRedirects >= MAX_REDIRECTS) {
+				throw new HttpStatusException(responseCode, "Gave up on " + url + " after " + MAX_REDIRECTS + " redirects");
+			}
+			currentUrl = new URL(currentUrl, location);
+			if( ! "http".equalsIgnoreCase(currentUrl.getProtocol()) && ! "https".equalsIgnoreCase(currentUrl.getProtocol()) ) {
+				throw new HttpStatusException(responseCode, "Server redirected " + url + " to an unsupported URL: " + currentUrl);
+			}
+		}
+	}
+
+	private static boolean isRedirect(int responseCode) {
+		return responseCode == HttpURLConnection.HTTP_MOVED_PERM || responseCode == HttpURLConnection.HTTP_MOVED_TEMP
+			|| responseCode == HttpURLConnection.HTTP_SEE_OTHER || responseCode == 307 || responseCode == 308;
+	}
+
+	private HttpURLConnection openConnection(URL url, boolean sendCredentials) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		conn.setConnectTimeout(CONNECT_TIMEOUT_IN_MILLIS);
+		conn.setReadTimeout(READ_TIMEOUT_IN_MILLIS);
+		//Redirects are followed by openConnectionFollowingRedirects()
+		conn.setInstanceFollowRedirects(false);
+		//Compressed responses would break byte ranges and Content-Length checks
+		conn.setRequestProperty("Accept-Encoding", "identity");
+		if(sendCredentials && basicAuthorizationHeaderValue != null) {
+			conn.setRequestProperty("Authorization", basicAuthorizationHeaderValue);
+		}
+		if(useInsecureSSL && conn instanceof HttpsURLConnection) {
+			((HttpsURLConnection)conn).setSSLSocketFactory(getInsecureSSLSocketFactory());
+			((HttpsURLConnection)conn).setHostnameVerifier(INSECURE_HOSTNAME_VERIFIER);
+		}
+		return conn;
+	}
+
+	private static void rememberValidators(HttpURLConnection conn, Properties state) {
+		state.remove(STATE_ETAG);
+		state.remove(STATE_LAST_MODIFIED);
+		state.remove(STATE_TOTAL_LENGTH);
+
+		String etag = conn.getHeaderField("ETag");
+		//Weak ETags can't be used with If-Range
+		if(etag != null && ! etag.startsWith("W/")) {
+			state.setProperty(STATE_ETAG, etag);
+		}
+		String lastModified = conn.getHeaderField("Last-Modified");
+		if(lastModified != null) {
+			state.setProperty(STATE_LAST_MODIFIED, lastModified);
+		}
+	}
+
+	private static Properties loadState(File stateFile) {
+		Properties state = new Properties();
+		if(stateFile.exists()) {
+			try {
+				FileInputStream stateFileInputStream = new FileInputStream(stateFile);
+				try {
+					state.load(stateFileInputStream);
+				} finally {
+					stateFileInputStream.close();
+				}
+			} catch (IOException e) {
+				HrwaManager.writeToLog("Could not read partial download state file " + stateFile.getPath() + ": " + e.getMessage(), true, HrwaManager.LOG_TYPE_ERROR);
+			}
+		}
+		return state;
+	}
+
+	private static void saveState(File stateFile, Properties state) throws IOException {
+		FileOutputStream stateFileOutputStream = new FileOutputStream(stateFile);
+		try {
+			state.store(stateFileOutputStream, "Partial download state");
+		} finally {
+			stateFileOutputStream.close();
+		}
+	}
+
+	private static long parseLong(String value, long defaultValue) {
+		if(value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private static MessageDigest newMD5Digest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * The bytes on disk for a single download, and the digest of exactly those bytes.
+	 */
+	private static class PartialDownload {
+
+		private final File file;
+		private final File stateFile;
+		private final Properties state;
+		private MessageDigest digest = newMD5Digest();
+		private long bytesHashed = 0;
+		private long totalLength = -1;
+
+		public PartialDownload(File file, File stateFile, Properties state) {
+			this.file = file;
+			this.stateFile = stateFile;
+			this.state = state;
+		}
+
+		/**
+		 * Makes sure that the digest covers exactly the bytes on disk.  That's true after a clean transfer, but not when the
+		 * bytes came from an earlier run or a failed write left part of a buffer behind.  In those cases, the file is re-hashed.
+		 */
+		public void catchUpWithFileOnDisk() throws IOException {
+			if(file.length() == bytesHashed) {
+				return;
+			}
+
+			digest = newMD5Digest();
+			bytesHashed = 0;
+
+			FileChannel fileChannel = new FileInputStream(file).getChannel();
+			try {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+				while(fileChannel.read(buffer) != -1) {
+					buffer.flip();
+					bytesHashed += buffer.remaining();
+					digest.update(buffer);
+					buffer.clear();
+				}
+			} finally {
+				fileChannel.close();
+			}
+		}
+
+		public void restart() throws IOException {
+			new FileOutputStream(file).close();
+			digest = newMD5Digest();
+			bytesHashed = 0;
+			totalLength = -1;
+		}
+
+		public void append(ReadableByteChannel inputChannel, AtomicLong byteCounter) throws IOException {
+			FileChannel fileChannel = new FileOutputStream(file, true).getChannel();
+			try {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+				while(inputChannel.read(buffer) != -1) {
+					buffer.flip();
+					//Write first, so that the digest never covers bytes that didn't make it to disk
+					ByteBuffer bufferForDigest = buffer.duplicate();
+					while(buffer.hasRemaining()) {
+						fileChannel.write(buffer);
+					}
+					int numBytes = bufferForDigest.remaining();
+					digest.update(bufferForDigest);
+					bytesHashed += numBytes;
+					if(byteCounter != null) {
+						byteCounter.addAndGet(numBytes);
+					}
+					buffer.clear();
+				}
+			} finally {
+				fileChannel.close();
+			}
+		}
+	}
+
+	public static class DownloadResult {
+
+		private final String md5Hex;
+		private final long length;
+		private final boolean lengthWasVerified;
+
+		public DownloadResult(String md5Hex, long length, boolean lengthWasVerified) {
+			this.md5Hex = md5Hex;
+			this.length = length;
+			this.lengthWasVerified = lengthWasVerified;
+		}
+
+		/**
+		 * Lowercase hex MD5 digest of the complete file
+		 */
+		public String getMD5Hex() {
+			return md5Hex;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * Returns true if the server told us how long the file is (and the file has that length)
+		 */
+		public boolean isLengthVerified() {
+			return lengthWasVerified;
+		}
+	}
+
+	/**
+	 * An HTTP response status that we didn't expect.  Server errors and throttling are worth retrying, while
+	 * errors like 401 Unauthorized or 404 Not Found will just happen again.
+	 */
+	public static class HttpStatusException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int statusCode;
+
+		public HttpStatusException(int statusCode, String message) {
+			super(message);
+			this.statusCode = statusCode;
+		}
+
+		public int getStatusCode() {
+			return statusCode;
+		}
+
+		public boolean isRetryable() {
+			return statusCode >= 500 || statusCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT || statusCode == 429;
+		}
+	}
+
+	private static SSLSocketFactory insecureSSLSocketFactory = null;
+
+	private static final HostnameVerifier INSECURE_HOSTNAME_VERIFIER = new HostnameVerifier() {
+		public boolean verify(String hostname, SSLSession session) {
+			return true;
+		}
+	};
+
+	private static synchronized SSLSocketFactory getInsecureSSLSocketFactory() throws IOException {
+		if(insecureSSLSocketFactory == null) {
+			TrustManager[] trustAllCertificates = new TrustManager[] {
+				new X509TrustManager() {
+					public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+					public void checkClientTrusted(X509Certificate[] certs, String authType) {}
+					public void checkServerTrusted(X509Certificate[] certs, String authType) {}
+				}
+			};
+			try {
+				SSLContext sslContext = SSLContext.getInstance("TLS");
+				sslContext.init(null, trustAllCertificates, null);
+				insecureSSLSocketFactory = sslContext.getSocketFactory();
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Could not create an SSL socket factory", e);
+			}
+		}
+		return insecureSSLSocketFactory;
+	}
+
+}
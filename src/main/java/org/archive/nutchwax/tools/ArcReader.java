@@ -75,6 +75,7 @@ import org.apache.commons.httpclient.Header;
 public class ArcReader implements Iterable<ARCRecord>
 {
   private ArchiveReader reader;
+  private boolean skipArcFileHeaderRecord;
 
   /**
    * Construct an <code>ArcReader<code> wrapping an
@@ -83,8 +84,23 @@ public class ArcReader implements Iterable<ARCRecord>
    * @param reader the ArchiveReader instance to wrap
    */
   public ArcReader( ArchiveReader reader )
+  {
+    this( reader, true );
+  }
+
+  /**
+   * Construct an <code>ArcReader<code> wrapping an
+   * <code>ArchiveReader</code> instance.
+   *
+   * @param reader the ArchiveReader instance to wrap
+   * @param skipArcFileHeaderRecord <code>false</code> if the wrapped
+   *   <code>ARCReader</code> was positioned somewhere after the
+   *   "filedesc://" record at the start of the ARC file
+   */
+  public ArcReader( ArchiveReader reader, boolean skipArcFileHeaderRecord )
   {
     this.reader = reader;
+    this.skipArcFileHeaderRecord = skipArcFileHeaderRecord;
   }
 
   /**
@@ -114,7 +130,7 @@ public class ArcReader implements Iterable<ARCRecord>
     {
       this.i = ArcReader.this.reader.iterator( );
       
-      if ( ArcReader.this.reader instanceof ARCReader )
+      if ( ArcReader.this.skipArcFileHeaderRecord && ArcReader.this.reader instanceof ARCReader )
         {
           // Skip the first record, which is a "filedesc://"
           // record describing the ARC file.
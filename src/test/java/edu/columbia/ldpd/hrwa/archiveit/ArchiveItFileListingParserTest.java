@@ -0,0 +1,79 @@
+package edu.columbia.ldpd.hrwa.archiveit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ArchiveItFileListingParserTest {
+
+	private List<ArchiveFileListingEntry> parseSavedListing() throws IOException {
+		Reader reader = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream("/archiveit/getarcs_listing.html"), "UTF-8"));
+		try {
+			return new ArchiveItFileListingParser("https://partner.archive-it.org").parse(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void parsesArchiveFileRowsFromSavedListing() throws IOException {
+		List<ArchiveFileListingEntry> listing = parseSavedListing();
+
+		//Rows in comments and scripts, rows without a .gz link and rows without an MD5 digest are skipped
+		assertEquals(3, listing.size());
+
+		ArchiveFileListingEntry relativeLinkEntry = listing.get(0);
+		assertEquals("ARCHIVEIT-1068-SEMIANNUAL-JOB72811-20121117062101-00002-wbgrp-crawl058.us.archive.org-6680.warc.gz", relativeLinkEntry.getFileName());
+		assertEquals("https://partner.archive-it.org/cgi-bin/getarcs.pl?coll=1068&file=ARCHIVEIT-1068-SEMIANNUAL-JOB72811-20121117062101-00002-wbgrp-crawl058.us.archive.org-6680.warc.gz", relativeLinkEntry.getDownloadUrl());
+		assertEquals("0CC175B9C0F1B6A831C399E269772661", relativeLinkEntry.getExpectedMD5Hash());
+		assertEquals("2012_11", relativeLinkEntry.getCaptureYearAndMonthString());
+
+		//Uppercase tags, single-quoted attributes and cells without end tags
+		ArchiveFileListingEntry absoluteLinkEntry = listing.get(1);
+		assertEquals("https://warcs.archive-it.org/webdatafile/ARCHIVEIT-1068-QUARTERLY-XYZABC-20130203100512-00000-wbgrp-crawl101.us.archive.org-6443.warc.gz", absoluteLinkEntry.getDownloadUrl());
+		assertEquals("92eb5ffee6ae2fec3ad71c777531578f", absoluteLinkEntry.getExpectedMD5Hash());
+		assertEquals("2013_02", absoluteLinkEntry.getCaptureYearAndMonthString());
+
+		assertEquals("undated.warc.gz", listing.get(2).getFileName());
+		assertNull(listing.get(2).getCaptureYearAndMonthString());
+	}
+
+	@Test
+	public void manifestRemembersDownloadedFilesAcrossRuns() throws IOException {
+		List<ArchiveFileListingEntry> listing = parseSavedListing();
+
+		File manifestFile = File.createTempFile("hrwa-archive-file-manifest-test", ".tsv");
+		manifestFile.delete();
+
+		try {
+			ArchiveFileManifest manifest = ArchiveFileManifest.load(manifestFile);
+			assertEquals(3, manifest.updateListing(listing));
+			manifest.markDownloaded(listing.get(0));
+			manifest.save();
+
+			ArchiveFileManifest reloadedManifest = ArchiveFileManifest.load(manifestFile);
+			assertEquals(3, reloadedManifest.size());
+			assertTrue(reloadedManifest.isDownloaded(listing.get(0)));
+			assertFalse(reloadedManifest.isDownloaded(listing.get(1)));
+
+			//Only the file whose digest changed counts as new, and it has to be downloaded again
+			ArchiveFileListingEntry replacedEntry = new ArchiveFileListingEntry(listing.get(0).getFileName(), listing.get(0).getDownloadUrl(), "ffffffffffffffffffffffffffffffff", listing.get(0).getCaptureYearAndMonthString());
+			assertEquals(1, reloadedManifest.updateListing(Arrays.asList(replacedEntry, listing.get(1), listing.get(2))));
+			assertFalse(reloadedManifest.isDownloaded(replacedEntry));
+		} finally {
+			manifestFile.delete();
+		}
+	}
+
+}
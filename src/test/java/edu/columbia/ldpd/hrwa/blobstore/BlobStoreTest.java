@@ -0,0 +1,156 @@
+package edu.columbia.ldpd.hrwa.blobstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import edu.columbia.ldpd.hrwa.HrwaManager;
+
+public class BlobStoreTest {
+
+	@Test
+	public void blobLocationRoundTrip() {
+		BlobLocation blobLocation = new BlobLocation("C:\\blobs\\packs\\a-00000.pack", 1234, 56, 7890);
+		BlobLocation parsedBlobLocation = BlobLocation.parse(blobLocation.toString());
+
+		assertEquals("C:\\blobs\\packs\\a-00000.pack", parsedBlobLocation.getPackFilePath());
+		assertEquals(1234, parsedBlobLocation.getHeaderOffset());
+		assertEquals(56, parsedBlobLocation.getHeaderLength());
+		assertEquals(1290, parsedBlobLocation.getPayloadOffset());
+		assertEquals(7890, parsedBlobLocation.getPayloadLength());
+		assertEquals(blobLocation.toString(), parsedBlobLocation.toString());
+	}
+
+	@Test
+	public void archiveRecordLocationRoundTrip() throws IOException {
+		ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+		String blobPath = new ArchiveRecordReferenceBlobWriter().writeBlob(new File("/data/C:/ARCHIVEIT-1716-test.warc.gz"), 98765, "HTTP/1.1 200 OK\r\n", new ByteArrayInputStream(new byte[5000]), prefix, 1024);
+
+		assertTrue(ArchiveRecordLocation.isArchiveRecordBlobPath(blobPath));
+		assertEquals(null, BlobStore.getBlobFileIfStoredAsFile(blobPath));
+		assertEquals(1024, prefix.size());
+
+		ArchiveRecordLocation archiveRecordLocation = ArchiveRecordLocation.parse(blobPath);
+		assertEquals(new File("/data/C:/ARCHIVEIT-1716-test.warc.gz").getAbsolutePath(), archiveRecordLocation.getArchiveFilePath());
+		assertEquals(98765, archiveRecordLocation.getOffsetInArchiveFile());
+		assertEquals(5000, archiveRecordLocation.getPayloadLength());
+		assertEquals(5000, BlobStore.getBlobLength(blobPath));
+	}
+
+	@Test
+	public void packedBlobsCanBeReadBack() throws IOException {
+
+		File tempBlobDir = File.createTempFile("hrwa-blob-store-test", "");
+		tempBlobDir.delete();
+		tempBlobDir.mkdirs();
+
+		String originalBlobDirPath = HrwaManager.blobDirPath;
+		HrwaManager.blobDirPath = tempBlobDir.getPath();
+
+		try {
+			byte[][] payloads = {
+				"<html><body>First</body></html>".getBytes("UTF-8"),
+				new byte[0],
+				new byte[100000]
+			};
+			Arrays.fill(payloads[2], (byte)'x');
+
+			PackedBlobWriter packedBlobWriter = new PackedBlobWriter("test");
+			String[] blobPaths = new String[payloads.length];
+			ByteArrayOutputStream[] prefixes = new ByteArrayOutputStream[payloads.length];
+			for(int i = 0; i < payloads.length; i++) {
+				prefixes[i] = new ByteArrayOutputStream();
+				blobPaths[i] = packedBlobWriter.writeBlob(new File("test.warc.gz"), i, "HTTP/1.1 200 OK\r\nX-Record: " + i + "\r\n", new ByteArrayInputStream(payloads[i]), prefixes[i], 1024);
+			}
+			packedBlobWriter.close();
+
+			for(int i = 0; i < payloads.length; i++) {
+				assertTrue(BlobLocation.isPackedBlobPath(blobPaths[i]));
+				assertTrue(BlobStore.blobExists(blobPaths[i]));
+				assertEquals(payloads[i].length, BlobStore.getBlobLength(blobPaths[i]));
+				assertEquals("HTTP/1.1 200 OK\r\nX-Record: " + i + "\r\n", BlobStore.readBlobHeader(blobPaths[i]));
+				assertEquals(Math.min(1024, payloads[i].length), prefixes[i].size());
+
+				InputStream blobInputStream = BlobStore.openBlobInputStream(blobPaths[i]);
+				try {
+					assertTrue(Arrays.equals(payloads[i], IOUtils.toByteArray(blobInputStream)));
+				} finally {
+					blobInputStream.close();
+				}
+			}
+		} finally {
+			HrwaManager.blobDirPath = originalBlobDirPath;
+			FileUtils.deleteDirectory(tempBlobDir);
+		}
+	}
+
+	@Test
+	public void compactionWaitsForBlobWriters() throws IOException {
+
+		File tempBlobDir = File.createTempFile("hrwa-blob-store-lock-test", "");
+		tempBlobDir.delete();
+		tempBlobDir.mkdirs();
+
+		String originalBlobDirPath = HrwaManager.blobDirPath;
+		HrwaManager.blobDirPath = tempBlobDir.getPath();
+
+		try {
+			BlobStoreLock firstWriterLock = BlobStoreLock.acquireForWriting();
+			BlobStoreLock secondWriterLock = BlobStoreLock.acquireForWriting();
+			assertNull(BlobStoreLock.tryAcquireForCompaction());
+
+			firstWriterLock.release();
+			assertNull(BlobStoreLock.tryAcquireForCompaction());
+
+			secondWriterLock.release();
+			BlobStoreLock compactionLock = BlobStoreLock.tryAcquireForCompaction();
+			assertNotNull(compactionLock);
+			assertNull(BlobStoreLock.tryAcquireForCompaction());
+			compactionLock.release();
+		} finally {
+			HrwaManager.blobDirPath = originalBlobDirPath;
+			FileUtils.deleteDirectory(tempBlobDir);
+		}
+	}
+
+	@Test
+	public void packFilesAreOpenForWritingUntilTheWriterIsClosed() throws IOException {
+
+		File tempBlobDir = File.createTempFile("hrwa-blob-store-test", "");
+		tempBlobDir.delete();
+		tempBlobDir.mkdirs();
+
+		String originalBlobDirPath = HrwaManager.blobDirPath;
+		HrwaManager.blobDirPath = tempBlobDir.getPath();
+
+		try {
+			PackedBlobWriter packedBlobWriter = new PackedBlobWriter("test");
+			String blobPath = packedBlobWriter.writeBlob(new File("test.warc.gz"), 0, "HTTP/1.1 200 OK\r\n", new ByteArrayInputStream(new byte[10]), null, 0);
+
+			//Spelled differently from the path that the writer used
+			File writtenPackFile = new File(BlobLocation.parse(blobPath).getPackFilePath());
+			File packFile = new File(new File(writtenPackFile.getAbsoluteFile().getParentFile(), "."), writtenPackFile.getName());
+			assertTrue(PackedBlobWriter.isOpenForWriting(packFile));
+
+			packedBlobWriter.close();
+			assertFalse(PackedBlobWriter.isOpenForWriting(packFile));
+		} finally {
+			HrwaManager.blobDirPath = originalBlobDirPath;
+			FileUtils.deleteDirectory(tempBlobDir);
+		}
+	}
+
+}
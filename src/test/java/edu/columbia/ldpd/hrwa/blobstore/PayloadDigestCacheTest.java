@@ -0,0 +1,64 @@
+package edu.columbia.ldpd.hrwa.blobstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class PayloadDigestCacheTest {
+
+	@Test
+	public void leastRecentlyUsedDigestsAreEvicted() {
+		PayloadDigestCache cache = new PayloadDigestCache(2);
+		cache.putBlobPath("sha1:AAAA", "/blobs/a.blob");
+		cache.putBlobPath("sha1:BBBB", "/blobs/b.blob");
+
+		//Using A makes B the least recently used entry
+		assertEquals("/blobs/a.blob", cache.getBlobPath("sha1:AAAA"));
+		cache.putBlobPath("sha1:CCCC", "/blobs/c.blob");
+
+		assertEquals("/blobs/a.blob", cache.getBlobPath("sha1:AAAA"));
+		assertNull(cache.getBlobPath("sha1:BBBB"));
+		assertEquals("/blobs/c.blob", cache.getBlobPath("sha1:CCCC"));
+		assertNull(cache.getBlobPath(null));
+	}
+
+	@Test
+	public void detectedMimetypesAreOnlyReusedForTheSameFileNameExtension() {
+		PayloadDigestCache cache = new PayloadDigestCache(10);
+		cache.putDetectedMimetype("sha1:AAAA", "data.csv", "text/csv");
+
+		assertEquals("text/csv", cache.getDetectedMimetype("sha1:AAAA", "other.CSV"));
+		assertNull(cache.getDetectedMimetype("sha1:AAAA", "data.txt"));
+		assertNull(cache.getDetectedMimetype("sha1:AAAA", null));
+		assertNull(cache.getDetectedMimetype("sha1:BBBB", "data.csv"));
+	}
+
+	@Test
+	public void aCacheOfSizeZeroRemembersNothing() {
+		PayloadDigestCache cache = new PayloadDigestCache(0);
+		cache.putBlobPath("sha1:AAAA", "/blobs/a.blob");
+		cache.putDetectedMimetype("sha1:AAAA", null, "text/html");
+
+		assertNull(cache.getBlobPath("sha1:AAAA"));
+		assertNull(cache.getDetectedMimetype("sha1:AAAA", null));
+	}
+
+	@Test
+	public void capturePrefixOnlyReadsThePrefix() throws Exception {
+		ByteArrayInputStream payload = new ByteArrayInputStream("0123456789".getBytes("US-ASCII"));
+		ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+		BlobWriter.capturePrefix(payload, prefix, 4);
+
+		assertEquals("0123", prefix.toString("US-ASCII"));
+		assertEquals(6, payload.available());
+
+		prefix = new ByteArrayOutputStream();
+		BlobWriter.capturePrefix(new ByteArrayInputStream("01".getBytes("US-ASCII")), prefix, 4);
+		assertEquals("01", prefix.toString("US-ASCII"));
+	}
+
+}
@@ -1,8 +1,14 @@
 package edu.columbia.ldpd.hrwa.detector;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
 
 import org.junit.Test;
 
@@ -72,4 +78,45 @@ public class LanguageDetectorTest {
 		assertEquals(expectedLanguage, detectedLanguage);
 	}
 
+	@Test
+	public void stripMarkupLeavesOnlyReadableText() {
+		String text = LanguageDetector.stripMarkup("<html><head><style>p { color: red; }</style><script type=\"text/javascript\">var x = '<p>';</script></head>" +
+			"<body><!-- a comment --><p class=\"intro\">Droits&nbsp;de l'homme</p><div title=\"unclosed");
+
+		assertEquals("Droits de l'homme", text.replaceAll("\\s+", " ").trim());
+	}
+
+	@Test
+	public void languageCodeIsDetectedFromStrippedHtml() throws IOException {
+		String html = FileUtils.readFileToString(new File("./src/test/resources/language_detector/test_french.html"), "UTF-8");
+		assertEquals("fr", languageDetector.getLanguageCode(LanguageDetector.stripMarkup(html)));
+
+		html = FileUtils.readFileToString(new File("./src/test/resources/language_detector/test_spanish.html"), "UTF-8");
+		assertEquals("es", languageDetector.getLanguageCode(LanguageDetector.stripMarkup(html)));
+
+		assertNull(languageDetector.getLanguageCode(""));
+		assertNull(languageDetector.getLanguageCode(null));
+	}
+
+	@Test
+	public void onlyTheStartOfLongTextIsSampled() {
+		StringBuilder text = new StringBuilder();
+		while(text.length() < LanguageDetector.MAX_SAMPLE_LENGTH) {
+			text.append("Les droits de l'homme sont universels et indivisibles. ");
+		}
+		while(text.length() < LanguageDetector.MAX_SAMPLE_LENGTH * 10) {
+			text.append("Human rights are universal and indivisible. ");
+		}
+
+		assertEquals("fr", languageDetector.getLanguageCode(text.toString()));
+	}
+
+	@Test
+	public void onlyTextMimetypesAreDetectedAtIngest() {
+		assertTrue(LanguageDetector.isTextMimetype("text/html"));
+		assertTrue(LanguageDetector.isTextMimetype("application/xhtml+xml"));
+		assertFalse(LanguageDetector.isTextMimetype("application/pdf"));
+		assertFalse(LanguageDetector.isTextMimetype(null));
+	}
+
 }
@@ -0,0 +1,172 @@
+package edu.columbia.ldpd.hrwa.detector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tika.Tika;
+import org.junit.Test;
+
+import edu.columbia.ldpd.hrwa.MagicMimetypeClassifier;
+import edu.columbia.ldpd.hrwa.MimetypeDetector;
+
+/**
+ * Checks that MimetypeDetector (which tries MagicMimetypeClassifier before Tika) returns exactly what plain Tika returns.
+ * Besides the test resources, a saved corpus of payloads (e.g. a copy of part of the blob store) can be checked with:
+ * mvn test -Dtest=MimetypeDetectorDifferentialTest -DmimetypeCorpusDir=/path/to/corpus
+ */
+public class MimetypeDetectorDifferentialTest {
+
+	private static final String[] FILE_NAME_HINTS = {null, "index.html", "page.php", "feed.xml", "document.pdf", "drawing.ai", "notes.txt", "style.css", "picture.jpg", "no_extension", "with%20space.html", "weird name.pdf"};
+
+	private final Tika tika = new Tika();
+	private final MimetypeDetector mimetypeDetector = new MimetypeDetector();
+
+	@Test
+	public void magicClassifierIsUsedForCommonFormats() throws IOException {
+		assertEquals("application/pdf", classify(FileUtils.readFileToByteArray(new File("./src/test/resources/mimetype_detector/test_pdf.pdf"))));
+		assertEquals("text/html", classify(FileUtils.readFileToByteArray(new File("./src/test/resources/mimetype_detector/test_html.html"))));
+		assertEquals("text/html", classify("\n\n  <html><head><title>Title</title></head></html>".getBytes("UTF-8")));
+		assertEquals("image/png", classify(new byte[] {(byte)0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A, 0, 0, 0, 0x0D}));
+
+		//Containers, processing instructions and tags that aren't the first tag are left to Tika
+		assertNull(classify(FileUtils.readFileToByteArray(new File("./src/test/resources/mimetype_detector/test_word.docx"))));
+		assertNull(classify(FileUtils.readFileToByteArray(new File("./src/test/resources/mimetype_detector/this_word_doc_crashes_tika_during_mimetype_detection.doc"))));
+		assertNull(classify("<?xml version=\"1.0\"?><html xmlns=\"http://www.w3.org/1999/xhtml\"></html>".getBytes("UTF-8")));
+		assertNull(classify("<rss version=\"2.0\"><channel><title>News</title></channel></rss>".getBytes("UTF-8")));
+		assertNull(classify("Plain text that mentions <html> tags".getBytes("UTF-8")));
+		assertNull(classify(new byte[0]));
+
+		//So is content that Tika would give another mimetype, because of a higher priority rule or the XML root element
+		for(byte[] content : getContentThatTikaGivesAnotherMimetype()) {
+			assertNull(new String(content, "ISO-8859-1"), classify(content));
+		}
+	}
+
+	@Test
+	public void resultsAreIdenticalToTikaForTestResources() throws IOException {
+		List<File> corpus = new ArrayList<File>();
+		corpus.addAll(FileUtils.listFiles(new File("./src/test/resources/mimetype_detector"), null, true));
+		corpus.addAll(FileUtils.listFiles(new File("./src/test/resources/language_detector"), null, true));
+
+		for(File file : corpus) {
+			assertIdenticalToTika(file);
+		}
+	}
+
+	@Test
+	public void resultsAreIdenticalToTikaForTrickyPrefixes() throws IOException {
+		String[] prefixes = {
+			"<!DOCTYPE html><html><body>Text</body></html>",
+			"<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.01//EN\"><html></html>",
+			"<!doctype html><title>t</title>",
+			"<!DocType Html><html></html>",
+			"\uFEFF<!DOCTYPE html><html></html>",
+			"\uFEFF<html><head></head></html>",
+			"                                                                    <html></html>",
+			"<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\"><html xmlns=\"http://www.w3.org/1999/xhtml\"></html>",
+			"<HEAD><TITLE>Old school</TITLE></HEAD>",
+			"<body>Only a body</body>",
+			"<BODY>Only a body</BODY>",
+			"<title>Just a title</title>",
+			"<!-- comment --><html></html>",
+			"<svg xmlns=\"http://www.w3.org/2000/svg\"><title>Not html</title></svg>",
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?><rss version=\"2.0\"></rss>",
+			"{\\rtf1\\ansi Some rich text}",
+			"%PDF-1.4\n1 0 obj\n",
+			"%!PS-Adobe-3.0\n",
+			"GIF89a\u0001\u0000\u0001\u0000",
+			"GIF87a\u0001\u0000\u0001\u0000",
+			"<html><?php echo 'hi'; ?></html>",
+			"<html lang=\"en\" title=\"a > b\"><head></head></html>",
+			"<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">\n<html lang=\"en\"></html>",
+			"<!DOCTYPE html>\n<!-- comment -->\n<html></html>",
+			"<htmlx></htmlx>",
+			"<title>A title</title><html xmlns:o=\"urn:schemas-microsoft-com:office:office\"></html>",
+			"Just some plain text."
+		};
+
+		for(String prefix : prefixes) {
+			assertIdenticalToTika(prefix.getBytes("UTF-8"), prefix);
+		}
+		for(byte[] content : getContentThatTikaGivesAnotherMimetype()) {
+			assertIdenticalToTika(content, new String(content, "ISO-8859-1"));
+		}
+		assertIdenticalToTika(new byte[] {(byte)0xFF, (byte)0xD8, (byte)0xFF, (byte)0xE0, 0, 0x10, 'J', 'F', 'I', 'F', 0}, "jpeg");
+		assertIdenticalToTika(new byte[] {(byte)0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A, 0, 0, 0, 0x0D, 'I', 'H', 'D', 'R'}, "png");
+	}
+
+	@Test
+	public void resultsAreIdenticalToTikaForSavedCorpus() throws IOException {
+		String corpusDirPath = System.getProperty("mimetypeCorpusDir");
+		if(corpusDirPath == null || corpusDirPath.length() == 0) {
+			return;
+		}
+
+		for(File file : FileUtils.listFiles(new File(corpusDirPath), null, true)) {
+			assertIdenticalToTika(file);
+		}
+	}
+
+	private void assertIdenticalToTika(File file) throws IOException {
+		byte[] content = FileUtils.readFileToByteArray(file);
+		byte[] prefix = Arrays.copyOf(content, Math.min(content.length, MimetypeDetector.DETECTION_PREFIX_LENGTH));
+
+		assertEquals(file.getPath(), tika.detect(file), mimetypeDetector.getMimetype(file));
+		assertIdenticalToTika(prefix, file.getPath());
+		assertEquals(file.getPath(), tika.detect(new ByteArrayInputStream(prefix), file.getName()), mimetypeDetector.getMimetype(prefix, prefix.length == content.length, file.getName(), null));
+	}
+
+	private void assertIdenticalToTika(byte[] prefix, String description) throws IOException {
+		for(String fileNameHint : FILE_NAME_HINTS) {
+			assertEquals(description + " (file name hint: " + fileNameHint + ")",
+				tika.detect(new ByteArrayInputStream(prefix), fileNameHint),
+				mimetypeDetector.getMimetype(prefix, true, fileNameHint, null)
+			);
+		}
+	}
+
+	private static List<byte[]> getContentThatTikaGivesAnotherMimetype() throws IOException {
+		List<byte[]> content = new ArrayList<byte[]>();
+		content.add("<html xmlns=\"http://www.w3.org/1999/xhtml\"><head></head></html>".getBytes("UTF-8"));
+		content.add("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">\n<html xmlns=\"http://www.w3.org/1999/xhtml\" lang=\"en\"></html>".getBytes("UTF-8"));
+		content.add("<html lang=\"en\"\n      xmlns=\"http://www.w3.org/1999/xhtml\"></html>".getBytes("UTF-8"));
+		content.add("<html:html xmlns:html=\"http://www.w3.org/1999/xhtml\"></html:html>".getBytes("UTF-8"));
+		content.add("<!DOCTYPE html [<!ATTLIST html xmlns CDATA #FIXED \"http://www.w3.org/1999/xhtml\">]><html></html>".getBytes("UTF-8"));
+		content.add("<!DOCTYPE html><svg xmlns=\"http://www.w3.org/2000/svg\"><title>Not html</title></svg>".getBytes("UTF-8"));
+		content.add("<!DOCTYPE html><rss version=\"2.0\"><channel><title>News</title></channel></rss>".getBytes("UTF-8"));
+		content.add(withBytesAt("<html><head><title>Title</title></head><body>", 3000, "<html xmlns=".getBytes("UTF-8")));
+		content.add(withBytesAt("<html><head><title>Title</title></head><body>", 1080, "M.K.".getBytes("UTF-8")));
+		content.add("%PDF-1.4\nFrom: someone".getBytes("UTF-8"));
+		content.add(withBytesAt("%PDF-1.4\n", 128, "PE\0\0".getBytes("UTF-8")));
+		content.add(withBytesAt("%PDF-1.4\n", 500, "Windows Media Video".getBytes("UTF-16LE")));
+		content.add(withBytesAt("%PDF-1.4\n", 32769, "CD001".getBytes("UTF-8")));
+		content.add(withBytesAt("%PDF-1.4\n", 40, "<?aid".getBytes("UTF-8")));
+		content.add(withBytesAt("\u00FF\u00D8\u00FF\u00E0", 4, "ftypmp42".getBytes("UTF-8")));
+		return content;
+	}
+
+	/**
+	 * Returns the ISO-8859-1 bytes of prefix, padded with spaces, with the given bytes at the given offset.
+	 */
+	private static byte[] withBytesAt(String prefix, int offset, byte[] bytes) throws IOException {
+		byte[] content = new byte[offset + bytes.length + 100];
+		Arrays.fill(content, (byte)' ');
+		byte[] prefixBytes = prefix.getBytes("ISO-8859-1");
+		System.arraycopy(prefixBytes, 0, content, 0, prefixBytes.length);
+		System.arraycopy(bytes, 0, content, offset, bytes.length);
+		return content;
+	}
+
+	private static String classify(byte[] content) {
+		return MagicMimetypeClassifier.classify(content, content.length);
+	}
+
+}
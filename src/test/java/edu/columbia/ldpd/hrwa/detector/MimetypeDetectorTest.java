@@ -14,6 +14,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 
 import edu.columbia.ldpd.hrwa.MimetypeDetector;
@@ -109,6 +110,29 @@ public class MimetypeDetectorTest {
 		assertTrue("Expected one of: " + Arrays.deepToString(expectedMimetypes) + ", Received: " + actualMimetype, Arrays.asList(expectedMimetypes).contains(actualMimetype));
 	}
 	
+	@Test
+	public void mimetypeDetectionTest_prefix() throws IOException {
+		File file = new File("./src/test/resources/mimetype_detector/test_pdf.pdf");
+		byte[] prefix = FileUtils.readFileToByteArray(file);
+		prefix = Arrays.copyOf(prefix, Math.min(prefix.length, 4096));
+		
+		//A PDF can be identified from its first few KB, even without a file name hint
+		assertEquals("application/pdf", new MimetypeDetector().getMimetype(prefix, false, null, null));
+		assertEquals("test_pdf.pdf", MimetypeDetector.getFileNameFromURL("http://www.example.com/docs/test_pdf.pdf?download=1"));
+		assertEquals(null, MimetypeDetector.getFileNameFromURL("http://www.example.com/"));
+	}
+	
+	@Test
+	public void mimetypeDetectionTest_prefix_falls_back_to_file_for_containers() throws IOException {
+		File file = new File("./src/test/resources/mimetype_detector/test_word.docx");
+		byte[] prefix = FileUtils.readFileToByteArray(file);
+		prefix = Arrays.copyOf(prefix, Math.min(prefix.length, 1024));
+		
+		//Without a file name hint, the first 1KB of a docx only looks like a zip file, so the complete file must be used
+		String actualMimetype = new MimetypeDetector().getMimetype(prefix, false, null, file);
+		assertEquals("application/vnd.openxmlformats-officedocument.wordprocessingml.document", actualMimetype);
+	}
+	
 	@Test
 	public void mimetypeDecectorWorksInMultithreadedScenario() {
 	
@@ -0,0 +1,56 @@
+package edu.columbia.ldpd.hrwa.mysql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+public class HoststringResolverTest {
+
+	private HoststringResolver createResolver() {
+		HashMap<String, Integer> siteIdsBySiteHoststring = new HashMap<String, Integer>();
+		siteIdsBySiteHoststring.put("example.org", 1);
+		siteIdsBySiteHoststring.put("Mixed-Case.org", 2);
+		siteIdsBySiteHoststring.put("shared.org", 3);
+
+		HashMap<String, Integer> siteIdsByRelatedHost = new HashMap<String, Integer>();
+		siteIdsByRelatedHost.put("example-mirror.net", 1);
+		siteIdsByRelatedHost.put("shared.org", 4);
+
+		return new HoststringResolver(siteIdsBySiteHoststring, siteIdsByRelatedHost);
+	}
+
+	@Test
+	public void sitesAreMatchedBeforeRelatedHosts() {
+		HoststringResolver resolver = createResolver();
+		assertEquals(4, resolver.size());
+
+		int entry = resolver.findEntry("example.org");
+		assertEquals(1, resolver.getSiteId(entry));
+		assertFalse(resolver.isLinkedViaRelatedHost(entry));
+
+		entry = resolver.findEntry("example-mirror.net");
+		assertEquals(1, resolver.getSiteId(entry));
+		assertTrue(resolver.isLinkedViaRelatedHost(entry));
+
+		//A related host never replaces a site with the same hoststring
+		entry = resolver.findEntry("shared.org");
+		assertEquals(3, resolver.getSiteId(entry));
+		assertFalse(resolver.isLinkedViaRelatedHost(entry));
+	}
+
+	@Test
+	public void lookupsAreExactButCaseInsensitive() {
+		HoststringResolver resolver = createResolver();
+
+		assertEquals(2, resolver.getSiteId(resolver.findEntry("mixed-case.org")));
+		assertEquals(1, resolver.getSiteId(resolver.findEntry("EXAMPLE.ORG")));
+		assertEquals(HoststringResolver.NOT_FOUND, resolver.findEntry("blog.example.org"));
+		assertEquals(HoststringResolver.NOT_FOUND, resolver.findEntry("example.org.evil.com"));
+		assertEquals(HoststringResolver.NOT_FOUND, resolver.findEntry(null));
+	}
+
+}
@@ -0,0 +1,25 @@
+package edu.columbia.ldpd.hrwa.mysql;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LoadDataWebArchiveRecordLoaderTest {
+
+	@Test
+	public void valuesAreEncodedInLoadDataFormat() {
+		StringBuilder line = new StringBuilder();
+		LoadDataWebArchiveRecordLoader.appendTabSeparatedLine(line, new Object[] { "a\tb", null, 42L, Boolean.TRUE, "c:\\d\ne" });
+
+		assertEquals("a\\tb\t\\N\t42\t1\tc:\\\\d\\ne\n", line.toString());
+	}
+
+	@Test
+	public void emptyStringsAreNotNull() {
+		StringBuilder line = new StringBuilder();
+		LoadDataWebArchiveRecordLoader.appendTabSeparatedLine(line, new Object[] { "", Boolean.FALSE });
+
+		assertEquals("\t0\n", line.toString());
+	}
+
+}
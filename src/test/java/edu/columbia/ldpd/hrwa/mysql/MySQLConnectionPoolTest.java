@@ -0,0 +1,126 @@
+package edu.columbia.ldpd.hrwa.mysql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MySQLConnectionPoolTest {
+
+	private static final String TEST_URL = "jdbc:hrwapooltest://localhost/test";
+
+	private TestDriver driver;
+	private Connection physicalConnection;
+
+	@Before
+	public void registerTestDriver() throws Exception {
+		physicalConnection = mock(Connection.class);
+		when(physicalConnection.isValid(anyInt())).thenReturn(true);
+
+		driver = new TestDriver(physicalConnection);
+		DriverManager.registerDriver(driver);
+	}
+
+	@After
+	public void deregisterTestDriver() throws Exception {
+		DriverManager.deregisterDriver(driver);
+	}
+
+	@Test
+	public void closedConnectionsAreReused() throws Exception {
+		MySQLConnectionPool pool = new MySQLConnectionPool(TEST_URL, "user", "password", 2);
+
+		Connection first = pool.getConnection(true);
+		first.close();
+		assertTrue(first.isClosed());
+
+		Connection second = pool.getConnection(true);
+		second.close();
+
+		assertEquals(1, driver.numberOfConnectCalls);
+		verify(physicalConnection, times(0)).close();
+	}
+
+	@Test
+	public void returnedConnectionsAreReset() throws Exception {
+		PreparedStatement leftoverStatement = mock(PreparedStatement.class);
+		when(physicalConnection.prepareStatement("SELECT 1")).thenReturn(leftoverStatement);
+		when(physicalConnection.getAutoCommit()).thenReturn(false);
+
+		MySQLConnectionPool pool = new MySQLConnectionPool(TEST_URL, "user", "password", 1);
+		Connection connection = pool.getConnection(false);
+		connection.prepareStatement("SELECT 1");
+		connection.close();
+
+		verify(leftoverStatement).close();
+		verify(physicalConnection).rollback();
+
+		//Only one connection is allowed, so this only works if the first one was given back
+		pool.getConnection(true).close();
+		assertEquals(1, pool.getMaxSize());
+	}
+
+	/**
+	 * DriverManager only hands out connections from drivers that were loaded by the caller's class loader,
+	 * so this is a real class rather than a mock.
+	 */
+	private static class TestDriver implements Driver {
+
+		private final Connection connection;
+		private int numberOfConnectCalls = 0;
+
+		public TestDriver(Connection connection) {
+			this.connection = connection;
+		}
+
+		public Connection connect(String url, Properties info) throws SQLException {
+			if( ! acceptsURL(url) ) {
+				return null;
+			}
+			numberOfConnectCalls++;
+			return connection;
+		}
+
+		public boolean acceptsURL(String url) {
+			return url.startsWith(TEST_URL);
+		}
+
+		public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+			return new DriverPropertyInfo[0];
+		}
+
+		public int getMajorVersion() {
+			return 1;
+		}
+
+		public int getMinorVersion() {
+			return 0;
+		}
+
+		public boolean jdbcCompliant() {
+			return false;
+		}
+
+		public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+			throw new SQLFeatureNotSupportedException();
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package edu.columbia.ldpd.hrwa.mysql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class MySQLRecordIdRangeQueueTest {
+
+	@Test
+	public void committedIdsAreAddedAsContiguousFullRangesUntilTheQueueIsClosed() throws InterruptedException {
+		MySQLRecordIdRangeQueue queue = new MySQLRecordIdRangeQueue(Arrays.asList(new MySQLRecordIdRange(0, 50)), 50, 100, 10);
+
+		assertRange(0, 50, queue.take());
+
+		//Not enough for a full range yet
+		queue.extendThrough(120);
+		assertEquals(0, queue.size());
+
+		queue.extendThrough(260);
+		assertEquals(2, queue.size());
+		assertRange(50, 150, queue.take());
+		assertRange(150, 250, queue.take());
+
+		//Closing adds whatever is left
+		queue.close();
+		assertRange(250, 260, queue.take());
+		assertNull(queue.take());
+	}
+
+	@Test
+	public void takeWaitsForNewRangesAndExtendWaitsForRoomInTheQueue() throws InterruptedException {
+		final MySQLRecordIdRangeQueue queue = new MySQLRecordIdRangeQueue(Collections.<MySQLRecordIdRange>emptyList(), 0, 10, 1);
+
+		Thread writerThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					//Three full ranges, but only one fits in the queue at a time
+					queue.extendThrough(30);
+					queue.close();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		writerThread.start();
+
+		long expectedStartId = 0;
+		MySQLRecordIdRange range;
+		while((range = queue.take()) != null) {
+			assertTrue(queue.size() <= 1);
+			assertRange(expectedStartId, expectedStartId + 10, range);
+			expectedStartId += 10;
+		}
+
+		writerThread.join();
+		assertEquals(30, expectedStartId);
+	}
+
+	private void assertRange(long expectedStartId, long expectedEndId, MySQLRecordIdRange range) {
+		assertEquals(expectedStartId, range.getStartId());
+		assertEquals(expectedEndId, range.getEndId());
+	}
+
+}
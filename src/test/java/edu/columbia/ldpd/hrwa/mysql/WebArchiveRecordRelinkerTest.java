@@ -0,0 +1,168 @@
+package edu.columbia.ldpd.hrwa.mysql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.columbia.ldpd.hrwa.mysql.WebArchiveRecordRelinker.WebArchiveRecordLink;
+
+public class WebArchiveRecordRelinkerTest {
+
+	private static final int DELETED_SITE_ID = 1;
+	private static final int UPDATED_SITE_ID = 2;
+	private static final int NEW_SITE_ID = 3;
+	private static final int RELATED_HOST_SITE_ID = 4;
+	private static final int UNCHANGED_SITE_ID = 5;
+	private static final int METADATA_UPDATED_SITE_ID = 6;
+
+	private WebArchiveRecordRelinker relinker;
+
+	@Before
+	public void createRelinker() {
+		HashMap<String, Integer> newSiteIdsByHoststring = new HashMap<String, Integer>();
+		newSiteIdsByHoststring.put("newsite.org", NEW_SITE_ID);
+
+		HashMap<String, Integer> siteIdsByNewRelatedHost = new HashMap<String, Integer>();
+		siteIdsByNewRelatedHost.put("related.org", RELATED_HOST_SITE_ID);
+
+		HashMap<String, String> mimetypeCodesByMimetypeDetected = new HashMap<String, String>();
+		mimetypeCodesByMimetypeDetected.put("text/html", "HTML");
+		mimetypeCodesByMimetypeDetected.put("image/png", "IMAGE");
+
+		relinker = new WebArchiveRecordRelinker(
+			new HashSet<Integer>(Arrays.asList(DELETED_SITE_ID)),
+			new HashSet<Integer>(Arrays.asList(UPDATED_SITE_ID)),
+			newSiteIdsByHoststring,
+			siteIdsByNewRelatedHost,
+			mimetypeCodesByMimetypeDetected
+		);
+	}
+
+	@Test
+	public void recordsOfDeletedSitesAreUnlinkedAndMarkedAsDeleted() {
+		WebArchiveRecordLink record = new WebArchiveRecordLink(10, "deletedsite.org", "text/html", DELETED_SITE_ID, true, null);
+
+		assertTrue(relinker.relink(record));
+		assertNull(record.siteId);
+		assertFalse(record.linkedViaRelatedHost);
+		assertEquals(MySQLHelper.HRWA_MANAGER_TODO_DELETE, record.hrwaManagerTodo);
+	}
+
+	@Test
+	public void unlinkedRecordsAreLinkedToNewSitesBeforeRelatedHosts() {
+		WebArchiveRecordLink siteRecord = new WebArchiveRecordLink(10, "NewSite.org", "text/html", null, false, null);
+		assertTrue(relinker.relink(siteRecord));
+		assertEquals(Integer.valueOf(NEW_SITE_ID), siteRecord.siteId);
+		assertFalse(siteRecord.linkedViaRelatedHost);
+		assertEquals(MySQLHelper.HRWA_MANAGER_TODO_UPDATED, siteRecord.hrwaManagerTodo);
+
+		WebArchiveRecordLink relatedHostRecord = new WebArchiveRecordLink(11, "related.org", "text/html", null, false, null);
+		assertTrue(relinker.relink(relatedHostRecord));
+		assertEquals(Integer.valueOf(RELATED_HOST_SITE_ID), relatedHostRecord.siteId);
+		assertTrue(relatedHostRecord.linkedViaRelatedHost);
+		assertEquals(MySQLHelper.HRWA_MANAGER_TODO_UPDATED, relatedHostRecord.hrwaManagerTodo);
+	}
+
+	@Test
+	public void newlyLinkedRecordsWithUnwantedMimetypesAreNotMarkedForIndexing() {
+		WebArchiveRecordLink record = new WebArchiveRecordLink(10, "newsite.org", "image/png", null, false, null);
+
+		assertTrue(relinker.relink(record));
+		assertEquals(Integer.valueOf(NEW_SITE_ID), record.siteId);
+		assertNull(record.hrwaManagerTodo);
+	}
+
+	@Test
+	public void onlyIndexableRecordsOfUpdatedSitesAreMarkedAsUpdated() {
+		WebArchiveRecordLink htmlRecord = new WebArchiveRecordLink(10, "updatedsite.org", "text/html", UPDATED_SITE_ID, false, null);
+		assertTrue(relinker.relink(htmlRecord));
+		assertEquals(MySQLHelper.HRWA_MANAGER_TODO_UPDATED, htmlRecord.hrwaManagerTodo);
+
+		WebArchiveRecordLink imageRecord = new WebArchiveRecordLink(11, "updatedsite.org", "image/png", UPDATED_SITE_ID, false, null);
+		assertFalse(relinker.relink(imageRecord));
+		assertNull(imageRecord.hrwaManagerTodo);
+	}
+
+	@Test
+	public void pendingTodosOfRecordsThatShouldNotBeIndexedAreReset() {
+		WebArchiveRecordLink unlinkedRecord = new WebArchiveRecordLink(10, "unknown.org", "text/html", null, false, MySQLHelper.HRWA_MANAGER_TODO_UPDATED);
+		assertTrue(relinker.relink(unlinkedRecord));
+		assertNull(unlinkedRecord.hrwaManagerTodo);
+
+		WebArchiveRecordLink unknownMimetypeRecord = new WebArchiveRecordLink(11, "unchanged.org", null, UNCHANGED_SITE_ID, false, MySQLHelper.HRWA_MANAGER_TODO_UPDATED);
+		assertTrue(relinker.relink(unknownMimetypeRecord));
+		assertNull(unknownMimetypeRecord.hrwaManagerTodo);
+
+		WebArchiveRecordLink indexableRecord = new WebArchiveRecordLink(12, "unchanged.org", "text/html", UNCHANGED_SITE_ID, false, MySQLHelper.HRWA_MANAGER_TODO_UPDATED);
+		assertFalse(relinker.relink(indexableRecord));
+	}
+
+	@Test
+	public void indexableRecordsOfMetadataUpdatedSitesAreMarkedAsMetadataUpdated() {
+		HashMap<String, String> mimetypeCodesByMimetypeDetected = new HashMap<String, String>();
+		mimetypeCodesByMimetypeDetected.put("text/html", "HTML");
+		mimetypeCodesByMimetypeDetected.put("image/png", "IMAGE");
+
+		WebArchiveRecordRelinker metadataRelinker = new WebArchiveRecordRelinker(
+			new HashSet<Integer>(),
+			new HashSet<Integer>(),
+			new HashSet<Integer>(Arrays.asList(METADATA_UPDATED_SITE_ID)),
+			new HashMap<String, Integer>(),
+			new HashMap<String, Integer>(),
+			mimetypeCodesByMimetypeDetected
+		);
+		assertEquals(1, metadataRelinker.getNumberOfMetadataUpdatedSites());
+
+		WebArchiveRecordLink htmlRecord = new WebArchiveRecordLink(10, "metadatasite.org", "text/html", METADATA_UPDATED_SITE_ID, false, null);
+		assertTrue(metadataRelinker.relink(htmlRecord));
+		assertEquals(MySQLHelper.HRWA_MANAGER_TODO_METADATA_UPDATED, htmlRecord.hrwaManagerTodo);
+
+		WebArchiveRecordLink imageRecord = new WebArchiveRecordLink(11, "metadatasite.org", "image/png", METADATA_UPDATED_SITE_ID, false, null);
+		assertFalse(metadataRelinker.relink(imageRecord));
+		assertNull(imageRecord.hrwaManagerTodo);
+
+		//Records that are waiting for a full re-index keep waiting for it
+		WebArchiveRecordLink updatedRecord = new WebArchiveRecordLink(12, "metadatasite.org", "text/html", METADATA_UPDATED_SITE_ID, false, MySQLHelper.HRWA_MANAGER_TODO_UPDATED);
+		assertFalse(metadataRelinker.relink(updatedRecord));
+		assertEquals(MySQLHelper.HRWA_MANAGER_TODO_UPDATED, updatedRecord.hrwaManagerTodo);
+	}
+
+	@Test
+	public void deletedAndNoIndexRecordsAreLeftAlone() {
+		WebArchiveRecordLink deletedRecord = new WebArchiveRecordLink(10, "unknown.org", "text/html", null, false, MySQLHelper.HRWA_MANAGER_TODO_DELETE);
+		assertFalse(relinker.relink(deletedRecord));
+		assertEquals(MySQLHelper.HRWA_MANAGER_TODO_DELETE, deletedRecord.hrwaManagerTodo);
+
+		WebArchiveRecordLink noIndexRecord = new WebArchiveRecordLink(11, "newsite.org", "text/html", DELETED_SITE_ID, false, MySQLHelper.HRWA_MANAGER_TODO_NOINDEX);
+		assertFalse(relinker.relink(noIndexRecord));
+		assertEquals(Integer.valueOf(DELETED_SITE_ID), noIndexRecord.siteId);
+	}
+
+	@Test
+	public void deferredRecordsAreLinkedAndUnlinkedButStayDeferred() {
+		//No detected mimetype yet, which would otherwise reset the todo
+		WebArchiveRecordLink newSiteRecord = new WebArchiveRecordLink(10, "newsite.org", null, null, false, MySQLHelper.HRWA_MANAGER_TODO_DEFERRED);
+		assertTrue(relinker.relink(newSiteRecord));
+		assertEquals(Integer.valueOf(NEW_SITE_ID), newSiteRecord.siteId);
+		assertEquals(MySQLHelper.HRWA_MANAGER_TODO_DEFERRED, newSiteRecord.hrwaManagerTodo);
+
+		//Never made it into Solr, so there's nothing to delete
+		WebArchiveRecordLink deletedSiteRecord = new WebArchiveRecordLink(11, "deletedsite.org", null, DELETED_SITE_ID, false, MySQLHelper.HRWA_MANAGER_TODO_DEFERRED);
+		assertTrue(relinker.relink(deletedSiteRecord));
+		assertNull(deletedSiteRecord.siteId);
+		assertEquals(MySQLHelper.HRWA_MANAGER_TODO_DEFERRED, deletedSiteRecord.hrwaManagerTodo);
+
+		WebArchiveRecordLink unlinkedRecord = new WebArchiveRecordLink(12, "unknown.org", null, null, false, MySQLHelper.HRWA_MANAGER_TODO_DEFERRED);
+		assertFalse(relinker.relink(unlinkedRecord));
+		assertEquals(MySQLHelper.HRWA_MANAGER_TODO_DEFERRED, unlinkedRecord.hrwaManagerTodo);
+	}
+
+}
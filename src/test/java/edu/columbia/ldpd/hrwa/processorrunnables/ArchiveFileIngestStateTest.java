@@ -0,0 +1,61 @@
+package edu.columbia.ldpd.hrwa.processorrunnables;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ArchiveFileIngestStateTest {
+
+	@Test
+	public void finalizationWaitsForReadCompletionAndAllRecords() {
+		ArchiveFileIngestState state = new ArchiveFileIngestState("test.warc.gz");
+
+		state.recordEnqueued();
+		state.recordEnqueued();
+		state.recordWritten();
+		assertFalse(state.claimFinalization()); //still reading
+
+		state.markShardReadComplete(true);
+		assertFalse(state.claimFinalization()); //one record still in flight
+
+		state.recordWritten();
+		assertTrue(state.claimFinalization());
+		assertFalse(state.claimFinalization()); //only claimed once
+		assertFalse(state.isReadFailed());
+	}
+
+	@Test
+	public void finalizationWaitsForAllShards() {
+		ArchiveFileIngestState state = new ArchiveFileIngestState("test.warc.gz", 3);
+
+		state.markShardReadComplete(true);
+		state.markShardReadComplete(false);
+		assertFalse(state.claimFinalization());
+
+		state.markShardReadComplete(true);
+		assertTrue(state.claimFinalization());
+		assertTrue(state.isReadFailed()); //one failed shard means the whole file failed
+	}
+
+	@Test
+	public void failedReadIsReported() {
+		ArchiveFileIngestState state = new ArchiveFileIngestState("test.arc.gz");
+		state.markShardReadComplete(false);
+		assertTrue(state.claimFinalization());
+		assertTrue(state.isReadFailed());
+	}
+
+	@Test
+	public void failedWriteIsReported() {
+		ArchiveFileIngestState state = new ArchiveFileIngestState("test.warc.gz");
+		state.recordEnqueued();
+		state.markShardReadComplete(true);
+		state.markRecordWriteFailed();
+		state.recordWritten();
+		assertTrue(state.claimFinalization());
+		assertFalse(state.isReadFailed());
+		assertTrue(state.isWriteFailed());
+	}
+
+}
@@ -0,0 +1,82 @@
+package edu.columbia.ldpd.hrwa.processorrunnables;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+public class ArchiveFileShardPlannerTest {
+
+	@Test
+	public void shardsStartOnGzipMemberBoundaries() throws IOException {
+
+		File archiveFile = File.createTempFile("ARCHIVEIT-shard-test", ".warc.gz");
+		archiveFile.deleteOnExit();
+
+		HashSet<Long> memberStartOffsets = new HashSet<Long>();
+		Random random = new Random(1234);
+
+		FileOutputStream fileOutputStream = new FileOutputStream(archiveFile);
+		long offset = 0;
+		for(int i = 0; i < 40; i++) {
+			memberStartOffsets.add(Long.valueOf(offset));
+
+			//Random (incompressible) payloads make it likely that the gzip magic number shows up inside compressed data too
+			byte[] payload = new byte[2000];
+			random.nextBytes(payload);
+
+			ByteArrayOutputStream member = new ByteArrayOutputStream();
+			GZIPOutputStream gzipOutputStream = new GZIPOutputStream(member);
+			gzipOutputStream.write(("WARC/1.0\r\nWARC-Type: response\r\nWARC-Record-ID: " + i + "\r\n\r\n").getBytes("US-ASCII"));
+			gzipOutputStream.write(payload);
+			gzipOutputStream.close();
+
+			fileOutputStream.write(member.toByteArray());
+			offset += member.size();
+		}
+		fileOutputStream.close();
+
+		List<ArchiveFileShard> shards = ArchiveFileShardPlanner.planShards(archiveFile, 10000);
+
+		assertTrue(shards.size() > 1);
+		assertEquals(0, shards.get(0).getStartOffset());
+		assertEquals(archiveFile.length(), shards.get(shards.size() - 1).getEndOffset());
+
+		for(int i = 0; i < shards.size(); i++) {
+			ArchiveFileShard shard = shards.get(i);
+			assertTrue(memberStartOffsets.contains(Long.valueOf(shard.getStartOffset())));
+			assertTrue(shard.getLength() > 0);
+			if(i > 0) {
+				assertEquals(shards.get(i - 1).getEndOffset(), shard.getStartOffset());
+			}
+			//All shards of a file share one ingest state
+			assertTrue(shard.getArchiveFileIngestState() == shards.get(0).getArchiveFileIngestState());
+		}
+	}
+
+	@Test
+	public void smallFilesAreNotSplit() throws IOException {
+
+		File archiveFile = File.createTempFile("ARCHIVEIT-shard-test", ".warc.gz");
+		archiveFile.deleteOnExit();
+
+		GZIPOutputStream gzipOutputStream = new GZIPOutputStream(new FileOutputStream(archiveFile));
+		gzipOutputStream.write("WARC/1.0\r\n\r\n".getBytes("US-ASCII"));
+		gzipOutputStream.close();
+
+		List<ArchiveFileShard> shards = ArchiveFileShardPlanner.planShards(archiveFile, 256L * 1048576L);
+
+		assertEquals(1, shards.size());
+		assertTrue(shards.get(0).isWholeFile());
+	}
+
+}
@@ -0,0 +1,63 @@
+package edu.columbia.ldpd.hrwa.processorrunnables;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ArchiveFileWorkQueueTest {
+
+	@Test
+	public void openQueueIsOnlyExhaustedOnceItHasBeenClosed() throws InterruptedException {
+		ArchiveFileWorkQueue queue = new ArchiveFileWorkQueue(10);
+		assertFalse(queue.isExhausted());
+
+		queue.addFilesWithoutWaiting(Arrays.asList(new File("a.warc.gz"), new File("b.warc.gz")));
+		//A file that was found on disk and was also reported by a downloader is only read once
+		queue.addFile(new File("b.warc.gz"));
+		assertEquals(2, queue.getNumberOfRemainingFiles());
+
+		assertEquals("a.warc.gz", queue.pollFile().getName());
+		queue.filePlanningFinished();
+		assertEquals("b.warc.gz", queue.pollFile().getName());
+		queue.filePlanningFinished();
+
+		assertNull(queue.pollFile());
+		assertFalse(queue.isExhausted());
+
+		queue.close();
+		assertTrue(queue.isExhausted());
+	}
+
+	@Test
+	public void addFileWaitsUntilReadersHaveCaughtUp() throws InterruptedException {
+		final ArchiveFileWorkQueue queue = new ArchiveFileWorkQueue(1);
+		queue.addFile(new File("a.warc.gz"));
+
+		Thread downloaderThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					queue.addFile(new File("b.warc.gz"));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		downloaderThread.start();
+
+		downloaderThread.join(200);
+		assertTrue(downloaderThread.isAlive());
+		assertEquals(1, queue.getNumberOfRemainingFiles());
+
+		queue.pollFile();
+		queue.filePlanningFinished();
+		downloaderThread.join();
+		assertEquals("b.warc.gz", queue.pollFile().getName());
+	}
+
+}
@@ -0,0 +1,62 @@
+package edu.columbia.ldpd.hrwa.processorrunnables;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import edu.columbia.ldpd.hrwa.mysql.HoststringResolver;
+
+public class ArchiveRecordMaterializationFilterTest {
+
+	private final HoststringResolver hoststringResolver = createHoststringResolver();
+
+	@Test
+	public void noRulesMeansNothingIsDeferred() {
+		ArchiveRecordMaterializationFilter filter = ArchiveRecordMaterializationFilter.parse("");
+
+		assertFalse(filter.hasRules());
+		assertFalse(filter.shouldDefer("unknown.org", "image/png", hoststringResolver));
+	}
+
+	@Test
+	public void recordsOfUnlinkedHostsAreDeferred() {
+		ArchiveRecordMaterializationFilter filter = ArchiveRecordMaterializationFilter.parse("unlinkedhost");
+
+		assertTrue(filter.hasRules());
+		assertTrue(filter.shouldDefer("unknown.org", "text/html", hoststringResolver));
+		assertFalse(filter.shouldDefer("site.org", "text/html", hoststringResolver));
+		assertFalse(filter.shouldDefer("related.org", "text/html", hoststringResolver));
+	}
+
+	@Test
+	public void headerMimetypePrefixesAreMatchedCaseInsensitively() {
+		ArchiveRecordMaterializationFilter filter = ArchiveRecordMaterializationFilter.parse(" headermimetype:image/ , headermimetype:Video/,unlinkedhost");
+
+		assertTrue(filter.shouldDefer("site.org", "image/png", hoststringResolver));
+		assertTrue(filter.shouldDefer("site.org", "VIDEO/mp4", hoststringResolver));
+		assertFalse(filter.shouldDefer("site.org", "text/html; charset=utf-8", hoststringResolver));
+		assertFalse(filter.shouldDefer("site.org", null, hoststringResolver));
+
+		assertTrue(filter.isExcludedByHeaderMimetype("image/jpeg"));
+		assertFalse(filter.isExcludedByHeaderMimetype("application/pdf"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownRulesAreRejected() {
+		ArchiveRecordMaterializationFilter.parse("unlinkedhost,headermimetype:");
+	}
+
+	private static HoststringResolver createHoststringResolver() {
+		HashMap<String, Integer> siteIdsBySiteHoststring = new HashMap<String, Integer>();
+		siteIdsBySiteHoststring.put("site.org", 1);
+
+		HashMap<String, Integer> siteIdsByRelatedHost = new HashMap<String, Integer>();
+		siteIdsByRelatedHost.put("related.org", 1);
+
+		return new HoststringResolver(siteIdsBySiteHoststring, siteIdsByRelatedHost);
+	}
+
+}
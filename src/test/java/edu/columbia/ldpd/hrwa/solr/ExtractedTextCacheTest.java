@@ -0,0 +1,89 @@
+package edu.columbia.ldpd.hrwa.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExtractedTextCacheTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void cachedTextIsReadBackForTheSameDigestAndMimetype() throws Exception {
+		ExtractedTextCache cache = new ExtractedTextCache(temporaryFolder.getRoot(), 1024 * 1024);
+
+		//Longer than DataOutputStream.writeUTF() allows
+		StringBuilder contents = new StringBuilder();
+		while(contents.length() < 100000) {
+			contents.append("Droits de l'homme – 人权 ");
+		}
+		LinkedHashMap<String, List<String>> metadataFields = new LinkedHashMap<String, List<String>>();
+		metadataFields.put("title", Arrays.asList("A title"));
+		metadataFields.put("rd_author", Arrays.asList("First author", "Second author"));
+		cache.put("sha1:PD3SS4WWZVFWTDC63RU2MWX7BVC2Y2VA", "text/html", new ExtractedText(contents.toString(), metadataFields));
+		cache.put("sha1:AB3SS4WWZVFWTDC63RU2MWX7BVC2Y2VA", "application/pdf", new ExtractedText("", (String) null));
+
+		ExtractedText extractedText = cache.get("sha1:PD3SS4WWZVFWTDC63RU2MWX7BVC2Y2VA", "text/html");
+		assertEquals(contents.toString(), extractedText.getContents());
+		assertEquals("A title", extractedText.getTitle());
+		assertEquals(metadataFields, extractedText.getMetadataFields());
+
+		extractedText = cache.get("sha1:AB3SS4WWZVFWTDC63RU2MWX7BVC2Y2VA", "application/pdf");
+		assertEquals("", extractedText.getContents());
+		assertNull(extractedText.getTitle());
+		assertTrue(extractedText.getMetadataFields().isEmpty());
+
+		//Entries survive a restart
+		cache = new ExtractedTextCache(temporaryFolder.getRoot(), 1024 * 1024);
+		assertTrue(cache.getTotalSizeInBytes() > 0);
+		assertTrue(cache.contains("sha1:PD3SS4WWZVFWTDC63RU2MWX7BVC2Y2VA", "text/html"));
+	}
+
+	@Test
+	public void aDifferentMimetypeHintIsAMiss() {
+		ExtractedTextCache cache = new ExtractedTextCache(temporaryFolder.getRoot(), 1024 * 1024);
+		cache.put("sha1:PD3SS4WWZVFWTDC63RU2MWX7BVC2Y2VA", "text/html", new ExtractedText("contents", (String) null));
+
+		assertNull(cache.get("sha1:PD3SS4WWZVFWTDC63RU2MWX7BVC2Y2VA", "text/plain"));
+		assertFalse(cache.contains("sha1:PD3SS4WWZVFWTDC63RU2MWX7BVC2Y2VA", null));
+		assertNull(cache.get("sha1:XX3SS4WWZVFWTDC63RU2MWX7BVC2Y2VA", "text/html"));
+		assertNull(cache.get(null, "text/html"));
+	}
+
+	@Test
+	public void leastRecentlyUsedEntriesAreEvicted() {
+		ExtractedTextCache cache = new ExtractedTextCache(temporaryFolder.getRoot(), 1024 * 1024);
+		String[] digests = {"sha1:AAAA", "sha1:BBBB", "sha1:CCCC"};
+		long now = System.currentTimeMillis();
+		for(int i = 0; i < digests.length; i++) {
+			cache.put(digests[i], "text/html", new ExtractedText("Contents of " + digests[i], (String) null));
+			//Oldest first
+			new File(temporaryFolder.getRoot(), digests[i].substring(5, 7) + File.separator + digests[i].substring(5) + ExtractedTextCache.ENTRY_FILE_EXTENSION).setLastModified(now - (digests.length - i) * 2 * 24 * 3600000L);
+		}
+
+		//Reading an entry that hasn't been used for a day makes it the most recently used one
+		assertEquals("Contents of sha1:AAAA", cache.get("sha1:AAAA", "text/html").getContents());
+
+		//Just too small for all three entries
+		long totalSizeInBytes = cache.getTotalSizeInBytes();
+		cache = new ExtractedTextCache(temporaryFolder.getRoot(), totalSizeInBytes - 1);
+		cache.evictLeastRecentlyUsedEntries();
+
+		assertTrue(cache.contains("sha1:AAAA", "text/html"));
+		assertFalse(cache.contains("sha1:BBBB", "text/html"));
+		assertTrue(cache.contains("sha1:CCCC", "text/html"));
+		assertTrue(cache.getTotalSizeInBytes() < totalSizeInBytes);
+	}
+
+}
@@ -0,0 +1,51 @@
+package edu.columbia.ldpd.hrwa.solr;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.columbia.ldpd.hrwa.mysql.MySQLRecordIdRange;
+
+public class IndexingCheckpointTrackerTest {
+
+	@Test
+	public void checkpointOnlyMovesPastContiguousRanges() {
+		IndexingCheckpointTracker tracker = new IndexingCheckpointTracker(0);
+
+		tracker.rangeFinished(new MySQLRecordIdRange(100, 200), true);
+		tracker.rangeFinished(new MySQLRecordIdRange(200, 300), true);
+		assertEquals(0, tracker.getAcknowledgedThroughId());
+		assertEquals(0, tracker.takeAcknowledgedSuccessfulRanges().size());
+
+		tracker.rangeFinished(new MySQLRecordIdRange(0, 100), true);
+		assertEquals(300, tracker.getAcknowledgedThroughId());
+
+		List<MySQLRecordIdRange> ranges = tracker.takeAcknowledgedSuccessfulRanges();
+		assertEquals(1, ranges.size());
+		assertEquals(0, ranges.get(0).getStartId());
+		assertEquals(300, ranges.get(0).getEndId());
+
+		//Ranges are only handed out once
+		assertEquals(0, tracker.takeAcknowledgedSuccessfulRanges().size());
+	}
+
+	@Test
+	public void failedRangesAreNeverReset() {
+		IndexingCheckpointTracker tracker = new IndexingCheckpointTracker(0);
+
+		tracker.rangeFinished(new MySQLRecordIdRange(0, 100), true);
+		tracker.rangeFinished(new MySQLRecordIdRange(100, 200), false);
+		tracker.rangeFinished(new MySQLRecordIdRange(200, 300), true);
+		assertEquals(300, tracker.getAcknowledgedThroughId());
+
+		List<MySQLRecordIdRange> ranges = tracker.takeAcknowledgedSuccessfulRanges();
+		assertEquals(2, ranges.size());
+		assertEquals(0, ranges.get(0).getStartId());
+		assertEquals(100, ranges.get(0).getEndId());
+		assertEquals(200, ranges.get(1).getStartId());
+		assertEquals(300, ranges.get(1).getEndId());
+	}
+
+}
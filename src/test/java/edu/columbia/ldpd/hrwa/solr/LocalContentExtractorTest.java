@@ -0,0 +1,51 @@
+package edu.columbia.ldpd.hrwa.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.tika.metadata.Metadata;
+import org.junit.Test;
+
+public class LocalContentExtractorTest {
+
+	@Test
+	public void extractsContentsAndTitleFromHtml() throws Exception {
+		SolrInputDocument solrInputDocument = new SolrInputDocument();
+		LocalContentExtractor.extractContentIntoSolrInputDocument(solrInputDocument, "./src/test/resources/mimetype_detector/test_html.html", "text/html");
+
+		assertEquals("XXXII. From far, from eve and morning", solrInputDocument.getFieldValue("title"));
+		assertTrue(((String)solrInputDocument.getFieldValue("contents")).contains("The stuff of life to knit me"));
+	}
+
+	@Test
+	public void mapsMetadataLikeTheExtractingRequestHandler() {
+		Metadata metadata = new Metadata();
+		metadata.add("title", "A title");
+		metadata.add("Author", "First author");
+		metadata.add("Author", "Second author");
+		metadata.add("Content-Type", "application/pdf");
+		metadata.add("Last-Modified", "20130115");
+		metadata.add("Last-Modified", "not a date");
+		metadata.add("dc:title", "A title");
+		metadata.add("xmpTPg:NPages", "3");
+
+		Map<String, List<String>> metadataFields = LocalContentExtractor.mapMetadataToSolrFields(metadata);
+
+		assertEquals(Arrays.asList("A title"), metadataFields.get("title"));
+		assertEquals(Arrays.asList("First author", "Second author"), metadataFields.get("rd_author"));
+		assertEquals(Arrays.asList("application/pdf"), metadataFields.get("rd_content_type"));
+		assertEquals(Arrays.asList("2013-01-15T00:00:00.000Z"), metadataFields.get("rd_last_modified"));
+
+		//These would have gone into ignored_dc_title and ignored_xmptpg_npages
+		assertFalse(metadataFields.containsKey("dc_title"));
+		assertFalse(metadataFields.containsKey("xmptpg_npages"));
+		assertEquals(4, metadataFields.size());
+	}
+
+}
@@ -0,0 +1,87 @@
+package edu.columbia.ldpd.hrwa.util.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MemoryBudgetTest {
+
+	@Test
+	public void acquireWaitsUntilEnoughBytesAreReleased() throws Exception {
+		final MemoryBudget memoryBudget = new MemoryBudget(100);
+		long firstWeight = memoryBudget.acquire(80);
+
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					memoryBudget.acquire(50);
+					acquired.countDown();
+				} catch (InterruptedException e) {
+					//The test will fail on the latch
+				}
+			}
+		};
+		waiter.start();
+
+		assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+		memoryBudget.release(firstWeight);
+		assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		waiter.join();
+
+		assertEquals(50, memoryBudget.getBytesInUse());
+		assertEquals(1, memoryBudget.getNumberOfAcquisitionsThatWaited());
+		assertEquals(2, memoryBudget.getNumberOfAcquisitions());
+	}
+
+	@Test
+	public void requestsLargerThanTheBudgetRunAlone() throws Exception {
+		MemoryBudget memoryBudget = new MemoryBudget(100);
+
+		long hugeWeight = memoryBudget.acquire(1000000);
+		assertEquals(100, hugeWeight);
+		assertEquals(-1, memoryBudget.tryAcquire(1));
+
+		memoryBudget.release(hugeWeight);
+		assertEquals(0, memoryBudget.getBytesInUse());
+		assertEquals(100, memoryBudget.getPeakBytesInUse());
+	}
+
+	@Test
+	public void tryAcquireDoesNotJumpAheadOfWaiters() throws Exception {
+		final MemoryBudget memoryBudget = new MemoryBudget(100);
+		long firstWeight = memoryBudget.acquire(60);
+
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					memoryBudget.acquire(60);
+				} catch (InterruptedException e) {
+					//Interrupted by the test
+				}
+			}
+		};
+		waiter.start();
+		while(waiter.getState() != Thread.State.WAITING) {
+			Thread.sleep(10);
+		}
+
+		//There's room for 10 more bytes, but the waiter came first
+		assertEquals(-1, memoryBudget.tryAcquire(10));
+
+		waiter.interrupt();
+		waiter.join();
+
+		assertEquals(10, memoryBudget.tryAcquire(10));
+		memoryBudget.release(10);
+		memoryBudget.release(firstWeight);
+		assertEquals(0, memoryBudget.getBytesInUse());
+	}
+
+}
@@ -0,0 +1,50 @@
+package edu.columbia.ldpd.hrwa.util.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PerHostConnectionLimiterTest {
+
+	@Test
+	public void hostsAreTakenFromUrlsCaseInsensitively() {
+		assertEquals("partner.archive-it.org", PerHostConnectionLimiter.getHost("https://Partner.Archive-It.org/cgi-bin/getarcs.pl?coll=1068"));
+		assertEquals("", PerHostConnectionLimiter.getHost("not a url"));
+	}
+
+	@Test
+	public void connectionsToABusyHostWaitWhileOtherHostsDoNot() throws Exception {
+		final PerHostConnectionLimiter limiter = new PerHostConnectionLimiter(1);
+		String busyHost = limiter.acquire("https://one.example.org/a.warc.gz");
+
+		//A different host isn't affected
+		String otherHost = limiter.acquire("https://two.example.org/b.warc.gz");
+		limiter.release(otherHost);
+
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					limiter.acquire("https://ONE.example.org/c.warc.gz");
+					acquired.countDown();
+				} catch (InterruptedException e) {
+					//The test will fail on the latch
+				}
+			}
+		};
+		waiter.start();
+
+		assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(1, limiter.getNumberOfConnectionsInUse(busyHost));
+
+		limiter.release(busyHost);
+		assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		waiter.join();
+	}
+
+}
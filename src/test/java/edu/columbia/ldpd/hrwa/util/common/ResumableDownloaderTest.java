@@ -0,0 +1,208 @@
+package edu.columbia.ldpd.hrwa.util.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ResumableDownloaderTest {
+
+	private static final String ETAG = "\"abc123\"";
+
+	private final byte[] fileContent = new byte[3 * 1048576 + 12345];
+
+	private HttpServer server;
+	private String url;
+	private File tempDir;
+	private File partialDownloadFile;
+
+	//Test server behaviour
+	private boolean supportsRanges = true;
+	private int numResponsesToCutShort = 0;
+	private final List<String> receivedRangeHeaders = new ArrayList<String>();
+	private final List<String> receivedAuthorizationHeaders = new ArrayList<String>();
+
+	@Before
+	public void startServer() throws IOException {
+		new Random(42).nextBytes(fileContent);
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/file.warc.gz", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String range = exchange.getRequestHeaders().getFirst("Range");
+				receivedRangeHeaders.add(range);
+				receivedAuthorizationHeaders.add(exchange.getRequestHeaders().getFirst("Authorization"));
+
+				int start = 0;
+				if(range != null && supportsRanges && ETAG.equals(exchange.getRequestHeaders().getFirst("If-Range"))) {
+					start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+					exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (fileContent.length - 1) + "/" + fileContent.length);
+				}
+				exchange.getResponseHeaders().add("ETag", ETAG);
+				exchange.sendResponseHeaders(start > 0 ? 206 : 200, fileContent.length - start);
+
+				int end = fileContent.length;
+				if(numResponsesToCutShort > 0) {
+					numResponsesToCutShort--;
+					end = start + (end - start) / 2;
+				}
+
+				OutputStream responseBody = exchange.getResponseBody();
+				try {
+					responseBody.write(fileContent, start, end - start);
+					responseBody.flush();
+				} catch (IOException e) {
+					//The client gave up
+				}
+				//Closing the exchange early drops the connection in the middle of the body
+				exchange.close();
+			}
+		});
+		server.start();
+
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file.warc.gz";
+
+		tempDir = File.createTempFile("hrwa-resumable-downloader-test", "");
+		tempDir.delete();
+		tempDir.mkdirs();
+		partialDownloadFile = new File(tempDir, "file.warc.gz.part");
+	}
+
+	private static void addRedirect(HttpServer server, String path, final String location) {
+		server.createContext(path, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().add("Location", location);
+				exchange.sendResponseHeaders(302, -1);
+				exchange.close();
+			}
+		});
+	}
+
+	@After
+	public void stopServer() throws IOException {
+		server.stop(0);
+		FileUtils.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void downloadsTheWholeFileAndComputesItsDigest() throws Exception {
+		ResumableDownloader.DownloadResult downloadResult = new ResumableDownloader(null, null, false, 1, 0, null).download(url, partialDownloadFile);
+
+		assertEquals(DigestUtils.md5Hex(fileContent), downloadResult.getMD5Hex());
+		assertEquals(fileContent.length, downloadResult.getLength());
+		assertTrue(downloadResult.isLengthVerified());
+		assertTrue(Arrays.equals(fileContent, FileUtils.readFileToByteArray(partialDownloadFile)));
+		assertFalse(ResumableDownloader.getPartialDownloadStateFile(partialDownloadFile).exists());
+	}
+
+	@Test
+	public void interruptedTransfersAreResumedWithRangeRequests() throws Exception {
+		numResponsesToCutShort = 1;
+
+		ResumableDownloader.DownloadResult downloadResult = new ResumableDownloader(null, null, false, 2, 0, null).download(url, partialDownloadFile);
+
+		assertEquals(DigestUtils.md5Hex(fileContent), downloadResult.getMD5Hex());
+		assertTrue(Arrays.equals(fileContent, FileUtils.readFileToByteArray(partialDownloadFile)));
+		assertEquals(2, receivedRangeHeaders.size());
+		assertEquals(null, receivedRangeHeaders.get(0));
+		assertTrue(receivedRangeHeaders.get(1).startsWith("bytes="));
+	}
+
+	@Test
+	public void partialDownloadsFromAnEarlierRunAreResumed() throws Exception {
+		writePartialDownloadFromEarlierRun(1048576);
+
+		ResumableDownloader.DownloadResult downloadResult = new ResumableDownloader(null, null, false, 1, 0, null).download(url, partialDownloadFile);
+
+		assertEquals(DigestUtils.md5Hex(fileContent), downloadResult.getMD5Hex());
+		assertEquals(Arrays.asList("bytes=1048576-"), receivedRangeHeaders);
+	}
+
+	@Test
+	public void downloadStartsOverWhenTheServerIgnoresRanges() throws Exception {
+		supportsRanges = false;
+		writePartialDownloadFromEarlierRun(1048576);
+
+		ResumableDownloader.DownloadResult downloadResult = new ResumableDownloader(null, null, false, 1, 0, null).download(url, partialDownloadFile);
+
+		assertEquals(DigestUtils.md5Hex(fileContent), downloadResult.getMD5Hex());
+		assertTrue(Arrays.equals(fileContent, FileUtils.readFileToByteArray(partialDownloadFile)));
+	}
+
+	@Test
+	public void redirectsToTheSameHostKeepTheCredentials() throws Exception {
+		addRedirect(server, "/redirect", "/file.warc.gz");
+		String redirectUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/redirect";
+
+		ResumableDownloader.DownloadResult downloadResult = new ResumableDownloader("user", "password", false, 1, 0, null).download(redirectUrl, partialDownloadFile);
+
+		assertEquals(DigestUtils.md5Hex(fileContent), downloadResult.getMD5Hex());
+		assertEquals(1, receivedAuthorizationHeaders.size());
+		assertNotNull(receivedAuthorizationHeaders.get(0));
+	}
+
+	@Test
+	public void credentialsAreNotSentToOtherHosts() throws Exception {
+		//The same server, under a different host name
+		HttpServer otherHostServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("localhost"), 0), 0);
+		addRedirect(otherHostServer, "/redirect", url);
+		otherHostServer.start();
+		try {
+			String redirectUrl = "http://localhost:" + otherHostServer.getAddress().getPort() + "/redirect";
+
+			ResumableDownloader.DownloadResult downloadResult = new ResumableDownloader("user", "password", false, 1, 0, null).download(redirectUrl, partialDownloadFile);
+
+			assertEquals(DigestUtils.md5Hex(fileContent), downloadResult.getMD5Hex());
+			assertEquals(1, receivedAuthorizationHeaders.size());
+			assertNull(receivedAuthorizationHeaders.get(0));
+		} finally {
+			otherHostServer.stop(0);
+		}
+	}
+
+	@Test(expected = ResumableDownloader.HttpStatusException.class)
+	public void redirectLoopsFail() throws Exception {
+		addRedirect(server, "/redirect", "/redirect");
+		String redirectUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/redirect";
+
+		new ResumableDownloader(null, null, false, 1, 0, null).download(redirectUrl, partialDownloadFile);
+	}
+
+	private void writePartialDownloadFromEarlierRun(int numBytes) throws IOException {
+		FileOutputStream partialDownloadFileOutputStream = new FileOutputStream(partialDownloadFile);
+		partialDownloadFileOutputStream.write(fileContent, 0, numBytes);
+		partialDownloadFileOutputStream.close();
+
+		Properties state = new Properties();
+		state.setProperty("url", url);
+		state.setProperty("etag", ETAG);
+		state.setProperty("totalLength", String.valueOf(fileContent.length));
+		FileOutputStream stateFileOutputStream = new FileOutputStream(ResumableDownloader.getPartialDownloadStateFile(partialDownloadFile));
+		state.store(stateFileOutputStream, null);
+		stateFileOutputStream.close();
+	}
+
+}